@@ -0,0 +1,104 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import java.util.Arrays;
+
+/**
+ * LatencyStats collects the latencies of requests and the time they took altogether, for the throughput and latency
+ * percentiles of a load test. Percentiles are nearest-rank, so p99 of 100 latencies is the 99th smallest.
+ *
+ * Not thread safe, meant to be fed from the thread the replies arrive on.
+ */
+public class LatencyStats {
+
+    private long[] mLatencies = new long[64];
+    private int mCount;
+    private int mFailedCount;
+    private boolean mSorted = true;
+    private long mStartNanos = -1;
+    private long mEndNanos = -1;
+
+
+    /**
+     * Starts the wall clock the throughput is measured by.
+     * @param nanos - time the first request was sent, in System.nanoTime().
+     */
+    public void start(long nanos) {
+        mStartNanos = nanos;
+    }
+
+    /**
+     * @param latencyNanos - time from sending the request to its reply.
+     * @param success - false if the request failed; failed requests count for the latency but not the throughput.
+     * @param nanos - time the reply arrived, in System.nanoTime().
+     */
+    public void record(long latencyNanos, boolean success, long nanos) {
+
+        if (mCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+        }
+        mLatencies[mCount++] = latencyNanos;
+        mSorted = false;
+
+        if (!success) {
+            mFailedCount++;
+        }
+        mEndNanos = Math.max(mEndNanos, nanos);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return successful requests per second from the start to the last reply, 0 before any.
+     */
+    public double getThroughput() {
+        long wallNanos = mEndNanos - mStartNanos;
+        if (mStartNanos < 0 || wallNanos <= 0) {
+            return 0;
+        }
+        return (mCount - mFailedCount) * 1e9 / wallNanos;
+    }
+
+    /**
+     * @param percentile - from 0 (exclusive) to 100.
+     * @return latency that the given percentage of the requests did not exceed, in milliseconds. 0 before any request.
+     */
+    public double getPercentileMillis(double percentile) {
+
+        if (mCount == 0) {
+            return 0;
+        }
+
+        if (!mSorted) {
+            Arrays.sort(mLatencies, 0, mCount);
+            mSorted = true;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return mLatencies[Math.max(0, Math.min(mCount, rank) - 1)] / 1e6;
+    }
+
+    public double getMeanMillis() {
+
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mLatencies[i];
+        }
+        return sum / 1e6 / mCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests (%d failed), %.1f/s, mean %.1f ms, p50 %.1f ms, p99 %.1f ms",
+                mCount, mFailedCount, getThroughput(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99));
+    }
+}
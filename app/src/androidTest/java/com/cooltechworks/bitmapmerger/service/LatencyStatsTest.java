@@ -0,0 +1,58 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import junit.framework.TestCase;
+
+public class LatencyStatsTest extends TestCase {
+
+    private static final long MILLIS = 1000000L;
+
+    public void testPercentilesAreNearestRank() {
+
+        LatencyStats stats = new LatencyStats();
+        // 1 to 100 ms, recorded out of order.
+        for (int i = 0; i < 100; i++) {
+            stats.record(((i * 37) % 100 + 1) * MILLIS, true, 0);
+        }
+
+        assertEquals(100, stats.getCount());
+        assertEquals(50.0, stats.getPercentileMillis(50), 0);
+        assertEquals(99.0, stats.getPercentileMillis(99), 0);
+        assertEquals(100.0, stats.getPercentileMillis(100), 0);
+        assertEquals(1.0, stats.getPercentileMillis(0.5), 0);
+        assertEquals(50.5, stats.getMeanMillis(), 1e-9);
+    }
+
+    public void testP99OfFewRequestsIsTheSlowest() {
+
+        LatencyStats stats = new LatencyStats();
+        stats.record(3 * MILLIS, true, 0);
+        stats.record(40 * MILLIS, true, 0);
+        stats.record(5 * MILLIS, true, 0);
+
+        assertEquals(40.0, stats.getPercentileMillis(99), 0);
+        assertEquals(5.0, stats.getPercentileMillis(50), 0);
+    }
+
+    public void testThroughputCountsSuccessfulRequestsOverTheWallClock() {
+
+        LatencyStats stats = new LatencyStats();
+        stats.start(1000 * MILLIS);
+
+        for (int i = 1; i <= 8; i++) {
+            stats.record(10 * MILLIS, i != 8, (1000 + i * 250) * MILLIS);
+        }
+
+        // 7 successful requests in 2 seconds.
+        assertEquals(1, stats.getFailedCount());
+        assertEquals(3.5, stats.getThroughput(), 1e-9);
+    }
+
+    public void testEmptyStatsAreZero() {
+
+        LatencyStats stats = new LatencyStats();
+
+        assertEquals(0, stats.getCount());
+        assertEquals(0.0, stats.getPercentileMillis(99), 0);
+        assertEquals(0.0, stats.getThroughput(), 0);
+    }
+}
@@ -0,0 +1,197 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MergeLoadTest measures a {@link MergeService} through a connected {@link MergeServiceClient} - throughput and latency
+ * percentiles at increasing concurrency, one level after the other. At each level the given number of requests is kept
+ * in flight, the next request sent as soon as one is replied to, until the requests of the level are done.
+ *
+ * Every request merges the same images and writes to a file of its own in the output directory, deleted once replied to.
+ * Used from the main thread, like the client.
+ */
+public class MergeLoadTest {
+
+    private static final String TAG = "MergeLoadTest";
+
+    public static final int[] DEFAULT_CONCURRENCY = {1, 2, 4, 8, 16};
+    public static final int DEFAULT_REQUESTS_PER_LEVEL = 32;
+
+    public interface OnLoadTestListener {
+
+        /**
+         * @param concurrency - requests kept in flight at the level.
+         * @param stats - latencies and throughput of the level.
+         */
+        void onLevelDone(MergeLoadTest test, int concurrency, LatencyStats stats);
+
+        void onLoadTestDone(MergeLoadTest test);
+    }
+
+    private final MergeServiceClient mClient;
+    private final Uri mBaseUri;
+    private final Uri mMergeUri;
+    private final MergeSpec mSpec;
+    private final File mOutputDirectory;
+    private int[] mConcurrency = DEFAULT_CONCURRENCY;
+    private int mRequestsPerLevel = DEFAULT_REQUESTS_PER_LEVEL;
+    private OnLoadTestListener mListener;
+
+    private final List<LatencyStats> mResults = new ArrayList<LatencyStats>();
+    private final Map<Integer, File> mOutputs = new HashMap<Integer, File>();
+    private int mLevel = -1;
+    private LatencyStats mStats;
+    private int mSentCount;
+
+    private final MergeServiceClient.OnMergeDoneListener mReplyListener = new MergeServiceClient.OnMergeDoneListener() {
+        @Override
+        public void onMergeDone(MergeServiceClient client, MergeServiceClient.MergeReply reply) {
+
+            File output = mOutputs.remove(reply.getRequestId());
+            if (output != null) {
+                output.delete();
+            }
+
+            mStats.record(reply.getLatencyNanos(), reply.isSuccess(), System.nanoTime());
+            sendOrFinish();
+        }
+    };
+
+
+    /**
+     * @param client - client connected to the service.
+     * @param baseUri - base image of every request.
+     * @param mergeUri - merge image of every request.
+     * @param spec - spec of every request.
+     * @param outputDirectory - directory the merged images are written to.
+     */
+    public MergeLoadTest(MergeServiceClient client, Uri baseUri, Uri mergeUri, MergeSpec spec, File outputDirectory) {
+        this.mClient = client;
+        this.mBaseUri = baseUri;
+        this.mMergeUri = mergeUri;
+        this.mSpec = spec;
+        this.mOutputDirectory = outputDirectory;
+    }
+
+    /**
+     * @param concurrency - requests in flight at each level, in the order the levels are run.
+     * @return the related MergeLoadTest
+     */
+    public MergeLoadTest setConcurrency(int... concurrency) {
+        this.mConcurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param requests - requests sent at each level.
+     * @return the related MergeLoadTest
+     */
+    public MergeLoadTest setRequestsPerLevel(int requests) {
+        this.mRequestsPerLevel = requests;
+        return this;
+    }
+
+    public MergeLoadTest setListener(OnLoadTestListener listener) {
+        this.mListener = listener;
+        return this;
+    }
+
+    /**
+     * Starts the first level.
+     */
+    public void start() {
+
+        if (mLevel >= 0) {
+            throw new IllegalStateException("Load test already started");
+        }
+
+        mOutputDirectory.mkdirs();
+        startLevel(0);
+    }
+
+    /**
+     * @return stats of the levels done so far, in the order of {@link #setConcurrency(int...)}.
+     */
+    public List<LatencyStats> getResults() {
+        return mResults;
+    }
+
+    /**
+     * @return one line per level done so far, with its concurrency, throughput and latencies.
+     */
+    public String getReport() {
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mResults.size(); i++) {
+            builder.append("concurrency ").append(mConcurrency[i]).append(": ").append(mResults.get(i)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void startLevel(int level) {
+
+        mLevel = level;
+        mStats = new LatencyStats();
+        mSentCount = 0;
+        mStats.start(System.nanoTime());
+
+        for (int i = 0; i < mConcurrency[level] && mSentCount < mRequestsPerLevel; i++) {
+            send();
+        }
+    }
+
+    private void sendOrFinish() {
+
+        if (mSentCount < mRequestsPerLevel) {
+            send();
+            return;
+        }
+
+        if (mStats.getCount() < mRequestsPerLevel) {
+            // waiting for the requests still in flight.
+            return;
+        }
+
+        mResults.add(mStats);
+        Log.i(TAG, "concurrency " + mConcurrency[mLevel] + ": " + mStats);
+        if (mListener != null) {
+            mListener.onLevelDone(this, mConcurrency[mLevel], mStats);
+        }
+
+        if (mLevel + 1 < mConcurrency.length) {
+            startLevel(mLevel + 1);
+        } else if (mListener != null) {
+            mListener.onLoadTestDone(this);
+        }
+    }
+
+    private void send() {
+
+        File output = new File(mOutputDirectory, "load_" + mLevel + "_" + mSentCount + ".out");
+        mSentCount++;
+        long sentNanos = System.nanoTime();
+
+        try {
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(output,
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+            int requestId = mClient.merge(mBaseUri, mMergeUri, mSpec, descriptor, mReplyListener);
+            mOutputs.put(requestId, output);
+
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Could not open " + output, e);
+            mStats.record(System.nanoTime() - sentNanos, false, System.nanoTime());
+            sendOrFinish();
+        }
+    }
+}
@@ -3,22 +3,55 @@ package com.cooltechworks.bitmapmerger;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.Toast;
 
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.tasks.BitmapEncoderTask;
 import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
 import com.cooltechworks.bitmapmerger.ui.fragments.BitmapAngleFragment;
 import com.cooltechworks.bitmapmerger.ui.fragments.BitmapCenterFragment;
+import com.cooltechworks.bitmapmerger.ui.fragments.BitmapMergeFragment;
 import com.cooltechworks.bitmapmerger.ui.fragments.BitmapOffsetFragment;
+import com.cooltechworks.bitmapmerger.ui.fragments.ImageSession;
 
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.getDefault().mark(StartupTrace.Mark.ACTIVITY_CREATE);
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        showFragment(BitmapMergerTask.BitmapMergeOptions.MERGE_AT_CENTER);
+        BitmapTracker.getDefault().setDebug(BuildConfig.DEBUG);
+        onFirstFrame();
+
+        if (savedInstanceState == null) {
+            showFragment(BitmapMergerTask.BitmapMergeOptions.MERGE_AT_CENTER);
+        } else {
+            // the fragment manager creates the shown fragment again, previewing the images of the session.
+            ImageSession.getDefault().onModeSwitch();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // only called from Ice Cream Sandwich onwards, earlier versions get onLowMemory() alone.
+        super.onTrimMemory(level);
+        MemoryGovernor.getDefault().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.getDefault().onLowMemory();
     }
 
     @Override
@@ -44,15 +77,75 @@ public class MainActivity extends AppCompatActivity {
                 break;
             case R.id.action_center:
                 showFragment(BitmapMergerTask.BitmapMergeOptions.MERGE_AT_CENTER);
+                break;
+            case R.id.action_save:
+                saveMergedImage();
         }
 
         return super.onOptionsItemSelected(item);
     }
 
+    private void saveMergedImage() {
+
+        Fragment fragment = getSupportFragmentManager().findFragmentById(R.id.fragment_container);
+
+        boolean exporting = fragment instanceof BitmapMergeFragment && ((BitmapMergeFragment) fragment).export(new BitmapEncoderTask.OnEncodeListener() {
+            @Override
+            public void onEncode(BitmapEncoderTask task, BitmapEncoderTask.EncodeResult result) {
+
+                if (result.isSuccess()) {
+                    Toast.makeText(MainActivity.this, getString(R.string.saved_merged, result.getOutputFile().getName(),
+                            result.getEncodedBytes() / 1024, result.getEncodeTimeMillis()), Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(MainActivity.this, R.string.save_failed, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+
+        if (!exporting) {
+            Toast.makeText(this, R.string.pick_both_images, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Marks the first frame and, once it is drawn, sets up the decoding infrastructure in the background.
+     */
+    private void onFirstFrame() {
+
+        if (StartupTrace.getDefault().isMarked(StartupTrace.Mark.FIRST_FRAME)) {
+            return;
+        }
+
+        final View decorView = getWindow().getDecorView();
+
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+
+                StartupTrace.getDefault().mark(StartupTrace.Mark.FIRST_FRAME);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "first frame: " + StartupTrace.getDefault().getMillis(StartupTrace.Mark.FIRST_FRAME) + " ms");
+                }
+
+                // posted, so that it runs after the frame is drawn.
+                decorView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        MergerApplication.prewarm();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
     private void showFragment(BitmapMergerTask.BitmapMergeOptions mergeOptions) {
 
         Fragment fragment;
 
+        ImageSession.getDefault().onModeSwitch();
+
         switch (mergeOptions) {
             case MERGE_AT_ANGLE_OFF:
                 fragment = new BitmapAngleFragment();
@@ -0,0 +1,51 @@
+package com.cooltechworks.bitmapmerger;
+
+import android.app.Application;
+import android.os.Process;
+
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.tasks.BitmapDecoderTask;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.PairDecoderTask;
+
+/**
+ * MergerApplication marks the start of the process for the {@link StartupTrace}, and leaves everything else for later -
+ * the decoding and merging infrastructure is set up on first use, or by {@link #prewarm()} once the first frame is up.
+ */
+public class MergerApplication extends Application {
+
+    private static boolean sPrewarmed;
+
+    @Override
+    public void onCreate() {
+        StartupTrace.getDefault().mark(StartupTrace.Mark.PROCESS_START);
+        super.onCreate();
+    }
+
+    /**
+     * Sets up the decoding and merging infrastructure on a background thread, so that the first decode does not pay for it.
+     * To be called from the main thread once the first frame is drawn, later calls do nothing.
+     */
+    public static void prewarm() {
+
+        if (sPrewarmed) {
+            return;
+        }
+        sPrewarmed = true;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                // the governor and its pool, the decoder statics and the placement tables.
+                MemoryGovernor.getDefault();
+                BitmapDecoderTask.getDecodeCount();
+                MergeSpec.atAngle(0.5f, 0);
+
+                PairDecoderTask.prestartThreads();
+            }
+        }, "Prewarm");
+        thread.start();
+    }
+}
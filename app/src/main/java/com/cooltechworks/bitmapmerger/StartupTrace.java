@@ -0,0 +1,85 @@
+package com.cooltechworks.bitmapmerger;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * StartupTrace records when the app got through the steps of its startup, from the start of the process to the first
+ * frame and to the first preview compositing both images. Each mark is recorded once, the first time it is reached, in
+ * {@link SystemClock#uptimeMillis()}.
+ *
+ * Only to be used from the main thread.
+ */
+public final class StartupTrace {
+
+    public enum Mark {
+        /** the application object is created, the earliest the app can tell. */
+        PROCESS_START,
+        /** the activity is created. */
+        ACTIVITY_CREATE,
+        /** the first frame of the activity is about to be drawn. */
+        FIRST_FRAME,
+        /** the first preview of a merge is about to be drawn. */
+        FIRST_COMPOSITE,
+    }
+
+    private static final StartupTrace DEFAULT = new StartupTrace();
+
+    private final long[] mUptimes = new long[Mark.values().length];
+
+
+    private StartupTrace() {
+        for (int i = 0; i < mUptimes.length; i++) {
+            mUptimes[i] = -1;
+        }
+    }
+
+    public static StartupTrace getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records the mark, unless it has been recorded before.
+     * @return true if the mark was recorded now.
+     */
+    public boolean mark(Mark mark) {
+
+        if (mUptimes[mark.ordinal()] >= 0) {
+            return false;
+        }
+
+        mUptimes[mark.ordinal()] = SystemClock.uptimeMillis();
+        return true;
+    }
+
+    public boolean isMarked(Mark mark) {
+        return mUptimes[mark.ordinal()] >= 0;
+    }
+
+    /**
+     * @return time from the start of the process to the mark in milliseconds, -1 if either is not recorded.
+     */
+    public long getMillis(Mark mark) {
+
+        long start = mUptimes[Mark.PROCESS_START.ordinal()];
+        long uptime = mUptimes[mark.ordinal()];
+
+        return start >= 0 && uptime >= 0 ? uptime - start : -1;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder("StartupTrace{");
+        for (Mark mark : Mark.values()) {
+            if (mark != Mark.PROCESS_START) {
+                if (builder.length() > "StartupTrace{".length()) {
+                    builder.append(", ");
+                }
+                builder.append(mark.name().toLowerCase(Locale.US)).append('=').append(getMillis(mark)).append("ms");
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
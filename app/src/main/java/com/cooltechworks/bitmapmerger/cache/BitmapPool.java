@@ -0,0 +1,157 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BitmapPool keeps released mutable bitmaps for reuse, keyed by their width, height and config, so that repeated merges of
+ * the same size draw into an existing bitmap instead of allocating a new one every time.
+ *
+ * The pool is bounded in bytes; when full, the least recently pooled bitmaps are recycled. It is safe to use from the
+ * background tasks and the UI thread at the same time.
+ */
+public class BitmapPool implements MemoryGovernor.Trimmable {
+
+    private final Map<String, List<Bitmap>> mPool = new HashMap<String, List<Bitmap>>();
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>(); // oldest first
+    private int mMaxBytes;
+    private int mBytes;
+    private int mHits, mMisses;
+
+
+    /**
+     * @param maxBytes - maximum number of bytes of bitmaps kept in the pool.
+     */
+    public BitmapPool(int maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a bitmap of the given size and config out of the pool. The content of the bitmap is undefined.
+     * @param width - required width.
+     * @param height - required height.
+     * @param config - required config.
+     * @return a mutable pooled bitmap, or null if there is none of that size.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+
+        List<Bitmap> bitmaps = mPool.get(key(width, height, config));
+
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            mMisses++;
+            return null;
+        }
+
+        Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        mOrder.remove(bitmap);
+        mBytes -= getByteCount(bitmap);
+        mHits++;
+
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap to the pool. Immutable or recycled bitmaps are not pooled.
+     * @param bitmap - bitmap no longer used by anyone.
+     * @return true if the bitmap was pooled, false if the caller is still responsible for it.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        int bytes = getByteCount(bitmap);
+        if (bytes > mMaxBytes) {
+            return false;
+        }
+
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        List<Bitmap> bitmaps = mPool.get(key);
+
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<Bitmap>();
+            mPool.put(key, bitmaps);
+        }
+
+        bitmaps.add(bitmap);
+        mOrder.addLast(bitmap);
+        mBytes += bytes;
+
+        trimToSize(mMaxBytes);
+
+        return true;
+    }
+
+    /**
+     * Recycles pooled bitmaps, oldest first, until the pool holds at most the given number of bytes.
+     * @param maxBytes - number of bytes to trim to.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+
+        while (mBytes > maxBytes && !mOrder.isEmpty()) {
+
+            Bitmap bitmap = mOrder.removeFirst();
+            mPool.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+            mBytes -= getByteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles the oldest pooled bitmaps, keeping the given fraction of the bytes currently pooled.
+     * @param keepFraction - fraction of the pooled bytes to keep.
+     */
+    @Override
+    public synchronized void trimMemory(float keepFraction) {
+        trimToSize((int) (mBytes * keepFraction));
+    }
+
+    /**
+     * Recycles all the pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        this.mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return number of bytes of bitmaps currently in the pool.
+     */
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @param bitmap - a bitmap.
+     * @return the number of bytes used by the pixels of the bitmap (Bitmap.getByteCount() is not available before API 12).
+     */
+    public static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
@@ -0,0 +1,87 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.graphics.Bitmap;
+
+/**
+ * BitmapRef is a reference counted handle to a bitmap created by the decoder or the merger. Every holder of the bitmap
+ * {@link #acquire()}s the handle and {@link #release()}s it once it no longer uses the bitmap; when the last holder releases it,
+ * the bitmap is returned to the pool of its {@link BitmapTracker} or recycled right away.
+ *
+ * Recycling explicitly matters on pre-Honeycomb devices, where the pixels live on the native heap and are otherwise freed only
+ * when the finalizer of the bitmap happens to run.
+ */
+public final class BitmapRef {
+
+    private final BitmapTracker mTracker;
+    private final int mByteCount;
+    private Bitmap mBitmap;
+    private int mRefCount = 1;
+    BitmapTracker.TrackedRef mTracked;
+
+
+    BitmapRef(BitmapTracker tracker, Bitmap bitmap) {
+        this.mTracker = tracker;
+        this.mBitmap = bitmap;
+        this.mByteCount = BitmapPool.getByteCount(bitmap);
+    }
+
+    /**
+     * @return the bitmap, or null once the handle is fully released.
+     */
+    public synchronized Bitmap get() {
+        return mBitmap;
+    }
+
+    /**
+     * Adds a holder of the bitmap.
+     * @return this handle.
+     * @throws IllegalStateException if the handle is already fully released.
+     */
+    public synchronized BitmapRef acquire() {
+
+        if (mRefCount <= 0) {
+            throw new IllegalStateException("BitmapRef already released");
+        }
+
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * Removes a holder of the bitmap. The bitmap must not be used by the caller afterwards.
+     */
+    public void release() {
+
+        Bitmap bitmap;
+
+        synchronized (this) {
+
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("BitmapRef released more often than acquired");
+            }
+
+            if (--mRefCount > 0) {
+                return;
+            }
+
+            bitmap = mBitmap;
+            mBitmap = null;
+        }
+
+        mTracker.onReleased(this, bitmap);
+    }
+
+    /**
+     * @return the number of holders of the bitmap.
+     */
+    public synchronized int getRefCount() {
+        return mRefCount;
+    }
+
+    /**
+     * @return bytes used by the pixels of the bitmap.
+     */
+    public int getByteCount() {
+        return mByteCount;
+    }
+}
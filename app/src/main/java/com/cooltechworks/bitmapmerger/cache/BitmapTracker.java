@@ -0,0 +1,170 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * BitmapTracker hands out {@link BitmapRef}s for bitmaps and keeps count of the live ones, i.e. the ones not yet fully released.
+ *
+ * The tracker only holds weak references to the handles. In debug mode it records where each handle was created and, when a
+ * handle is garbage collected without having been released, logs it as a leak along with that stack trace.
+ */
+public class BitmapTracker {
+
+    private static final String TAG = "BitmapTracker";
+
+    private static final BitmapTracker DEFAULT = new BitmapTracker(new BitmapPool(8 * 1024 * 1024));
+
+    private final BitmapPool mPool;
+    private final ReferenceQueue<BitmapRef> mQueue = new ReferenceQueue<BitmapRef>();
+    private final Set<TrackedRef> mLive = new HashSet<TrackedRef>();
+    private long mLiveBytes;
+    private int mLeakCount;
+    private volatile boolean mDebug;
+
+
+    /**
+     * @param pool - pool released mutable bitmaps are returned to, null for recycling them right away.
+     */
+    public BitmapTracker(BitmapPool pool) {
+        this.mPool = pool;
+    }
+
+    /**
+     * @return the tracker shared by the decoder and merger tasks, backed by an 8MB pool.
+     */
+    public static BitmapTracker getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the pool of this tracker, may be null.
+     */
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * In debug mode, the creation stack trace of every handle is kept for reporting it if the handle leaks.
+     * @param debug - true to enable leak reporting with stack traces.
+     */
+    public void setDebug(boolean debug) {
+        this.mDebug = debug;
+    }
+
+    /**
+     * Starts tracking a bitmap.
+     * @param bitmap - a bitmap nobody else is going to recycle.
+     * @return a handle with one holder, the caller.
+     */
+    public BitmapRef track(Bitmap bitmap) {
+
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Cannot track a null bitmap");
+        }
+
+        BitmapRef ref = new BitmapRef(this, bitmap);
+        Throwable origin = mDebug ? new Throwable("BitmapRef created here") : null;
+
+        synchronized (this) {
+            pollLeaks();
+            ref.mTracked = new TrackedRef(ref, mQueue, origin);
+            mLive.add(ref.mTracked);
+            mLiveBytes += ref.getByteCount();
+        }
+
+        return ref;
+    }
+
+    /**
+     * Takes a mutable bitmap from the pool if there is one of the size, or allocates one otherwise.
+     * @param width - required width.
+     * @param height - required height.
+     * @param config - required config.
+     * @return a mutable bitmap with undefined content, not tracked yet.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+
+        Bitmap bitmap = mPool != null ? mPool.get(width, height, config) : null;
+
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * @return bytes of bitmaps whose handles are not yet fully released.
+     */
+    public synchronized long getLiveBytes() {
+        pollLeaks();
+        return mLiveBytes;
+    }
+
+    /**
+     * @return number of handles not yet fully released.
+     */
+    public synchronized int getLiveCount() {
+        pollLeaks();
+        return mLive.size();
+    }
+
+    /**
+     * @return number of handles that were garbage collected without being released.
+     */
+    public synchronized int getLeakCount() {
+        pollLeaks();
+        return mLeakCount;
+    }
+
+    void onReleased(BitmapRef ref, Bitmap bitmap) {
+
+        synchronized (this) {
+            if (mLive.remove(ref.mTracked)) {
+                ref.mTracked.clear();
+                mLiveBytes -= ref.getByteCount();
+            }
+            pollLeaks();
+        }
+
+        if (mPool == null || !mPool.put(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    private void pollLeaks() {
+
+        Reference<? extends BitmapRef> reference;
+
+        while ((reference = mQueue.poll()) != null) {
+
+            TrackedRef tracked = (TrackedRef) reference;
+
+            if (mLive.remove(tracked)) {
+                mLiveBytes -= tracked.mByteCount;
+                mLeakCount++;
+
+                if (tracked.mOrigin != null) {
+                    Log.w(TAG, "BitmapRef of " + tracked.mByteCount + " bytes was never released", tracked.mOrigin);
+                } else if (mDebug) {
+                    Log.w(TAG, "BitmapRef of " + tracked.mByteCount + " bytes was never released");
+                }
+            }
+        }
+    }
+
+    static class TrackedRef extends WeakReference<BitmapRef> {
+
+        private final int mByteCount;
+        private final Throwable mOrigin;
+
+        TrackedRef(BitmapRef ref, ReferenceQueue<BitmapRef> queue, Throwable origin) {
+            super(ref, queue);
+            this.mByteCount = ref.getByteCount();
+            this.mOrigin = origin;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ContentHash computes a SHA-1 hash of the pixels of a bitmap, so that equal images give equal hashes regardless of the
+ * bitmap instance holding them.
+ *
+ * The pixels are read a row at a time. From Honeycomb MR1 onwards the hash of a bitmap is remembered along with its
+ * generation id, so hashing the same unchanged bitmap again costs nothing.
+ */
+public final class ContentHash {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Map<Bitmap, HashEntry> HASHES = new WeakHashMap<Bitmap, HashEntry>();
+
+    private ContentHash() {
+    }
+
+    /**
+     * @param bitmap - bitmap to be hashed, not recycled.
+     * @return hex SHA-1 of the size, config and pixels of the bitmap.
+     */
+    public static String of(Bitmap bitmap) {
+
+        boolean memoize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1;
+        int generationId = memoize ? getGenerationId(bitmap) : 0;
+
+        if (memoize) {
+            synchronized (HASHES) {
+                HashEntry entry = HASHES.get(bitmap);
+                if (entry != null && entry.mGenerationId == generationId) {
+                    return entry.mHash;
+                }
+            }
+        }
+
+        String hash = compute(bitmap);
+
+        if (memoize) {
+            synchronized (HASHES) {
+                HASHES.put(bitmap, new HashEntry(generationId, hash));
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * @param parts - strings to be hashed together.
+     * @return hex SHA-1 of the parts.
+     */
+    public static String of(String... parts) {
+
+        MessageDigest digest = newDigest();
+
+        for (String part : parts) {
+            digest.update(part.getBytes());
+            digest.update((byte) 0);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static String compute(Bitmap bitmap) {
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        MessageDigest digest = newDigest();
+        digest.update((width + "x" + height + ":" + bitmap.getConfig()).getBytes());
+
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array(), 0, width * 4);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    private static int getGenerationId(Bitmap bitmap) {
+        return bitmap.getGenerationId();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    private static class HashEntry {
+
+        final int mGenerationId;
+        final String mHash;
+
+        HashEntry(int generationId, String hash) {
+            this.mGenerationId = generationId;
+            this.mHash = hash;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.content.ComponentCallbacks2;
+import android.os.Build;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MemoryGovernor keeps the bitmaps of the app within a budget of bytes by admitting decodes and merges before they
+ * allocate, from the size they are going to allocate (known from the image bounds and the merge spec).
+ *
+ * The bytes in use are the live bytes of the {@link BitmapTracker} plus the bytes admitted to the decodes and merges still
+ * running. A decode or merge that does not fit,
+ *
+ * 1. Waits (up to a limit) for the ones running to finish, if there are any.
+ * 2. Degrades if it still does not fit - a decode is sampled down further and, if allowed, decoded as RGB_565. A merge is
+ *    told to take its low memory path.
+ * 3. Is admitted anyway, the budget is not a hard limit, it only decides how much quality is traded for memory.
+ *
+ * When bitmaps are on the Java heap (Honeycomb onwards), the free part of the heap bounds the budget too.
+ *
+ * Waiting blocks the thread of the decode or merge, while the admissions it waits for are released from onPostExecute() of
+ * the others. Tasks admitted by a governor therefore run on {@link #getExecutor()}, not on the serial executor of
+ * AsyncTask, which the wait would hold up along with every other task of the app.
+ *
+ * The governor also passes memory pressure signals (see {@link #onTrimMemory(int)}) on to the registered caches and pools.
+ */
+public class MemoryGovernor {
+
+    /**
+     * Something holding memory that can be given back under memory pressure.
+     */
+    public interface Trimmable {
+        /**
+         * @param keepFraction - fraction of the currently held bytes to keep, 0 for releasing everything possible.
+         */
+        void trimMemory(float keepFraction);
+    }
+
+    /**
+     * Bytes reserved for a running decode or merge, along with how the decode or merge should be done to fit.
+     */
+    public final class Admission {
+
+        private final long mBytes;
+        private final int mSampleSize;
+        private final boolean mRgb565;
+        private final boolean mDegraded;
+        private boolean mReleased;
+
+        Admission(long bytes, int sampleSize, boolean rgb565, boolean degraded) {
+            this.mBytes = bytes;
+            this.mSampleSize = sampleSize;
+            this.mRgb565 = rgb565;
+            this.mDegraded = degraded;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return sample size to decode with, at least the one asked for.
+         */
+        public int getSampleSize() {
+            return mSampleSize;
+        }
+
+        /**
+         * @return true if the bitmap should be decoded as RGB_565 rather than ARGB_8888.
+         */
+        public boolean isRgb565() {
+            return mRgb565;
+        }
+
+        /**
+         * @return true if the admission did not fit in the budget as asked for.
+         */
+        public boolean isDegraded() {
+            return mDegraded;
+        }
+
+        /**
+         * Gives back the reserved bytes, once the allocated bitmaps are tracked (or dropped). Can be called more than once.
+         */
+        public void release() {
+            synchronized (MemoryGovernor.this) {
+                if (!mReleased) {
+                    mReleased = true;
+                    mReservedBytes -= mBytes;
+                    MemoryGovernor.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static final int MAX_SAMPLE_SIZE = 64;
+    private static final long WAIT_SLICE_MILLIS = 50;
+
+    private static MemoryGovernor sDefault;
+    private static Executor sExecutor;
+
+    private final BitmapTracker mTracker;
+    private final List<Trimmable> mTrimmables = new ArrayList<Trimmable>();
+    private long mBudgetBytes;
+    private long mMaxWaitMillis = 1000;
+    private boolean mHeapBound;
+    private long mReservedBytes;
+    private int mAdmittedCount, mQueuedCount, mDegradedCount;
+
+
+    /**
+     * @param tracker - tracker whose live bitmaps count against the budget, null for counting only the admitted bytes.
+     * @param budgetBytes - bytes the bitmaps are kept within.
+     */
+    public MemoryGovernor(BitmapTracker tracker, long budgetBytes) {
+        this.mTracker = tracker;
+        this.mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return the governor of the default tracker, with a budget of half the heap limit of the app, trimming the pool of
+     * the default tracker.
+     */
+    public static synchronized MemoryGovernor getDefault() {
+        if (sDefault == null) {
+            BitmapTracker tracker = BitmapTracker.getDefault();
+            sDefault = new MemoryGovernor(tracker, Runtime.getRuntime().maxMemory() / 2)
+                    .setHeapBound(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB);
+            sDefault.addTrimmable(tracker.getPool());
+        }
+        return sDefault;
+    }
+
+    /**
+     * @return executor of the decodes and merges admitted by a governor, of its own threads.
+     */
+    public static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            sExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "MemoryGovernor #" + mCount.getAndIncrement());
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    public synchronized MemoryGovernor setBudgetBytes(long budgetBytes) {
+        this.mBudgetBytes = budgetBytes;
+        notifyAll();
+        return this;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @param maxWaitMillis - longest time a decode or merge waits for the running ones before degrading.
+     * @return the related MemoryGovernor
+     */
+    public synchronized MemoryGovernor setMaxWaitMillis(long maxWaitMillis) {
+        this.mMaxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * @param heapBound - true if bitmaps are allocated on the Java heap, so its free part bounds the budget too.
+     * @return the related MemoryGovernor
+     */
+    public synchronized MemoryGovernor setHeapBound(boolean heapBound) {
+        this.mHeapBound = heapBound;
+        return this;
+    }
+
+    /**
+     * @param trimmable - cache or pool to trim under memory pressure, null is ignored.
+     */
+    public synchronized void addTrimmable(Trimmable trimmable) {
+        if (trimmable != null && !mTrimmables.contains(trimmable)) {
+            mTrimmables.add(trimmable);
+        }
+    }
+
+    public synchronized void removeTrimmable(Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    /**
+     * @param width - width of the image as stored.
+     * @param height - height of the image as stored.
+     * @param sampleSize - sample size the image is decoded with.
+     * @param bytesPerPixel - 4 for ARGB_8888, 2 for RGB_565.
+     * @return bytes of the decoded bitmap.
+     */
+    public static long getDecodeBytes(int width, int height, int sampleSize, int bytesPerPixel) {
+        int sample = Math.max(1, sampleSize);
+        // decoders round the sampled size up.
+        return (long) ((width + sample - 1) / sample) * ((height + sample - 1) / sample) * bytesPerPixel;
+    }
+
+    /**
+     * Admits a decode, waiting for the running ones or sampling it down further if it does not fit.
+     * @param width - width of the image as stored.
+     * @param height - height of the image as stored.
+     * @param sampleSize - sample size the view needs.
+     * @param allowRgb565 - true if the image can be decoded without alpha.
+     * @param copies - number of bitmaps of the decoded size alive at once, 2 if the decoded bitmap is rotated into a copy.
+     * @return the admission to decode by, to be released once the decoded bitmap is tracked.
+     */
+    public Admission admitDecode(int width, int height, int sampleSize, boolean allowRgb565, int copies) {
+
+        int sample = Math.max(1, sampleSize);
+        long bytes = getDecodeBytes(width, height, sample, 4) * copies;
+
+        synchronized (this) {
+
+            if (awaitRoom(bytes)) {
+                return admit(bytes, sample, false, false);
+            }
+
+            int bytesPerPixel = allowRgb565 ? 2 : 4;
+            long available = getAvailableBytes();
+            bytes = getDecodeBytes(width, height, sample, bytesPerPixel) * copies;
+
+            while (bytes > available && sample < MAX_SAMPLE_SIZE) {
+                sample *= 2;
+                bytes = getDecodeBytes(width, height, sample, bytesPerPixel) * copies;
+            }
+
+            return admit(bytes, sample, allowRgb565, true);
+        }
+    }
+
+    /**
+     * Admits a merge, waiting for the running decodes and merges if it does not fit.
+     * @param bytes - bytes the merge allocates, the merged bitmap and any intermediate one.
+     * @return the admission to merge by, degraded if the merge should avoid intermediate bitmaps. To be released once the
+     * merged bitmap is tracked.
+     */
+    public synchronized Admission admitMerge(long bytes) {
+        boolean fits = awaitRoom(bytes);
+        return admit(bytes, 1, false, !fits);
+    }
+
+    /**
+     * @return bytes that can still be allocated within the budget.
+     */
+    public synchronized long getAvailableBytes() {
+
+        long available = mBudgetBytes - mReservedBytes - (mTracker != null ? mTracker.getLiveBytes() : 0);
+
+        if (mHeapBound) {
+            Runtime runtime = Runtime.getRuntime();
+            long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            // the admitted decodes and merges have not allocated yet.
+            available = Math.min(available, heapFree - mReservedBytes);
+        }
+
+        return available;
+    }
+
+    public synchronized long getReservedBytes() {
+        return mReservedBytes;
+    }
+
+    public synchronized int getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    /**
+     * @return number of admissions that waited for others to finish.
+     */
+    public synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * @return number of admissions that did not fit even after waiting.
+     */
+    public synchronized int getDegradedCount() {
+        return mDegradedCount;
+    }
+
+    /**
+     * Trims the registered caches and pools for the level of memory pressure. Called from
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * @param level - one of the ComponentCallbacks2.TRIM_MEMORY_ levels.
+     */
+    public void onTrimMemory(int level) {
+
+        // running low or about to be killed, give back all we can. Otherwise keep half, to be refilled when needed.
+        boolean severe = level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+
+        trim(severe ? 0f : 0.5f);
+    }
+
+    /**
+     * Releases all the memory the registered caches and pools can give back. Called from
+     * {@link android.content.ComponentCallbacks#onLowMemory()}.
+     */
+    public void onLowMemory() {
+        trim(0f);
+    }
+
+    private void trim(float keepFraction) {
+
+        List<Trimmable> trimmables;
+        synchronized (this) {
+            trimmables = new ArrayList<Trimmable>(mTrimmables);
+        }
+
+        // trimmed outside of the lock, trimming releases bitmaps.
+        for (Trimmable trimmable : trimmables) {
+            trimmable.trimMemory(keepFraction);
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits while the bytes do not fit and there are decodes or merges running that could free some.
+     * @return true if the bytes fit.
+     */
+    private boolean awaitRoom(long bytes) {
+
+        if (bytes <= getAvailableBytes()) {
+            return true;
+        }
+
+        if (mReservedBytes == 0 || mMaxWaitMillis <= 0) {
+            return false;
+        }
+
+        mQueuedCount++;
+        long deadline = System.currentTimeMillis() + mMaxWaitMillis;
+        long remaining = mMaxWaitMillis;
+
+        try {
+            while (bytes > getAvailableBytes() && mReservedBytes > 0 && remaining > 0) {
+                // live bytes drop without notifying, so check again every slice.
+                wait(Math.min(remaining, WAIT_SLICE_MILLIS));
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return bytes <= getAvailableBytes();
+    }
+
+    private Admission admit(long bytes, int sampleSize, boolean rgb565, boolean degraded) {
+
+        mReservedBytes += bytes;
+        mAdmittedCount++;
+        if (degraded) {
+            mDegradedCount++;
+        }
+
+        return new Admission(bytes, sampleSize, rgb565, degraded);
+    }
+}
@@ -0,0 +1,403 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * MergeResultCache keeps merged bitmaps by a key derived from the content of the inputs and the merge parameters (see
+ * {@link #getKey(String, String, int, String, Bitmap.Config)}), so that asking for the same composite again does not merge again.
+ *
+ * There are two tiers, each bounded in bytes and evicting the least recently used entries first,
+ *
+ * 1. Memory - handles of the merged bitmaps.
+ * 2. Disk - the merged bitmaps encoded as PNG (lossless, so a disk hit is the same as merging again), written in background.
+ *
+ * Concurrent requests for the same key are merged only once: the first one merges, the others wait for it and take the
+ * result from the memory tier.
+ *
+ * The files of the disk tier are indexed in background, so the cache can be created on the main thread; reads from disk
+ * wait for the index.
+ */
+public class MergeResultCache implements MemoryGovernor.Trimmable {
+
+    public interface Loader {
+        /**
+         * Called on the requesting thread when the key is in neither tier.
+         * @return a handle of the merged bitmap with one reference, which is handed to the caller of
+         * {@link MergeResultCache#get(String, Bitmap.Config, Loader)} - the cache acquires its own. Null for nothing to be cached.
+         */
+        BitmapRef load();
+    }
+
+    private static final String TAG = "MergeResultCache";
+    private static final String FILE_SUFFIX = ".png";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final BitmapTracker mTracker;
+    private final File mDirectory;
+    private final int mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+
+    // access ordered, least recently used first.
+    private final LinkedHashMap<String, BitmapRef> mMemory = new LinkedHashMap<String, BitmapRef>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> mDisk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Map<String, CountDownLatch> mInFlight = new HashMap<String, CountDownLatch>();
+    private final Executor mDiskWriter = Executors.newSingleThreadExecutor();
+    private final CountDownLatch mDiskIndexed = new CountDownLatch(1);
+    private int mMemoryBytes;
+    private long mDiskBytes;
+    private int mMemoryHits, mDiskHits, mMisses;
+
+
+    /**
+     * @param tracker - tracker the cached bitmaps belong to.
+     * @param directory - directory of the disk tier, created if needed. Null for a memory only cache.
+     * @param maxMemoryBytes - maximum bytes of bitmaps kept in memory.
+     * @param maxDiskBytes - maximum bytes of files kept on disk.
+     */
+    public MergeResultCache(BitmapTracker tracker, File directory, int maxMemoryBytes, long maxDiskBytes) {
+        this.mTracker = tracker;
+        this.mDirectory = directory;
+        this.mMaxMemoryBytes = maxMemoryBytes;
+        this.mMaxDiskBytes = maxDiskBytes;
+
+        if (directory != null) {
+            // first task of the writer, so that writes go after it.
+            mDiskWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        indexDisk();
+                    } finally {
+                        mDiskIndexed.countDown();
+                    }
+                }
+            });
+        } else {
+            mDiskIndexed.countDown();
+        }
+    }
+
+    /**
+     * @param baseHash - {@link ContentHash} of the base bitmap.
+     * @param mergeHash - {@link ContentHash} of the merge bitmap.
+     * @param mergeOrientation - EXIF orientation of the merge bitmap.
+     * @param spec - string of the normalized merge spec.
+     * @param config - config of the merged bitmap, results of another config not being interchangeable.
+     * @return the key of the merge result, usable as a file name.
+     */
+    public static String getKey(String baseHash, String mergeHash, int mergeOrientation, String spec, Bitmap.Config config) {
+        return ContentHash.of(baseHash, mergeHash, String.valueOf(mergeOrientation), spec, config.name());
+    }
+
+    /**
+     * Gets the merge result of the key from memory or disk, or loads it with the loader. Reads from disk and loads run on
+     * the calling thread, so call it from a background thread.
+     * @param key - key of the merge result.
+     * @param config - config of the merged bitmap, as in the key. Results read from disk are decoded to it.
+     * @param loader - merges when the result is not cached.
+     * @return an acquired handle to be released by the caller, null if the loader gave nothing or the thread was interrupted
+     * while waiting for another request of the key (its interrupt flag is then kept set).
+     */
+    public BitmapRef get(String key, Bitmap.Config config, Loader loader) {
+
+        CountDownLatch flight;
+
+        while (true) {
+            synchronized (this) {
+                BitmapRef cached = mMemory.get(key);
+                if (cached != null) {
+                    mMemoryHits++;
+                    return cached.acquire();
+                }
+
+                flight = mInFlight.get(key);
+                if (flight == null) {
+                    flight = new CountDownLatch(1);
+                    mInFlight.put(key, flight);
+                    break;
+                }
+            }
+
+            // the same result is being loaded, wait for it to show up in memory. An interrupted waiter gives up rather than
+            // loading alongside it.
+            try {
+                flight.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        try {
+            BitmapRef ref = readFromDisk(key, config);
+
+            synchronized (this) {
+                if (ref != null) {
+                    mDiskHits++;
+                } else {
+                    mMisses++;
+                }
+            }
+
+            if (ref == null) {
+                ref = loader.load();
+                if (ref != null) {
+                    writeToDisk(key, ref);
+                }
+            }
+
+            if (ref != null) {
+                putInMemory(key, ref);
+            }
+
+            return ref;
+
+        } finally {
+            synchronized (this) {
+                mInFlight.remove(key);
+            }
+            flight.countDown();
+        }
+    }
+
+    /**
+     * Releases the bitmaps kept in memory. The disk tier is left as is.
+     */
+    public synchronized void clearMemory() {
+        for (BitmapRef ref : mMemory.values()) {
+            ref.release();
+        }
+        mMemory.clear();
+        mMemoryBytes = 0;
+    }
+
+    /**
+     * Releases the least recently used bitmaps kept in memory, keeping the given fraction of their bytes. The disk tier is
+     * left as is, merges are read back from it.
+     * @param keepFraction - fraction of the bytes in memory to keep.
+     */
+    @Override
+    public synchronized void trimMemory(float keepFraction) {
+        trimMemoryToSize((int) (mMemoryBytes * keepFraction));
+    }
+
+    public synchronized int getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHits;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private synchronized void putInMemory(String key, BitmapRef ref) {
+
+        if (ref.getByteCount() > mMaxMemoryBytes) {
+            return;
+        }
+
+        BitmapRef previous = mMemory.put(key, ref.acquire());
+        mMemoryBytes += ref.getByteCount();
+
+        if (previous != null) {
+            mMemoryBytes -= previous.getByteCount();
+            previous.release();
+        }
+
+        trimMemoryToSize(mMaxMemoryBytes);
+    }
+
+    private synchronized void trimMemoryToSize(int maxBytes) {
+
+        Iterator<BitmapRef> eldest = mMemory.values().iterator();
+        while (mMemoryBytes > maxBytes && eldest.hasNext()) {
+            BitmapRef evicted = eldest.next();
+            eldest.remove();
+            mMemoryBytes -= evicted.getByteCount();
+            evicted.release();
+        }
+    }
+
+    private BitmapRef readFromDisk(String key, Bitmap.Config config) {
+
+        try {
+            mDiskIndexed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        File file;
+
+        synchronized (this) {
+            if (mDirectory == null || mDisk.get(key) == null) {
+                return null;
+            }
+            file = getFile(key);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // PNG keeps no config, an RGB_565 result would otherwise come back as ARGB_8888 at twice the bytes.
+        options.inPreferredConfig = config;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            setMutable(options);
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+
+        if (bitmap == null) {
+            removeFromDisk(key);
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return mTracker.track(bitmap);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setMutable(BitmapFactory.Options options) {
+        // so that it goes back to the pool of the tracker once released.
+        options.inMutable = true;
+    }
+
+    private void writeToDisk(final String key, final BitmapRef ref) {
+
+        if (mDirectory == null) {
+            return;
+        }
+
+        ref.acquire();
+
+        mDiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(key, ref.get());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write merge result " + key, e);
+                } finally {
+                    ref.release();
+                }
+            }
+        });
+    }
+
+    private void write(String key, Bitmap bitmap) throws IOException {
+
+        File file = getFile(key);
+        File temp = new File(mDirectory, key + ".tmp");
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(temp), STREAM_BUFFER_SIZE);
+
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream)) {
+                throw new IOException("Could not compress");
+            }
+        } finally {
+            stream.close();
+        }
+
+        // readers only ever see complete files.
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+
+        synchronized (this) {
+            Long previous = mDisk.put(key, file.length());
+            mDiskBytes += file.length() - (previous != null ? previous : 0);
+            trimDisk();
+        }
+    }
+
+    private synchronized void removeFromDisk(String key) {
+        Long size = mDisk.remove(key);
+        if (size != null) {
+            mDiskBytes -= size;
+            getFile(key).delete();
+        }
+    }
+
+    private void trimDisk() {
+
+        Iterator<Map.Entry<String, Long>> eldest = mDisk.entrySet().iterator();
+
+        while (mDiskBytes > mMaxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            mDiskBytes -= entry.getValue();
+            getFile(entry.getKey()).delete();
+        }
+    }
+
+    private void indexDisk() {
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // least recently used first, as in the index.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        synchronized (this) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    mDisk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.length());
+                    mDiskBytes += file.length();
+                } else {
+                    // left over from an interrupted write.
+                    file.delete();
+                }
+            }
+
+            trimDisk();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + FILE_SUFFIX);
+    }
+}
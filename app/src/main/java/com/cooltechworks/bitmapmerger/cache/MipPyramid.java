@@ -0,0 +1,173 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MipPyramid keeps successively halved copies (levels) of a bitmap, so that it can be scaled down to any size with a single
+ * filtered pass from the nearest level at least that large. Scaling a large bitmap down to a small fraction in one filtered
+ * pass samples only a few of its pixels, which aliases, and its cost grows with the source rather than with the output.
+ *
+ * Each level is a 2x2 box filter of the one above, built the first time a size needs it. Levels are {@link BitmapRef}s of
+ * the given tracker and the pyramid stops building levels once they would take more than its byte budget, serving smaller
+ * sizes from the smallest level it has instead. Levels are drawn without holding the pyramid, so that
+ * {@link #acquireBuiltLevel(int, int)} can pick one of the levels already built while another thread builds the next.
+ */
+public class MipPyramid {
+
+    private final BitmapTracker mTracker;
+    private final int mMaxBytes;
+    private final List<BitmapRef> mLevels = new ArrayList<BitmapRef>();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Object mBuildLock = new Object();
+    private int mBytes;
+    private boolean mReleased;
+
+
+    /**
+     * @param source - handle of the bitmap, acquired by the pyramid until {@link #release()}.
+     * @param tracker - tracker the levels are created with.
+     * @param maxBytes - maximum number of bytes taken by the levels, excluding the source.
+     */
+    public MipPyramid(BitmapRef source, BitmapTracker tracker, int maxBytes) {
+        this.mTracker = tracker;
+        this.mMaxBytes = maxBytes;
+        this.mLevels.add(source.acquire());
+    }
+
+    /**
+     * Finds the smallest level that is at least the given size, building the levels down to it if needed. Building draws
+     * the levels, so this is for background threads; see {@link #acquireBuiltLevel(int, int)} for drawing.
+     * @param width - required width, in the orientation of the source bitmap.
+     * @param height - required height, in the orientation of the source bitmap.
+     * @return an acquired handle of the level, to be released by the caller. The source itself when the size is not smaller
+     * than half of it.
+     */
+    public BitmapRef acquireLevel(int width, int height) {
+
+        // one build at a time, without holding the levels while drawing.
+        synchronized (mBuildLock) {
+
+            while (true) {
+
+                BitmapRef above;
+                int nextWidth, nextHeight;
+
+                synchronized (this) {
+
+                    checkReleased();
+
+                    int index = findLevel(width, height);
+                    above = mLevels.get(index);
+                    nextWidth = above.get().getWidth() / 2;
+                    nextHeight = above.get().getHeight() / 2;
+
+                    if (index + 1 < mLevels.size() || nextWidth < width || nextHeight < height || nextWidth < 1
+                            || nextHeight < 1 || mBytes + nextWidth * nextHeight * 4 > mMaxBytes) {
+                        return above.acquire();
+                    }
+
+                    // held while drawing from it, in case the pyramid is released meanwhile.
+                    above.acquire();
+                }
+
+                BitmapRef level = buildLevel(above.get(), nextWidth, nextHeight);
+                above.release();
+
+                synchronized (this) {
+
+                    if (mReleased) {
+                        level.release();
+                        checkReleased();
+                    }
+
+                    mLevels.add(level);
+                    mBytes += nextWidth * nextHeight * 4;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the smallest level already built that is at least the given size, or the smallest one there is. Never builds a
+     * level nor waits for one being built, so it can be called while drawing.
+     * @param width - required width, in the orientation of the source bitmap.
+     * @param height - required height, in the orientation of the source bitmap.
+     * @return an acquired handle of the level, to be released by the caller.
+     */
+    public synchronized BitmapRef acquireBuiltLevel(int width, int height) {
+        checkReleased();
+        return mLevels.get(findLevel(width, height)).acquire();
+    }
+
+    /**
+     * @return number of levels built so far, including the source.
+     */
+    public synchronized int getLevelCount() {
+        return mLevels.size();
+    }
+
+    /**
+     * @return bytes taken by the levels, excluding the source.
+     */
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Releases the source and the levels. Levels acquired by others stay valid until they release them.
+     */
+    public synchronized void release() {
+
+        if (mReleased) {
+            return;
+        }
+
+        mReleased = true;
+
+        for (BitmapRef level : mLevels) {
+            level.release();
+        }
+
+        mLevels.clear();
+        mBytes = 0;
+    }
+
+    private int findLevel(int width, int height) {
+
+        int index = 0;
+
+        while (index + 1 < mLevels.size()) {
+            Bitmap next = mLevels.get(index + 1).get();
+            if (next.getWidth() < width || next.getHeight() < height) {
+                break;
+            }
+            index++;
+        }
+
+        return index;
+    }
+
+    private void checkReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("MipPyramid already released");
+        }
+    }
+
+    private BitmapRef buildLevel(Bitmap above, int width, int height) {
+
+        Bitmap level = mTracker.obtain(width, height, Bitmap.Config.ARGB_8888);
+        level.eraseColor(Color.TRANSPARENT);
+
+        // halving with filtering averages each 2x2 block of the level above.
+        new Canvas(level).drawBitmap(above, null, new Rect(0, 0, width, height), mPaint);
+
+        return mTracker.track(level);
+    }
+}
@@ -0,0 +1,75 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * ArgbImage is a plain in-memory image - a row major array of non-premultiplied ARGB pixels, one int per pixel in the same
+ * layout as {@code Bitmap.getPixels()} - so that merging can be run and checked without Android's graphics stack.
+ */
+public final class ArgbImage {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPixels;
+
+
+    /**
+     * Creates a transparent image.
+     * @param width - width in pixels.
+     * @param height - height in pixels.
+     */
+    public ArgbImage(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    /**
+     * Wraps the pixels without copying them.
+     * @param width - width in pixels.
+     * @param height - height in pixels.
+     * @param pixels - width * height pixels, row by row.
+     */
+    public ArgbImage(int width, int height, int[] pixels) {
+
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Expected " + (width * height) + " pixels, got " + pixels.length);
+        }
+
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mPixels = pixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the backing pixels, row by row. Changes are visible in the image.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return mPixels[y * mWidth + x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        mPixels[y * mWidth + x] = color;
+    }
+
+    /**
+     * @return a copy of this image not sharing its pixels.
+     */
+    public ArgbImage copy() {
+        int[] pixels = new int[mWidth * mHeight];
+        System.arraycopy(mPixels, 0, pixels, 0, pixels.length);
+        return new ArgbImage(mWidth, mHeight, pixels);
+    }
+}
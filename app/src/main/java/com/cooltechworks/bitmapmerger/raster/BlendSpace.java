@@ -0,0 +1,11 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * Color space the merge image is blended onto the base image in.
+ */
+public enum BlendSpace {
+    /** sRGB encoded values, as blended by a Canvas. */
+    SRGB,
+    /** linear light, see {@link LinearLight}. */
+    LINEAR,
+}
@@ -0,0 +1,377 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * FixedPointScaler resizes {@link ArgbImage}s with integer arithmetic only - bilinear filtering, sampling at pixel centers
+ * like a filtered {@code Bitmap.createScaledBitmap()}, and area averaging for large reductions.
+ *
+ * Filtering is separable: each source row needed is filtered horizontally once into a row buffer of premultiplied
+ * channels, and output rows are blended from those. Sample positions are 16.16 fixed point and filter weights have 8 bits
+ * of fraction, which keeps every intermediate sum within an int. The per-column indices and weights are computed once per
+ * scaling geometry and, like the row buffers, kept for the next call, so scaling again at the same size allocates nothing.
+ *
+ * An instance is not thread safe; {@link RasterScaler} keeps one per thread.
+ */
+public final class FixedPointScaler {
+
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    // alpha sum of an opaque pixel after both passes (255 << 16), colors of opaque pixels are divided by a constant.
+    private static final int OPAQUE_SUM = 255 << (2 * WEIGHT_BITS);
+    private static final int OPAQUE_DIVISOR = 255 << WEIGHT_BITS;
+
+    // bilinear columns, for the geometry below.
+    private int[] mX0 = new int[0];
+    private int[] mX1 = new int[0];
+    private int[] mXWeight = new int[0];
+    private int mTableSrcWidth = -1, mTableScaledWidth, mTableFromX, mTableDstWidth;
+
+    // area columns and rows.
+    private final AreaTable mAreaColumns = new AreaTable();
+    private final AreaTable mAreaRows = new AreaTable();
+
+    // horizontally filtered rows, 4 ints per pixel: alpha * 256 and premultiplied red, green and blue.
+    private int[] mTopRow = new int[0];
+    private int[] mBottomRow = new int[0];
+    private int mTopY, mBottomY;
+    private int[] mSums = new int[0];
+
+
+    /**
+     * Scales the source to fill the destination completely with bilinear filtering.
+     * @param source - image to be scaled.
+     * @param destination - image receiving the scaled pixels.
+     */
+    public void scale(ArgbImage source, ArgbImage destination) {
+        scaleRegion(source, destination.getWidth(), destination.getHeight(), 0, 0, destination);
+    }
+
+    /**
+     * Computes only a region of the bilinearly scaled image - the pixels are the same as the ones at that region of the
+     * fully scaled image, without scaling the rest of it.
+     * @param source - image to be scaled.
+     * @param scaledWidth - width of the whole scaled image.
+     * @param scaledHeight - height of the whole scaled image.
+     * @param fromX - x of the region within the scaled image.
+     * @param fromY - y of the region within the scaled image.
+     * @param destination - image receiving the region, its size being the size of the region.
+     */
+    public void scaleRegion(ArgbImage source, int scaledWidth, int scaledHeight, int fromX, int fromY, ArgbImage destination) {
+
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int dstWidth = destination.getWidth();
+        int dstHeight = destination.getHeight();
+        int[] src = source.getPixels();
+        int[] dst = destination.getPixels();
+
+        prepareColumns(srcWidth, scaledWidth, fromX, dstWidth);
+        prepareRows(dstWidth);
+
+        int maxY = (srcHeight - 1) << 16;
+
+        for (int y = 0; y < dstHeight; y++) {
+
+            int sy = clamp(samplePosition(fromY + y, srcHeight, scaledHeight), maxY);
+            int y0 = sy >> 16;
+            int y1 = Math.min(y0 + 1, srcHeight - 1);
+            int wy1 = weight(sy);
+
+            loadRows(src, srcWidth, y0, y1, dstWidth);
+
+            int[] top = mTopRow;
+            int[] bottom = mBottomRow;
+            int wy0 = WEIGHT_ONE - wy1;
+            int out = y * dstWidth;
+
+            for (int x = 0, i = 0; x < dstWidth; x++, i += 4) {
+                dst[out + x] = unpremultiply(
+                        top[i] * wy0 + bottom[i] * wy1,
+                        top[i + 1] * wy0 + bottom[i + 1] * wy1,
+                        top[i + 2] * wy0 + bottom[i + 2] * wy1,
+                        top[i + 3] * wy0 + bottom[i + 3] * wy1);
+            }
+        }
+    }
+
+    /**
+     * Scales the source to fill the destination completely, each destination pixel being the average of the source area it
+     * covers. Unlike bilinear filtering, every source pixel contributes, so large reductions do not alias.
+     * @param source - image to be scaled.
+     * @param destination - image receiving the scaled pixels.
+     */
+    public void scaleArea(ArgbImage source, ArgbImage destination) {
+
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int dstWidth = destination.getWidth();
+        int dstHeight = destination.getHeight();
+        int[] src = source.getPixels();
+        int[] dst = destination.getPixels();
+
+        mAreaColumns.prepare(srcWidth, dstWidth);
+        mAreaRows.prepare(srcHeight, dstHeight);
+        prepareRows(dstWidth);
+
+        int[] row = mTopRow;
+        int[] sums = mSums;
+        int length = dstWidth * 4;
+
+        for (int y = 0; y < dstHeight; y++) {
+
+            for (int i = 0; i < length; i++) {
+                sums[i] = 0;
+            }
+
+            int start = mAreaRows.mStart[y];
+            int offset = mAreaRows.mOffset[y];
+
+            for (int j = 0, count = mAreaRows.mCount[y]; j < count; j++) {
+
+                int wy = mAreaRows.mWeights[offset + j];
+                if (wy == 0) {
+                    continue;
+                }
+
+                filterRowArea(src, (start + j) * srcWidth, row, dstWidth);
+
+                for (int i = 0; i < length; i++) {
+                    sums[i] += row[i] * wy;
+                }
+            }
+
+            int out = y * dstWidth;
+            for (int x = 0, i = 0; x < dstWidth; x++, i += 4) {
+                dst[out + x] = unpremultiply(sums[i], sums[i + 1], sums[i + 2], sums[i + 3]);
+            }
+        }
+    }
+
+    private void prepareColumns(int srcWidth, int scaledWidth, int fromX, int dstWidth) {
+
+        if (srcWidth == mTableSrcWidth && scaledWidth == mTableScaledWidth && fromX == mTableFromX && dstWidth == mTableDstWidth) {
+            return;
+        }
+
+        if (mX0.length < dstWidth) {
+            mX0 = new int[dstWidth];
+            mX1 = new int[dstWidth];
+            mXWeight = new int[dstWidth];
+        }
+
+        int maxX = (srcWidth - 1) << 16;
+
+        for (int x = 0; x < dstWidth; x++) {
+            int sx = clamp(samplePosition(fromX + x, srcWidth, scaledWidth), maxX);
+            mX0[x] = sx >> 16;
+            mX1[x] = Math.min(mX0[x] + 1, srcWidth - 1);
+            mXWeight[x] = weight(sx);
+        }
+
+        mTableSrcWidth = srcWidth;
+        mTableScaledWidth = scaledWidth;
+        mTableFromX = fromX;
+        mTableDstWidth = dstWidth;
+    }
+
+    private void prepareRows(int dstWidth) {
+
+        if (mTopRow.length < dstWidth * 4) {
+            mTopRow = new int[dstWidth * 4];
+            mBottomRow = new int[dstWidth * 4];
+            mSums = new int[dstWidth * 4];
+        }
+
+        // the source pixels may have changed since the last call.
+        mTopY = -1;
+        mBottomY = -1;
+    }
+
+    /**
+     * Makes the top and bottom row buffers hold source rows y0 and y1, filtering only rows not already held.
+     */
+    private void loadRows(int[] src, int srcWidth, int y0, int y1, int dstWidth) {
+
+        if (y0 != mTopY) {
+            if (y0 == mBottomY) {
+                int[] swap = mTopRow;
+                mTopRow = mBottomRow;
+                mBottomRow = swap;
+                mTopY = mBottomY;
+                mBottomY = -1;
+            } else {
+                filterRowBilinear(src, y0 * srcWidth, mTopRow, dstWidth);
+                mTopY = y0;
+            }
+        }
+
+        if (y1 != mBottomY) {
+            if (y1 == mTopY) {
+                System.arraycopy(mTopRow, 0, mBottomRow, 0, dstWidth * 4);
+            } else {
+                filterRowBilinear(src, y1 * srcWidth, mBottomRow, dstWidth);
+            }
+            mBottomY = y1;
+        }
+    }
+
+    private void filterRowBilinear(int[] src, int rowOffset, int[] row, int dstWidth) {
+
+        int[] x0 = mX0;
+        int[] x1 = mX1;
+        int[] xWeight = mXWeight;
+
+        for (int x = 0, i = 0; x < dstWidth; x++, i += 4) {
+
+            int c0 = src[rowOffset + x0[x]];
+            int c1 = src[rowOffset + x1[x]];
+            int w1 = xWeight[x];
+
+            int aw0 = (c0 >>> 24) * (WEIGHT_ONE - w1);
+            int aw1 = (c1 >>> 24) * w1;
+
+            row[i] = aw0 + aw1;
+            row[i + 1] = (((c0 >> 16) & 0xff) * aw0 + ((c1 >> 16) & 0xff) * aw1 + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+            row[i + 2] = (((c0 >> 8) & 0xff) * aw0 + ((c1 >> 8) & 0xff) * aw1 + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+            row[i + 3] = ((c0 & 0xff) * aw0 + (c1 & 0xff) * aw1 + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+        }
+    }
+
+    private void filterRowArea(int[] src, int rowOffset, int[] row, int dstWidth) {
+
+        int[] start = mAreaColumns.mStart;
+        int[] count = mAreaColumns.mCount;
+        int[] offset = mAreaColumns.mOffset;
+        int[] weights = mAreaColumns.mWeights;
+
+        for (int x = 0, i = 0; x < dstWidth; x++, i += 4) {
+
+            int a = 0, r = 0, g = 0, b = 0;
+            int from = rowOffset + start[x];
+
+            for (int j = 0, n = count[x], w = offset[x]; j < n; j++, w++) {
+                int c = src[from + j];
+                int aw = (c >>> 24) * weights[w];
+                a += aw;
+                r += ((c >> 16) & 0xff) * aw;
+                g += ((c >> 8) & 0xff) * aw;
+                b += (c & 0xff) * aw;
+            }
+
+            row[i] = a;
+            row[i + 1] = (r + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+            row[i + 2] = (g + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+            row[i + 3] = (b + (WEIGHT_ONE >> 1)) >> WEIGHT_BITS;
+        }
+    }
+
+    /**
+     * @param alphaSum - alpha * 65536.
+     * @param redSum - premultiplied red * 256, green and blue alike.
+     * @return the non-premultiplied pixel.
+     */
+    private static int unpremultiply(int alphaSum, int redSum, int greenSum, int blueSum) {
+
+        if (alphaSum < 1 << (2 * WEIGHT_BITS - 1)) {
+            return 0;
+        }
+
+        int alpha = (alphaSum + (1 << (2 * WEIGHT_BITS - 1))) >> (2 * WEIGHT_BITS);
+
+        if (alphaSum == OPAQUE_SUM) {
+            return 0xff000000
+                    | ((redSum + OPAQUE_DIVISOR / 2) / OPAQUE_DIVISOR) << 16
+                    | ((greenSum + OPAQUE_DIVISOR / 2) / OPAQUE_DIVISOR) << 8
+                    | ((blueSum + OPAQUE_DIVISOR / 2) / OPAQUE_DIVISOR);
+        }
+
+        int divisor = alphaSum >> WEIGHT_BITS;
+        int half = divisor >> 1;
+
+        return alpha << 24
+                | Math.min(255, (redSum + half) / divisor) << 16
+                | Math.min(255, (greenSum + half) / divisor) << 8
+                | Math.min(255, (blueSum + half) / divisor);
+    }
+
+    /**
+     * @return 16.16 source position sampled by the center of the scaled pixel.
+     */
+    private static int samplePosition(int scaled, int srcSize, int scaledSize) {
+        return (int) (((2L * scaled + 1) * srcSize << 16) / (2L * scaledSize)) - (1 << 15);
+    }
+
+    private static int clamp(int position, int max) {
+        return position < 0 ? 0 : (position > max ? max : position);
+    }
+
+    /**
+     * @return weight of the next pixel for a 16.16 position, 0 to 256.
+     */
+    private static int weight(int position) {
+        return ((position & 0xffff) + (1 << (15 - WEIGHT_BITS))) >> (16 - WEIGHT_BITS);
+    }
+
+    /**
+     * Source pixels covered by each scaled pixel along one axis, with weights of their coverage adding up to 256.
+     */
+    static final class AreaTable {
+
+        int[] mStart = new int[0];
+        int[] mCount = new int[0];
+        int[] mOffset = new int[0];
+        int[] mWeights = new int[0];
+        private int mSrcSize = -1, mDstSize;
+
+        void prepare(int srcSize, int dstSize) {
+
+            if (srcSize == mSrcSize && dstSize == mDstSize) {
+                return;
+            }
+
+            if (mStart.length < dstSize) {
+                mStart = new int[dstSize];
+                mCount = new int[dstSize];
+                mOffset = new int[dstSize];
+            }
+
+            // each scaled pixel covers at most ceil(ratio) + 1 source pixels.
+            int maxWeights = dstSize * (srcSize / dstSize + 2);
+            if (mWeights.length < maxWeights) {
+                mWeights = new int[maxWeights];
+            }
+
+            int offset = 0;
+
+            for (int d = 0; d < dstSize; d++) {
+
+                long from = ((long) d * srcSize << 16) / dstSize;
+                long to = ((long) (d + 1) * srcSize << 16) / dstSize;
+                long span = to - from;
+
+                int first = (int) (from >> 16);
+                int last = (int) ((to - 1) >> 16);
+
+                mStart[d] = first;
+                mCount[d] = last - first + 1;
+                mOffset[d] = offset;
+
+                // rounded cumulatively, so that the weights add up to exactly 256.
+                long covered = 0;
+                int assigned = 0;
+
+                for (int s = first; s <= last; s++) {
+                    long pixelFrom = Math.max(from, (long) s << 16);
+                    long pixelTo = Math.min(to, (long) (s + 1) << 16);
+                    covered += pixelTo - pixelFrom;
+                    int total = (int) ((covered * WEIGHT_ONE + span / 2) / span);
+                    mWeights[offset++] = total - assigned;
+                    assigned = total;
+                }
+            }
+
+            mSrcSize = srcSize;
+            mDstSize = dstSize;
+        }
+    }
+}
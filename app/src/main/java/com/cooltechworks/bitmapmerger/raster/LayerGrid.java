@@ -0,0 +1,293 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import java.util.Arrays;
+
+/**
+ * LayerGrid is a spatial index of the bounds of many layers over an image, for finding the layers under a touch point or
+ * a dirty region without going through all of them. The image is split into square cells, and every cell lists the layers
+ * whose bounds overlap it; a query only looks at the layers of the cells it covers.
+ *
+ * Moving a layer only touches the cells it left and the cells it entered, so layers being dragged around keep the index
+ * up to date at the cost of their own size. Layers are identified by small non-negative ints, a higher id being stacked
+ * over a lower one. Parts of the bounds outside the image are not indexed.
+ *
+ * Queries fill a buffer of the grid instead of allocating, valid until the next query. Not thread safe.
+ */
+public class LayerGrid {
+
+    public static final int DEFAULT_CELL_SIZE = 64;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mCellSize;
+    private final int mColumns;
+    private final int mRows;
+
+    // ids of the layers per cell, the first mCellCounts[cell] valid.
+    private final int[][] mCells;
+    private final int[] mCellCounts;
+
+    // bounds per layer id, right and bottom exclusive, valid where mPresent is set.
+    private int[] mLefts = EMPTY, mTops = EMPTY, mRights = EMPTY, mBottoms = EMPTY;
+    private boolean[] mPresent = new boolean[0];
+    private int mLayerCount;
+
+    // the query a layer was last found by, so that a layer spanning several cells is reported once.
+    private int[] mStamps = EMPTY;
+    private int mStamp;
+    private int[] mResults = new int[16];
+    private int mCellVisits;
+
+
+    /**
+     * @param width - width of the image the layers are over.
+     * @param height - height of the image.
+     * @param cellSize - width and height of the cells, around the size of the typical layer or query.
+     */
+    public LayerGrid(int width, int height, int cellSize) {
+
+        if (width <= 0 || height <= 0 || cellSize <= 0) {
+            throw new IllegalArgumentException("Invalid grid " + width + "x" + height + " of cells " + cellSize);
+        }
+
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mCellSize = cellSize;
+        this.mColumns = (width + cellSize - 1) / cellSize;
+        this.mRows = (height + cellSize - 1) / cellSize;
+        this.mCells = new int[mColumns * mRows][];
+        this.mCellCounts = new int[mColumns * mRows];
+    }
+
+    /**
+     * Adds a layer, or moves it if already there.
+     * @param id - id of the layer, non-negative.
+     * @param left - left of its bounds.
+     * @param top - top of its bounds.
+     * @param right - right of its bounds, exclusive.
+     * @param bottom - bottom of its bounds, exclusive.
+     */
+    public void put(int id, int left, int top, int right, int bottom) {
+
+        ensureCapacity(id + 1);
+
+        int fromColumn = 0, fromRow = 0, toColumn = -1, toRow = -1;
+        if (mPresent[id] && isOnImage(id)) {
+            // cells of the old bounds, as a range of columns and rows.
+            fromColumn = firstCell(mLefts[id], mColumns);
+            fromRow = firstCell(mTops[id], mRows);
+            toColumn = lastCell(mRights[id], mColumns, mWidth);
+            toRow = lastCell(mBottoms[id], mRows, mHeight);
+        } else if (!mPresent[id]) {
+            mPresent[id] = true;
+            mLayerCount++;
+        }
+
+        mLefts[id] = left;
+        mTops[id] = top;
+        mRights[id] = right;
+        mBottoms[id] = bottom;
+
+        int newFromColumn = 0, newFromRow = 0, newToColumn = -1, newToRow = -1;
+        if (isOnImage(id)) {
+            newFromColumn = firstCell(left, mColumns);
+            newFromRow = firstCell(top, mRows);
+            newToColumn = lastCell(right, mColumns, mWidth);
+            newToRow = lastCell(bottom, mRows, mHeight);
+        }
+
+        // leave the cells only under the old bounds, enter the cells only under the new ones.
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                if (!(row >= newFromRow && row <= newToRow && column >= newFromColumn && column <= newToColumn)) {
+                    removeFromCell(row * mColumns + column, id);
+                }
+            }
+        }
+
+        for (int row = newFromRow; row <= newToRow; row++) {
+            for (int column = newFromColumn; column <= newToColumn; column++) {
+                if (!(row >= fromRow && row <= toRow && column >= fromColumn && column <= toColumn)) {
+                    addToCell(row * mColumns + column, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id - id of a layer, removed from the grid if there.
+     */
+    public void remove(int id) {
+
+        if (id >= mPresent.length || !mPresent[id]) {
+            return;
+        }
+
+        if (isOnImage(id)) {
+            for (int row = firstCell(mTops[id], mRows); row <= lastCell(mBottoms[id], mRows, mHeight); row++) {
+                for (int column = firstCell(mLefts[id], mColumns); column <= lastCell(mRights[id], mColumns, mWidth); column++) {
+                    removeFromCell(row * mColumns + column, id);
+                }
+            }
+        }
+
+        mPresent[id] = false;
+        mLayerCount--;
+    }
+
+    public boolean contains(int id) {
+        return id < mPresent.length && mPresent[id];
+    }
+
+    /**
+     * @return number of layers in the grid.
+     */
+    public int getLayerCount() {
+        return mLayerCount;
+    }
+
+    /**
+     * Finds the layers whose bounds overlap the region.
+     * @return number of layers found, their ids being the first that many of {@link #getResults()}, bottom-most first.
+     */
+    public int query(int left, int top, int right, int bottom) {
+
+        int count = 0;
+        mStamp++;
+        mCellVisits = 0;
+
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(mWidth, right);
+        bottom = Math.min(mHeight, bottom);
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+
+        for (int row = top / mCellSize; row <= (bottom - 1) / mCellSize; row++) {
+            for (int column = left / mCellSize; column <= (right - 1) / mCellSize; column++) {
+
+                int cell = row * mColumns + column;
+                int[] ids = mCells[cell];
+                mCellVisits++;
+
+                for (int i = 0; i < mCellCounts[cell]; i++) {
+                    int id = ids[i];
+                    if (mStamps[id] == mStamp) {
+                        continue;
+                    }
+                    mStamps[id] = mStamp;
+
+                    if (mLefts[id] < right && left < mRights[id] && mTops[id] < bottom && top < mBottoms[id]) {
+                        if (count == mResults.length) {
+                            mResults = Arrays.copyOf(mResults, count * 2);
+                        }
+                        mResults[count++] = id;
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(mResults, 0, count);
+        return count;
+    }
+
+    /**
+     * @return ids found by the last query, valid until the next one.
+     */
+    public int[] getResults() {
+        return mResults;
+    }
+
+    /**
+     * @return the id of the top-most layer whose bounds contain the point, -1 if none.
+     */
+    public int hitTest(int x, int y) {
+
+        if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) {
+            return -1;
+        }
+
+        int cell = (y / mCellSize) * mColumns + x / mCellSize;
+        int[] ids = mCells[cell];
+        int top = -1;
+
+        for (int i = 0; i < mCellCounts[cell]; i++) {
+            int id = ids[i];
+            if (id > top && mLefts[id] <= x && x < mRights[id] && mTops[id] <= y && y < mBottoms[id]) {
+                top = id;
+            }
+        }
+
+        return top;
+    }
+
+    /**
+     * @return number of cells the last query looked at.
+     */
+    public int getLastCellVisits() {
+        return mCellVisits;
+    }
+
+    /**
+     * @return true if the bounds of the layer overlap the image, the layer being listed by the cells it overlaps.
+     */
+    private boolean isOnImage(int id) {
+        return Math.max(0, mLefts[id]) < Math.min(mWidth, mRights[id]) && Math.max(0, mTops[id]) < Math.min(mHeight, mBottoms[id]);
+    }
+
+    private int firstCell(int start, int cells) {
+        return Math.min(cells - 1, Math.max(0, start) / mCellSize);
+    }
+
+    private int lastCell(int end, int cells, int size) {
+        return Math.min(cells - 1, (Math.min(end, size) - 1) / mCellSize);
+    }
+
+    private void addToCell(int cell, int id) {
+
+        int[] ids = mCells[cell];
+        int count = mCellCounts[cell];
+
+        if (ids == null) {
+            ids = mCells[cell] = new int[4];
+        } else if (count == ids.length) {
+            ids = mCells[cell] = Arrays.copyOf(ids, count * 2);
+        }
+
+        ids[count] = id;
+        mCellCounts[cell] = count + 1;
+    }
+
+    private void removeFromCell(int cell, int id) {
+
+        int[] ids = mCells[cell];
+        int count = mCellCounts[cell];
+
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                // order within a cell does not matter, the last one takes its place.
+                ids[i] = ids[count - 1];
+                mCellCounts[cell] = count - 1;
+                return;
+            }
+        }
+    }
+
+    private void ensureCapacity(int layers) {
+
+        if (layers <= mPresent.length) {
+            return;
+        }
+
+        int capacity = Math.max(layers, mPresent.length * 2);
+        mLefts = Arrays.copyOf(mLefts, capacity);
+        mTops = Arrays.copyOf(mTops, capacity);
+        mRights = Arrays.copyOf(mRights, capacity);
+        mBottoms = Arrays.copyOf(mBottoms, capacity);
+        mPresent = Arrays.copyOf(mPresent, capacity);
+        mStamps = Arrays.copyOf(mStamps, capacity);
+    }
+}
@@ -0,0 +1,252 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LayerStack merges many merge images - stickers, stamps, labels - over one base image, each placed by its own
+ * {@link MergeSpec} and stacked in the order they were added. The merged image is kept and only re-merged where it
+ * changed: adding, moving or removing a layer marks the bounds it had and has as dirty, and {@link #render()} restores the
+ * base there and draws only the layers the {@link LayerGrid} finds over the dirty region, each clipped to it.
+ *
+ * Every pixel ends up the same as merging all the layers over the base one after the other with
+ * {@link RasterMerger#merge(ArgbImage, ArgbImage, MergeSpec)}.
+ */
+public class LayerStack {
+
+    private final ArgbImage mBase;
+    private final ArgbImage mMerged;
+    private final LayerGrid mGrid;
+
+    // per layer id, null once removed.
+    private final List<ArgbImage> mOverlays = new ArrayList<ArgbImage>();
+    private final List<MergeSpec> mSpecs = new ArrayList<MergeSpec>();
+
+    // region to be merged again, empty when right <= left.
+    private int mDirtyLeft, mDirtyTop, mDirtyRight, mDirtyBottom;
+    private final int[] mBounds = new int[4];
+    private ArgbImage mRegion;
+    private int mLastDrawnCount;
+
+
+    /**
+     * @param base - base image, not changed.
+     */
+    public LayerStack(ArgbImage base) {
+        this(base, LayerGrid.DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param base - base image, not changed.
+     * @param cellSize - cell size of the index of the layers, see {@link LayerGrid}.
+     */
+    public LayerStack(ArgbImage base, int cellSize) {
+        this.mBase = base;
+        this.mMerged = base.copy();
+        this.mGrid = new LayerGrid(base.getWidth(), base.getHeight(), cellSize);
+    }
+
+    /**
+     * Adds a layer over the others.
+     * @param overlay - merge image of the layer, upright. Not copied, so it is not to be changed while in the stack.
+     * @param spec - placement of the layer over the base.
+     * @return id of the layer.
+     */
+    public int addLayer(ArgbImage overlay, MergeSpec spec) {
+
+        int id = mOverlays.size();
+        mOverlays.add(overlay);
+        mSpecs.add(spec);
+
+        getBounds(spec, mBounds);
+        mGrid.put(id, mBounds[0], mBounds[1], mBounds[2], mBounds[3]);
+        invalidate(mBounds);
+        return id;
+    }
+
+    /**
+     * Moves a layer, or changes how it is blended, keeping its place in the stack.
+     * @param id - id of the layer.
+     * @param spec - new placement of the layer.
+     */
+    public void setSpec(int id, MergeSpec spec) {
+
+        checkLayer(id);
+
+        getBounds(mSpecs.get(id), mBounds);
+        invalidate(mBounds);
+
+        mSpecs.set(id, spec);
+        getBounds(spec, mBounds);
+        mGrid.put(id, mBounds[0], mBounds[1], mBounds[2], mBounds[3]);
+        invalidate(mBounds);
+    }
+
+    /**
+     * @param id - id of the layer, not reused by later layers.
+     */
+    public void removeLayer(int id) {
+
+        checkLayer(id);
+
+        getBounds(mSpecs.get(id), mBounds);
+        invalidate(mBounds);
+
+        mGrid.remove(id);
+        mOverlays.set(id, null);
+        mSpecs.set(id, null);
+    }
+
+    /**
+     * @return the spec of the layer, null if it was removed.
+     */
+    public MergeSpec getSpec(int id) {
+        return mSpecs.get(id);
+    }
+
+    /**
+     * @return number of layers in the stack.
+     */
+    public int getLayerCount() {
+        return mGrid.getLayerCount();
+    }
+
+    /**
+     * @return id of the top-most layer whose bounds contain the point, -1 if none.
+     */
+    public int hitTest(int x, int y) {
+        return mGrid.hitTest(x, y);
+    }
+
+    /**
+     * Finds the layers over a region, e.g. to redraw or select them.
+     * @return number of layers found, their ids being the first that many of {@link #getResults()}, bottom-most first.
+     */
+    public int query(int left, int top, int right, int bottom) {
+        return mGrid.query(left, top, right, bottom);
+    }
+
+    /**
+     * @return ids found by the last query or render, valid until the next one.
+     */
+    public int[] getResults() {
+        return mGrid.getResults();
+    }
+
+    /**
+     * Merges the dirty region again.
+     * @return the merged image, the same instance every time.
+     */
+    public ArgbImage render() {
+
+        int width = mBase.getWidth();
+        int left = Math.max(0, mDirtyLeft);
+        int top = Math.max(0, mDirtyTop);
+        int right = Math.min(width, mDirtyRight);
+        int bottom = Math.min(mBase.getHeight(), mDirtyBottom);
+        mDirtyLeft = mDirtyTop = mDirtyRight = mDirtyBottom = 0;
+        mLastDrawnCount = 0;
+
+        if (right <= left || bottom <= top) {
+            return mMerged;
+        }
+
+        int[] base = mBase.getPixels();
+        int[] merged = mMerged.getPixels();
+        for (int y = top; y < bottom; y++) {
+            System.arraycopy(base, y * width + left, merged, y * width + left, right - left);
+        }
+
+        int count = mGrid.query(left, top, right, bottom);
+        int[] ids = mGrid.getResults();
+
+        for (int i = 0; i < count; i++) {
+            drawLayer(ids[i], left, top, right, bottom);
+        }
+
+        mLastDrawnCount = count;
+        return mMerged;
+    }
+
+    /**
+     * @return number of layers drawn by the last render.
+     */
+    public int getLastDrawnCount() {
+        return mLastDrawnCount;
+    }
+
+    /**
+     * Draws the part of a layer within the clip.
+     */
+    private void drawLayer(int id, int clipLeft, int clipTop, int clipRight, int clipBottom) {
+
+        MergeSpec spec = mSpecs.get(id);
+        getBounds(spec, mBounds);
+
+        int fromX = Math.max(clipLeft, mBounds[0]);
+        int fromY = Math.max(clipTop, mBounds[1]);
+        int regionWidth = Math.min(clipRight, mBounds[2]) - fromX;
+        int regionHeight = Math.min(clipBottom, mBounds[3]) - fromY;
+
+        // layers clipped to the same size, e.g. of the same sticker, share one buffer.
+        if (mRegion == null || mRegion.getWidth() != regionWidth || mRegion.getHeight() != regionHeight) {
+            mRegion = new ArgbImage(regionWidth, regionHeight);
+        }
+        RasterScaler.scaleRegion(mOverlays.get(id), mBounds[2] - mBounds[0], mBounds[3] - mBounds[1],
+                fromX - mBounds[0], fromY - mBounds[1], mRegion);
+
+        if (spec.hasDefaultBlending()) {
+            RasterMerger.drawOver(mMerged, mRegion, fromX, fromY);
+        } else {
+            RasterMerger.drawBlended(mMerged, mRegion, fromX, fromY, spec.getBlendMode(), spec.getOpacity());
+        }
+    }
+
+    /**
+     * Puts the bounds the spec places the merge image at into left, top, right and bottom, empty when it draws nothing.
+     */
+    private void getBounds(MergeSpec spec, int[] bounds) {
+
+        int width = mBase.getWidth();
+        int height = mBase.getHeight();
+        int overlayWidth = spec.hasOverlay() ? spec.getOverlayWidth(width) : 0;
+        int overlayHeight = spec.hasOverlay() ? spec.getOverlayHeight(height) : 0;
+
+        if (overlayWidth <= 0 || overlayHeight <= 0) {
+            bounds[0] = bounds[1] = bounds[2] = bounds[3] = 0;
+            return;
+        }
+
+        bounds[0] = spec.getOverlayLeft(width, height);
+        bounds[1] = spec.getOverlayTop(width, height);
+        bounds[2] = bounds[0] + overlayWidth;
+        bounds[3] = bounds[1] + overlayHeight;
+    }
+
+    private void invalidate(int[] bounds) {
+
+        if (bounds[2] <= bounds[0] || bounds[3] <= bounds[1]) {
+            return;
+        }
+
+        if (mDirtyRight <= mDirtyLeft || mDirtyBottom <= mDirtyTop) {
+            mDirtyLeft = bounds[0];
+            mDirtyTop = bounds[1];
+            mDirtyRight = bounds[2];
+            mDirtyBottom = bounds[3];
+        } else {
+            mDirtyLeft = Math.min(mDirtyLeft, bounds[0]);
+            mDirtyTop = Math.min(mDirtyTop, bounds[1]);
+            mDirtyRight = Math.max(mDirtyRight, bounds[2]);
+            mDirtyBottom = Math.max(mDirtyBottom, bounds[3]);
+        }
+    }
+
+    private void checkLayer(int id) {
+        if (id < 0 || id >= mSpecs.size() || mSpecs.get(id) == null) {
+            throw new IllegalArgumentException("No layer " + id);
+        }
+    }
+}
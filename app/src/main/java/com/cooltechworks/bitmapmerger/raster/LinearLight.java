@@ -0,0 +1,84 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * LinearLight blends colors in linear light rather than in sRGB. Blending the sRGB encoded values (what a Canvas does)
+ * makes semi-transparent edges darker than they should be, since sRGB values are not proportional to light.
+ *
+ * Conversions go through lookup tables - 8 bit sRGB to 14 bit linear and back - so a blend costs a few table reads more
+ * than an sRGB blend. 14 bits keep every 8 bit value distinct in linear, so opaque colors come back unchanged.
+ */
+public final class LinearLight {
+
+    static final int LINEAR_BITS = 14;
+    static final int LINEAR_MAX = (1 << LINEAR_BITS) - 1;
+
+    private static final int[] TO_LINEAR = new int[256];
+    private static final byte[] TO_SRGB = new byte[LINEAR_MAX + 1];
+
+    static {
+        for (int i = 0; i < TO_LINEAR.length; i++) {
+            TO_LINEAR[i] = (int) Math.round(toLinear(i / 255.0) * LINEAR_MAX);
+        }
+
+        for (int i = 0; i < TO_SRGB.length; i++) {
+            TO_SRGB[i] = (byte) Math.round(toSrgb(i / (double) LINEAR_MAX) * 255);
+        }
+    }
+
+    private LinearLight() {
+    }
+
+    /**
+     * @param srgb - 8 bit sRGB encoded value.
+     * @return 14 bit linear value.
+     */
+    public static int toLinear(int srgb) {
+        return TO_LINEAR[srgb];
+    }
+
+    /**
+     * @param linear - 14 bit linear value.
+     * @return 8 bit sRGB encoded value.
+     */
+    public static int toSrgb(int linear) {
+        return TO_SRGB[linear] & 0xff;
+    }
+
+    /**
+     * Same as {@link RasterMerger#srcOver(int, int)}, with the colors blended in linear light.
+     * @param src - non-premultiplied source color.
+     * @param dst - non-premultiplied destination color.
+     * @return the non-premultiplied source-over blend of both.
+     */
+    static int srcOver(int src, int dst) {
+
+        int sa = src >>> 24;
+
+        if (sa == 255) {
+            return src;
+        }
+
+        if (sa == 0) {
+            return dst;
+        }
+
+        int da = dst >>> 24;
+        int dw = da * (255 - sa);
+        int sw = sa * 255;
+        int a = sw + dw;
+
+        int r = (TO_LINEAR[(src >> 16) & 0xff] * sw + TO_LINEAR[(dst >> 16) & 0xff] * dw + a / 2) / a;
+        int g = (TO_LINEAR[(src >> 8) & 0xff] * sw + TO_LINEAR[(dst >> 8) & 0xff] * dw + a / 2) / a;
+        int b = (TO_LINEAR[src & 0xff] * sw + TO_LINEAR[dst & 0xff] * dw + a / 2) / a;
+
+        return (((a + 127) / 255) << 24) | ((TO_SRGB[r] & 0xff) << 16) | ((TO_SRGB[g] & 0xff) << 8) | (TO_SRGB[b] & 0xff);
+    }
+
+    private static double toLinear(double srgb) {
+        return srgb <= 0.04045 ? srgb / 12.92 : Math.pow((srgb + 0.055) / 1.055, 2.4);
+    }
+
+    private static double toSrgb(double linear) {
+        return linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+    }
+}
@@ -0,0 +1,163 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * PerceptualDiff tells how alike two images look, as the structural similarity (SSIM) of their luminance. Both images are
+ * reduced to luminance, averaged down to at most {@link #setMaxSize(int)} pixels a side, and compared in square tiles;
+ * the score is the mean SSIM of the tiles - 1 for the same image, lower the more the local brightness, contrast and
+ * structure differ. Unlike the mean squared error it hardly changes for small uniform shifts, but drops for banding,
+ * aliasing and blur.
+ *
+ * Translucent pixels are taken as composited over black. An instance reuses its luminance buffers, so it is not to be
+ * shared between threads.
+ */
+public class PerceptualDiff {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+    public static final int DEFAULT_TILE_SIZE = 8;
+
+    // stabilizing constants of SSIM for 8 bit values, (0.01 * 255)^2 and (0.03 * 255)^2.
+    private static final double C1 = 6.5025;
+    private static final double C2 = 58.5225;
+
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private int mTileSize = DEFAULT_TILE_SIZE;
+    private float[] mReferenceLuma = new float[0];
+    private float[] mCandidateLuma = new float[0];
+    private double mWorstTileScore;
+
+
+    /**
+     * @param maxSize - largest width and height the luminance is compared at.
+     * @return the related PerceptualDiff
+     */
+    public PerceptualDiff setMaxSize(int maxSize) {
+        this.mMaxSize = Math.max(1, maxSize);
+        return this;
+    }
+
+    /**
+     * @param tileSize - width and height of the tiles compared, in reduced pixels.
+     * @return the related PerceptualDiff
+     */
+    public PerceptualDiff setTileSize(int tileSize) {
+        this.mTileSize = Math.max(2, tileSize);
+        return this;
+    }
+
+    /**
+     * @param reference - image as it should look.
+     * @param candidate - image of the same size to be scored against it.
+     * @return the mean SSIM of the tiles, at most 1.
+     */
+    public double compare(ArgbImage reference, ArgbImage candidate) {
+
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        if (candidate.getWidth() != width || candidate.getHeight() != height) {
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " image, got "
+                    + candidate.getWidth() + "x" + candidate.getHeight());
+        }
+
+        int factor = Math.max(1, (Math.max(width, height) + mMaxSize - 1) / mMaxSize);
+        int lumaWidth = (width + factor - 1) / factor;
+        int lumaHeight = (height + factor - 1) / factor;
+
+        if (mReferenceLuma.length < lumaWidth * lumaHeight) {
+            mReferenceLuma = new float[lumaWidth * lumaHeight];
+            mCandidateLuma = new float[lumaWidth * lumaHeight];
+        }
+        reduce(reference, factor, lumaWidth, lumaHeight, mReferenceLuma);
+        reduce(candidate, factor, lumaWidth, lumaHeight, mCandidateLuma);
+
+        double sum = 0;
+        int tiles = 0;
+        mWorstTileScore = 1;
+
+        for (int top = 0; top < lumaHeight; top += mTileSize) {
+            for (int left = 0; left < lumaWidth; left += mTileSize) {
+                double score = compareTile(lumaWidth, left, top, Math.min(lumaWidth, left + mTileSize), Math.min(lumaHeight, top + mTileSize));
+                mWorstTileScore = Math.min(mWorstTileScore, score);
+                sum += score;
+                tiles++;
+            }
+        }
+
+        return sum / tiles;
+    }
+
+    /**
+     * @return SSIM of the least alike tile of the last comparison.
+     */
+    public double getWorstTileScore() {
+        return mWorstTileScore;
+    }
+
+    private double compareTile(int lumaWidth, int left, int top, int right, int bottom) {
+
+        double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+        int count = (right - left) * (bottom - top);
+
+        for (int y = top; y < bottom; y++) {
+            int row = y * lumaWidth;
+            for (int x = left; x < right; x++) {
+                double lx = mReferenceLuma[row + x];
+                double ly = mCandidateLuma[row + x];
+                sumX += lx;
+                sumY += ly;
+                sumXX += lx * lx;
+                sumYY += ly * ly;
+                sumXY += lx * ly;
+            }
+        }
+
+        double meanX = sumX / count;
+        double meanY = sumY / count;
+        double varianceX = Math.max(0, sumXX / count - meanX * meanX);
+        double varianceY = Math.max(0, sumYY / count - meanY * meanY);
+        double covariance = sumXY / count - meanX * meanY;
+
+        return ((2 * meanX * meanY + C1) * (2 * covariance + C2))
+                / ((meanX * meanX + meanY * meanY + C1) * (varianceX + varianceY + C2));
+    }
+
+    /**
+     * Averages the luminance of factor x factor blocks of the image, the blocks at the right and bottom edge being smaller.
+     */
+    private static void reduce(ArgbImage image, int factor, int lumaWidth, int lumaHeight, float[] luma) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getPixels();
+
+        for (int ly = 0; ly < lumaHeight; ly++) {
+
+            int fromY = ly * factor;
+            int toY = Math.min(height, fromY + factor);
+
+            for (int lx = 0; lx < lumaWidth; lx++) {
+
+                int fromX = lx * factor;
+                int toX = Math.min(width, fromX + factor);
+                long sum = 0;
+
+                for (int y = fromY; y < toY; y++) {
+                    int row = y * width;
+                    for (int x = fromX; x < toX; x++) {
+                        sum += luminance(pixels[row + x]);
+                    }
+                }
+
+                luma[ly * lumaWidth + lx] = sum / (float) ((toX - fromX) * (toY - fromY) * 255 * 256);
+            }
+        }
+    }
+
+    /**
+     * @return Rec. 601 luma of the color over black, scaled by 255 * 256.
+     */
+    private static int luminance(int color) {
+        int a = color >>> 24;
+        int luma = 77 * ((color >> 16) & 0xff) + 150 * ((color >> 8) & 0xff) + 29 * (color & 0xff);
+        return luma * a;
+    }
+}
@@ -0,0 +1,226 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.FastPath;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * QualityGate decides per image which {@link FastPath}s are allowed, so that the lossy shortcuts are taken where they do
+ * not show and skipped where they do - RGB_565 bands a sky but not a photo of a crowd, nearest neighbour scaling aliases
+ * text but not a blurred logo.
+ *
+ * Every fast path is simulated on a proxy of the merge, at most {@link #setProxySize(int)} pixels a side, and scored
+ * against the exact merge of the same proxy with a {@link PerceptualDiff}. A fast path is allowed when its score reaches
+ * the threshold. The base and the merge image are reduced by the same factor, so the merge image is scaled by the same
+ * ratio as in the full merge. Decisions are recorded in the {@link MergeStats} and kept per key, e.g. a content hash of
+ * both images and the spec, so the same merge is only scored once.
+ */
+public class QualityGate {
+
+    public static final double DEFAULT_THRESHOLD = 0.95;
+    public static final int DEFAULT_PROXY_SIZE = 256;
+
+    private static final int MAX_VERDICTS = 32;
+
+    private static final ThreadLocal<PerceptualDiff> DIFF = new ThreadLocal<PerceptualDiff>() {
+        @Override
+        protected PerceptualDiff initialValue() {
+            return new PerceptualDiff();
+        }
+    };
+
+    /**
+     * Scores of the fast paths for one merge and whether they are allowed.
+     */
+    public static final class Verdict {
+
+        private final double[] mScores;
+        private final double mThreshold;
+
+        Verdict(double[] scores, double threshold) {
+            this.mScores = scores;
+            this.mThreshold = threshold;
+        }
+
+        /**
+         * @return perceptual score of the fast path against the exact merge, 1 for no visible difference.
+         */
+        public double getScore(FastPath path) {
+            return mScores[path.ordinal()];
+        }
+
+        public boolean isAllowed(FastPath path) {
+            return mScores[path.ordinal()] >= mThreshold;
+        }
+
+        public double getThreshold() {
+            return mThreshold;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder builder = new StringBuilder("Verdict{threshold=").append(mThreshold);
+            for (FastPath path : FastPath.values()) {
+                builder.append(", ").append(path).append('=').append(getScore(path)).append(isAllowed(path) ? " allowed" : " refused");
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    private final Map<String, Verdict> mVerdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+            return size() > MAX_VERDICTS;
+        }
+    };
+
+    private double mThreshold = DEFAULT_THRESHOLD;
+    private int mProxySize = DEFAULT_PROXY_SIZE;
+    private MergeStats mStats = MergeStats.getDefault();
+
+
+    /**
+     * @param threshold - lowest score a fast path is allowed at, 1 allowing only lossless ones.
+     * @return the related QualityGate
+     */
+    public QualityGate setThreshold(double threshold) {
+        this.mThreshold = threshold;
+        return this;
+    }
+
+    public double getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * @param proxySize - largest width and height of the base the fast paths are simulated at.
+     * @return the related QualityGate
+     */
+    public QualityGate setProxySize(int proxySize) {
+        this.mProxySize = Math.max(1, proxySize);
+        return this;
+    }
+
+    public int getProxySize() {
+        return mProxySize;
+    }
+
+    /**
+     * @param stats - stats the decisions are recorded in, null for none.
+     * @return the related QualityGate
+     */
+    public QualityGate setStats(MergeStats stats) {
+        this.mStats = stats;
+        return this;
+    }
+
+    /**
+     * @param key - key the verdict was decided under.
+     * @return the verdict kept for the key, null if none.
+     */
+    public synchronized Verdict getVerdict(String key) {
+        return mVerdicts.get(key);
+    }
+
+    /**
+     * Decides which fast paths are allowed for a merge, or returns the verdict kept for the key.
+     * @param key - key the verdict is kept under, null to not keep it.
+     * @param base - base image, or a proxy of it.
+     * @param overlay - merge image, upright, reduced by the same factor as the base if that is a proxy.
+     * @param spec - spec of the merge, for the size of the given base.
+     * @return the verdict.
+     */
+    public Verdict evaluate(String key, ArgbImage base, ArgbImage overlay, MergeSpec spec) {
+
+        if (key != null) {
+            Verdict kept = getVerdict(key);
+            if (kept != null) {
+                return kept;
+            }
+        }
+
+        int width = base.getWidth();
+        int height = base.getHeight();
+        float factor = Math.min(1f, mProxySize / (float) Math.max(width, height));
+        if (factor < 1f) {
+            base = RasterScaler.scaleArea(base, scaleSize(width, factor), scaleSize(height, factor));
+            overlay = RasterScaler.scaleArea(overlay, scaleSize(overlay.getWidth(), factor), scaleSize(overlay.getHeight(), factor));
+            spec = spec.scaledBy(base.getWidth() / (float) width);
+        }
+
+        ArgbImage reference = RasterMerger.merge(base, overlay, spec, BlendSpace.SRGB, true, null);
+        PerceptualDiff diff = DIFF.get();
+
+        double[] scores = new double[FastPath.values().length];
+        for (FastPath path : FastPath.values()) {
+            scores[path.ordinal()] = diff.compare(reference, simulate(path, base, overlay, spec, reference));
+        }
+
+        Verdict verdict = new Verdict(scores, mThreshold);
+
+        if (mStats != null) {
+            for (FastPath path : FastPath.values()) {
+                mStats.recordQuality(path, verdict.getScore(path), verdict.isAllowed(path));
+            }
+        }
+
+        if (key != null) {
+            synchronized (this) {
+                mVerdicts.put(key, verdict);
+            }
+        }
+
+        return verdict;
+    }
+
+    /**
+     * @return the merge as the fast path would show it, the size of the base.
+     */
+    private static ArgbImage simulate(FastPath path, ArgbImage base, ArgbImage overlay, MergeSpec spec, ArgbImage reference) {
+
+        switch (path) {
+            case RGB_565:
+                return toRgb565(reference);
+
+            case NEAREST:
+                return RasterMerger.merge(base, overlay, spec, BlendSpace.SRGB, false, null);
+
+            case HALF_SAMPLE:
+                ArgbImage halfBase = RasterScaler.scaleArea(base, scaleSize(base.getWidth(), 0.5f), scaleSize(base.getHeight(), 0.5f));
+                ArgbImage halfOverlay = RasterScaler.scaleArea(overlay, scaleSize(overlay.getWidth(), 0.5f), scaleSize(overlay.getHeight(), 0.5f));
+                ArgbImage halfMerged = RasterMerger.merge(halfBase, halfOverlay, spec.scaledBy(halfBase.getWidth() / (float) base.getWidth()),
+                        BlendSpace.SRGB, true, null);
+                return RasterScaler.scale(halfMerged, base.getWidth(), base.getHeight());
+
+            default:
+                throw new IllegalArgumentException("Unknown fast path " + path);
+        }
+    }
+
+    /**
+     * @return a copy of the image with the colors rounded to 5, 6 and 5 bits and expanded again, opaque.
+     */
+    static ArgbImage toRgb565(ArgbImage image) {
+
+        ArgbImage quantized = image.copy();
+        int[] pixels = quantized.getPixels();
+
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int r = (((color >> 16) & 0xff) * 31 + 127) / 255;
+            int g = (((color >> 8) & 0xff) * 63 + 127) / 255;
+            int b = ((color & 0xff) * 31 + 127) / 255;
+            pixels[i] = 0xff000000 | (((r << 3) | (r >> 2)) << 16) | (((g << 2) | (g >> 4)) << 8) | ((b << 3) | (b >> 2));
+        }
+
+        return quantized;
+    }
+
+    private static int scaleSize(int size, float factor) {
+        return Math.max(1, Math.round(size * factor));
+    }
+}
@@ -0,0 +1,286 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeStats;
+
+/**
+ * RasterMerger merges two {@link ArgbImage}s the way {@link BitmapMergerTask} merges two bitmaps - the merge image scaled
+ * with filtering to the size given by the {@link MergeSpec}, placed where the spec places it and drawn source-over onto a
+ * copy of the base image, clipped to the base. Only the visible part of the merge image is scaled, and the base image
+ * itself is returned when nothing of the merge image is visible.
+ *
+ * A spec with a {@link BlendMode} other than normal, or an opacity below 1, is blended with the separable blend modes of
+ * the W3C compositing spec, the same as the PorterDuff modes of a Canvas. These are always blended in sRGB.
+ *
+ * It needs nothing from Android, so the merge geometry and compositing can be checked against golden images and timed on
+ * the JVM.
+ */
+public final class RasterMerger {
+
+    private RasterMerger() {
+    }
+
+    /**
+     * @param base - base image.
+     * @param overlay - merge image, upright.
+     * @param spec - spec of the merge.
+     * @return the merged image, or the base image itself when nothing is drawn over it (like {@link BitmapMergerTask}).
+     */
+    public static ArgbImage merge(ArgbImage base, ArgbImage overlay, MergeSpec spec) {
+        return merge(base, overlay, spec, BlendSpace.SRGB);
+    }
+
+    /**
+     * @param base - base image.
+     * @param overlay - merge image, upright.
+     * @param spec - spec of the merge.
+     * @param blendSpace - color space the merge image is blended in.
+     * @return the merged image, or the base image itself when nothing is drawn over it.
+     */
+    public static ArgbImage merge(ArgbImage base, ArgbImage overlay, MergeSpec spec, BlendSpace blendSpace) {
+        return merge(base, overlay, spec, blendSpace, true, MergeStats.getDefault());
+    }
+
+    /**
+     * @param filter - true to scale the merge image with bilinear filtering, false for nearest neighbour scaling.
+     * @param stats - stats the path of the merge is counted in, null for none.
+     */
+    static ArgbImage merge(ArgbImage base, ArgbImage overlay, MergeSpec spec, BlendSpace blendSpace, boolean filter, MergeStats stats) {
+
+        if (!spec.hasOverlay()) {
+            count(stats, MergeStats.Path.NO_OVERLAY);
+            return base;
+        }
+
+        int baseWidth = base.getWidth();
+        int baseHeight = base.getHeight();
+        int overlayWidth = spec.getOverlayWidth(baseWidth);
+        int overlayHeight = spec.getOverlayHeight(baseHeight);
+        int left = spec.getOverlayLeft(baseWidth, baseHeight);
+        int top = spec.getOverlayTop(baseWidth, baseHeight);
+
+        // the part of the overlay that ends up on the base, in base coordinates.
+        int visibleLeft = Math.max(0, left);
+        int visibleTop = Math.max(0, top);
+        int visibleRight = Math.min(baseWidth, left + overlayWidth);
+        int visibleBottom = Math.min(baseHeight, top + overlayHeight);
+
+        if (overlayWidth <= 0 || overlayHeight <= 0 || visibleLeft >= visibleRight || visibleTop >= visibleBottom) {
+            count(stats, MergeStats.Path.OFF_CANVAS);
+            return base;
+        }
+
+        int visibleWidth = visibleRight - visibleLeft;
+        int visibleHeight = visibleBottom - visibleTop;
+        count(stats, visibleWidth < overlayWidth || visibleHeight < overlayHeight ? MergeStats.Path.CLIPPED : MergeStats.Path.FULL);
+
+        // scale only the visible part of the overlay.
+        ArgbImage visible = new ArgbImage(visibleWidth, visibleHeight);
+        if (filter) {
+            RasterScaler.scaleRegion(overlay, overlayWidth, overlayHeight, visibleLeft - left, visibleTop - top, visible);
+        } else {
+            RasterScaler.scaleRegionNearest(overlay, overlayWidth, overlayHeight, visibleLeft - left, visibleTop - top, visible);
+        }
+
+        ArgbImage merged = base.copy();
+        if (spec.hasDefaultBlending()) {
+            drawOver(merged, visible, visibleLeft, visibleTop, blendSpace);
+        } else {
+            drawBlended(merged, visible, visibleLeft, visibleTop, spec.getBlendMode(), spec.getOpacity());
+        }
+
+        return merged;
+    }
+
+    private static void count(MergeStats stats, MergeStats.Path path) {
+        if (stats != null) {
+            stats.count(path);
+        }
+    }
+
+    /**
+     * Draws the source over the destination with source-over blending. Parts outside the destination are skipped.
+     * @param destination - image drawn onto.
+     * @param source - image drawn.
+     * @param left - x of the source within the destination, may be negative.
+     * @param top - y of the source within the destination, may be negative.
+     */
+    public static void drawOver(ArgbImage destination, ArgbImage source, int left, int top) {
+        drawOver(destination, source, left, top, BlendSpace.SRGB);
+    }
+
+    /**
+     * Same as {@link #drawOver(ArgbImage, ArgbImage, int, int)}, blending in the given color space.
+     */
+    public static void drawOver(ArgbImage destination, ArgbImage source, int left, int top, BlendSpace blendSpace) {
+
+        int dstWidth = destination.getWidth();
+        int srcWidth = source.getWidth();
+
+        int fromX = Math.max(0, -left);
+        int toX = Math.min(srcWidth, dstWidth - left);
+        int fromY = Math.max(0, -top);
+        int toY = Math.min(source.getHeight(), destination.getHeight() - top);
+
+        int[] dst = destination.getPixels();
+        int[] src = source.getPixels();
+
+        boolean linear = blendSpace == BlendSpace.LINEAR;
+
+        for (int y = fromY; y < toY; y++) {
+
+            int srcRow = y * srcWidth;
+            int dstRow = (y + top) * dstWidth + left;
+
+            if (linear) {
+                for (int x = fromX; x < toX; x++) {
+                    dst[dstRow + x] = LinearLight.srcOver(src[srcRow + x], dst[dstRow + x]);
+                }
+            } else {
+                for (int x = fromX; x < toX; x++) {
+                    dst[dstRow + x] = srcOver(src[srcRow + x], dst[dstRow + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends the source onto the destination with the given blend mode and opacity, in sRGB. Parts outside the destination
+     * are skipped.
+     * @param destination - image drawn onto.
+     * @param source - image drawn.
+     * @param left - x of the source within the destination, may be negative.
+     * @param top - y of the source within the destination, may be negative.
+     * @param mode - how the source colors are blended with the destination colors.
+     * @param opacity - opacity of the source, from 0 to 1.
+     */
+    public static void drawBlended(ArgbImage destination, ArgbImage source, int left, int top, BlendMode mode, float opacity) {
+
+        int dstWidth = destination.getWidth();
+        int srcWidth = source.getWidth();
+
+        int fromX = Math.max(0, -left);
+        int toX = Math.min(srcWidth, dstWidth - left);
+        int fromY = Math.max(0, -top);
+        int toY = Math.min(source.getHeight(), destination.getHeight() - top);
+
+        int[] dst = destination.getPixels();
+        int[] src = source.getPixels();
+
+        int alpha = Math.round(Math.max(0f, Math.min(1f, opacity)) * 255);
+
+        for (int y = fromY; y < toY; y++) {
+
+            int srcRow = y * srcWidth;
+            int dstRow = (y + top) * dstWidth + left;
+
+            for (int x = fromX; x < toX; x++) {
+                dst[dstRow + x] = blend(src[srcRow + x], dst[dstRow + x], mode, alpha);
+            }
+        }
+    }
+
+    /**
+     * @param src - non-premultiplied source color.
+     * @param dst - non-premultiplied destination color.
+     * @return the non-premultiplied source-over blend of both.
+     */
+    static int srcOver(int src, int dst) {
+
+        int sa = src >>> 24;
+
+        if (sa == 255) {
+            return src;
+        }
+
+        if (sa == 0) {
+            return dst;
+        }
+
+        int da = dst >>> 24;
+        // destination contribution, scaled to 0..255*255.
+        int dw = da * (255 - sa);
+        int sw = sa * 255;
+        int a = sw + dw;
+
+        int r = (((src >> 16) & 0xff) * sw + ((dst >> 16) & 0xff) * dw + a / 2) / a;
+        int g = (((src >> 8) & 0xff) * sw + ((dst >> 8) & 0xff) * dw + a / 2) / a;
+        int b = ((src & 0xff) * sw + (dst & 0xff) * dw + a / 2) / a;
+
+        return (((a + 127) / 255) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * @param src - non-premultiplied source color.
+     * @param dst - non-premultiplied destination color.
+     * @param mode - blend mode.
+     * @param opacity - opacity of the source, 0..255.
+     * @return the non-premultiplied blend of both - the blended color where both are covered, either color where only
+     * that one is.
+     */
+    static int blend(int src, int dst, BlendMode mode, int opacity) {
+
+        int sa = ((src >>> 24) * opacity + 127) / 255;
+
+        if (sa == 0) {
+            return dst;
+        }
+
+        int da = dst >>> 24;
+
+        if (mode == BlendMode.ADD) {
+            // the sum of the premultiplied colors, saturating.
+            int a = Math.min(255, sa + da);
+            int r = addChannel((src >> 16) & 0xff, sa, (dst >> 16) & 0xff, da, a);
+            int g = addChannel((src >> 8) & 0xff, sa, (dst >> 8) & 0xff, da, a);
+            int b = addChannel(src & 0xff, sa, dst & 0xff, da, a);
+            return (a << 24) | (r << 16) | (g << 8) | b;
+        }
+
+        // weights of the source only, destination only and blended parts, scaled to 0..255*255.
+        int ws = sa * (255 - da);
+        int wd = da * (255 - sa);
+        int wm = sa * da;
+        int a = ws + wd + wm;
+
+        int r = blendChannel(mode, (src >> 16) & 0xff, (dst >> 16) & 0xff, ws, wd, wm, a);
+        int g = blendChannel(mode, (src >> 8) & 0xff, (dst >> 8) & 0xff, ws, wd, wm, a);
+        int b = blendChannel(mode, src & 0xff, dst & 0xff, ws, wd, wm, a);
+
+        return (((a + 127) / 255) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int blendChannel(BlendMode mode, int cs, int cd, int ws, int wd, int wm, int a) {
+
+        int blended;
+        switch (mode) {
+            case MULTIPLY:
+                blended = (cs * cd + 127) / 255;
+                break;
+            case SCREEN:
+                blended = cs + cd - (cs * cd + 127) / 255;
+                break;
+            case OVERLAY:
+                // multiply on the dark half of the destination, screen on the light half.
+                blended = 2 * cd <= 255 ? (2 * cs * cd + 127) / 255 : 255 - (2 * (255 - cs) * (255 - cd) + 127) / 255;
+                break;
+            case DARKEN:
+                blended = Math.min(cs, cd);
+                break;
+            case LIGHTEN:
+                blended = Math.max(cs, cd);
+                break;
+            default:
+                blended = cs;
+                break;
+        }
+
+        return (cs * ws + cd * wd + blended * wm + a / 2) / a;
+    }
+
+    private static int addChannel(int cs, int sa, int cd, int da, int a) {
+        return (Math.min(255 * 255, cs * sa + cd * da) + a / 2) / a;
+    }
+}
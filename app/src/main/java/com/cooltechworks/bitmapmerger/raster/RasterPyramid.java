@@ -0,0 +1,111 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RasterPyramid is {@link MipPyramid} for {@link ArgbImage}s - successively halved levels, each a 2x2 box filter of the one
+ * above, built as they are needed within a byte budget.
+ */
+public final class RasterPyramid {
+
+    private final List<ArgbImage> mLevels = new ArrayList<ArgbImage>();
+    private final int mMaxBytes;
+    private int mBytes;
+
+
+    /**
+     * @param source - image, kept as the first level.
+     * @param maxBytes - maximum number of bytes taken by the levels, excluding the source.
+     */
+    public RasterPyramid(ArgbImage source, int maxBytes) {
+        this.mMaxBytes = maxBytes;
+        this.mLevels.add(source);
+    }
+
+    /**
+     * @param width - required width.
+     * @param height - required height.
+     * @return the smallest level that is at least the given size, or the smallest one within the budget.
+     */
+    public ArgbImage getLevel(int width, int height) {
+
+        int index = 0;
+
+        while (true) {
+            ArgbImage level = mLevels.get(index);
+            int nextWidth = level.getWidth() / 2;
+            int nextHeight = level.getHeight() / 2;
+
+            if (nextWidth < width || nextHeight < height || nextWidth < 1 || nextHeight < 1) {
+                return level;
+            }
+
+            if (index + 1 == mLevels.size()) {
+                if (mBytes + nextWidth * nextHeight * 4 > mMaxBytes) {
+                    return level;
+                }
+                mLevels.add(halve(level, nextWidth, nextHeight));
+                mBytes += nextWidth * nextHeight * 4;
+            }
+
+            index++;
+        }
+    }
+
+    /**
+     * Scales the source with a single bilinear pass from the nearest level.
+     * @param width - width of the scaled image.
+     * @param height - height of the scaled image.
+     * @return a new image of the given size.
+     */
+    public ArgbImage scale(int width, int height) {
+        return RasterScaler.scale(getLevel(width, height), width, height);
+    }
+
+    public int getLevelCount() {
+        return mLevels.size();
+    }
+
+    public int getBytes() {
+        return mBytes;
+    }
+
+    // averages 2x2 blocks in premultiplied space, like a filtered halving on the device.
+    static ArgbImage halve(ArgbImage source, int width, int height) {
+
+        ArgbImage half = new ArgbImage(width, height);
+        int[] src = source.getPixels();
+        int[] dst = half.getPixels();
+        int srcWidth = source.getWidth();
+
+        for (int y = 0; y < height; y++) {
+
+            int row0 = 2 * y * srcWidth;
+            int row1 = row0 + srcWidth;
+
+            for (int x = 0; x < width; x++) {
+
+                int c00 = src[row0 + 2 * x], c10 = src[row0 + 2 * x + 1];
+                int c01 = src[row1 + 2 * x], c11 = src[row1 + 2 * x + 1];
+
+                int a00 = c00 >>> 24, a10 = c10 >>> 24, a01 = c01 >>> 24, a11 = c11 >>> 24;
+                int a = a00 + a10 + a01 + a11;
+
+                if (a == 0) {
+                    continue;
+                }
+
+                int r = ((c00 >> 16) & 0xff) * a00 + ((c10 >> 16) & 0xff) * a10 + ((c01 >> 16) & 0xff) * a01 + ((c11 >> 16) & 0xff) * a11;
+                int g = ((c00 >> 8) & 0xff) * a00 + ((c10 >> 8) & 0xff) * a10 + ((c01 >> 8) & 0xff) * a01 + ((c11 >> 8) & 0xff) * a11;
+                int b = (c00 & 0xff) * a00 + (c10 & 0xff) * a10 + (c01 & 0xff) * a01 + (c11 & 0xff) * a11;
+
+                dst[y * width + x] = (((a + 2) / 4) << 24) | ((r + a / 2) / a << 16) | ((g + a / 2) / a << 8) | ((b + a / 2) / a);
+            }
+        }
+
+        return half;
+    }
+}
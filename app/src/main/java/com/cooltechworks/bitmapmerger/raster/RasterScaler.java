@@ -0,0 +1,95 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * RasterScaler resizes an {@link ArgbImage} with bilinear filtering, sampling at pixel centers like a filtered
+ * {@code Bitmap.createScaledBitmap()}, with area averaging, or with nearest neighbour sampling like an unfiltered one.
+ *
+ * Scaling is done in fixed point by a {@link FixedPointScaler} kept per thread, so that its tables and row buffers are
+ * reused by the following calls of the same thread.
+ */
+public final class RasterScaler {
+
+    private static final ThreadLocal<FixedPointScaler> SCALER = new ThreadLocal<FixedPointScaler>() {
+        @Override
+        protected FixedPointScaler initialValue() {
+            return new FixedPointScaler();
+        }
+    };
+
+    private RasterScaler() {
+    }
+
+    /**
+     * @param source - image to be scaled.
+     * @param width - width of the scaled image, positive.
+     * @param height - height of the scaled image, positive.
+     * @return a new image of the given size.
+     */
+    public static ArgbImage scale(ArgbImage source, int width, int height) {
+
+        ArgbImage scaled = new ArgbImage(width, height);
+        scale(source, scaled);
+        return scaled;
+    }
+
+    /**
+     * Scales the source to fill the destination completely.
+     * @param source - image to be scaled.
+     * @param destination - image receiving the scaled pixels.
+     */
+    public static void scale(ArgbImage source, ArgbImage destination) {
+        SCALER.get().scale(source, destination);
+    }
+
+    /**
+     * Computes only a region of the scaled image - the pixels are the same as the ones at that region of the fully scaled
+     * image, without scaling the rest of it.
+     * @param source - image to be scaled.
+     * @param scaledWidth - width of the whole scaled image.
+     * @param scaledHeight - height of the whole scaled image.
+     * @param fromX - x of the region within the scaled image.
+     * @param fromY - y of the region within the scaled image.
+     * @param destination - image receiving the region, its size being the size of the region.
+     */
+    public static void scaleRegion(ArgbImage source, int scaledWidth, int scaledHeight, int fromX, int fromY, ArgbImage destination) {
+        SCALER.get().scaleRegion(source, scaledWidth, scaledHeight, fromX, fromY, destination);
+    }
+
+    /**
+     * Same as {@link #scaleRegion(ArgbImage, int, int, int, int, ArgbImage)}, taking the source pixel nearest to the center
+     * of every scaled pixel instead of filtering.
+     */
+    public static void scaleRegionNearest(ArgbImage source, int scaledWidth, int scaledHeight, int fromX, int fromY, ArgbImage destination) {
+
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int dstWidth = destination.getWidth();
+        int dstHeight = destination.getHeight();
+        int[] src = source.getPixels();
+        int[] dst = destination.getPixels();
+
+        for (int y = 0; y < dstHeight; y++) {
+            int sy = (int) (((2L * (fromY + y) + 1) * srcHeight) / (2L * scaledHeight));
+            int srcRow = Math.min(srcHeight - 1, sy) * srcWidth;
+            int dstRow = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sx = (int) (((2L * (fromX + x) + 1) * srcWidth) / (2L * scaledWidth));
+                dst[dstRow + x] = src[srcRow + Math.min(srcWidth - 1, sx)];
+            }
+        }
+    }
+
+    /**
+     * Scales with area averaging, for reductions by more than half where bilinear filtering skips source pixels.
+     * @param source - image to be scaled.
+     * @param width - width of the scaled image, positive.
+     * @param height - height of the scaled image, positive.
+     * @return a new image of the given size.
+     */
+    public static ArgbImage scaleArea(ArgbImage source, int width, int height) {
+
+        ArgbImage scaled = new ArgbImage(width, height);
+        SCALER.get().scaleArea(source, scaled);
+        return scaled;
+    }
+}
@@ -0,0 +1,86 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeTrack;
+import com.cooltechworks.bitmapmerger.tasks.SequenceMergerTask;
+
+/**
+ * RasterSequenceRenderer renders the frames of a {@link MergeTrack} on {@link ArgbImage}s the way {@link SequenceMergerTask}
+ * renders them on bitmaps - into a single reused frame buffer, restoring only the area the previous frame drew on and
+ * scaling the merge image again only when its size changes.
+ */
+public final class RasterSequenceRenderer {
+
+    public interface FrameConsumer {
+        /**
+         * @param index - index of the frame.
+         * @param frame - the frame, valid only until this method returns.
+         */
+        void onFrame(int index, ArgbImage frame);
+    }
+
+    private RasterSequenceRenderer() {
+    }
+
+    /**
+     * @param base - base image.
+     * @param overlay - merge image, upright.
+     * @param track - motion of the merge image.
+     * @param frameCount - number of frames.
+     * @param consumer - receives the frames in order.
+     */
+    public static void render(ArgbImage base, ArgbImage overlay, MergeTrack track, int frameCount, FrameConsumer consumer) {
+
+        int baseWidth = base.getWidth();
+        int baseHeight = base.getHeight();
+        int[] basePixels = base.getPixels();
+
+        ArgbImage frame = base.copy();
+        int[] framePixels = frame.getPixels();
+        ArgbImage scaled = null;
+
+        // area drawn on by the previous frame, empty when right <= left.
+        int dirtyLeft = 0, dirtyTop = 0, dirtyRight = 0, dirtyBottom = 0;
+
+        for (int i = 0; i < frameCount; i++) {
+
+            for (int y = dirtyTop; y < dirtyBottom && dirtyLeft < dirtyRight; y++) {
+                int offset = y * baseWidth + dirtyLeft;
+                System.arraycopy(basePixels, offset, framePixels, offset, dirtyRight - dirtyLeft);
+            }
+            dirtyRight = dirtyLeft;
+
+            MergeSpec spec = track.getFrameSpec(i, frameCount);
+            int overlayWidth = spec.hasOverlay() ? spec.getOverlayWidth(baseWidth) : 0;
+            int overlayHeight = spec.hasOverlay() ? spec.getOverlayHeight(baseHeight) : 0;
+
+            if (overlayWidth > 0 && overlayHeight > 0) {
+
+                int left = spec.getOverlayLeft(baseWidth, baseHeight);
+                int top = spec.getOverlayTop(baseWidth, baseHeight);
+
+                dirtyLeft = Math.max(0, left);
+                dirtyTop = Math.max(0, top);
+                dirtyRight = Math.min(baseWidth, left + overlayWidth);
+                dirtyBottom = Math.min(baseHeight, top + overlayHeight);
+
+                if (dirtyLeft < dirtyRight && dirtyTop < dirtyBottom) {
+
+                    if (scaled == null || scaled.getWidth() != overlayWidth || scaled.getHeight() != overlayHeight) {
+                        scaled = RasterScaler.scale(overlay, overlayWidth, overlayHeight);
+                    }
+
+                    if (spec.hasDefaultBlending()) {
+                        RasterMerger.drawOver(frame, scaled, left, top);
+                    } else {
+                        RasterMerger.drawBlended(frame, scaled, left, top, spec.getBlendMode(), spec.getOpacity());
+                    }
+                } else {
+                    dirtyRight = dirtyLeft;
+                }
+            }
+
+            consumer.onFrame(i, frame);
+        }
+    }
+}
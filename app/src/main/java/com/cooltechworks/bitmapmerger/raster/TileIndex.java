@@ -0,0 +1,229 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * TileIndex describes a merged image stored as tiles - the size of the image, the size of its tiles and, for every tile,
+ * the name of the tile holding its pixels. Tiles the merge image does not cover name the tile of the base image itself,
+ * so they are referenced rather than copied. The tiles are in rows, the last column and row being smaller when the image
+ * size is not a multiple of the tile size.
+ *
+ * The index also keeps the bounds the merge image was drawn at, so that merging again only touches the tiles under the
+ * old and the new bounds.
+ *
+ * It is written as text,
+ *
+ * <pre>
+ * TileIndex 1
+ * width height tileSize
+ * overlayLeft overlayTop overlayRight overlayBottom
+ * name of each tile, one per line, row by row
+ * </pre>
+ */
+public final class TileIndex {
+
+    private static final String HEADER = "TileIndex 1";
+    private static final String BASE_PREFIX = "base_";
+    private static final String MERGED_PREFIX = "merged_";
+
+    private final int mWidth, mHeight, mTileSize;
+    private final int mColumns, mRows;
+    private final String[] mNames;
+
+    // bounds of the merge image within the image, empty when right <= left.
+    private int mOverlayLeft, mOverlayTop, mOverlayRight, mOverlayBottom;
+
+
+    /**
+     * Creates the index of the tiled base image, every tile naming its base tile.
+     * @param width - width of the image.
+     * @param height - height of the image.
+     * @param tileSize - width and height of the tiles.
+     */
+    public TileIndex(int width, int height, int tileSize) {
+
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height + ", tiles " + tileSize);
+        }
+
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mTileSize = tileSize;
+        this.mColumns = (width + tileSize - 1) / tileSize;
+        this.mRows = (height + tileSize - 1) / tileSize;
+        this.mNames = new String[mColumns * mRows];
+
+        for (int row = 0; row < mRows; row++) {
+            for (int column = 0; column < mColumns; column++) {
+                mNames[row * mColumns + column] = getBaseTileName(column, row);
+            }
+        }
+    }
+
+    /**
+     * @return name of the tile of the base image at the given column and row.
+     */
+    public static String getBaseTileName(int column, int row) {
+        return BASE_PREFIX + column + '_' + row;
+    }
+
+    /**
+     * @return name of the merged tile at the given column and row.
+     */
+    public static String getMergedTileName(int column, int row) {
+        return MERGED_PREFIX + column + '_' + row;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * @return name of the tile holding the pixels at the given column and row.
+     */
+    public String getTileName(int column, int row) {
+        return mNames[row * mColumns + column];
+    }
+
+    /**
+     * @return true if the tile at the given column and row is a merged one, false if it is the base tile.
+     */
+    public boolean isMerged(int column, int row) {
+        return !getTileName(column, row).startsWith(BASE_PREFIX);
+    }
+
+    void setTileName(int column, int row, String name) {
+        mNames[row * mColumns + column] = name;
+    }
+
+    public int getTileLeft(int column) {
+        return column * mTileSize;
+    }
+
+    public int getTileTop(int row) {
+        return row * mTileSize;
+    }
+
+    public int getTileWidth(int column) {
+        return Math.min(mTileSize, mWidth - getTileLeft(column));
+    }
+
+    public int getTileHeight(int row) {
+        return Math.min(mTileSize, mHeight - getTileTop(row));
+    }
+
+    public int getOverlayLeft() {
+        return mOverlayLeft;
+    }
+
+    public int getOverlayTop() {
+        return mOverlayTop;
+    }
+
+    public int getOverlayRight() {
+        return mOverlayRight;
+    }
+
+    public int getOverlayBottom() {
+        return mOverlayBottom;
+    }
+
+    void setOverlayBounds(int left, int top, int right, int bottom) {
+        this.mOverlayLeft = left;
+        this.mOverlayTop = top;
+        this.mOverlayRight = right;
+        this.mOverlayBottom = bottom;
+    }
+
+    /**
+     * @param writer - writer the index is written to, not closed.
+     * @throws IOException if writing fails.
+     */
+    public void write(Writer writer) throws IOException {
+
+        writer.write(HEADER);
+        writer.write('\n');
+        writer.write(mWidth + " " + mHeight + " " + mTileSize + "\n");
+        writer.write(mOverlayLeft + " " + mOverlayTop + " " + mOverlayRight + " " + mOverlayBottom + "\n");
+
+        for (String name : mNames) {
+            writer.write(name);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * @param reader - reader the index is read from, not closed.
+     * @return the index read.
+     * @throws IOException if reading fails or the text is not a tile index.
+     */
+    public static TileIndex read(Reader reader) throws IOException {
+
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+
+        if (!HEADER.equals(lines.readLine())) {
+            throw new IOException("Not a tile index");
+        }
+
+        int[] size = readInts(lines, 3);
+        int[] overlay = readInts(lines, 4);
+
+        TileIndex index;
+        try {
+            index = new TileIndex(size[0], size[1], size[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        index.setOverlayBounds(overlay[0], overlay[1], overlay[2], overlay[3]);
+
+        for (int i = 0; i < index.mNames.length; i++) {
+            String name = lines.readLine();
+            if (name == null || name.length() == 0) {
+                throw new IOException("Tile index ends at tile " + i + " of " + index.mNames.length);
+            }
+            index.mNames[i] = name;
+        }
+
+        return index;
+    }
+
+    private static int[] readInts(BufferedReader lines, int count) throws IOException {
+
+        String line = lines.readLine();
+        String[] parts = line != null ? line.trim().split(" ") : new String[0];
+
+        if (parts.length != count) {
+            throw new IOException("Malformed tile index line: " + line);
+        }
+
+        int[] values = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                values[i] = Integer.parseInt(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed tile index line: " + line);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,42 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import java.io.IOException;
+
+/**
+ * Storage of the tiles and the {@link TileIndex} written by a {@link TiledMerger}, e.g. files in a directory.
+ */
+public interface TileStore {
+
+    /**
+     * @param name - name of the tile, as in the index.
+     * @return the pixels of the tile.
+     * @throws IOException if the tile cannot be read.
+     */
+    ArgbImage readTile(String name) throws IOException;
+
+    /**
+     * Writes a tile, replacing the one of the same name. A reader never sees a partly written tile.
+     * @param name - name of the tile.
+     * @param tile - pixels of the tile.
+     * @throws IOException if the tile cannot be written.
+     */
+    void writeTile(String name, ArgbImage tile) throws IOException;
+
+    /**
+     * @param name - name of a tile no longer referenced by the index, a missing one is ignored.
+     */
+    void deleteTile(String name);
+
+    /**
+     * @return the index last written, null if there is none.
+     * @throws IOException if the index cannot be read.
+     */
+    TileIndex readIndex() throws IOException;
+
+    /**
+     * Writes the index, replacing the previous one. A reader never sees a partly written index.
+     * @param index - index of the tiles.
+     * @throws IOException if the index cannot be written.
+     */
+    void writeIndex(TileIndex index) throws IOException;
+}
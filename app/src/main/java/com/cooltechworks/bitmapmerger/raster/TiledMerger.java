@@ -0,0 +1,213 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TiledMerger merges onto base images too large to be held as one image, e.g. maps and scans. The base image is split
+ * into tiles once ({@link #tileBase(BaseSource, int)}), then every merge composites only the tiles the merge image covers -
+ * the other tiles stay the base tiles, referenced by the {@link TileIndex} instead of being copied. The merged image is
+ * never put together; it is the tiles named by the index.
+ *
+ * Merging again, e.g. with the merge image at another place, rewrites only the tiles under the old and the new place of
+ * the merge image. Tiles the merge image left are referenced as base tiles again.
+ *
+ * Merged tiles are the same pixels as the same region of {@link RasterMerger#merge(ArgbImage, ArgbImage, MergeSpec)} - the
+ * merge image is scaled per tile, only the part covering that tile.
+ */
+public class TiledMerger {
+
+    /**
+     * The base image, read a region at a time.
+     */
+    public interface BaseSource {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * @return the pixels of the given region, within the bounds of the image.
+         * @throws IOException if the region cannot be read.
+         */
+        ArgbImage read(int left, int top, int width, int height) throws IOException;
+    }
+
+    private final TileStore mStore;
+    private int mWrittenTileCount;
+    private int mReferencedTileCount;
+
+
+    /**
+     * @param store - store of the tiles and the index.
+     */
+    public TiledMerger(TileStore store) {
+        this.mStore = store;
+    }
+
+    /**
+     * Splits the base image into tiles and writes its index, replacing any previous merge.
+     * @param base - the base image.
+     * @param tileSize - width and height of the tiles.
+     * @return the index written, with nothing merged yet.
+     * @throws IOException if reading the base or writing the tiles fails.
+     */
+    public TileIndex tileBase(BaseSource base, int tileSize) throws IOException {
+
+        TileIndex index = new TileIndex(base.getWidth(), base.getHeight(), tileSize);
+        TileIndex previous = mStore.readIndex();
+
+        for (int row = 0; row < index.getRows(); row++) {
+            for (int column = 0; column < index.getColumns(); column++) {
+                ArgbImage tile = base.read(index.getTileLeft(column), index.getTileTop(row), index.getTileWidth(column), index.getTileHeight(row));
+                mStore.writeTile(TileIndex.getBaseTileName(column, row), tile);
+            }
+        }
+
+        mStore.writeIndex(index);
+        mWrittenTileCount = index.getColumns() * index.getRows();
+        mReferencedTileCount = 0;
+
+        // merged tiles of the previous base, no longer named by the index.
+        if (previous != null) {
+            for (int row = 0; row < previous.getRows(); row++) {
+                for (int column = 0; column < previous.getColumns(); column++) {
+                    if (previous.isMerged(column, row)) {
+                        mStore.deleteTile(previous.getTileName(column, row));
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Merges the merge image onto the tiled base, rewriting only the tiles the merge image covers now or covered before.
+     * @param overlay - merge image, upright.
+     * @param spec - spec of the merge, placing the merge image within the whole base image.
+     * @return the index written.
+     * @throws IOException if the base has not been tiled, or reading or writing the tiles fails.
+     */
+    public TileIndex merge(ArgbImage overlay, MergeSpec spec) throws IOException {
+
+        TileIndex index = mStore.readIndex();
+        if (index == null) {
+            throw new IOException("No tile index, the base has to be tiled first");
+        }
+
+        int width = index.getWidth();
+        int height = index.getHeight();
+        int overlayWidth = spec.hasOverlay() ? spec.getOverlayWidth(width) : 0;
+        int overlayHeight = spec.hasOverlay() ? spec.getOverlayHeight(height) : 0;
+        int left = overlayWidth > 0 ? spec.getOverlayLeft(width, height) : 0;
+        int top = overlayHeight > 0 ? spec.getOverlayTop(width, height) : 0;
+
+        // the part of the overlay on the base, empty when right <= left or bottom <= top.
+        int visibleLeft = Math.max(0, left);
+        int visibleTop = Math.max(0, top);
+        int visibleRight = Math.min(width, left + overlayWidth);
+        int visibleBottom = Math.min(height, top + overlayHeight);
+        if (visibleLeft >= visibleRight || visibleTop >= visibleBottom) {
+            visibleLeft = visibleTop = visibleRight = visibleBottom = 0;
+        }
+
+        int written = 0;
+        ArgbImage region = null;
+        List<String> uncovered = new ArrayList<String>();
+
+        for (int row = 0; row < index.getRows(); row++) {
+
+            int tileTop = index.getTileTop(row);
+            int tileBottom = tileTop + index.getTileHeight(row);
+
+            boolean rowCovered = visibleTop < tileBottom && tileTop < visibleBottom;
+            boolean rowWasCovered = index.getOverlayTop() < tileBottom && tileTop < index.getOverlayBottom();
+            if (!rowCovered && !rowWasCovered) {
+                continue;
+            }
+
+            for (int column = 0; column < index.getColumns(); column++) {
+
+                int tileLeft = index.getTileLeft(column);
+                int tileRight = tileLeft + index.getTileWidth(column);
+
+                boolean covered = rowCovered && visibleLeft < tileRight && tileLeft < visibleRight;
+                boolean wasCovered = rowWasCovered && index.getOverlayLeft() < tileRight && tileLeft < index.getOverlayRight();
+
+                if (covered) {
+
+                    ArgbImage tile = mStore.readTile(TileIndex.getBaseTileName(column, row));
+
+                    int fromX = Math.max(visibleLeft, tileLeft);
+                    int fromY = Math.max(visibleTop, tileTop);
+                    int regionWidth = Math.min(visibleRight, tileRight) - fromX;
+                    int regionHeight = Math.min(visibleBottom, tileBottom) - fromY;
+
+                    // regions of the same size, e.g. of the inner tiles, share one buffer.
+                    if (region == null || region.getWidth() != regionWidth || region.getHeight() != regionHeight) {
+                        region = new ArgbImage(regionWidth, regionHeight);
+                    }
+                    RasterScaler.scaleRegion(overlay, overlayWidth, overlayHeight, fromX - left, fromY - top, region);
+
+                    if (spec.hasDefaultBlending()) {
+                        RasterMerger.drawOver(tile, region, fromX - tileLeft, fromY - tileTop);
+                    } else {
+                        RasterMerger.drawBlended(tile, region, fromX - tileLeft, fromY - tileTop, spec.getBlendMode(), spec.getOpacity());
+                    }
+
+                    String name = TileIndex.getMergedTileName(column, row);
+                    mStore.writeTile(name, tile);
+                    index.setTileName(column, row, name);
+                    written++;
+
+                } else if (wasCovered && index.isMerged(column, row)) {
+                    uncovered.add(index.getTileName(column, row));
+                    index.setTileName(column, row, TileIndex.getBaseTileName(column, row));
+                }
+            }
+        }
+
+        index.setOverlayBounds(visibleLeft, visibleTop, visibleRight, visibleBottom);
+        mStore.writeIndex(index);
+
+        // the tiles left by the merge image are only deleted once the index no longer names them.
+        for (String name : uncovered) {
+            mStore.deleteTile(name);
+        }
+
+        mWrittenTileCount = written;
+        mReferencedTileCount = index.getColumns() * index.getRows() - countMerged(index);
+        return index;
+    }
+
+    /**
+     * @return number of tiles written by the last call.
+     */
+    public int getWrittenTileCount() {
+        return mWrittenTileCount;
+    }
+
+    /**
+     * @return number of tiles referencing their base tile after the last merge.
+     */
+    public int getReferencedTileCount() {
+        return mReferencedTileCount;
+    }
+
+    private static int countMerged(TileIndex index) {
+
+        int merged = 0;
+        for (int row = 0; row < index.getRows(); row++) {
+            for (int column = 0; column < index.getColumns(); column++) {
+                if (index.isMerged(column, row)) {
+                    merged++;
+                }
+            }
+        }
+        return merged;
+    }
+}
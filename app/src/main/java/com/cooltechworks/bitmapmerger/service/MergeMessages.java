@@ -0,0 +1,153 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
+
+import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+/**
+ * MergeMessages is the protocol between {@link MergeService} and its clients - the messages sent through the Messenger of
+ * the service and the keys of their data.
+ *
+ * A merge request names the images by Uri, which the service has to be able to read, and carries the file descriptor the
+ * merged image is encoded into; no pixels go through the Binder either way. The reply tells whether the merge succeeded,
+ * how many bytes were written and how long the service took.
+ */
+public final class MergeMessages {
+
+    /** merge request, arg1 being the request id chosen by the client and replyTo the Messenger replied to. */
+    public static final int MSG_MERGE = 1;
+    /** reply to a merge request, arg1 being its request id. */
+    public static final int MSG_MERGE_DONE = 2;
+
+    static final String KEY_BASE_URI = "baseUri";
+    static final String KEY_MERGE_URI = "mergeUri";
+    static final String KEY_OUTPUT = "output";
+    static final String KEY_FORMAT = "format";
+    static final String KEY_QUALITY = "quality";
+    static final String KEY_MAX_WIDTH = "maxWidth";
+    static final String KEY_MAX_HEIGHT = "maxHeight";
+
+    static final String KEY_SUCCESS = "success";
+    static final String KEY_ERROR = "error";
+    static final String KEY_ENCODED_BYTES = "encodedBytes";
+    static final String KEY_SERVICE_MILLIS = "serviceMillis";
+
+    private static final String KEY_OPTIONS = "spec.options";
+    private static final String KEY_SCALE = "spec.scale";
+    private static final String KEY_ANGLE = "spec.angle";
+    private static final String KEY_LEFT = "spec.left";
+    private static final String KEY_TOP = "spec.top";
+    private static final String KEY_RADIUS = "spec.radius";
+    private static final String KEY_RADIUS_PIXELS = "spec.radiusPixels";
+    private static final String KEY_ANCHOR_X = "spec.anchorX";
+    private static final String KEY_ANCHOR_Y = "spec.anchorY";
+    private static final String KEY_PIVOT_X = "spec.pivotX";
+    private static final String KEY_PIVOT_Y = "spec.pivotY";
+    private static final String KEY_BLEND_MODE = "spec.blendMode";
+    private static final String KEY_OPACITY = "spec.opacity";
+
+    private MergeMessages() {
+    }
+
+    /**
+     * @param requestId - id the reply is recognized by.
+     * @param baseUri - image the merge image is drawn over, readable by the service.
+     * @param mergeUri - image drawn over the base image, readable by the service.
+     * @param spec - placement of the merge image.
+     * @param output - descriptor the merged image is written to, writable.
+     * @param format - compression of the merged image.
+     * @param quality - 0 to 100, ignored by lossless formats.
+     * @param maxWidth - largest width the base image is decoded at.
+     * @param maxHeight - largest height the base image is decoded at.
+     * @return the request, to be sent with replyTo set.
+     */
+    public static Message newMergeRequest(int requestId, Uri baseUri, Uri mergeUri, MergeSpec spec, ParcelFileDescriptor output,
+                                          Bitmap.CompressFormat format, int quality, int maxWidth, int maxHeight) {
+
+        Bundle data = new Bundle();
+        data.putParcelable(KEY_BASE_URI, baseUri);
+        data.putParcelable(KEY_MERGE_URI, mergeUri);
+        data.putParcelable(KEY_OUTPUT, output);
+        data.putString(KEY_FORMAT, format.name());
+        data.putInt(KEY_QUALITY, quality);
+        data.putInt(KEY_MAX_WIDTH, maxWidth);
+        data.putInt(KEY_MAX_HEIGHT, maxHeight);
+        putSpec(data, spec);
+
+        Message message = Message.obtain(null, MSG_MERGE);
+        message.arg1 = requestId;
+        message.setData(data);
+        return message;
+    }
+
+    static Message newMergeReply(int requestId, boolean success, String error, long encodedBytes, long serviceMillis) {
+
+        Bundle data = new Bundle();
+        data.putBoolean(KEY_SUCCESS, success);
+        data.putString(KEY_ERROR, error);
+        data.putLong(KEY_ENCODED_BYTES, encodedBytes);
+        data.putLong(KEY_SERVICE_MILLIS, serviceMillis);
+
+        Message message = Message.obtain(null, MSG_MERGE_DONE);
+        message.arg1 = requestId;
+        message.setData(data);
+        return message;
+    }
+
+    static void putSpec(Bundle data, MergeSpec spec) {
+        data.putString(KEY_OPTIONS, spec.getMergeOptions().name());
+        data.putFloat(KEY_SCALE, spec.getScale());
+        data.putInt(KEY_ANGLE, spec.getAngle());
+        data.putInt(KEY_LEFT, spec.getLeftOffset());
+        data.putInt(KEY_TOP, spec.getTopOffset());
+        data.putFloat(KEY_RADIUS, spec.getRadius());
+        data.putBoolean(KEY_RADIUS_PIXELS, spec.isRadiusInPixels());
+        data.putFloat(KEY_ANCHOR_X, spec.getAnchorX());
+        data.putFloat(KEY_ANCHOR_Y, spec.getAnchorY());
+        data.putFloat(KEY_PIVOT_X, spec.getPivotX());
+        data.putFloat(KEY_PIVOT_Y, spec.getPivotY());
+        data.putString(KEY_BLEND_MODE, spec.getBlendMode().name());
+        data.putFloat(KEY_OPACITY, spec.getOpacity());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data holds no valid spec.
+     */
+    static MergeSpec getSpec(Bundle data) {
+
+        String options = data.getString(KEY_OPTIONS);
+        String blendMode = data.getString(KEY_BLEND_MODE);
+        if (options == null || blendMode == null) {
+            throw new IllegalArgumentException("No merge spec");
+        }
+
+        float scale = data.getFloat(KEY_SCALE);
+        MergeSpec spec;
+
+        switch (BitmapMergerTask.BitmapMergeOptions.valueOf(options)) {
+            case MERGE_AT_ANGLE_OFF:
+                spec = MergeSpec.atAngle(scale, data.getInt(KEY_ANGLE));
+                break;
+            case MERGE_FROM_TOP_LEFT:
+                spec = MergeSpec.fromTopLeft(scale, data.getInt(KEY_LEFT), data.getInt(KEY_TOP));
+                break;
+            default:
+                spec = MergeSpec.atCenter(scale);
+                break;
+        }
+
+        float radius = data.getFloat(KEY_RADIUS);
+        spec = data.getBoolean(KEY_RADIUS_PIXELS) ? spec.withRadiusPixels(Math.round(radius)) : spec.withRadius(radius);
+
+        return spec.withAnchor(data.getFloat(KEY_ANCHOR_X), data.getFloat(KEY_ANCHOR_Y))
+                .withPivot(data.getFloat(KEY_PIVOT_X), data.getFloat(KEY_PIVOT_Y))
+                .withBlendMode(BlendMode.valueOf(blendMode))
+                .withOpacity(data.getFloat(KEY_OPACITY));
+    }
+}
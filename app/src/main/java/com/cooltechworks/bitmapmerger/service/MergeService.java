@@ -0,0 +1,293 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cooltechworks.bitmapmerger.BuildConfig;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.cache.MergeResultCache;
+import com.cooltechworks.bitmapmerger.stream.Flow;
+import com.cooltechworks.bitmapmerger.stream.MergeJob;
+import com.cooltechworks.bitmapmerger.stream.MergePipeline;
+import com.cooltechworks.bitmapmerger.stream.QueuePublisher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MergeService hosts one merge engine for every app and process that merges - one {@link MergePipeline} with its worker
+ * threads, one bitmap pool, memory governor and result cache - instead of each of them decoding and merging on its own.
+ *
+ * Clients bind to it (see {@link MergeServiceClient}) and send {@link MergeMessages#MSG_MERGE} requests to its Messenger.
+ * The images are read through their Uris, and the merged image is encoded straight into the file descriptor of the
+ * request, a file or a pipe of the client; only the reply goes back through the Binder. Requests from all clients share the
+ * pipeline, so they are decoded, merged and encoded concurrently, and a client sending faster than the pipeline merges
+ * only fills its queue.
+ */
+public class MergeService extends Service {
+
+    private static final String TAG = "MergeService";
+
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int RESULT_CACHE_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static final long RESULT_CACHE_DISK_BYTES = 64 * 1024 * 1024;
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    /**
+     * A request on its way through the pipeline, the tag of its job.
+     */
+    private static class Request {
+
+        final int mId;
+        final Messenger mReplyTo;
+        final OutputStream mOutputStream;
+        final long mReceivedMillis;
+
+        Request(int id, Messenger replyTo, ParcelFileDescriptor output, long receivedMillis) {
+            this.mId = id;
+            this.mReplyTo = replyTo;
+            this.mOutputStream = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(output));
+            this.mReceivedMillis = receivedMillis;
+        }
+    }
+
+    private HandlerThread mRequestThread;
+    private Messenger mMessenger;
+    private MergePipeline mPipeline;
+    private QueuePublisher<MergeJob> mJobs;
+    private MergeResultCache mResultCache;
+    // requests not replied to yet, guarded by itself.
+    private final Set<Request> mInFlight = new HashSet<Request>();
+    private final CountDownLatch mPipelineDone = new CountDownLatch(1);
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        MemoryGovernor governor = MemoryGovernor.getDefault();
+        mResultCache = new MergeResultCache(BitmapTracker.getDefault(), new File(getCacheDir(), "service_merge_results"),
+                RESULT_CACHE_MEMORY_BYTES, RESULT_CACHE_DISK_BYTES);
+        governor.addTrimmable(mResultCache);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        mPipeline = new MergePipeline(getContentResolver(), BitmapTracker.getDefault())
+                .setDecodeStage(cores, cores + 1)
+                .setMergeStage(Math.max(1, cores / 2), Math.max(1, cores / 2) + 1)
+                .setEncodeStage(cores, cores + 1)
+                .setResultCache(mResultCache)
+                .setMemoryGovernor(governor);
+
+        mJobs = new QueuePublisher<MergeJob>(QUEUE_CAPACITY);
+        mPipeline.connect(mJobs).subscribe(new Flow.Subscriber<MergeJob>() {
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(MergeJob job) {
+                reply(job);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Log.e(TAG, "Merge pipeline failed", throwable);
+                // the jobs held by the pipeline were dropped with it.
+                failInFlight("Merge pipeline failed: " + throwable);
+                mPipelineDone.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                mPipelineDone.countDown();
+            }
+        });
+
+        // requests are queued from their own thread, so that a full queue holds back the clients but not the main thread.
+        mRequestThread = new HandlerThread("MergeService requests", Process.THREAD_PRIORITY_BACKGROUND);
+        mRequestThread.start();
+        mMessenger = new Messenger(new Handler(mRequestThread.getLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                if (message.what == MergeMessages.MSG_MERGE) {
+                    queue(message);
+                } else {
+                    super.handleMessage(message);
+                }
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        mRequestThread.quit();
+        mJobs.complete();
+        MemoryGovernor.getDefault().removeTrimmable(mResultCache);
+
+        // the threads are stopped once the jobs queued and held by the stages are done, waiting for them off the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mPipelineDone.await(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        Log.w(TAG, "Merge pipeline not done in " + SHUTDOWN_TIMEOUT_SECONDS + " s, failing the requests left");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mPipeline.shutdown();
+                failInFlight("Service shut down");
+            }
+        }, "MergeService shutdown").start();
+
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.getDefault().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.getDefault().onLowMemory();
+    }
+
+    private void queue(Message message) {
+
+        long receivedMillis = SystemClock.uptimeMillis();
+        int id = message.arg1;
+        Messenger replyTo = message.replyTo;
+        Bundle data = message.getData();
+        ParcelFileDescriptor output = data.getParcelable(MergeMessages.KEY_OUTPUT);
+
+        if (replyTo == null || output == null) {
+            Log.w(TAG, "Dropping request " + id + " without replyTo or output");
+            close(output);
+            return;
+        }
+
+        Request request = new Request(id, replyTo, output, receivedMillis);
+        synchronized (mInFlight) {
+            mInFlight.add(request);
+        }
+
+        try {
+            Uri baseUri = data.getParcelable(MergeMessages.KEY_BASE_URI);
+            Uri mergeUri = data.getParcelable(MergeMessages.KEY_MERGE_URI);
+            String format = data.getString(MergeMessages.KEY_FORMAT);
+            if (baseUri == null || mergeUri == null || format == null) {
+                throw new IllegalArgumentException("Incomplete merge request");
+            }
+
+            MergeJob job = new MergeJob(baseUri, mergeUri, MergeMessages.getSpec(data), request.mOutputStream)
+                    .setMaxBaseSize(data.getInt(MergeMessages.KEY_MAX_WIDTH, MergeJob.DEFAULT_MAX_SIZE),
+                            data.getInt(MergeMessages.KEY_MAX_HEIGHT, MergeJob.DEFAULT_MAX_SIZE))
+                    .setFormat(Bitmap.CompressFormat.valueOf(format), data.getInt(MergeMessages.KEY_QUALITY, 90))
+                    .setTag(request);
+
+            if (!mJobs.put(job)) {
+                reply(request, false, "Service shutting down", 0);
+            }
+
+        } catch (IllegalArgumentException e) {
+            reply(request, false, e.getMessage(), 0);
+        } catch (InterruptedException e) {
+            reply(request, false, "Interrupted", 0);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reply(MergeJob job) {
+
+        Request request = (Request) job.getTag();
+        long encodedBytes = job.getEncodeResult() != null ? job.getEncodeResult().getEncodedBytes() : 0;
+        Throwable error = job.getError();
+
+        reply(request, job.isSuccess(), error != null ? String.valueOf(error) : null, encodedBytes);
+    }
+
+    private void failInFlight(String error) {
+
+        List<Request> requests;
+        synchronized (mInFlight) {
+            requests = new ArrayList<Request>(mInFlight);
+        }
+
+        for (Request request : requests) {
+            reply(request, false, error, 0);
+        }
+    }
+
+    /**
+     * Closes the output of the request, so that a client reading a pipe sees its end, and replies to the client. Only the
+     * first reply to a request is sent.
+     */
+    private void reply(Request request, boolean success, String error, long encodedBytes) {
+
+        synchronized (mInFlight) {
+            if (!mInFlight.remove(request)) {
+                return;
+            }
+        }
+
+        try {
+            request.mOutputStream.close();
+        } catch (IOException e) {
+            success = false;
+            error = String.valueOf(e);
+        }
+
+        long serviceMillis = SystemClock.uptimeMillis() - request.mReceivedMillis;
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Request " + request.mId + (success ? " merged" : " failed: " + error) + " in " + serviceMillis + " ms");
+        }
+
+        try {
+            request.mReplyTo.send(MergeMessages.newMergeReply(request.mId, success, error, encodedBytes, serviceMillis));
+        } catch (RemoteException e) {
+            // the client is gone, nobody to tell.
+        }
+    }
+
+    private static void close(ParcelFileDescriptor descriptor) {
+        if (descriptor != null) {
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+                // nothing written to it.
+            }
+        }
+    }
+}
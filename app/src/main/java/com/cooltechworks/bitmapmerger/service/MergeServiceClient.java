@@ -0,0 +1,362 @@
+package com.cooltechworks.bitmapmerger.service;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import com.cooltechworks.bitmapmerger.stream.MergeJob;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MergeServiceClient binds to the {@link MergeService} of this package, from this app or another one signed with the same
+ * key, and sends it merge requests. Replies are delivered on the main thread, where the client is to be used from.
+ *
+ * Content Uris are granted to the service for reading before a request is sent, which needs the provider of the client
+ * to allow granting them. The grant of a Uri is revoked once no request in flight uses it any more - for every package,
+ * the only revoke there is before API 26.
+ */
+public class MergeServiceClient {
+
+    public static final String SERVICE_PACKAGE = "com.cooltechworks.bitmapmerger";
+
+    public interface OnConnectListener {
+        void onConnect(MergeServiceClient client);
+
+        /**
+         * Called when the service process went away. Requests in flight have been failed, the service is bound again by
+         * the system once it restarts.
+         */
+        void onDisconnect(MergeServiceClient client);
+    }
+
+    public interface OnMergeDoneListener {
+        void onMergeDone(MergeServiceClient client, MergeReply reply);
+    }
+
+    /**
+     * Reply of the service to a request.
+     */
+    public static class MergeReply {
+
+        private final int mRequestId;
+        private final boolean mSuccess;
+        private final String mError;
+        private final long mEncodedBytes;
+        private final long mServiceMillis;
+        private final long mLatencyNanos;
+
+        MergeReply(int requestId, boolean success, String error, long encodedBytes, long serviceMillis, long latencyNanos) {
+            this.mRequestId = requestId;
+            this.mSuccess = success;
+            this.mError = error;
+            this.mEncodedBytes = encodedBytes;
+            this.mServiceMillis = serviceMillis;
+            this.mLatencyNanos = latencyNanos;
+        }
+
+        public int getRequestId() {
+            return mRequestId;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        /**
+         * @return description of the failure, null if merged.
+         */
+        public String getError() {
+            return mError;
+        }
+
+        /**
+         * @return bytes written to the output descriptor.
+         */
+        public long getEncodedBytes() {
+            return mEncodedBytes;
+        }
+
+        /**
+         * @return time from the service receiving the request to replying, including the time queued.
+         */
+        public long getServiceMillis() {
+            return mServiceMillis;
+        }
+
+        /**
+         * @return time from sending the request to receiving the reply.
+         */
+        public long getLatencyNanos() {
+            return mLatencyNanos;
+        }
+    }
+
+    private static class Pending {
+
+        final OnMergeDoneListener mListener;
+        final long mSentNanos;
+        final Uri mBaseUri;
+        final Uri mMergeUri;
+
+        Pending(OnMergeDoneListener listener, long sentNanos, Uri baseUri, Uri mergeUri) {
+            this.mListener = listener;
+            this.mSentNanos = sentNanos;
+            this.mBaseUri = baseUri;
+            this.mMergeUri = mergeUri;
+        }
+    }
+
+    private final Context mContext;
+    private final Map<Integer, Pending> mPending = new HashMap<Integer, Pending>();
+    // requests in flight per granted Uri.
+    private final Map<Uri, Integer> mGrants = new HashMap<Uri, Integer>();
+    private final Handler mHandler;
+    private final Messenger mReplyMessenger;
+    private Messenger mService;
+    private boolean mBound;
+    private int mNextRequestId = 1;
+    private OnConnectListener mConnectListener;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.PNG;
+    private int mQuality = 100;
+    private int mMaxWidth = MergeJob.DEFAULT_MAX_SIZE;
+    private int mMaxHeight = MergeJob.DEFAULT_MAX_SIZE;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = new Messenger(binder);
+            if (mConnectListener != null) {
+                mConnectListener.onConnect(MergeServiceClient.this);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            failPending("Service disconnected");
+            if (mConnectListener != null) {
+                mConnectListener.onDisconnect(MergeServiceClient.this);
+            }
+        }
+    };
+
+
+    /**
+     * @param context - any context, the application context is bound from.
+     */
+    public MergeServiceClient(Context context) {
+        this.mContext = context.getApplicationContext();
+        this.mHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                if (message.what == MergeMessages.MSG_MERGE_DONE) {
+                    onReply(message);
+                } else {
+                    super.handleMessage(message);
+                }
+            }
+        };
+        this.mReplyMessenger = new Messenger(mHandler);
+    }
+
+    /**
+     * Sets the compression of the merged images, PNG by default.
+     * @param format - JPEG, PNG or WEBP (WEBP requires API 14).
+     * @param quality - 0 to 100, ignored by lossless formats.
+     * @return the related MergeServiceClient
+     */
+    public MergeServiceClient setFormat(Bitmap.CompressFormat format, int quality) {
+        this.mFormat = format;
+        this.mQuality = quality;
+        return this;
+    }
+
+    /**
+     * @param width - largest width the base images are decoded at.
+     * @param height - largest height the base images are decoded at.
+     * @return the related MergeServiceClient
+     */
+    public MergeServiceClient setMaxBaseSize(int width, int height) {
+        this.mMaxWidth = width;
+        this.mMaxHeight = height;
+        return this;
+    }
+
+    /**
+     * Binds to the service, starting it if needed.
+     * @param listener - told once requests can be sent.
+     * @return false if the service could not be bound.
+     */
+    public boolean connect(OnConnectListener listener) {
+        this.mConnectListener = listener;
+        Intent intent = new Intent().setClassName(SERVICE_PACKAGE, MergeService.class.getName());
+        mBound = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        return mBound;
+    }
+
+    /**
+     * Unbinds from the service. Requests in flight are failed.
+     */
+    public void disconnect() {
+        if (mBound) {
+            mContext.unbindService(mConnection);
+            mBound = false;
+        }
+        mService = null;
+        failPending("Client disconnected");
+    }
+
+    public boolean isConnected() {
+        return mService != null;
+    }
+
+    /**
+     * @return number of requests sent and not replied to yet.
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Sends a merge request.
+     * @param baseUri - image the merge image is drawn over.
+     * @param mergeUri - image drawn over the base image.
+     * @param spec - placement of the merge image.
+     * @param output - descriptor the merged image is written to, e.g. a file opened for writing or the write end of a pipe.
+     *               It is closed once sent, the service closes its copy once done writing.
+     * @param listener - told of the reply.
+     * @return the id of the request.
+     * @throws IllegalStateException if not connected to the service.
+     */
+    public int merge(Uri baseUri, Uri mergeUri, MergeSpec spec, ParcelFileDescriptor output, OnMergeDoneListener listener) {
+
+        if (mService == null) {
+            throw new IllegalStateException("Not connected to the merge service");
+        }
+
+        grantRead(baseUri);
+        grantRead(mergeUri);
+
+        final int requestId = mNextRequestId++;
+        Message request = MergeMessages.newMergeRequest(requestId, baseUri, mergeUri, spec, output, mFormat, mQuality, mMaxWidth, mMaxHeight);
+        request.replyTo = mReplyMessenger;
+
+        mPending.put(requestId, new Pending(listener, System.nanoTime(), baseUri, mergeUri));
+
+        try {
+            mService.send(request);
+        } catch (final RemoteException e) {
+            // the service died. The request fails like any other, after this call returns.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    fail(requestId, String.valueOf(e));
+                }
+            });
+        } finally {
+            close(output);
+        }
+
+        return requestId;
+    }
+
+    private void grantRead(Uri uri) {
+
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            return;
+        }
+
+        Integer count = mGrants.get(uri);
+        if (count == null) {
+            mContext.grantUriPermission(SERVICE_PACKAGE, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+        mGrants.put(uri, count != null ? count + 1 : 1);
+    }
+
+    private void revokeRead(Uri uri) {
+
+        Integer count = mGrants.get(uri);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            mGrants.put(uri, count - 1);
+        } else {
+            mGrants.remove(uri);
+            mContext.revokeUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+    }
+
+    private void release(Pending pending) {
+        revokeRead(pending.mBaseUri);
+        revokeRead(pending.mMergeUri);
+    }
+
+    private void onReply(Message message) {
+
+        Pending pending = mPending.remove(message.arg1);
+        if (pending == null) {
+            // failed already on disconnecting.
+            return;
+        }
+        release(pending);
+
+        Bundle data = message.getData();
+        MergeReply reply = new MergeReply(message.arg1, data.getBoolean(MergeMessages.KEY_SUCCESS), data.getString(MergeMessages.KEY_ERROR),
+                data.getLong(MergeMessages.KEY_ENCODED_BYTES), data.getLong(MergeMessages.KEY_SERVICE_MILLIS),
+                System.nanoTime() - pending.mSentNanos);
+
+        if (pending.mListener != null) {
+            pending.mListener.onMergeDone(this, reply);
+        }
+    }
+
+    private void failPending(String error) {
+
+        List<Integer> requestIds = new ArrayList<Integer>(mPending.keySet());
+        for (Integer requestId : requestIds) {
+            fail(requestId, error);
+        }
+    }
+
+    private void fail(int requestId, String error) {
+
+        Pending pending = mPending.remove(requestId);
+        if (pending == null) {
+            return;
+        }
+        release(pending);
+
+        if (pending.mListener != null) {
+            pending.mListener.onMergeDone(this, new MergeReply(requestId, false, error, 0, 0, System.nanoTime() - pending.mSentNanos));
+        }
+    }
+
+    private static void close(ParcelFileDescriptor descriptor) {
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            // the service holds its own copy.
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+/**
+ * Flow holds the interfaces of a stream with demand signalling, shaped after java.util.concurrent.Flow (which requires
+ * API 30) so that the stages here can move over to it without changing their logic.
+ *
+ * A {@link Subscriber} receives items only as far as it has asked for them through {@link Subscription#request(long)}, so a
+ * slow stage holds back the stages before it instead of letting items pile up in memory.
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * Producer of items for a single subscriber.
+     */
+    public interface Publisher<T> {
+        /**
+         * Starts delivering to the subscriber, beginning with {@link Subscriber#onSubscribe(Subscription)}.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receiver of items. Calls to one subscriber never overlap.
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Receives the next item, never more often than requested.
+         */
+        void onNext(T item);
+
+        /**
+         * Receives the failure ending the stream. No further calls follow.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called once all items have been delivered. No further calls follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and its subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds to the number of items the subscriber is ready to receive.
+         * @param n - more than zero.
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of items. Items may still arrive for a while.
+         */
+        void cancel();
+    }
+
+    /**
+     * A stage that is the subscriber of one stream and the publisher of another.
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
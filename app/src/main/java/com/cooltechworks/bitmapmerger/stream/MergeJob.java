@@ -0,0 +1,205 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.tasks.BitmapEncoderTask;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.io.File;
+import java.io.OutputStream;
+
+/**
+ * MergeJob is one merge going through a {@link MergePipeline} - the images to merge, how to merge them and where to write
+ * the result, along with the bitmaps decoded and merged for it on the way.
+ *
+ * A job failing in a stage keeps going through the stream with its error set, so one bad image does not end the stream;
+ * the later stages pass it on untouched.
+ */
+public class MergeJob {
+
+    public static final int DEFAULT_MAX_SIZE = 2048;
+
+    private final Uri mBaseUri;
+    private final Uri mMergeUri;
+    private final MergeSpec mSpec;
+    private final File mOutputFile;
+    private final OutputStream mOutputStream;
+    private int mMaxBaseWidth = DEFAULT_MAX_SIZE;
+    private int mMaxBaseHeight = DEFAULT_MAX_SIZE;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+    private int mQuality = 90;
+    private Object mTag;
+
+    // state on the way through the stages, each stage handing it to the next.
+    BitmapRef mBaseRef;
+    BitmapRef mMergeRef;
+    int mMergeOrientation = ExifInterface.ORIENTATION_NORMAL;
+    BitmapRef mOutputRef;
+    private volatile BitmapEncoderTask.EncodeResult mEncodeResult;
+    private volatile Throwable mError;
+
+
+    /**
+     * @param baseUri - image the merge image is drawn over.
+     * @param mergeUri - image drawn over the base image.
+     * @param spec - placement of the merge image.
+     * @param outputFile - file the merged image is written to.
+     */
+    public MergeJob(Uri baseUri, Uri mergeUri, MergeSpec spec, File outputFile) {
+        this.mBaseUri = baseUri;
+        this.mMergeUri = mergeUri;
+        this.mSpec = spec;
+        this.mOutputFile = outputFile;
+        this.mOutputStream = null;
+    }
+
+    /**
+     * @param baseUri - image the merge image is drawn over.
+     * @param mergeUri - image drawn over the base image.
+     * @param spec - placement of the merge image.
+     * @param outputStream - stream the merged image is written to, e.g. to a file descriptor of another process. It is
+     *                     flushed but not closed.
+     */
+    public MergeJob(Uri baseUri, Uri mergeUri, MergeSpec spec, OutputStream outputStream) {
+        this.mBaseUri = baseUri;
+        this.mMergeUri = mergeUri;
+        this.mSpec = spec;
+        this.mOutputFile = null;
+        this.mOutputStream = outputStream;
+    }
+
+    /**
+     * Sets the largest size the base image is decoded at, the merged image is of about that size.
+     * @param width - largest width.
+     * @param height - largest height.
+     * @return the related MergeJob
+     */
+    public MergeJob setMaxBaseSize(int width, int height) {
+        this.mMaxBaseWidth = width;
+        this.mMaxBaseHeight = height;
+        return this;
+    }
+
+    /**
+     * Sets the compression of the output, JPEG at 90 by default.
+     * @param format - JPEG, PNG or WEBP (WEBP requires API 14).
+     * @param quality - 0 to 100, ignored by lossless formats.
+     * @return the related MergeJob
+     */
+    public MergeJob setFormat(Bitmap.CompressFormat format, int quality) {
+        this.mFormat = format;
+        this.mQuality = quality;
+        return this;
+    }
+
+    /**
+     * Sets a caller defined object to recognize the job by once done.
+     * @param tag - any object.
+     * @return the related MergeJob
+     */
+    public MergeJob setTag(Object tag) {
+        this.mTag = tag;
+        return this;
+    }
+
+    public Object getTag() {
+        return mTag;
+    }
+
+    public Uri getBaseUri() {
+        return mBaseUri;
+    }
+
+    public Uri getMergeUri() {
+        return mMergeUri;
+    }
+
+    public MergeSpec getSpec() {
+        return mSpec;
+    }
+
+    /**
+     * @return file the merged image is written to, null if written to a stream.
+     */
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    /**
+     * @return stream the merged image is written to, null if written to a file.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public int getMaxBaseWidth() {
+        return mMaxBaseWidth;
+    }
+
+    public int getMaxBaseHeight() {
+        return mMaxBaseHeight;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return true once the merged image is written.
+     */
+    public boolean isSuccess() {
+        return mError == null && mEncodeResult != null && mEncodeResult.isSuccess();
+    }
+
+    /**
+     * @return the failure of the stage the job failed in, null if it did not fail.
+     */
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * @return outcome of the encode, null until encoded.
+     */
+    public BitmapEncoderTask.EncodeResult getEncodeResult() {
+        return mEncodeResult;
+    }
+
+    void setEncodeResult(BitmapEncoderTask.EncodeResult result) {
+        this.mEncodeResult = result;
+    }
+
+    void fail(Throwable error) {
+        this.mError = error;
+        release();
+    }
+
+    /**
+     * Releases the bitmaps held for the job.
+     */
+    synchronized void release() {
+        releaseInputs();
+        if (mOutputRef != null) {
+            mOutputRef.release();
+            mOutputRef = null;
+        }
+    }
+
+    synchronized void releaseInputs() {
+        if (mBaseRef != null) {
+            mBaseRef.release();
+            mBaseRef = null;
+        }
+        if (mMergeRef != null) {
+            mMergeRef.release();
+            mMergeRef = null;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+import android.content.ContentResolver;
+import android.os.Process;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.cache.MergeResultCache;
+import com.cooltechworks.bitmapmerger.tasks.BitmapDecoderTask;
+import com.cooltechworks.bitmapmerger.tasks.BitmapEncoderTask;
+import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MergePipeline runs batches of {@link MergeJob}s through decode, merge and encode stages, each a {@link StageProcessor}
+ * with its own threads, concurrency and buffer:
+ *
+ * <pre>
+ *     QueuePublisher&lt;MergeJob&gt; jobs = new QueuePublisher&lt;MergeJob&gt;(8);
+ *     MergePipeline pipeline = new MergePipeline(resolver, BitmapTracker.getDefault()).setDecodeStage(2, 3);
+ *     pipeline.connect(jobs).subscribe(subscriberOfDoneJobs);
+ *     jobs.put(job); ... jobs.complete();
+ * </pre>
+ *
+ * As no stage holds more jobs than its buffer size, the bitmaps alive at a time are bounded by the sum of the buffer sizes,
+ * however many jobs are queued and whichever stage is the slowest.
+ * Done jobs, successful or not, reach the subscriber of {@link #connect(Flow.Publisher)} holding no bitmaps.
+ */
+public class MergePipeline {
+
+    private final ContentResolver mResolver;
+    private final BitmapTracker mTracker;
+    private MergeResultCache mResultCache;
+    private MemoryGovernor mGovernor;
+
+    private int mDecodeConcurrency = 2;
+    private int mDecodeBufferSize = 3;
+    private int mMergeConcurrency = 1;
+    private int mMergeBufferSize = 2;
+    private int mEncodeConcurrency = 2;
+    private int mEncodeBufferSize = 3;
+
+    private final List<ExecutorService> mExecutors = new ArrayList<ExecutorService>();
+    private final List<StageProcessor<MergeJob, MergeJob>> mStages = new ArrayList<StageProcessor<MergeJob, MergeJob>>();
+
+
+    /**
+     * @param resolver - resolver the images are read through.
+     * @param tracker - tracker the decoded and merged bitmaps are handed to.
+     */
+    public MergePipeline(ContentResolver resolver, BitmapTracker tracker) {
+        this.mResolver = resolver;
+        this.mTracker = tracker;
+    }
+
+    /**
+     * Sets the decode stage up, 2 images decoded at a time with 3 jobs held by default.
+     * @param concurrency - jobs decoded at the same time.
+     * @param bufferSize - most jobs held by the stage, at least the concurrency.
+     * @return the related MergePipeline
+     */
+    public MergePipeline setDecodeStage(int concurrency, int bufferSize) {
+        this.mDecodeConcurrency = concurrency;
+        this.mDecodeBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Sets the merge stage up, 1 merge at a time with 2 jobs held by default.
+     * @param concurrency - jobs merged at the same time.
+     * @param bufferSize - most jobs held by the stage, at least the concurrency.
+     * @return the related MergePipeline
+     */
+    public MergePipeline setMergeStage(int concurrency, int bufferSize) {
+        this.mMergeConcurrency = concurrency;
+        this.mMergeBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Sets the encode stage up, 2 encodes at a time with 3 jobs held by default.
+     * @param concurrency - jobs encoded at the same time.
+     * @param bufferSize - most jobs held by the stage, at least the concurrency.
+     * @return the related MergePipeline
+     */
+    public MergePipeline setEncodeStage(int concurrency, int bufferSize) {
+        this.mEncodeConcurrency = concurrency;
+        this.mEncodeBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Sets the cache merges are looked up in and stored to.
+     * @param cache - cache of merge results, null for none.
+     * @return the related MergePipeline
+     */
+    public MergePipeline setResultCache(MergeResultCache cache) {
+        this.mResultCache = cache;
+        return this;
+    }
+
+    /**
+     * Sets the governor admitting the decodes and merges, so that the jobs in flight wait for each other, or degrade, rather
+     * than running out of memory together.
+     * @param governor - governor of the memory used by bitmaps, null for none.
+     * @return the related MergePipeline
+     */
+    public MergePipeline setMemoryGovernor(MemoryGovernor governor) {
+        this.mGovernor = governor;
+        return this;
+    }
+
+    /**
+     * Connects the stages to the jobs. A pipeline connects once.
+     * @param jobs - publisher of the jobs to run.
+     * @return publisher of the done jobs, in the order they are done.
+     */
+    public synchronized Flow.Publisher<MergeJob> connect(Flow.Publisher<MergeJob> jobs) {
+
+        if (!mStages.isEmpty()) {
+            throw new IllegalStateException("MergePipeline already connected");
+        }
+
+        StageProcessor<MergeJob, MergeJob> decode = newStage("decode", mDecodeConcurrency, mDecodeBufferSize,
+                new StageProcessor.Stage<MergeJob, MergeJob>() {
+                    @Override
+                    public MergeJob process(MergeJob job) {
+                        return decode(job);
+                    }
+                });
+
+        StageProcessor<MergeJob, MergeJob> merge = newStage("merge", mMergeConcurrency, mMergeBufferSize,
+                new StageProcessor.Stage<MergeJob, MergeJob>() {
+                    @Override
+                    public MergeJob process(MergeJob job) {
+                        return merge(job);
+                    }
+                });
+
+        StageProcessor<MergeJob, MergeJob> encode = newStage("encode", mEncodeConcurrency, mEncodeBufferSize,
+                new StageProcessor.Stage<MergeJob, MergeJob>() {
+                    @Override
+                    public MergeJob process(MergeJob job) {
+                        return encode(job);
+                    }
+                });
+
+        merge.subscribe(encode);
+        decode.subscribe(merge);
+        jobs.subscribe(decode);
+
+        return encode;
+    }
+
+    /**
+     * Stops the threads of the stages once they are done with the jobs they are processing. Jobs not started yet, in a
+     * stage or upstream, end the stream with a RejectedExecutionException and are released; to finish every job, complete
+     * the publisher and wait for the end of the stream before shutting down.
+     */
+    public synchronized void shutdown() {
+        for (ExecutorService executor : mExecutors) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the most jobs held at a time by the decode, merge and encode stages so far, in that order.
+     */
+    public synchronized int[] getMaxHeld() {
+        int[] maxHeld = new int[mStages.size()];
+        for (int i = 0; i < maxHeld.length; i++) {
+            maxHeld[i] = mStages.get(i).getMaxHeld();
+        }
+        return maxHeld;
+    }
+
+    private StageProcessor<MergeJob, MergeJob> newStage(final String name, int concurrency, int bufferSize,
+                                                        StageProcessor.Stage<MergeJob, MergeJob> stage) {
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "MergePipeline " + name + " #" + mCount.getAndIncrement());
+            }
+        });
+
+        StageProcessor<MergeJob, MergeJob> processor = new StageProcessor<MergeJob, MergeJob>(stage, executor, concurrency, bufferSize);
+
+        processor.setOnDiscardListener(new StageProcessor.OnDiscardListener() {
+            @Override
+            public void onDiscard(Object item) {
+                ((MergeJob) item).release();
+            }
+        });
+
+        mExecutors.add(executor);
+        mStages.add(processor);
+        return processor;
+    }
+
+    private MergeJob decode(MergeJob job) {
+
+        if (job.getError() != null) {
+            return job;
+        }
+
+        try {
+            BitmapDecoderTask baseDecoder = new BitmapDecoderTask()
+                    .setDecodingImageReference(job.getBaseUri(), mResolver)
+                    .setRequiredWidth(job.getMaxBaseWidth())
+                    .setRequiredHeight(job.getMaxBaseHeight())
+                    .setBitmapTracker(mTracker)
+                    .setMemoryGovernor(mGovernor);
+            baseDecoder.decodeNow();
+            job.mBaseRef = baseDecoder.getOutputRef();
+
+            BitmapDecoderTask mergeDecoder = new BitmapDecoderTask()
+                    .setDecodingImageReference(job.getMergeUri(), mResolver)
+                    .setMergeSpec(job.getSpec(), job.mBaseRef.get().getWidth(), job.mBaseRef.get().getHeight())
+                    .setApplyOrientation(false)
+                    .setBitmapTracker(mTracker)
+                    .setMemoryGovernor(mGovernor);
+            mergeDecoder.decodeNow();
+            job.mMergeRef = mergeDecoder.getOutputRef();
+            job.mMergeOrientation = mergeDecoder.getOrientation();
+
+        } catch (RuntimeException e) {
+            job.fail(e);
+        } catch (OutOfMemoryError e) {
+            job.fail(e);
+        }
+
+        return job;
+    }
+
+    private MergeJob merge(MergeJob job) {
+
+        if (job.getError() != null) {
+            return job;
+        }
+
+        try {
+            BitmapMergerTask merger = new BitmapMergerTask()
+                    .setBaseBitmap(job.mBaseRef)
+                    .setMergeBitmap(job.mMergeRef)
+                    .setMergeBitmapOrientation(job.mMergeOrientation)
+                    .setMergeSpec(job.getSpec())
+                    .setBitmapTracker(mTracker)
+                    .setMemoryGovernor(mGovernor)
+                    .setResultCache(mResultCache);
+            merger.mergeNow();
+            job.mOutputRef = merger.getOutputRef();
+            job.releaseInputs();
+
+            if (job.mOutputRef == null) {
+                // interrupted while waiting for the same merge of another job.
+                job.fail(new InterruptedException("Merge interrupted"));
+            }
+
+        } catch (RuntimeException e) {
+            job.fail(e);
+        } catch (OutOfMemoryError e) {
+            job.fail(e);
+        }
+
+        return job;
+    }
+
+    private MergeJob encode(MergeJob job) {
+
+        if (job.getError() != null) {
+            return job;
+        }
+
+        try {
+            BitmapEncoderTask encoder = new BitmapEncoderTask()
+                    .setBitmap(job.mOutputRef)
+                    .setFormat(job.getFormat(), job.getQuality());
+            if (job.getOutputStream() != null) {
+                encoder.setOutputStream(job.getOutputStream());
+            } else {
+                encoder.setOutputFile(job.getOutputFile());
+            }
+            BitmapEncoderTask.EncodeResult result = encoder.encodeNow();
+            job.setEncodeResult(result);
+            job.release();
+
+            if (!result.isSuccess()) {
+                job.fail(result.getError() != null ? result.getError() : new IOException("Could not compress to " + (job.getOutputFile() != null ? job.getOutputFile() : "output stream")));
+            }
+
+        } catch (RuntimeException e) {
+            job.fail(e);
+        }
+
+        return job;
+    }
+}
@@ -0,0 +1,217 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * QueuePublisher is the head of a stream - producers hand items to it and it publishes them as fast as its subscriber asks
+ * for them. Its queue is bounded, so once the stream falls behind {@link #offer(Object)} refuses items and
+ * {@link #put(Object)} blocks, which is where the backpressure of the stages ends up.
+ */
+public class QueuePublisher<T> implements Flow.Publisher<T> {
+
+    private final BlockingQueue<T> mQueue;
+
+    // all below guarded by this.
+    private Flow.Subscriber<? super T> mSubscriber;
+    private long mDemand;
+    private boolean mCompleted;
+    private boolean mCancelled;
+    private boolean mTerminated;
+    private boolean mDraining;
+    private boolean mMissed;
+
+
+    /**
+     * @param capacity - most items waiting to be published.
+     */
+    public QueuePublisher(int capacity) {
+        this.mQueue = new ArrayBlockingQueue<T>(capacity);
+    }
+
+    /**
+     * Queues an item if there is room for it.
+     * @param item - item to publish.
+     * @return false if the queue is full or the stream is done with, the item is then not published.
+     */
+    public boolean offer(T item) {
+
+        synchronized (this) {
+            if (mCompleted || mCancelled) {
+                return false;
+            }
+        }
+
+        if (!mQueue.offer(item)) {
+            return false;
+        }
+
+        drain();
+        return true;
+    }
+
+    /**
+     * Queues an item, waiting for room for it.
+     * @param item - item to publish.
+     * @return false if the stream is done with, the item is then not published.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean put(T item) throws InterruptedException {
+
+        synchronized (this) {
+            if (mCompleted || mCancelled) {
+                return false;
+            }
+        }
+
+        mQueue.put(item);
+        drain();
+        return true;
+    }
+
+    /**
+     * Ends the stream once the queued items are published. Items offered afterwards are refused.
+     */
+    public void complete() {
+
+        synchronized (this) {
+            mCompleted = true;
+        }
+
+        drain();
+    }
+
+    /**
+     * @return number of items waiting to be published.
+     */
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return true once the subscriber cancelled, producers can stop then.
+     */
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+
+        boolean accepted;
+
+        synchronized (this) {
+            accepted = mSubscriber == null;
+            if (accepted) {
+                mSubscriber = subscriber;
+            }
+        }
+
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("QueuePublisher publishes to a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                onRequest(n);
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (QueuePublisher.this) {
+                    mCancelled = true;
+                }
+                mQueue.clear();
+            }
+        });
+
+        drain();
+    }
+
+    private void onRequest(long n) {
+
+        Flow.Subscriber<? super T> subscriber = null;
+
+        synchronized (this) {
+            if (n <= 0 && !mTerminated) {
+                mTerminated = true;
+                subscriber = mSubscriber;
+            } else {
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+        }
+
+        if (subscriber != null) {
+            mQueue.clear();
+            subscriber.onError(new IllegalArgumentException("request(" + n + "), must be more than zero"));
+            return;
+        }
+
+        drain();
+    }
+
+    /**
+     * Publishes queued items as far as there is demand, serialized so that the subscriber is never called concurrently.
+     */
+    private void drain() {
+
+        synchronized (this) {
+            if (mDraining) {
+                mMissed = true;
+                return;
+            }
+            mDraining = true;
+        }
+
+        for (;;) {
+
+            T next = null;
+            boolean complete = false;
+            Flow.Subscriber<? super T> subscriber;
+
+            synchronized (this) {
+
+                subscriber = mSubscriber;
+
+                if (subscriber != null && !mTerminated && !mCancelled) {
+                    if (mDemand > 0) {
+                        next = mQueue.poll();
+                        if (next != null) {
+                            mDemand--;
+                        }
+                    }
+                    if (next == null && mCompleted && mQueue.isEmpty()) {
+                        complete = true;
+                        mTerminated = true;
+                    }
+                }
+
+                if (next == null && !complete) {
+                    if (!mMissed) {
+                        mDraining = false;
+                        return;
+                    }
+                    mMissed = false;
+                    continue;
+                }
+            }
+
+            if (complete) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onNext(next);
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * StageProcessor runs one stage of a stream - each item received is handed to a {@link Stage} on an executor and its
+ * result published downstream.
+ *
+ * The stage holds at most bufferSize items at a time, counting the ones waiting, the ones being processed and the results
+ * waiting for downstream demand. It asks upstream for bufferSize items to begin with and for one more each time a result
+ * leaves, so when downstream is slower than this stage, this stage stops asking and the slowdown carries on upstream.
+ * Up to concurrency items are processed at the same time, hence results may be published out of order.
+ *
+ * An exception thrown by the stage ends the stream - it cancels upstream and is handed to downstream. Stages that should
+ * survive failing items report the failure in their result instead. So does the executor rejecting an item, e.g. once
+ * shut down. Items and results the stage gives up on when the
+ * stream ends early go to the {@link OnDiscardListener}, for freeing what they hold.
+ */
+public class StageProcessor<T, R> implements Flow.Processor<T, R> {
+
+    /**
+     * Work done by a stage on every item. Called from the executor, possibly from several threads at the same time.
+     */
+    public interface Stage<T, R> {
+        /**
+         * @return the result to publish, null for dropping the item.
+         */
+        R process(T item) throws Exception;
+    }
+
+    /**
+     * Receives the items and results left behind when the stream is cancelled or fails.
+     */
+    public interface OnDiscardListener {
+        void onDiscard(Object item);
+    }
+
+    private final Stage<T, R> mStage;
+    private final Executor mExecutor;
+    private final int mConcurrency;
+    private final int mBufferSize;
+    private volatile OnDiscardListener mDiscardListener;
+
+    // all below guarded by this.
+    private Flow.Subscription mUpstream;
+    private Flow.Subscriber<? super R> mDownstream;
+    private final LinkedList<T> mInput = new LinkedList<T>();
+    private final LinkedList<R> mOutput = new LinkedList<R>();
+    private int mActive;
+    private int mHeld;
+    private int mMaxHeld;
+    private long mDemand;
+    private boolean mUpstreamDone;
+    private Throwable mUpstreamError;
+    private Throwable mError;
+    private boolean mCancelled;
+    private boolean mTerminated;
+    private boolean mDraining;
+    private boolean mMissed;
+
+
+    /**
+     * @param stage - work done on every item.
+     * @param executor - executor the stage runs on, with at least concurrency threads for the concurrency to be reached.
+     * @param concurrency - most items processed at the same time.
+     * @param bufferSize - most items held by the stage, at least concurrency.
+     */
+    public StageProcessor(Stage<T, R> stage, Executor executor, int concurrency, int bufferSize) {
+
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+
+        if (bufferSize < concurrency) {
+            throw new IllegalArgumentException("bufferSize must be at least the concurrency");
+        }
+
+        this.mStage = stage;
+        this.mExecutor = executor;
+        this.mConcurrency = concurrency;
+        this.mBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the listener for items and results left behind when the stream ends early.
+     * @param listener - listener, null for none.
+     * @return the related StageProcessor
+     */
+    public StageProcessor<T, R> setOnDiscardListener(OnDiscardListener listener) {
+        this.mDiscardListener = listener;
+        return this;
+    }
+
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return the most items the stage has held at a time so far, never more than the buffer size.
+     */
+    public synchronized int getMaxHeld() {
+        return mMaxHeld;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+
+        synchronized (this) {
+            if (mUpstream == null && !mCancelled) {
+                mUpstream = subscription;
+                subscription = null;
+            }
+        }
+
+        if (subscription != null) {
+            // already subscribed (or cancelled), a stage has a single upstream.
+            subscription.cancel();
+            return;
+        }
+
+        mUpstream.request(mBufferSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+
+        if (item == null) {
+            throw new NullPointerException("null item");
+        }
+
+        boolean accepted;
+
+        synchronized (this) {
+            accepted = !mTerminated && !mCancelled;
+            if (accepted) {
+                mInput.add(item);
+                mHeld++;
+                mMaxHeld = Math.max(mMaxHeld, mHeld);
+            }
+        }
+
+        if (accepted) {
+            drain();
+        } else {
+            discard(item);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+
+        synchronized (this) {
+            mUpstreamDone = true;
+            mUpstreamError = throwable;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+
+        synchronized (this) {
+            mUpstreamDone = true;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+
+        boolean accepted;
+
+        synchronized (this) {
+            accepted = mDownstream == null;
+            if (accepted) {
+                mDownstream = subscriber;
+            }
+        }
+
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A stage publishes to a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                onRequest(n);
+            }
+
+            @Override
+            public void cancel() {
+                onCancel();
+            }
+        });
+
+        drain();
+    }
+
+    private void onRequest(long n) {
+
+        synchronized (this) {
+            if (n <= 0) {
+                if (mError == null) {
+                    mError = new IllegalArgumentException("request(" + n + "), must be more than zero");
+                }
+            } else {
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+        }
+
+        drain();
+    }
+
+    private void onCancel() {
+
+        Flow.Subscription upstream;
+
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            upstream = mUpstream;
+        }
+
+        if (upstream != null) {
+            upstream.cancel();
+        }
+
+        drain();
+    }
+
+    private void process(T item) {
+
+        R result = null;
+        Throwable error = null;
+
+        try {
+            result = mStage.process(item);
+        } catch (Throwable e) {
+            error = e;
+        }
+
+        boolean dropped = false;
+        boolean late = false;
+        Flow.Subscription upstream;
+
+        synchronized (this) {
+            mActive--;
+            upstream = mUpstream;
+            if (mTerminated || mCancelled) {
+                late = true;
+            } else if (error != null) {
+                if (mError == null) {
+                    mError = error;
+                }
+            } else if (result == null) {
+                mHeld--;
+                dropped = true;
+            } else {
+                mOutput.add(result);
+            }
+        }
+
+        if (late) {
+            // the stream ended while processing, nobody is going to take the result.
+            discard(result != null ? result : item);
+        } else if (dropped && upstream != null) {
+            upstream.request(1);
+        }
+
+        drain();
+    }
+
+    private void discard(Object item) {
+        OnDiscardListener listener = mDiscardListener;
+        if (listener != null && item != null) {
+            listener.onDiscard(item);
+        }
+    }
+
+    private void discardAll(LinkedList<?> items) {
+        if (items != null) {
+            for (Object item : items) {
+                discard(item);
+            }
+        }
+    }
+
+    /**
+     * Starts processing of waiting items and publishes results, serialized so that downstream is never called
+     * concurrently. A thread finding another one draining leaves the work to it.
+     */
+    private void drain() {
+
+        synchronized (this) {
+            if (mDraining) {
+                mMissed = true;
+                return;
+            }
+            mDraining = true;
+        }
+
+        for (;;) {
+
+            LinkedList<T> toStart = null;
+            LinkedList<Object> toDiscard = null;
+            R next = null;
+            Throwable error = null;
+            boolean complete = false;
+            boolean cancelUpstream = false;
+            Flow.Subscriber<? super R> downstream;
+            Flow.Subscription upstream;
+
+            synchronized (this) {
+
+                downstream = mDownstream;
+                upstream = mUpstream;
+
+                if (mCancelled || mError != null && downstream != null && !mTerminated) {
+                    error = mCancelled ? null : mError;
+                    cancelUpstream = error != null && !mUpstreamDone;
+                    mTerminated = true;
+                }
+
+                if (mTerminated && (!mInput.isEmpty() || !mOutput.isEmpty())) {
+                    toDiscard = new LinkedList<Object>(mInput);
+                    toDiscard.addAll(mOutput);
+                    mHeld -= mInput.size() + mOutput.size();
+                    mInput.clear();
+                    mOutput.clear();
+                }
+
+                if (!mTerminated) {
+
+                    while (mActive < mConcurrency && !mInput.isEmpty()) {
+                        if (toStart == null) {
+                            toStart = new LinkedList<T>();
+                        }
+                        toStart.add(mInput.poll());
+                        mActive++;
+                    }
+
+                    if (downstream != null) {
+                        if (mDemand > 0 && !mOutput.isEmpty()) {
+                            next = mOutput.poll();
+                            mDemand--;
+                            mHeld--;
+                        } else if (mUpstreamDone && mHeld == 0) {
+                            error = mUpstreamError;
+                            complete = error == null;
+                            mTerminated = true;
+                        }
+                    }
+                }
+
+                if (toStart == null && toDiscard == null && next == null && error == null && !complete) {
+                    if (!mMissed) {
+                        mDraining = false;
+                        return;
+                    }
+                    mMissed = false;
+                    continue;
+                }
+            }
+
+            while (toStart != null && !toStart.isEmpty()) {
+                final T item = toStart.peek();
+                try {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            process(item);
+                        }
+                    });
+                    toStart.poll();
+                } catch (RejectedExecutionException e) {
+                    // the items not started end the stream like a failing stage, the next round publishing the error.
+                    synchronized (this) {
+                        mActive -= toStart.size();
+                        mHeld -= toStart.size();
+                        if (mError == null) {
+                            mError = e;
+                        }
+                    }
+                    discardAll(toStart);
+                    toStart = null;
+                }
+            }
+
+            discardAll(toDiscard);
+
+            if (error != null) {
+                if (cancelUpstream && upstream != null) {
+                    upstream.cancel();
+                }
+                downstream.onError(error);
+            } else if (complete) {
+                downstream.onComplete();
+            } else if (next != null) {
+                downstream.onNext(next);
+                if (upstream != null) {
+                    upstream.request(1);
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package com.cooltechworks.bitmapmerger.tasks;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 
+import com.cooltechworks.bitmapmerger.cache.BitmapPool;
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Harish Sridharan on 29/06/15.
@@ -42,6 +54,22 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
     }
 
     private int mReqHeight,mReqWidth;
+    private int mSourceWidth, mSourceHeight; // if the dimensions are already known, for skipping the bounds pass.
+    private int mSourceOrientation = ImageHeader.ORIENTATION_UNDEFINED; // if the orientation is already known.
+    private boolean mApplyOrientation = true;
+    private int mOrientation = ExifInterface.ORIENTATION_NORMAL; // orientation of the decoded bitmap.
+    private BitmapTracker mTracker;
+    private BitmapRef mOutputRef;
+    private boolean mReusedBitmap;
+    private MemoryGovernor mGovernor;
+    private boolean mAllowRgb565;
+    private MemoryGovernor.Admission mAdmission;
+
+    private static final AtomicInteger DECODE_COUNT = new AtomicInteger();
+    private static final AtomicInteger REUSED_DECODE_COUNT = new AtomicInteger();
+
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    private static final int HEADER_MARK_LIMIT = 128 * 1024;
     private OnDecodeListener mListener;
     private Uri mContentProviderUri; // if getting bitmap from external storage or from disk
     private ContentResolver mResolver;
@@ -119,6 +147,141 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
         return this;
     }
 
+    /**
+     * Sets the required size for decoding a merge bitmap from the size it is finally composited at, instead of the size of the
+     * view. As the merge bitmap is scaled down by {@link MergeSpec#getScale()} when merged, sampling for the composited size
+     * decodes only a fraction of the pixels at small scales.
+     *
+     * @param spec - spec the decoded bitmap is going to be merged with.
+     * @param baseWidth - width of the base bitmap it is merged onto.
+     * @param baseHeight - height of the base bitmap it is merged onto.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setMergeSpec(MergeSpec spec, int baseWidth, int baseHeight) {
+        // the required size is of the upright image, the decoder swaps it for rotated images.
+        this.mReqWidth = Math.max(1, spec.getOverlayWidth(baseWidth));
+        this.mReqHeight = Math.max(1, spec.getOverlayHeight(baseHeight));
+        return this;
+    }
+
+    /**
+     * Sets the dimensions of the source image when they are already known (for example from {@link ImageHandle#prefetchBounds(ImageHandle.OnBoundsListener)}).
+     * The decoder then skips the bounds decoding pass and opens the image only once.
+     *
+     * @param width - width of the source image in pixels.
+     * @param height - height of the source image in pixels.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setSourceBounds(int width, int height) {
+        this.mSourceWidth = width;
+        this.mSourceHeight = height;
+        return this;
+    }
+
+    /**
+     * Sets the EXIF orientation of the source image when it is already known, so the decoder does not look for it.
+     * @param orientation - one of the ExifInterface.ORIENTATION_ constants.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setSourceOrientation(int orientation) {
+        this.mSourceOrientation = orientation;
+        return this;
+    }
+
+    /**
+     * Sets whether the decoder rotates/flips the decoded bitmap upright according to the EXIF orientation of the image (the default).
+     *
+     * When the bitmap is only going to be merged, pass false and hand {@link #getOrientation()} to
+     * {@link BitmapMergerTask#setMergeBitmapOrientation(int)} instead, so that the orientation is applied along with the
+     * merge scaling and no rotated copy of the bitmap is created.
+     *
+     * @param applyOrientation - true for an upright bitmap, false for the bitmap as stored.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setApplyOrientation(boolean applyOrientation) {
+        this.mApplyOrientation = applyOrientation;
+        return this;
+    }
+
+    /**
+     * @return EXIF orientation of the decoded bitmap - ExifInterface.ORIENTATION_NORMAL unless the orientation is not applied
+     * by the decoder (see {@link #setApplyOrientation(boolean)}). Valid once decoded.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Sets the tracker the decoded bitmap is handed to. The listener then owns one reference of
+     * {@link #getOutputRef()} and is responsible for releasing it.
+     *
+     * From Honeycomb onwards, images from disk are then decoded into a bitmap from the pool of the tracker when it has one of
+     * the sampled size (see {@link BitmapFactory.Options#inBitmap}), and decoded bitmaps are mutable so that they go back to
+     * the pool once released. Picking several images of the same size one after another then reuses the same memory.
+     * @param tracker - tracker for the decoded bitmap.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setBitmapTracker(BitmapTracker tracker) {
+        this.mTracker = tracker;
+        return this;
+    }
+
+    /**
+     * Sets the governor admitting the decode. The decode then waits for others to finish, or is sampled down further, when
+     * the decoded bitmap does not fit in the memory budget.
+     * @param governor - governor of the memory used by bitmaps, null for none.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setMemoryGovernor(MemoryGovernor governor) {
+        this.mGovernor = governor;
+        return this;
+    }
+
+    /**
+     * Lets the governor have the image decoded as RGB_565, half the memory, when it does not fit. For images without alpha.
+     * @param allowRgb565 - true if the image can be decoded without alpha.
+     * @return the related BitmapDecoderTask
+     */
+    public BitmapDecoderTask setAllowRgb565(boolean allowRgb565) {
+        this.mAllowRgb565 = allowRgb565;
+        return this;
+    }
+
+    /**
+     * @return true if the governor sampled the decode down further or decoded it as RGB_565. Valid once decoded.
+     */
+    public boolean isDegraded() {
+        return mAdmission != null && mAdmission.isDegraded();
+    }
+
+    /**
+     * @return handle of the decoded bitmap when a tracker is set, null otherwise. Valid once decoded.
+     */
+    public BitmapRef getOutputRef() {
+        return mOutputRef;
+    }
+
+    /**
+     * @return true if the image was decoded into a pooled bitmap. Valid once decoded.
+     */
+    public boolean isReusedBitmap() {
+        return mReusedBitmap;
+    }
+
+    /**
+     * @return number of images decoded from disk so far.
+     */
+    public static int getDecodeCount() {
+        return DECODE_COUNT.get();
+    }
+
+    /**
+     * @return number of images decoded from disk into a pooled bitmap so far.
+     */
+    public static int getReusedDecodeCount() {
+        return REUSED_DECODE_COUNT.get();
+    }
+
     @Override
     protected Bitmap doInBackground(Void... params) {
         switch (mDecodingOptions) {
@@ -133,16 +296,88 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
 
     @Override
     public void onPostExecute(Bitmap bitmap) {
+        if(mTracker != null && bitmap != null) {
+            mOutputRef = mTracker.track(bitmap);
+        }
+        releaseAdmission();
+
         if(mListener != null) {
             mListener.onDecode(this, bitmap);
         }
     }
 
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+        // nobody is going to get this bitmap, hand it back to the pool or free it right away (only called from API 11 onwards).
+        if(bitmap != null && mTracker != null) {
+            BitmapPool pool = mTracker.getPool();
+            if(pool == null || !pool.put(bitmap)) {
+                bitmap.recycle();
+            }
+        }
+        releaseAdmission();
+    }
+
+    @Override
+    protected void onCancelled() {
+        releaseAdmission();
+    }
+
     /**
      * Initiates the background process to decoding and sampling the image.
      */
     public void decode() {
-        super.execute((Void[]) null);
+        if (mGovernor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // the governor may have the decode wait for others, which must not hold up the serial executor.
+            executeOnGovernorExecutor();
+        } else {
+            super.execute((Void[]) null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeOnGovernorExecutor() {
+        super.executeOnExecutor(MemoryGovernor.getExecutor(), (Void[]) null);
+    }
+
+    /**
+     * Decodes and samples the image on the calling thread, for callers running their own background threads. The listener
+     * is not called.
+     * @return the decoded bitmap, also handed out through {@link #getOutputRef()} when a tracker is set.
+     */
+    public Bitmap decodeNow() {
+        try {
+            Bitmap bitmap = doInBackground();
+            if(mTracker != null && bitmap != null) {
+                mOutputRef = mTracker.track(bitmap);
+            }
+            return bitmap;
+        } finally {
+            releaseAdmission();
+        }
+    }
+
+    private void releaseAdmission() {
+        if(mAdmission != null) {
+            mAdmission.release();
+        }
+    }
+
+    /**
+     * Has the governor, if any, admit the decode of the sampled image, and applies the sample size and config it decided on.
+     * @param copies - number of bitmaps of the decoded size alive at once.
+     */
+    private void admit(BitmapFactory.Options options, int copies) {
+
+        if(mGovernor == null || options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+
+        mAdmission = mGovernor.admitDecode(options.outWidth, options.outHeight, options.inSampleSize, mAllowRgb565, copies);
+        options.inSampleSize = mAdmission.getSampleSize();
+        if(mAdmission.isRgb565()) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
     }
 
     private Bitmap decodeSampledBitmapFromDisk() {
@@ -161,21 +396,95 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
                 throw new BitmapDecodeException("Did not provide a valid required height. Should be > 0");
             }
 
-            InputStream sampleStream = mResolver.openInputStream(mContentProviderUri);
-            InputStream samplingStream = mResolver.openInputStream(mContentProviderUri);
-
-
-            // First decode with inJustDecodeBounds=true to check dimensions
-            final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(sampleStream, null, options);
-
-            // Calculate inSampleSize
-            options.inSampleSize = calculateInSampleSize(options, mReqWidth, mReqHeight);
-
-            // Decode bitmap with inSampleSize set
-            options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeStream(samplingStream, null, options);
+            InputStream stream = new BufferedInputStream(mResolver.openInputStream(mContentProviderUri), STREAM_BUFFER_SIZE);
+
+            try {
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                int orientation = mSourceOrientation;
+
+                if (mSourceWidth > 0 && mSourceHeight > 0) {
+                    options.outWidth = mSourceWidth;
+                    options.outHeight = mSourceHeight;
+                }
+
+                if (orientation == ImageHeader.ORIENTATION_UNDEFINED || options.outWidth <= 0) {
+                    // read the orientation (and the dimensions of jpegs) from the header of the same stream we decode.
+                    stream.mark(HEADER_MARK_LIMIT);
+                    ImageHeader header = ImageHeader.read(stream);
+
+                    if (orientation == ImageHeader.ORIENTATION_UNDEFINED) {
+                        orientation = header.orientation;
+                    }
+
+                    if (options.outWidth <= 0 && header.hasBounds()) {
+                        options.outWidth = header.width;
+                        options.outHeight = header.height;
+                    }
+
+                    try {
+                        stream.reset();
+                    } catch (IOException e) {
+                        // header was larger than the mark limit, start over.
+                        closeQuietly(stream);
+                        stream = new BufferedInputStream(mResolver.openInputStream(mContentProviderUri), STREAM_BUFFER_SIZE);
+                    }
+                }
+
+                if (options.outWidth <= 0) {
+                    // First decode with inJustDecodeBounds=true to check dimensions
+                    InputStream sampleStream = mResolver.openInputStream(mContentProviderUri);
+                    options.inJustDecodeBounds = true;
+                    try {
+                        BitmapFactory.decodeStream(sampleStream, null, options);
+                    } finally {
+                        closeQuietly(sampleStream);
+                    }
+                }
+
+                // Calculate inSampleSize, sampling against the dimensions as stored (before orientation).
+                boolean swapsDimensions = ImageHeader.swapsDimensions(orientation);
+                options.inSampleSize = calculateInSampleSize(options,
+                        swapsDimensions ? mReqHeight : mReqWidth,
+                        swapsDimensions ? mReqWidth : mReqHeight);
+
+                // oriented into a copy while the decoded bitmap is still alive.
+                boolean oriented = mApplyOrientation && orientation != ExifInterface.ORIENTATION_NORMAL
+                        && orientation != ImageHeader.ORIENTATION_UNDEFINED;
+                admit(options, oriented ? 2 : 1);
+
+                // Decode bitmap with inSampleSize set
+                options.inJustDecodeBounds = false;
+                Bitmap reusable = setReusableBitmap(options);
+                Bitmap bitmap = decodeStream(stream, options);
+
+                if (reusable != null && bitmap != reusable) {
+                    // the pooled bitmap could not be decoded into after all, decode into a new one.
+                    mTracker.getPool().put(reusable);
+                    clearReusableBitmap(options);
+                    closeQuietly(stream);
+                    stream = new BufferedInputStream(mResolver.openInputStream(mContentProviderUri), STREAM_BUFFER_SIZE);
+                    bitmap = BitmapFactory.decodeStream(stream, null, options);
+                }
+
+                mReusedBitmap = reusable != null && bitmap == reusable;
+                DECODE_COUNT.incrementAndGet();
+                if (mReusedBitmap) {
+                    REUSED_DECODE_COUNT.incrementAndGet();
+                }
+
+                if (mApplyOrientation) {
+                    mOrientation = ExifInterface.ORIENTATION_NORMAL;
+                    return applyOrientation(bitmap, orientation, mTracker != null ? mTracker.getPool() : null);
+                }
+
+                mOrientation = orientation == ImageHeader.ORIENTATION_UNDEFINED ? ExifInterface.ORIENTATION_NORMAL : orientation;
+                return bitmap;
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new BitmapDecodeException("Could not read the image.");
+            } finally {
+                closeQuietly(stream);
+            }
         }catch (FileNotFoundException e) {
             e.printStackTrace();
             throw new BitmapDecodeException("Did not provide a valid Uri.");
@@ -205,6 +514,7 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, mReqWidth, mReqHeight);
+        admit(options, 1);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -212,26 +522,143 @@ public class BitmapDecoderTask extends AsyncTask<Void,Void,Bitmap> {
     }
 
 
+    /**
+     * Takes a bitmap of the sampled size out of the pool for the decode to reuse. Before KitKat only bitmaps of exactly the
+     * size of the image (no sampling) can be reused.
+     * @return the pooled bitmap set as {@link BitmapFactory.Options#inBitmap}, or null if none is reused.
+     */
+    private Bitmap setReusableBitmap(BitmapFactory.Options options) {
+
+        if (mTracker == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+
+        BitmapPool pool = mTracker.getPool();
+        Bitmap reusable = null;
+
+        if (pool != null && options.outWidth > 0 && (options.inSampleSize <= 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+            int sampleSize = Math.max(1, options.inSampleSize);
+            // decoders round the sampled size up, a bitmap of that size is large enough either way.
+            reusable = pool.get((options.outWidth + sampleSize - 1) / sampleSize, (options.outHeight + sampleSize - 1) / sampleSize,
+                    getConfig(options));
+        }
+
+        setReusableBitmap(options, reusable);
+        return reusable;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setReusableBitmap(BitmapFactory.Options options, Bitmap reusable) {
+        options.inPreferredConfig = getConfig(options);
+        options.inMutable = true;
+        options.inBitmap = reusable;
+    }
+
+    private static Bitmap.Config getConfig(BitmapFactory.Options options) {
+        // RGB_565 only if the governor asked for it.
+        return options.inPreferredConfig == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void clearReusableBitmap(BitmapFactory.Options options) {
+        options.inBitmap = null;
+    }
+
+    private static Bitmap decodeStream(InputStream stream, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } catch (IllegalArgumentException e) {
+            // thrown when the inBitmap can not be reused for the image.
+            return null;
+        }
+    }
+
     private static int calculateInSampleSize(
             BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
+        return calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+    }
 
-        if (height > reqHeight || width > reqWidth) {
+    /**
+     * Creates the transformation that brings a bitmap stored with the given EXIF orientation upright.
+     * @param orientation - EXIF orientation of the bitmap.
+     * @return matrix to be applied on the bitmap, identity for normal or undefined orientation.
+     */
+    public static Matrix getOrientationMatrix(int orientation) {
 
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
+        Matrix matrix = new Matrix();
+        setOrientationMatrix(matrix, orientation);
+        return matrix;
+    }
 
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) > reqHeight
-                    && (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
-            }
+    /**
+     * @param orientation - EXIF orientation of a bitmap.
+     * @return true if bringing the bitmap upright swaps its width and height.
+     */
+    public static boolean swapsDimensions(int orientation) {
+        return ImageHeader.swapsDimensions(orientation);
+    }
+
+    /**
+     * Same as {@link #getOrientationMatrix(int)}, setting an existing matrix.
+     * @param matrix - matrix to be set.
+     * @param orientation - EXIF orientation of the bitmap.
+     */
+    public static void setOrientationMatrix(Matrix matrix, int orientation) {
+
+        matrix.reset();
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+        }
+    }
+
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation, BitmapPool pool) {
+
+        if (bitmap == null || orientation == ExifInterface.ORIENTATION_NORMAL || orientation == ImageHeader.ORIENTATION_UNDEFINED) {
+            return bitmap;
         }
 
-        return inSampleSize;
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), getOrientationMatrix(orientation), true);
+
+        if (oriented != bitmap && (pool == null || !pool.put(bitmap))) {
+            bitmap.recycle();
+        }
+
+        return oriented;
+    }
+
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        return SamplePlan.calculateInSampleSize(width, height, reqWidth, reqHeight);
+    }
+
+    static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
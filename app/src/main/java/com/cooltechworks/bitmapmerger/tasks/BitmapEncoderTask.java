@@ -0,0 +1,366 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BitmapEncoderTask is a background asynchronous task that compresses a bitmap (typically the output of {@link BitmapMergerTask})
+ * to JPEG/PNG/WebP and streams it to a file or to an {@link OutputStream}.
+ *
+ * Encoding runs on a small dedicated I/O pool so that saving a merged bitmap never competes with the decoder and merger tasks
+ * and never happens on the UI thread. The compressed bytes are streamed through a buffer that is owned by the I/O thread and
+ * reused across encodes, and the bitmap itself is handed over by reference - it must not be recycled until
+ * {@link OnEncodeListener#onEncode(BitmapEncoderTask, EncodeResult)} is called.
+ */
+public class BitmapEncoderTask extends AsyncTask<Void, Void, BitmapEncoderTask.EncodeResult> {
+
+    class BitmapEncodeException extends RuntimeException {
+        BitmapEncodeException(String msg) {
+            super(msg);
+        }
+    }
+
+    public interface OnEncodeListener {
+        void onEncode(BitmapEncoderTask task, EncodeResult result);
+    }
+
+    /**
+     * Outcome of an encode. Holds the compressed size and the time spent compressing and writing.
+     */
+    public static class EncodeResult {
+
+        private final boolean mSuccess;
+        private final long mEncodedBytes;
+        private final long mEncodeTimeMillis;
+        private final File mOutputFile;
+        private final IOException mError;
+
+        EncodeResult(boolean success, long encodedBytes, long encodeTimeMillis, File outputFile, IOException error) {
+            this.mSuccess = success;
+            this.mEncodedBytes = encodedBytes;
+            this.mEncodeTimeMillis = encodeTimeMillis;
+            this.mOutputFile = outputFile;
+            this.mError = error;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        /**
+         * @return number of compressed bytes written to the output.
+         */
+        public long getEncodedBytes() {
+            return mEncodedBytes;
+        }
+
+        /**
+         * @return wall time spent in compressing and writing, in milliseconds.
+         */
+        public long getEncodeTimeMillis() {
+            return mEncodeTimeMillis;
+        }
+
+        /**
+         * @return the output file, or null when encoding to an {@link OutputStream}.
+         */
+        public File getOutputFile() {
+            return mOutputFile;
+        }
+
+        /**
+         * @return the I/O failure if the encode did not succeed, null otherwise.
+         */
+        public IOException getError() {
+            return mError;
+        }
+    }
+
+    private static final int IO_POOL_SIZE = 2;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final Executor IO_EXECUTOR = Executors.newFixedThreadPool(IO_POOL_SIZE, new ThreadFactory() {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BitmapEncoder #" + mCount.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // each I/O thread keeps its own stream buffer for the lifetime of the pool.
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+
+    private Bitmap mBitmap;
+    private BitmapRef mBitmapRef;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.PNG;
+    private int mQuality = 100;
+    private File mOutputFile;
+    private OutputStream mOutputStream;
+    private OnEncodeListener mListener;
+
+
+    /**
+     * Sets the bitmap to be encoded. The bitmap is not copied.
+     * @param bitmap - bitmap to be encoded.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setBitmap(Bitmap bitmap) {
+        this.mBitmap = bitmap;
+        return this;
+    }
+
+    /**
+     * Sets the bitmap to be encoded through its handle. The handle is held until the encode completes, so the caller may
+     * release its own reference right away.
+     * @param bitmapRef - handle of the bitmap to be encoded.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setBitmap(BitmapRef bitmapRef) {
+        this.mBitmapRef = bitmapRef.acquire();
+        this.mBitmap = bitmapRef.get();
+        return this;
+    }
+
+    /**
+     * Sets the compression format and quality.
+     * @param format - JPEG, PNG or WEBP (WEBP requires API 14).
+     * @param quality - 0 to 100, ignored by lossless formats.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setFormat(Bitmap.CompressFormat format, int quality) {
+        this.mFormat = format;
+        this.mQuality = quality;
+        return this;
+    }
+
+    /**
+     * Sets the file the encoded image is written to. The file is created or truncated.
+     * @param file - output file.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setOutputFile(File file) {
+        this.mOutputFile = file;
+        this.mOutputStream = null;
+        return this;
+    }
+
+    /**
+     * Sets the stream the encoded image is written to. The stream is flushed but not closed after encoding.
+     * @param outputStream - output stream.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setOutputStream(OutputStream outputStream) {
+        this.mOutputStream = outputStream;
+        this.mOutputFile = null;
+        return this;
+    }
+
+    /**
+     * Sets the listener for encode complete.
+     * @param listener for encode completeness.
+     * @return the related BitmapEncoderTask
+     */
+    public BitmapEncoderTask setListener(OnEncodeListener listener) {
+        this.mListener = listener;
+        return this;
+    }
+
+    /**
+     * Initiates the encoding on the I/O pool.
+     */
+    public void encode() {
+
+        if (mBitmap == null) {
+            throw new BitmapEncodeException("Bitmap not set");
+        }
+
+        if (mOutputFile == null && mOutputStream == null) {
+            throw new BitmapEncodeException("Did not provide an output file or output stream");
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            executeOnIoPool();
+        } else {
+            // pre-honeycomb AsyncTask already runs on a thread pool.
+            super.execute((Void[]) null);
+        }
+    }
+
+    /**
+     * Encodes on the calling thread, for callers running their own background threads. The listener is not called.
+     * @return outcome of the encode.
+     */
+    public EncodeResult encodeNow() {
+
+        if (mBitmap == null) {
+            throw new BitmapEncodeException("Bitmap not set");
+        }
+
+        if (mOutputFile == null && mOutputStream == null) {
+            throw new BitmapEncodeException("Did not provide an output file or output stream");
+        }
+
+        try {
+            return doInBackground();
+        } finally {
+            releaseBitmapRef();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeOnIoPool() {
+        super.executeOnExecutor(IO_EXECUTOR, (Void[]) null);
+    }
+
+    @Override
+    protected EncodeResult doInBackground(Void... params) {
+
+        long startTime = System.nanoTime();
+        CountingBufferedOutputStream stream = null;
+        boolean success;
+
+        try {
+            OutputStream target = mOutputFile != null ? new FileOutputStream(mOutputFile) : mOutputStream;
+            stream = new CountingBufferedOutputStream(target, STREAM_BUFFER.get());
+
+            success = mBitmap.compress(mFormat, mQuality, stream);
+            stream.flush();
+
+            if (mOutputFile != null) {
+                stream.close();
+            }
+
+            return new EncodeResult(success, stream.getCount(), elapsedMillis(startTime), mOutputFile, null);
+
+        } catch (FileNotFoundException e) {
+            return new EncodeResult(false, 0, elapsedMillis(startTime), mOutputFile, e);
+        } catch (IOException e) {
+            closeQuietly(stream);
+            return new EncodeResult(false, stream != null ? stream.getCount() : 0, elapsedMillis(startTime), mOutputFile, e);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(EncodeResult result) {
+        releaseBitmapRef();
+
+        if (mListener != null) {
+            mListener.onEncode(this, result);
+        }
+    }
+
+    @Override
+    protected void onCancelled() {
+        releaseBitmapRef();
+    }
+
+    private void releaseBitmapRef() {
+        if (mBitmapRef != null) {
+            mBitmapRef.release();
+            mBitmapRef = null;
+        }
+    }
+
+    private void closeQuietly(OutputStream stream) {
+        if (stream != null && mOutputFile != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    /**
+     * Buffered stream writing through a caller supplied buffer and counting the bytes that pass through it.
+     */
+    static class CountingBufferedOutputStream extends OutputStream {
+
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private int mPosition;
+        private long mCount;
+
+        CountingBufferedOutputStream(OutputStream out, byte[] buffer) {
+            this.mOut = out;
+            this.mBuffer = buffer;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mPosition == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mPosition++] = (byte) b;
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= mBuffer.length) {
+                // larger than our buffer, no point in copying.
+                flushBuffer();
+                mOut.write(b, off, len);
+            } else {
+                if (len > mBuffer.length - mPosition) {
+                    flushBuffer();
+                }
+                System.arraycopy(b, off, mBuffer, mPosition, len);
+                mPosition += len;
+            }
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                mOut.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mPosition > 0) {
+                mOut.write(mBuffer, 0, mPosition);
+                mPosition = 0;
+            }
+        }
+    }
+}
@@ -1,9 +1,25 @@
 package com.cooltechworks.bitmapmerger.tasks;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
 import android.os.AsyncTask;
+import android.os.Build;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapPool;
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.ContentHash;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.cache.MergeResultCache;
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+import com.cooltechworks.bitmapmerger.raster.ArgbImage;
+import com.cooltechworks.bitmapmerger.raster.QualityGate;
 
 /**
  * Created by Harish Sridharan on 29/06/15.
@@ -19,6 +35,8 @@ import android.os.AsyncTask;
  * 1. Merging at the center (along with resize options)
  * 2. Merging at an angle away from the axis of the image at center point
  * 3. Merging the bitmaps with offsets from top left corner.
+ *
+ * The merge bitmap can also be blended with the base bitmap by a {@link BlendMode} and drawn with an opacity.
  */
 public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
 
@@ -39,21 +57,111 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
             throw new BitmapMergerTaskException("Merge bitmap not set");
         }
 
-        switch (mMergeOptions) {
+        if (mResultCache != null && mTracker != null) {
+            return mergeThroughCache();
+        }
 
-            case MERGE_AT_ANGLE_OFF:
-                return mergeAtAngle();
-            case MERGE_FROM_TOP_LEFT:
-                return mergeFromTopLeft();
-            default:
-                return mergeAtCenter();
+        return mergeUncached();
+    }
+
+    private Bitmap mergeThroughCache() {
+
+        final Bitmap overlayBitmap = getOverlayBitmap();
+        admitMerge(overlayBitmap);
+
+        if (mLowMemory) {
+            // a degraded merge is not cached, so that merges with memory to spare get the full quality one.
+            return merge(overlayBitmap);
         }
+
+        MergeSpec spec = getMergeSpec().normalized();
+        Bitmap.Config config = mRgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        String key = MergeResultCache.getKey(ContentHash.of(mBaseBitmap), ContentHash.of(mMergeBitmap), mMergeBitmapOrientation, spec.toString(), config);
+
+        mCachedOutputRef = mResultCache.get(key, config, new MergeResultCache.Loader() {
+            @Override
+            public BitmapRef load() {
+                Bitmap merged = merge(overlayBitmap);
+                // nothing drawn over the base, nothing worth caching.
+                return merged == mBaseBitmap ? null : mTracker.track(merged);
+            }
+        });
+
+        if (mCachedOutputRef == null && Thread.currentThread().isInterrupted()) {
+            // cancelled while waiting for the same merge of another task, there is no result.
+            return null;
+        }
+
+        return mCachedOutputRef != null ? mCachedOutputRef.get() : mBaseBitmap;
+    }
+
+    private Bitmap mergeUncached() {
+
+        Bitmap overlayBitmap = getOverlayBitmap();
+        admitMerge(overlayBitmap);
+        return merge(overlayBitmap);
+    }
+
+    private Bitmap getOverlayBitmap() {
+        return mMergeLevel != null ? mMergeLevel.get() : mMergeBitmap;
+    }
+
+    /**
+     * Admits the merge with the governor and decides the config of the merged bitmap, before any cache lookup as the
+     * result depends on both.
+     */
+    private void admitMerge(Bitmap overlayBitmap) {
+
+        if (mGovernor != null) {
+            mAdmission = mGovernor.admitMerge(getMergeBytes());
+            mLowMemory = mAdmission.isDegraded();
+        }
+
+        // an opaque base stays opaque, so the merged bitmap does not need alpha when memory is short or 565 does not show.
+        mRgb565 = !mBaseBitmap.hasAlpha() && (mLowMemory || isRgb565Allowed(overlayBitmap));
+    }
+
+    private Bitmap merge(Bitmap overlayBitmap) {
+        return mergeWithSpec(mBaseBitmap, overlayBitmap, mMergeBitmapOrientation, getMergeSpec(), mTracker, mRgb565);
     }
 
     public void onPostExecute(Bitmap bitmap) {
+        setOutputRef(bitmap);
+        releaseAdmission();
+
+        if(mOutputEncoder != null && bitmap != null) {
+            if(mOutputRef != null) {
+                mOutputEncoder.setBitmap(mOutputRef);
+            } else {
+                mOutputEncoder.setBitmap(bitmap);
+            }
+            mOutputEncoder.encode();
+        }
+
         if(mMergeListener != null) {
             mMergeListener.onMerge(this,bitmap);
         }
+
+        releaseInputRefs();
+    }
+
+    @Override
+    protected void onCancelled(Bitmap bitmap) {
+        // nobody is going to get the merged bitmap (only called from API 11 onwards).
+        if(mCachedOutputRef != null) {
+            mCachedOutputRef.release();
+            mCachedOutputRef = null;
+        } else if(mTracker != null && bitmap != null && bitmap != mBaseBitmap) {
+            recycleOrPool(bitmap);
+        }
+        releaseInputRefs();
+        releaseAdmission();
+    }
+
+    @Override
+    protected void onCancelled() {
+        releaseInputRefs();
+        releaseAdmission();
     }
 
     public interface OnMergeListener {
@@ -66,14 +174,45 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
         MERGE_FROM_TOP_LEFT,
     }
 
+    private static final ThreadLocal<OverlayPaint> OVERLAY_PAINT = new ThreadLocal<OverlayPaint>() {
+        @Override
+        protected OverlayPaint initialValue() {
+            return new OverlayPaint();
+        }
+    };
+
+    private static final ThreadLocal<Paint> FILTER_PAINT = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            return new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+    };
+
     private Bitmap mBaseBitmap;
     private Bitmap mMergeBitmap;
+    private int mMergeBitmapOrientation = ExifInterface.ORIENTATION_NORMAL;
     private float mScale = 0.5f;
     private int mAngle = 0;
     private int mTopOffset = 0;
     private int mLeftOffset = 0;
     private BitmapMergeOptions mMergeOptions = BitmapMergeOptions.MERGE_AT_CENTER;
+    private MergeSpec mPlacement = MergeSpec.atCenter(0f);
+    private BlendMode mBlendMode = BlendMode.NORMAL;
+    private float mOpacity = 1f;
     private OnMergeListener mMergeListener;
+    private BitmapTracker mTracker;
+    private BitmapRef mBaseRef, mMergeRef, mOutputRef;
+    private boolean mInputsAcquired;
+    private BitmapEncoderTask mOutputEncoder;
+    private MipPyramid mMergePyramid;
+    private BitmapRef mMergeLevel;
+    private MergeResultCache mResultCache;
+    private BitmapRef mCachedOutputRef;
+    private MemoryGovernor mGovernor;
+    private MemoryGovernor.Admission mAdmission;
+    private boolean mLowMemory;
+    private QualityGate mQualityGate;
+    private boolean mRgb565;
 
 
     /**
@@ -96,6 +235,49 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
         return this;
     }
 
+    /**
+     * Sets the base bitmap image through its handle. The handle is held for the duration of the merge, so the caller may
+     * release its own reference right after calling {@link #merge()}.
+     * @param baseRef - handle of the base bitmap
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setBaseBitmap(BitmapRef baseRef) {
+        this.mBaseRef = baseRef;
+        this.mBaseBitmap = baseRef.get();
+        return this;
+    }
+
+    /**
+     * Sets the merge bitmap image through its handle. The handle is held for the duration of the merge, so the caller may
+     * release its own reference right after calling {@link #merge()}.
+     * @param mergeRef - handle of the merging bitmap image.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setMergeBitmap(BitmapRef mergeRef) {
+        this.mMergeRef = mergeRef;
+        this.mMergeBitmap = mergeRef.get();
+        return this;
+    }
+
+    /**
+     * Sets the tracker the merged bitmap is handed to. The merged bitmap is drawn into a pooled bitmap when the pool of the
+     * tracker has one of the size, and the listener owns one reference of {@link #getOutputRef()} and is responsible for
+     * releasing it.
+     * @param tracker - tracker for the merged bitmap.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setBitmapTracker(BitmapTracker tracker) {
+        this.mTracker = tracker;
+        return this;
+    }
+
+    /**
+     * @return handle of the merged bitmap when a tracker is set, null otherwise. Valid once merged.
+     */
+    public BitmapRef getOutputRef() {
+        return mOutputRef;
+    }
+
     /**
      * Sets the merge bitmap image.
      * @param mMergeBitmap - merging bitmap image.
@@ -106,6 +288,42 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
         return this;
     }
 
+    /**
+     * Sets the EXIF orientation of the merge bitmap when it is not upright (see {@link BitmapDecoderTask#setApplyOrientation(boolean)}).
+     * The orientation is applied in the same pass as the merge scaling, so no rotated copy of the merge bitmap is created.
+     * @param orientation - one of the ExifInterface.ORIENTATION_ constants.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setMergeBitmapOrientation(int orientation) {
+        this.mMergeBitmapOrientation = orientation;
+        return this;
+    }
+
+    /**
+     * Sets a pyramid of the merge bitmap. The merge bitmap is then scaled from the nearest pyramid level at least the size it
+     * is merged at, which is faster and does not alias at small scales. The level is picked (and built if needed) when
+     * {@link #merge()} is called and held for the duration of the merge, so the caller may release the pyramid right after.
+     * @param pyramid - pyramid built from the merge bitmap.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setMergePyramid(MipPyramid pyramid) {
+        this.mMergePyramid = pyramid;
+        return this;
+    }
+
+    /**
+     * Sets a cache of merge results. The merged bitmap is then looked up by the content of both bitmaps and the merge
+     * parameters first, and merged only if it is not cached yet; identical merges running at the same time merge once.
+     * Requires a tracker (see {@link #setBitmapTracker(BitmapTracker)}), the cached bitmap is handed out through
+     * {@link #getOutputRef()}.
+     * @param cache - cache of merge results.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setResultCache(MergeResultCache cache) {
+        this.mResultCache = cache;
+        return this;
+    }
+
     /**
      * Sets the merging offset points. Invoking this method will mark the merging mechanism to merge the mergeBitmap image to the base bitmap image
      * from the top left portion as specified by the params leftOffset and topOffset
@@ -133,6 +351,70 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
         return this;
     }
 
+    /**
+     * Sets how the merge bitmap is blended with the base bitmap, normal by default.
+     * @param blendMode - blend mode of the merge bitmap.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setBlendMode(BlendMode blendMode) {
+        this.mBlendMode = blendMode;
+        return this;
+    }
+
+    /**
+     * Sets the opacity the merge bitmap is drawn with, 1 by default.
+     * @param opacity - from 0 (not drawn) to 1 (as is).
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setOpacity(float opacity) {
+        this.mOpacity = opacity;
+        return this;
+    }
+
+    /**
+     * Sets the merge option, scale, angle and offsets at once, along with the radius, anchor, pivot and blending of the spec.
+     * @param spec - spec describing the placement of the merge bitmap.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setMergeSpec(MergeSpec spec) {
+        this.mMergeOptions = spec.getMergeOptions();
+        this.mScale = spec.getScale();
+        this.mAngle = spec.getAngle();
+        this.mLeftOffset = spec.getLeftOffset();
+        this.mTopOffset = spec.getTopOffset();
+        this.mPlacement = spec;
+        this.mBlendMode = spec.getBlendMode();
+        this.mOpacity = spec.getOpacity();
+        return this;
+    }
+
+    /**
+     * @return spec describing the placement and blending as currently set on this task.
+     */
+    public MergeSpec getMergeSpec() {
+
+        MergeSpec spec;
+        switch (mMergeOptions) {
+            case MERGE_AT_ANGLE_OFF:
+                spec = MergeSpec.atAngle(mScale, mAngle).withPlacementOf(mPlacement);
+                break;
+            case MERGE_FROM_TOP_LEFT:
+                spec = MergeSpec.fromTopLeft(mScale, mLeftOffset, mTopOffset);
+                break;
+            default:
+                spec = MergeSpec.atCenter(mScale).withPlacementOf(mPlacement);
+                break;
+        }
+
+        if (mBlendMode != BlendMode.NORMAL) {
+            spec = spec.withBlendMode(mBlendMode);
+        }
+        if (mOpacity != 1f) {
+            spec = spec.withOpacity(mOpacity);
+        }
+        return spec;
+    }
+
     /**
      * Sets the listener for merge complete.
      * @param listener for merge completeness.
@@ -143,92 +425,319 @@ public class BitmapMergerTask extends AsyncTask<Void, Void, Bitmap> {
         return this;
     }
 
+    /**
+     * Sets an optional output stage. Once merged, the merged bitmap is handed to the encoder (without copying) which
+     * compresses and writes it on the I/O pool. The encoder must have its output and format already set.
+     * @param encoder - encoder for writing the merged bitmap.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setOutputEncoder(BitmapEncoderTask encoder) {
+        this.mOutputEncoder = encoder;
+        return this;
+    }
+
     /**
      * Initiates the merging task in the background
      */
     public void merge() {
-        super.execute((Void[])null);
+        acquireInputRefs();
+        if (mGovernor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // the governor may have the merge wait for others, which must not hold up the serial executor.
+            executeOnGovernorExecutor();
+        } else {
+            super.execute((Void[])null);
+        }
     }
 
-    private Bitmap mergeAtAngle() {
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeOnGovernorExecutor() {
+        super.executeOnExecutor(MemoryGovernor.getExecutor(), (Void[]) null);
+    }
 
-        if (mScale > 0) {
+    /**
+     * Merges on the calling thread, for callers running their own background threads. Neither the listener nor the output
+     * encoder is called.
+     * @return the merged bitmap, also handed out through {@link #getOutputRef()} when a tracker is set.
+     */
+    public Bitmap mergeNow() {
+        acquireInputRefs();
+        try {
+            Bitmap bitmap = doInBackground();
+            setOutputRef(bitmap);
+            return bitmap;
+        } finally {
+            releaseInputRefs();
+            releaseAdmission();
+        }
+    }
 
-        int radius = mBaseBitmap.getWidth() / 4;
-        int centerX = mBaseBitmap.getWidth() / 2;
-        int centerY = mBaseBitmap.getHeight() / 2;
+    /**
+     * Sets the governor admitting the merge. The merge then waits for running decodes and merges, or takes its low memory
+     * path (RGB_565 output for opaque base bitmaps), when it does not fit in the budget.
+     * @param governor - governor of the memory used by bitmaps, null for none.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setMemoryGovernor(MemoryGovernor governor) {
+        this.mGovernor = governor;
+        return this;
+    }
 
-        double radians = Math.toRadians(mAngle);
+    /**
+     * Sets the gate deciding whether the merged bitmap may be RGB_565. An opaque base is then merged into an RGB_565 bitmap,
+     * half the memory of ARGB_8888, whenever the gate finds the merge to look alike in RGB_565 - not only when memory is
+     * short. Needs a bitmap tracker to take effect.
+     * @param gate - quality gate, null to use RGB_565 only when memory is short.
+     * @return the related BitmapMergerTask
+     */
+    public BitmapMergerTask setQualityGate(QualityGate gate) {
+        this.mQualityGate = gate;
+        return this;
+    }
 
-        int x = (int) (radius * Math.cos(radians) + centerX);
-        int y = (int) (radius * Math.sin(radians) + centerY);
+    /**
+     * @return true if the merged bitmap is RGB_565. Valid once merged.
+     */
+    public boolean isRgb565() {
+        return mRgb565;
+    }
 
+    /**
+     * @return true if the governor had the merge take its low memory path. Valid once merged.
+     */
+    public boolean isLowMemory() {
+        return mLowMemory;
+    }
 
-        Bitmap overlayScaled = Bitmap.createScaledBitmap(mMergeBitmap, (int) (mBaseBitmap.getWidth() * mScale), (int) (mBaseBitmap.getHeight() * mScale), true);
+    private void releaseAdmission() {
+        if (mAdmission != null) {
+            mAdmission.release();
+        }
+    }
 
-        Bitmap workingBitmap = Bitmap.createBitmap(mBaseBitmap);
-        Bitmap mutableBitmap = workingBitmap.copy(Bitmap.Config.ARGB_8888, true);
+    /**
+     * @return bytes allocated by merging, the merged bitmap only as the merge bitmap is scaled while drawing.
+     */
+    private long getMergeBytes() {
+        return 4L * mBaseBitmap.getWidth() * mBaseBitmap.getHeight();
+    }
 
-        Canvas canvas = new Canvas(mutableBitmap);
+    private void setOutputRef(Bitmap bitmap) {
+        if(mCachedOutputRef != null) {
+            mOutputRef = mCachedOutputRef;
+        } else if(mTracker != null && bitmap != null) {
+            mOutputRef = bitmap == mBaseBitmap ? acquireBaseRef() : mTracker.track(bitmap);
+        }
+    }
+
+    private void acquireInputRefs() {
+        if(mBaseRef != null) {
+            mBaseRef.acquire();
+        }
+        if(mMergeRef != null) {
+            mMergeRef.acquire();
+        }
+        mMergeLevel = acquireMergeLevel();
+        mInputsAcquired = true;
+    }
 
-            x -= (overlayScaled.getWidth() / 2);
-            y -= (overlayScaled.getHeight() / 2);
+    private void releaseInputRefs() {
+        if(!mInputsAcquired) {
+            return;
+        }
+        mInputsAcquired = false;
 
+        if(mBaseRef != null) {
+            mBaseRef.release();
+        }
+        if(mMergeRef != null) {
+            mMergeRef.release();
+        }
+        if(mMergeLevel != null) {
+            mMergeLevel.release();
+            mMergeLevel = null;
+        }
+    }
 
-            canvas.drawBitmap(overlayScaled, x, y, new Paint());
+    private BitmapRef acquireMergeLevel() {
 
-        return mutableBitmap;
-        } else {
-            return mBaseBitmap;
+        if (mMergePyramid == null || mScale <= 0 || mBaseBitmap == null) {
+            return null;
         }
 
+        int width = Math.max(1, (int) (mBaseBitmap.getWidth() * mScale));
+        int height = Math.max(1, (int) (mBaseBitmap.getHeight() * mScale));
+        boolean swapped = BitmapDecoderTask.swapsDimensions(mMergeBitmapOrientation);
+
+        return mMergePyramid.acquireLevel(swapped ? height : width, swapped ? width : height);
+    }
+
+    private BitmapRef acquireBaseRef() {
+        return mBaseRef != null ? mBaseRef.acquire() : null;
+    }
+
+    private void recycleOrPool(Bitmap bitmap) {
+        BitmapPool pool = mTracker.getPool();
+        if(pool == null || !pool.put(bitmap)) {
+            bitmap.recycle();
+        }
     }
 
-    private Bitmap mergeFromTopLeft() {
+    private static Bitmap mergeWithSpec(Bitmap baseBitmap, Bitmap overlayBitmap, int overlayOrientation, MergeSpec spec, BitmapTracker tracker,
+                                        boolean rgb565) {
 
-        return mergeBitmaps(mBaseBitmap,mMergeBitmap,mScale, mLeftOffset, mTopOffset);
+        int width = baseBitmap.getWidth();
+        int height = baseBitmap.getHeight();
+
+        return mergeBitmaps(baseBitmap, overlayBitmap, overlayOrientation, spec.getScale(), spec.getOverlayLeft(width, height), spec.getOverlayTop(width, height),
+                spec.getBlendMode(), spec.getOpacity(), tracker, rgb565);
     }
 
+    private static Bitmap mergeBitmaps(Bitmap baseBitmap, Bitmap overlayBitmap, int overlayOrientation, float scale, int leftOffset, int topOffset,
+                                       BlendMode blendMode, float opacity, BitmapTracker tracker, boolean rgb565) {
+
+        MergeStats stats = MergeStats.getDefault();
+
+        if (scale <= 0 || opacity <= 0) {
+            stats.count(MergeStats.Path.NO_OVERLAY);
+            return baseBitmap;
+        }
+
+        int baseWidth = baseBitmap.getWidth();
+        int baseHeight = baseBitmap.getHeight();
+        int overlayWidth = (int) (baseWidth * scale);
+        int overlayHeight = (int) (baseHeight * scale);
 
-    private Bitmap mergeAtCenter() {
+        // the part of the overlay that ends up on the base, in base bitmap coordinates.
+        Rect visible = new Rect(leftOffset, topOffset, leftOffset + overlayWidth, topOffset + overlayHeight);
 
-        if (mScale > 0) {
-            Bitmap overlayScaled = Bitmap.createScaledBitmap(mMergeBitmap, (int) (mBaseBitmap.getWidth() * mScale), (int) (mBaseBitmap.getHeight() * mScale), true);
+        if (overlayWidth <= 0 || overlayHeight <= 0 || !visible.intersect(0, 0, baseWidth, baseHeight)) {
+            // nothing to draw, the base is the merged bitmap as is.
+            stats.count(MergeStats.Path.OFF_CANVAS);
+            return baseBitmap;
+        }
 
-            int lockWidth = overlayScaled.getWidth();
-            int lockHeight = overlayScaled.getHeight();
+        boolean clipped = visible.width() < overlayWidth || visible.height() < overlayHeight;
+        stats.count(clipped ? MergeStats.Path.CLIPPED : MergeStats.Path.FULL);
 
-            int totalWidth = mBaseBitmap.getWidth();
-            int totalHeight = mBaseBitmap.getHeight();
+        Bitmap mutableBitmap;
+        Canvas canvas;
 
-            int startX = (totalWidth / 2) - (lockWidth / 2);
-            int startY = (totalHeight / 2) - (lockHeight / 2);
+        if (tracker != null) {
+            // draw the base into a pooled bitmap rather than allocating a copy of it.
+            Bitmap.Config config = rgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            mutableBitmap = tracker.obtain(baseWidth, baseHeight, config);
+            mutableBitmap.eraseColor(Color.TRANSPARENT);
+            canvas = new Canvas(mutableBitmap);
+            canvas.drawBitmap(baseBitmap, 0, 0, null);
+        } else {
+            Bitmap workingBitmap = Bitmap.createBitmap(baseBitmap);
+            mutableBitmap = workingBitmap.copy(Bitmap.Config.ARGB_8888, true);
+            canvas = new Canvas(mutableBitmap);
+        }
 
-            return mergeBitmaps(mBaseBitmap, mMergeBitmap, mScale, startX, startY);
+        boolean normal = overlayOrientation == ExifInterface.ORIENTATION_NORMAL || overlayOrientation == ExifInterface.ORIENTATION_UNDEFINED;
+        boolean blended = blendMode != BlendMode.NORMAL || opacity < 1f;
+
+        if (blended) {
+            // blended straight from the decoded bitmap too, the transfer mode does the blending while drawing.
+            OverlayPaint paint = OVERLAY_PAINT.get();
+            canvas.save();
+            canvas.clipRect(visible);
+            paint.draw(canvas, overlayBitmap, new OverlayTransform().set(overlayBitmap, overlayOrientation, overlayWidth, overlayHeight, leftOffset, topOffset),
+                    blendMode, opacity);
+            canvas.restore();
+            paint.release();
+        } else if (normal && clipped) {
+            drawVisiblePart(canvas, overlayBitmap, overlayWidth, overlayHeight, leftOffset, topOffset, visible);
         } else {
-            return mBaseBitmap;
+            // orient, scale and place the overlay in one transform, drawing straight from the decoded bitmap without a
+            // scaled copy. The clip keeps the off-canvas part from being rasterized at all.
+            canvas.save();
+            canvas.clipRect(visible);
+            canvas.drawBitmap(overlayBitmap, new OverlayTransform().set(overlayBitmap, overlayOrientation, overlayWidth, overlayHeight, leftOffset, topOffset),
+                    FILTER_PAINT.get());
+            canvas.restore();
         }
 
+        return mutableBitmap;
     }
 
-    private static Bitmap mergeBitmaps(Bitmap baseBitmap, Bitmap overlayBitmap, float scale, int leftOffset, int topOffset) {
+    /**
+     * @return true if the quality gate allows an RGB_565 merged bitmap, deciding on proxies of the bitmaps once per merge.
+     */
+    private boolean isRgb565Allowed(Bitmap overlayBitmap) {
 
-        if (scale > 0) {
-            Bitmap overlayScaled = Bitmap.createScaledBitmap(overlayBitmap, (int) (baseBitmap.getWidth() * scale), (int) (baseBitmap.getHeight() * scale), true);
+        if (mQualityGate == null || mTracker == null) {
+            return false;
+        }
 
-            Bitmap workingBitmap = Bitmap.createBitmap(baseBitmap);
-            Bitmap mutableBitmap = workingBitmap.copy(Bitmap.Config.ARGB_8888, true);
+        MergeSpec spec = getMergeSpec().normalized();
+        String key = ContentHash.of(ContentHash.of(mBaseBitmap), ContentHash.of(overlayBitmap), String.valueOf(mMergeBitmapOrientation), spec.toString());
 
+        QualityGate.Verdict verdict = mQualityGate.getVerdict(key);
+        if (verdict == null) {
 
-            Canvas canvas = new Canvas(mutableBitmap);
+            int width = mBaseBitmap.getWidth();
+            int height = mBaseBitmap.getHeight();
+            float factor = Math.min(1f, mQualityGate.getProxySize() / (float) Math.max(width, height));
 
-            canvas.drawBitmap(overlayScaled, leftOffset, topOffset, new Paint());
+            boolean swapped = BitmapDecoderTask.swapsDimensions(mMergeBitmapOrientation);
+            int overlayWidth = swapped ? overlayBitmap.getHeight() : overlayBitmap.getWidth();
+            int overlayHeight = swapped ? overlayBitmap.getWidth() : overlayBitmap.getHeight();
 
-            return mutableBitmap;
-        } else {
-            return baseBitmap;
+            ArgbImage base = toProxy(mBaseBitmap, ExifInterface.ORIENTATION_NORMAL, proxySize(width, factor), proxySize(height, factor));
+            ArgbImage overlay = toProxy(overlayBitmap, mMergeBitmapOrientation, proxySize(overlayWidth, factor), proxySize(overlayHeight, factor));
+            verdict = mQualityGate.evaluate(key, base, overlay, spec.scaledBy(base.getWidth() / (float) width));
         }
 
+        return verdict.isAllowed(FastPath.RGB_565);
+    }
+
+    /**
+     * @return the bitmap upright and scaled to the given size, as an image for the quality gate.
+     */
+    private static ArgbImage toProxy(Bitmap bitmap, int orientation, int width, int height) {
+
+        Bitmap proxy = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(proxy).drawBitmap(bitmap, new OverlayTransform().set(bitmap, orientation, width, height, 0, 0), FILTER_PAINT.get());
+
+        ArgbImage image = new ArgbImage(width, height);
+        proxy.getPixels(image.getPixels(), 0, width, 0, 0, width, height);
+        proxy.recycle();
+        return image;
+    }
+
+    private static int proxySize(int size, float factor) {
+        return Math.max(1, Math.round(size * factor));
+    }
+
+    /**
+     * Scales and draws only the source sub-rectangle of the overlay that covers the visible part, instead of scaling the
+     * whole overlay. The sub-rectangle has a pixel of margin so that filtering at the clip edges samples the same neighbours
+     * as the full scale would.
+     */
+    private static void drawVisiblePart(Canvas canvas, Bitmap overlayBitmap, int overlayWidth, int overlayHeight, int leftOffset, int topOffset,
+                                        Rect visible) {
+
+        float xRatio = overlayBitmap.getWidth() / (float) overlayWidth;
+        float yRatio = overlayBitmap.getHeight() / (float) overlayHeight;
+
+        Rect source = new Rect(
+                Math.max(0, (int) Math.floor((visible.left - leftOffset) * xRatio) - 1),
+                Math.max(0, (int) Math.floor((visible.top - topOffset) * yRatio) - 1),
+                Math.min(overlayBitmap.getWidth(), (int) Math.ceil((visible.right - leftOffset) * xRatio) + 1),
+                Math.min(overlayBitmap.getHeight(), (int) Math.ceil((visible.bottom - topOffset) * yRatio) + 1));
+
+        RectF destination = new RectF(
+                leftOffset + source.left / xRatio,
+                topOffset + source.top / yRatio,
+                leftOffset + source.right / xRatio,
+                topOffset + source.bottom / yRatio);
+
+        canvas.save();
+        canvas.clipRect(visible);
+        canvas.drawBitmap(overlayBitmap, source, destination, FILTER_PAINT.get());
+        canvas.restore();
     }
 
 }
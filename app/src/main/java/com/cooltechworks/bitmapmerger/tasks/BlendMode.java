@@ -0,0 +1,22 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+/**
+ * How the colors of the merge bitmap are combined with the colors of the base bitmap under it. The result is then
+ * composited source-over, so transparent parts of the merge bitmap leave the base bitmap as it is.
+ */
+public enum BlendMode {
+    /** the merge bitmap color as is. */
+    NORMAL,
+    /** base x merge, darkens - for stamps and watermarks on paper. */
+    MULTIPLY,
+    /** inverse of multiplying the inverses, lightens. */
+    SCREEN,
+    /** multiply on the dark parts of the base, screen on the light ones - keeps the contrast of the base. */
+    OVERLAY,
+    /** the darker of both. */
+    DARKEN,
+    /** the lighter of both. */
+    LIGHTEN,
+    /** base + merge, saturating. */
+    ADD,
+}
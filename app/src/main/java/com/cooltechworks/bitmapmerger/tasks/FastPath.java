@@ -0,0 +1,14 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+/**
+ * Lossy shortcuts of merging and showing merges, trading quality for speed and memory. Whether a shortcut is allowed for
+ * an image is decided by a {@link com.cooltechworks.bitmapmerger.raster.QualityGate}.
+ */
+public enum FastPath {
+    /** merged bitmap as RGB_565 - half the memory, banding on smooth gradients. */
+    RGB_565,
+    /** merge bitmap scaled without filtering - cheaper, aliasing on fine detail. */
+    NEAREST,
+    /** base and merge bitmap decoded at half the size and the merge shown scaled up - a quarter of the pixels, blurrier. */
+    HALF_SAMPLE,
+}
@@ -0,0 +1,264 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ImageHandle is a lazy reference to an image on disk (referenced with a Uri). Creating a handle does not decode anything,
+ * {@link #prefetchBounds(OnBoundsListener)} reads only the image header (dimensions, mime type and EXIF orientation), which is
+ * cheap enough to be done right after the image is picked.
+ *
+ * Pixels are decoded only when they are needed, through {@link #newDecoderTask(int, int)}, at the size the caller actually
+ * needs at that time.
+ */
+public class ImageHandle {
+
+    public interface OnBoundsListener {
+        void onBounds(ImageHandle handle);
+    }
+
+    private static final int HEADER_BUFFER_SIZE = 8 * 1024;
+    private static final int HEADER_MARK_LIMIT = 128 * 1024;
+
+    private final Uri mUri;
+    private final ContentResolver mResolver;
+
+    private volatile boolean mBoundsLoaded;
+    private volatile int mWidth, mHeight;
+    private volatile String mMimeType;
+    private volatile int mOrientation = ImageHeader.ORIENTATION_UNDEFINED;
+
+
+    public ImageHandle(Uri uri, ContentResolver resolver) {
+        this.mUri = uri;
+        this.mResolver = resolver;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return true if the bounds have been read by {@link #prefetchBounds(OnBoundsListener)}.
+     */
+    public boolean hasBounds() {
+        return mBoundsLoaded;
+    }
+
+    /**
+     * @return width of the source image in pixels, 0 if the bounds are not read yet or the image could not be read.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return height of the source image in pixels, 0 if the bounds are not read yet or the image could not be read.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return EXIF orientation of the image (one of the ExifInterface.ORIENTATION_ constants), ORIENTATION_UNDEFINED if unknown.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Reads the bounds and the orientation of the image in background without decoding the pixels.
+     * @param listener - listener called on the UI thread once the bounds are available, can be null.
+     */
+    public void prefetchBounds(final OnBoundsListener listener) {
+
+        new AsyncTask<Void, Void, Void>() {
+
+            @Override
+            protected Void doInBackground(Void... params) {
+                readBounds();
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (listener != null) {
+                    listener.onBounds(ImageHandle.this);
+                }
+            }
+        }.execute((Void[]) null);
+    }
+
+    /**
+     * Reads the bounds and the orientation of the image on the calling thread, unless already read.
+     */
+    void ensureBounds() {
+        if (!mBoundsLoaded) {
+            readBounds();
+        }
+    }
+
+    /**
+     * Creates a decoder for this image sampled for the required size. When the bounds are already known, the decoder skips
+     * its own bounds pass.
+     *
+     * @param reqWidth - required width of the decoded bitmap.
+     * @param reqHeight - required height of the decoded bitmap.
+     * @return a BitmapDecoderTask ready to be decoded once a listener is set.
+     */
+    public BitmapDecoderTask newDecoderTask(int reqWidth, int reqHeight) {
+
+        BitmapDecoderTask task = new BitmapDecoderTask()
+                .setDecodingImageReference(mUri, mResolver)
+                .setRequiredWidth(reqWidth)
+                .setRequiredHeight(reqHeight);
+
+        if (mBoundsLoaded && mWidth > 0 && mHeight > 0) {
+            task.setSourceBounds(mWidth, mHeight);
+        }
+
+        if (mBoundsLoaded) {
+            task.setSourceOrientation(mOrientation);
+        }
+
+        // jpegs have no alpha to lose if decoded as RGB_565.
+        task.setAllowRgb565("image/jpeg".equals(mMimeType));
+
+        return task;
+    }
+
+    /**
+     * Creates a decoder for this image as a merge bitmap, sampled for the size it is composited at. The orientation is not
+     * applied by the decoder, pass {@link BitmapDecoderTask#getOrientation()} on to the merger instead.
+     *
+     * @param spec - spec the decoded bitmap is going to be merged with.
+     * @param baseWidth - width of the base bitmap it is merged onto.
+     * @param baseHeight - height of the base bitmap it is merged onto.
+     * @return a BitmapDecoderTask ready to be decoded once a listener is set.
+     */
+    public BitmapDecoderTask newOverlayDecoderTask(MergeSpec spec, int baseWidth, int baseHeight) {
+        return newDecoderTask(1, 1)
+                .setMergeSpec(spec, baseWidth, baseHeight)
+                .setApplyOrientation(false);
+    }
+
+    /**
+     * Checks whether an already decoded merge bitmap of this image can be composited with the spec without losing detail,
+     * so that it needs to be decoded again only when the scale grows past what it was decoded for.
+     *
+     * @param decoded - bitmap previously decoded from this handle by {@link #newOverlayDecoderTask(MergeSpec, int, int)}.
+     * @param spec - spec the bitmap is going to be merged with.
+     * @param baseWidth - width of the base bitmap it is merged onto.
+     * @param baseHeight - height of the base bitmap it is merged onto.
+     * @return true if decoding again would not give a better bitmap.
+     */
+    public boolean isSufficient(Bitmap decoded, MergeSpec spec, int baseWidth, int baseHeight) {
+        int reqWidth = spec.getOverlayWidth(baseWidth);
+        int reqHeight = spec.getOverlayHeight(baseHeight);
+
+        // the overlay is decoded as stored, i.e. not yet rotated.
+        if (ImageHeader.swapsDimensions(mOrientation)) {
+            return isSufficient(decoded, reqHeight, reqWidth);
+        }
+
+        return isSufficient(decoded, reqWidth, reqHeight);
+    }
+
+    /**
+     * Checks whether an already decoded bitmap of this image can serve the required size, i.e. it is at least as large as
+     * required or it cannot be decoded any larger. Sizes are compared as stored, before orientation.
+     *
+     * @param decoded - bitmap previously decoded from this handle.
+     * @param reqWidth - required width.
+     * @param reqHeight - required height.
+     * @return true if decoding again would not give a better bitmap.
+     */
+    public boolean isSufficient(Bitmap decoded, int reqWidth, int reqHeight) {
+
+        if (decoded == null) {
+            return false;
+        }
+
+        int maxWidth = mWidth > 0 ? mWidth : Integer.MAX_VALUE;
+        int maxHeight = mHeight > 0 ? mHeight : Integer.MAX_VALUE;
+
+        return decoded.getWidth() >= Math.min(reqWidth, maxWidth)
+                && decoded.getHeight() >= Math.min(reqHeight, maxHeight);
+    }
+
+    private void readBounds() {
+
+        InputStream stream = null;
+
+        try {
+            stream = new BufferedInputStream(mResolver.openInputStream(mUri), HEADER_BUFFER_SIZE);
+            stream.mark(HEADER_MARK_LIMIT);
+
+            ImageHeader header = ImageHeader.read(stream);
+            mOrientation = header.orientation;
+
+            if (header.hasBounds()) {
+                mWidth = header.width;
+                mHeight = header.height;
+                mMimeType = "image/jpeg";
+            } else {
+                // not a jpeg, let the decoder read the bounds from the start of the same stream.
+                stream.reset();
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(stream, null, options);
+
+                mWidth = Math.max(options.outWidth, 0);
+                mHeight = Math.max(options.outHeight, 0);
+                mMimeType = options.outMimeType;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            BitmapDecoderTask.closeQuietly(stream);
+        }
+
+        if (mOrientation == ImageHeader.ORIENTATION_UNDEFINED) {
+            mOrientation = ImageHeader.fromDegrees(queryOrientation());
+        }
+
+        mBoundsLoaded = true;
+    }
+
+    private int queryOrientation() {
+
+        Cursor cursor = null;
+
+        try {
+            cursor = mResolver.query(mUri, new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        } catch (IllegalArgumentException e) {
+            // not a media store uri, the orientation column does not exist.
+        } catch (SecurityException e) {
+            // no permission for querying the provider.
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,215 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ImageHeader reads the dimensions and the EXIF orientation of a JPEG image by walking its markers up to the frame header,
+ * without decoding any pixel. Only the header segments are read, so the same stream can be reset and handed to the decoder
+ * afterwards.
+ *
+ * Orientation values are the EXIF ones (1 to 8) as in {@link android.media.ExifInterface}, {@link #ORIENTATION_UNDEFINED} when
+ * the image does not carry one.
+ */
+final class ImageHeader {
+
+    static final int ORIENTATION_UNDEFINED = 0;
+    static final int ORIENTATION_NORMAL = 1;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private static final byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    final int width;
+    final int height;
+    final int orientation;
+
+    private ImageHeader(int width, int height, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    /**
+     * @return true if the dimensions were found in the header.
+     */
+    boolean hasBounds() {
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * @param orientation - EXIF orientation.
+     * @return true if the orientation swaps the width and height of the image (rotations by 90 and 270 degrees, transpose
+     * and transverse).
+     */
+    static boolean swapsDimensions(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * @param degrees - clockwise rotation in degrees, as stored in the media store.
+     * @return the equivalent EXIF orientation.
+     */
+    static int fromDegrees(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Reads the header of the image. Reading stops at the frame header, so callers relying on mark/reset should mark
+     * generously (EXIF segments can be up to 64KB).
+     *
+     * @param stream - stream positioned at the start of the image.
+     * @return the header, with no bounds and undefined orientation if the image is not a JPEG or the header is malformed.
+     * @throws IOException if reading the stream fails.
+     */
+    static ImageHeader read(InputStream stream) throws IOException {
+
+        DataInputStream in = new DataInputStream(stream);
+
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+                return unknown();
+            }
+
+            int orientation = ORIENTATION_UNDEFINED;
+
+            while (true) {
+
+                int marker = in.readUnsignedByte();
+                if (marker != 0xFF) {
+                    return new ImageHeader(0, 0, orientation);
+                }
+
+                // markers may be preceded by any number of fill bytes.
+                while (marker == 0xFF) {
+                    marker = in.readUnsignedByte();
+                }
+
+                if (marker == MARKER_EOI || marker == MARKER_SOS) {
+                    return new ImageHeader(0, 0, orientation);
+                }
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return new ImageHeader(0, 0, orientation);
+                }
+
+                if (isStartOfFrame(marker)) {
+                    in.readUnsignedByte(); // sample precision
+                    int height = in.readUnsignedShort();
+                    int width = in.readUnsignedShort();
+                    return new ImageHeader(width, height, orientation);
+                }
+
+                if (marker == MARKER_APP1 && orientation == ORIENTATION_UNDEFINED) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    orientation = parseExifOrientation(segment);
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (EOFException e) {
+            return unknown();
+        }
+    }
+
+    private static ImageHeader unknown() {
+        return new ImageHeader(0, 0, ORIENTATION_UNDEFINED);
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC).
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static int parseExifOrientation(byte[] segment) {
+
+        int tiff = EXIF_IDENTIFIER.length;
+
+        if (segment.length < tiff + 8) {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        for (int i = 0; i < EXIF_IDENTIFIER.length; i++) {
+            if (segment[i] != EXIF_IDENTIFIER[i]) {
+                return ORIENTATION_UNDEFINED;
+            }
+        }
+
+        boolean littleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        int ifdOffset = tiff + readInt(segment, tiff + 4, littleEndian);
+        if (ifdOffset < tiff || ifdOffset + 2 > segment.length) {
+            return ORIENTATION_UNDEFINED;
+        }
+
+        int entries = readShort(segment, ifdOffset, littleEndian);
+
+        for (int i = 0; i < entries; i++) {
+
+            int entry = ifdOffset + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                break;
+            }
+
+            if (readShort(segment, entry, littleEndian) == TAG_ORIENTATION
+                    && readShort(segment, entry + 2, littleEndian) == TYPE_SHORT) {
+                int orientation = readShort(segment, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : ORIENTATION_UNDEFINED;
+            }
+        }
+
+        return ORIENTATION_UNDEFINED;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        int b2 = data[offset + 2] & 0xFF;
+        int b3 = data[offset + 3] & 0xFF;
+        return littleEndian
+                ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+                : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+    }
+}
@@ -0,0 +1,395 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+/**
+ * MergeSpec describes how the merge bitmap is placed over the base bitmap - the merge option along with its scale, angle and
+ * offsets - independently of the bitmaps themselves.
+ *
+ * It holds the placement geometry used by {@link BitmapMergerTask}, so anything that needs to know where and how large the
+ * merge bitmap ends up (for example the decoder sampling the merge bitmap for its composited size) computes it the same way.
+ *
+ * Centered and angled placements put the pivot of the merge bitmap (its center by default) on a point of the base bitmap:
+ * the anchor (the center by default) itself, or the point at the radius and angle from the anchor. The radius is a fraction
+ * of the base width (a quarter by default) or a fixed number of pixels. Angles are whole degrees, so their sine and cosine
+ * come from tables instead of being computed for every placement.
+ *
+ * The merge bitmap is blended with the base bitmap by a {@link BlendMode} (normal by default) at an opacity (1 by default).
+ */
+public final class MergeSpec {
+
+    private final BitmapMergerTask.BitmapMergeOptions mMergeOptions;
+    private final float mScale;
+    private final int mAngle;
+    private final int mLeftOffset;
+    private final int mTopOffset;
+    private final float mRadius;
+    private final boolean mRadiusInPixels;
+    private final float mAnchorX, mAnchorY;
+    private final float mPivotX, mPivotY;
+    private final BlendMode mBlendMode;
+    private final float mOpacity;
+
+    private static final float DEFAULT_RADIUS = 0.25f;
+    private static final float DEFAULT_ANCHOR = 0.5f;
+    private static final float DEFAULT_PIVOT = 0.5f;
+
+    private static final double[] COS = new double[360];
+    private static final double[] SIN = new double[360];
+
+    static {
+        for (int degrees = 0; degrees < 360; degrees++) {
+            COS[degrees] = Math.cos(Math.toRadians(degrees));
+            SIN[degrees] = Math.sin(Math.toRadians(degrees));
+        }
+    }
+
+
+    private MergeSpec(BitmapMergerTask.BitmapMergeOptions mergeOptions, float scale, int angle, int leftOffset, int topOffset) {
+        this(mergeOptions, scale, angle, leftOffset, topOffset, DEFAULT_RADIUS, false,
+                DEFAULT_ANCHOR, DEFAULT_ANCHOR, DEFAULT_PIVOT, DEFAULT_PIVOT, BlendMode.NORMAL, 1f);
+    }
+
+    private MergeSpec(BitmapMergerTask.BitmapMergeOptions mergeOptions, float scale, int angle, int leftOffset, int topOffset,
+                      float radius, boolean radiusInPixels, float anchorX, float anchorY, float pivotX, float pivotY,
+                      BlendMode blendMode, float opacity) {
+        this.mMergeOptions = mergeOptions;
+        this.mScale = scale;
+        this.mAngle = angle;
+        this.mLeftOffset = leftOffset;
+        this.mTopOffset = topOffset;
+        this.mRadius = radius;
+        this.mRadiusInPixels = radiusInPixels;
+        this.mAnchorX = anchorX;
+        this.mAnchorY = anchorY;
+        this.mPivotX = pivotX;
+        this.mPivotY = pivotY;
+        this.mBlendMode = blendMode;
+        this.mOpacity = opacity;
+    }
+
+    /**
+     * @param scale - scale of the merge bitmap relative to the base bitmap.
+     * @return spec for merging at the center of the base bitmap.
+     */
+    public static MergeSpec atCenter(float scale) {
+        return new MergeSpec(BitmapMergerTask.BitmapMergeOptions.MERGE_AT_CENTER, scale, 0, 0, 0);
+    }
+
+    /**
+     * @param scale - scale of the merge bitmap relative to the base bitmap.
+     * @param angle - angle off from the base line from center to mid point on the right edge, in degrees.
+     * @return spec for merging at an angle away from the center of the base bitmap.
+     */
+    public static MergeSpec atAngle(float scale, int angle) {
+        return new MergeSpec(BitmapMergerTask.BitmapMergeOptions.MERGE_AT_ANGLE_OFF, scale, angle, 0, 0);
+    }
+
+    /**
+     * @param scale - scale of the merge bitmap relative to the base bitmap.
+     * @param leftOffset - pixel offsets from left.
+     * @param topOffset - pixel offsets from top.
+     * @return spec for merging with offsets from the top left corner of the base bitmap.
+     */
+    public static MergeSpec fromTopLeft(float scale, int leftOffset, int topOffset) {
+        return new MergeSpec(BitmapMergerTask.BitmapMergeOptions.MERGE_FROM_TOP_LEFT, scale, 0, leftOffset, topOffset);
+    }
+
+    /**
+     * @param fraction - radius of angled placements as a fraction of the base width.
+     * @return a copy of this spec with the given radius.
+     */
+    public MergeSpec withRadius(float fraction) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, fraction, false,
+                mAnchorX, mAnchorY, mPivotX, mPivotY, mBlendMode, mOpacity);
+    }
+
+    /**
+     * @param pixels - radius of angled placements in pixels of the base bitmap, whatever its size.
+     * @return a copy of this spec with the given radius.
+     */
+    public MergeSpec withRadiusPixels(int pixels) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, pixels, true,
+                mAnchorX, mAnchorY, mPivotX, mPivotY, mBlendMode, mOpacity);
+    }
+
+    /**
+     * @param x - x of the point centered and angled placements are measured from, as a fraction of the base width.
+     * @param y - y of that point as a fraction of the base height.
+     * @return a copy of this spec with the given anchor.
+     */
+    public MergeSpec withAnchor(float x, float y) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, mRadius, mRadiusInPixels,
+                x, y, mPivotX, mPivotY, mBlendMode, mOpacity);
+    }
+
+    /**
+     * @param x - x of the point of the merge bitmap put on the placement point, as a fraction of the composited width.
+     * @param y - y of that point as a fraction of the composited height.
+     * @return a copy of this spec with the given pivot.
+     */
+    public MergeSpec withPivot(float x, float y) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, mRadius, mRadiusInPixels,
+                mAnchorX, mAnchorY, x, y, mBlendMode, mOpacity);
+    }
+
+    /**
+     * @param blendMode - how the merge bitmap is blended with the base bitmap.
+     * @return a copy of this spec with the given blend mode.
+     */
+    public MergeSpec withBlendMode(BlendMode blendMode) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, mRadius, mRadiusInPixels,
+                mAnchorX, mAnchorY, mPivotX, mPivotY, blendMode, mOpacity);
+    }
+
+    /**
+     * @param opacity - opacity the merge bitmap is drawn with, from 0 (invisible) to 1 (as is).
+     * @return a copy of this spec with the given opacity.
+     */
+    public MergeSpec withOpacity(float opacity) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, mRadius, mRadiusInPixels,
+                mAnchorX, mAnchorY, mPivotX, mPivotY, mBlendMode, opacity);
+    }
+
+    /**
+     * @param factor - factor the base bitmap is scaled by, e.g. 0.5 for a base decoded at half the size.
+     * @return a spec placing the merge bitmap the same over the scaled base - offsets and radii in pixels are scaled too.
+     */
+    public MergeSpec scaledBy(float factor) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, Math.round(mLeftOffset * factor), Math.round(mTopOffset * factor),
+                mRadiusInPixels ? mRadius * factor : mRadius, mRadiusInPixels, mAnchorX, mAnchorY, mPivotX, mPivotY, mBlendMode, mOpacity);
+    }
+
+    /**
+     * Creates a spec with every field given, for interpolating between specs without a copy per field.
+     */
+    static MergeSpec of(BitmapMergerTask.BitmapMergeOptions mergeOptions, float scale, int angle, int leftOffset, int topOffset,
+                        float radius, boolean radiusInPixels, float anchorX, float anchorY, float pivotX, float pivotY,
+                        BlendMode blendMode, float opacity) {
+        return new MergeSpec(mergeOptions, scale, angle, leftOffset, topOffset, radius, radiusInPixels, anchorX, anchorY, pivotX, pivotY,
+                blendMode, opacity);
+    }
+
+    /**
+     * @param other - spec to take the radius, anchor and pivot from.
+     * @return a copy of this spec placed relative to the anchor and pivot of the other one.
+     */
+    MergeSpec withPlacementOf(MergeSpec other) {
+        return new MergeSpec(mMergeOptions, mScale, mAngle, mLeftOffset, mTopOffset, other.mRadius, other.mRadiusInPixels,
+                other.mAnchorX, other.mAnchorY, other.mPivotX, other.mPivotY, mBlendMode, mOpacity);
+    }
+
+    public BitmapMergerTask.BitmapMergeOptions getMergeOptions() {
+        return mMergeOptions;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public int getAngle() {
+        return mAngle;
+    }
+
+    public int getLeftOffset() {
+        return mLeftOffset;
+    }
+
+    public int getTopOffset() {
+        return mTopOffset;
+    }
+
+    /**
+     * @return radius of angled placements, a fraction of the base width or pixels if {@link #isRadiusInPixels()}.
+     */
+    public float getRadius() {
+        return mRadius;
+    }
+
+    public boolean isRadiusInPixels() {
+        return mRadiusInPixels;
+    }
+
+    public float getAnchorX() {
+        return mAnchorX;
+    }
+
+    public float getAnchorY() {
+        return mAnchorY;
+    }
+
+    public float getPivotX() {
+        return mPivotX;
+    }
+
+    public float getPivotY() {
+        return mPivotY;
+    }
+
+    public BlendMode getBlendMode() {
+        return mBlendMode;
+    }
+
+    public float getOpacity() {
+        return mOpacity;
+    }
+
+    /**
+     * @return true if the merge bitmap is drawn as is, source-over at full opacity.
+     */
+    public boolean hasDefaultBlending() {
+        return mBlendMode == BlendMode.NORMAL && mOpacity >= 1f;
+    }
+
+    /**
+     * @return true if the merge bitmap is visible at all, i.e. the scale and the opacity are positive.
+     */
+    public boolean hasOverlay() {
+        return mScale > 0 && mOpacity > 0;
+    }
+
+    /**
+     * @param baseWidth - width of the base bitmap.
+     * @return width the merge bitmap is composited at.
+     */
+    public int getOverlayWidth(int baseWidth) {
+        return (int) (baseWidth * mScale);
+    }
+
+    /**
+     * @param baseHeight - height of the base bitmap.
+     * @return height the merge bitmap is composited at.
+     */
+    public int getOverlayHeight(int baseHeight) {
+        return (int) (baseHeight * mScale);
+    }
+
+    /**
+     * @param baseWidth - width of the base bitmap.
+     * @param baseHeight - height of the base bitmap.
+     * @return x coordinate of the top left corner of the composited merge bitmap within the base bitmap.
+     */
+    public int getOverlayLeft(int baseWidth, int baseHeight) {
+
+        int overlayWidth = getOverlayWidth(baseWidth);
+
+        switch (mMergeOptions) {
+            case MERGE_AT_ANGLE_OFF:
+                return (int) (getRadiusPixels(baseWidth) * COS[getDegrees()] + (int) (baseWidth * mAnchorX)) - (int) (overlayWidth * mPivotX);
+            case MERGE_FROM_TOP_LEFT:
+                return mLeftOffset;
+            default:
+                return (int) (baseWidth * mAnchorX) - (int) (overlayWidth * mPivotX);
+        }
+    }
+
+    /**
+     * @param baseWidth - width of the base bitmap.
+     * @param baseHeight - height of the base bitmap.
+     * @return y coordinate of the top left corner of the composited merge bitmap within the base bitmap.
+     */
+    public int getOverlayTop(int baseWidth, int baseHeight) {
+
+        int overlayHeight = getOverlayHeight(baseHeight);
+
+        switch (mMergeOptions) {
+            case MERGE_AT_ANGLE_OFF:
+                return (int) (getRadiusPixels(baseWidth) * SIN[getDegrees()] + (int) (baseHeight * mAnchorY)) - (int) (overlayHeight * mPivotY);
+            case MERGE_FROM_TOP_LEFT:
+                return mTopOffset;
+            default:
+                return (int) (baseHeight * mAnchorY) - (int) (overlayHeight * mPivotY);
+        }
+    }
+
+    private int getRadiusPixels(int baseWidth) {
+        return mRadiusInPixels ? (int) mRadius : (int) (baseWidth * mRadius);
+    }
+
+    private int getDegrees() {
+        return ((mAngle % 360) + 360) % 360;
+    }
+
+    /**
+     * @return an equal spec for every placement that is the same - angles are brought within 0 to 359 degrees.
+     */
+    public MergeSpec normalized() {
+
+        if (mMergeOptions == BitmapMergerTask.BitmapMergeOptions.MERGE_AT_ANGLE_OFF && (mAngle < 0 || mAngle >= 360)) {
+            return new MergeSpec(mMergeOptions, mScale, getDegrees(), mLeftOffset, mTopOffset, mRadius, mRadiusInPixels,
+                    mAnchorX, mAnchorY, mPivotX, mPivotY, mBlendMode, mOpacity);
+        }
+
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof MergeSpec)) {
+            return false;
+        }
+
+        MergeSpec other = (MergeSpec) o;
+
+        return mMergeOptions == other.mMergeOptions
+                && Float.floatToIntBits(mScale) == Float.floatToIntBits(other.mScale)
+                && mAngle == other.mAngle
+                && mLeftOffset == other.mLeftOffset
+                && mTopOffset == other.mTopOffset
+                && Float.floatToIntBits(mRadius) == Float.floatToIntBits(other.mRadius)
+                && mRadiusInPixels == other.mRadiusInPixels
+                && Float.floatToIntBits(mAnchorX) == Float.floatToIntBits(other.mAnchorX)
+                && Float.floatToIntBits(mAnchorY) == Float.floatToIntBits(other.mAnchorY)
+                && Float.floatToIntBits(mPivotX) == Float.floatToIntBits(other.mPivotX)
+                && Float.floatToIntBits(mPivotY) == Float.floatToIntBits(other.mPivotY)
+                && mBlendMode == other.mBlendMode
+                && Float.floatToIntBits(mOpacity) == Float.floatToIntBits(other.mOpacity);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mMergeOptions.hashCode();
+        result = 31 * result + Float.floatToIntBits(mScale);
+        result = 31 * result + mAngle;
+        result = 31 * result + mLeftOffset;
+        result = 31 * result + mTopOffset;
+        result = 31 * result + Float.floatToIntBits(mRadius);
+        result = 31 * result + (mRadiusInPixels ? 1 : 0);
+        result = 31 * result + Float.floatToIntBits(mAnchorX);
+        result = 31 * result + Float.floatToIntBits(mAnchorY);
+        result = 31 * result + Float.floatToIntBits(mPivotX);
+        result = 31 * result + Float.floatToIntBits(mPivotY);
+        result = 31 * result + mBlendMode.hashCode();
+        result = 31 * result + Float.floatToIntBits(mOpacity);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder("MergeSpec{").append(mMergeOptions).append(", scale=").append(mScale)
+                .append(", angle=").append(mAngle).append(", offsets=").append(mLeftOffset).append(',').append(mTopOffset);
+
+        // the default placement and blending keep the short form, which also serves as the key of cached merge results.
+        if (mRadius != DEFAULT_RADIUS || mRadiusInPixels) {
+            builder.append(", radius=").append(mRadius).append(mRadiusInPixels ? "px" : "");
+        }
+        if (mAnchorX != DEFAULT_ANCHOR || mAnchorY != DEFAULT_ANCHOR) {
+            builder.append(", anchor=").append(mAnchorX).append(',').append(mAnchorY);
+        }
+        if (mPivotX != DEFAULT_PIVOT || mPivotY != DEFAULT_PIVOT) {
+            builder.append(", pivot=").append(mPivotX).append(',').append(mPivotY);
+        }
+        if (mBlendMode != BlendMode.NORMAL) {
+            builder.append(", blend=").append(mBlendMode);
+        }
+        if (mOpacity != 1f) {
+            builder.append(", opacity=").append(mOpacity);
+        }
+
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MergeStats counts which path the merges took - whether the merge bitmap was drawn fully, clipped to its visible part, or
+ * skipped as it was entirely off the base bitmap - for checking that clipping kicks in where it is expected to.
+ *
+ * It also records the decisions of the quality gate, how often each {@link FastPath} was allowed or refused and the score
+ * it was last decided on.
+ */
+public final class MergeStats {
+
+    public enum Path {
+        /** merge bitmap fully within the base bitmap. */
+        FULL,
+        /** merge bitmap partly off the base bitmap, only the visible part drawn. */
+        CLIPPED,
+        /** merge bitmap entirely off the base bitmap or smaller than a pixel, nothing drawn. */
+        OFF_CANVAS,
+        /** scale of zero or less, nothing drawn. */
+        NO_OVERLAY,
+    }
+
+    private static final MergeStats DEFAULT = new MergeStats();
+
+    private final AtomicLong[] mCounts = new AtomicLong[Path.values().length];
+    private final AtomicLong[] mAllowed = new AtomicLong[FastPath.values().length];
+    private final AtomicLong[] mRefused = new AtomicLong[FastPath.values().length];
+    // Double bits of the last score, NaN while none.
+    private final AtomicLong[] mLastScores = new AtomicLong[FastPath.values().length];
+
+
+    public MergeStats() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = new AtomicLong();
+        }
+        for (int i = 0; i < mAllowed.length; i++) {
+            mAllowed[i] = new AtomicLong();
+            mRefused[i] = new AtomicLong();
+            mLastScores[i] = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+        }
+    }
+
+    /**
+     * @return the stats counted by {@link BitmapMergerTask} and the raster merger.
+     */
+    public static MergeStats getDefault() {
+        return DEFAULT;
+    }
+
+    public void count(Path path) {
+        mCounts[path.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * @param path - merge path.
+     * @return number of merges that took the path.
+     */
+    public long get(Path path) {
+        return mCounts[path.ordinal()].get();
+    }
+
+    /**
+     * Records a decision of the quality gate.
+     * @param path - the fast path decided on.
+     * @param score - perceptual score of the fast path against the exact merge.
+     * @param allowed - true if the fast path was allowed.
+     */
+    public void recordQuality(FastPath path, double score, boolean allowed) {
+        int index = path.ordinal();
+        (allowed ? mAllowed : mRefused)[index].incrementAndGet();
+        mLastScores[index].set(Double.doubleToLongBits(score));
+    }
+
+    /**
+     * @return number of times the fast path was allowed.
+     */
+    public long getAllowed(FastPath path) {
+        return mAllowed[path.ordinal()].get();
+    }
+
+    /**
+     * @return number of times the fast path was refused.
+     */
+    public long getRefused(FastPath path) {
+        return mRefused[path.ordinal()].get();
+    }
+
+    /**
+     * @return score the fast path was last decided on, NaN if never.
+     */
+    public double getLastScore(FastPath path) {
+        return Double.longBitsToDouble(mLastScores[path.ordinal()].get());
+    }
+
+    public void reset() {
+        for (AtomicLong count : mCounts) {
+            count.set(0);
+        }
+        for (int i = 0; i < mAllowed.length; i++) {
+            mAllowed[i].set(0);
+            mRefused[i].set(0);
+            mLastScores[i].set(Double.doubleToLongBits(Double.NaN));
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder("MergeStats{");
+        for (Path path : Path.values()) {
+            if (path.ordinal() > 0) {
+                builder.append(", ");
+            }
+            builder.append(path).append('=').append(get(path));
+        }
+        for (FastPath path : FastPath.values()) {
+            if (getAllowed(path) + getRefused(path) > 0) {
+                builder.append(", ").append(path).append("={allowed=").append(getAllowed(path)).append(", refused=")
+                        .append(getRefused(path)).append(", score=").append(getLastScore(path)).append('}');
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,129 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MergeTrack animates a {@link MergeSpec} - keyframes at positions from 0 to 1, with the scale, angle and offsets of the
+ * frames in between interpolated linearly. All keyframes must use the same merge option. The opacity is interpolated too,
+ * the blend mode is the one of the keyframe before.
+ *
+ * For example, a full turn of the merge bitmap around the center,
+ *
+ * <pre>
+ * new MergeTrack()
+ *         .addKeyframe(0f, MergeSpec.atAngle(0.3f, 0))
+ *         .addKeyframe(1f, MergeSpec.atAngle(0.3f, 360));
+ * </pre>
+ */
+public class MergeTrack {
+
+    private final List<Float> mPositions = new ArrayList<Float>();
+    private final List<MergeSpec> mSpecs = new ArrayList<MergeSpec>();
+
+
+    /**
+     * Adds a keyframe, replacing the one at the same position if any.
+     * @param position - position of the keyframe, 0 to 1.
+     * @param spec - spec at that position.
+     * @return the related MergeTrack
+     */
+    public MergeTrack addKeyframe(float position, MergeSpec spec) {
+
+        if (position < 0 || position > 1) {
+            throw new IllegalArgumentException("Keyframe position must be within 0 and 1, got " + position);
+        }
+
+        if (!mSpecs.isEmpty() && mSpecs.get(0).getMergeOptions() != spec.getMergeOptions()) {
+            throw new IllegalArgumentException("Keyframes must share the merge option " + mSpecs.get(0).getMergeOptions());
+        }
+
+        int index = 0;
+        while (index < mPositions.size() && mPositions.get(index) < position) {
+            index++;
+        }
+
+        if (index < mPositions.size() && mPositions.get(index) == position) {
+            mSpecs.set(index, spec);
+        } else {
+            mPositions.add(index, position);
+            mSpecs.add(index, spec);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return number of keyframes.
+     */
+    public int getKeyframeCount() {
+        return mSpecs.size();
+    }
+
+    /**
+     * @param position - position on the track, 0 to 1. Positions before the first or after the last keyframe hold that keyframe.
+     * @return the spec at the position.
+     */
+    public MergeSpec getSpec(float position) {
+
+        if (mSpecs.isEmpty()) {
+            throw new IllegalStateException("MergeTrack has no keyframes");
+        }
+
+        int last = mSpecs.size() - 1;
+
+        if (position <= mPositions.get(0)) {
+            return mSpecs.get(0);
+        }
+
+        if (position >= mPositions.get(last)) {
+            return mSpecs.get(last);
+        }
+
+        int next = 1;
+        while (mPositions.get(next) < position) {
+            next++;
+        }
+
+        float from = mPositions.get(next - 1);
+        float fraction = (position - from) / (mPositions.get(next) - from);
+
+        return interpolate(mSpecs.get(next - 1), mSpecs.get(next), fraction);
+    }
+
+    /**
+     * @param frame - frame index, 0 to frameCount - 1.
+     * @param frameCount - number of frames spanning the track; the first and last frame are at the first and last keyframe.
+     * @return the spec of the frame.
+     */
+    public MergeSpec getFrameSpec(int frame, int frameCount) {
+        return getSpec(frameCount > 1 ? frame / (float) (frameCount - 1) : 0f);
+    }
+
+    private static MergeSpec interpolate(MergeSpec from, MergeSpec to, float fraction) {
+
+        // a radius given as a fraction on one keyframe and in pixels on the other is kept as the first one.
+        boolean radiusInPixels = from.isRadiusInPixels();
+        float radius = from.getRadius();
+        if (radiusInPixels == to.isRadiusInPixels()) {
+            radius = lerp(radius, to.getRadius(), fraction);
+            if (radiusInPixels) {
+                radius = Math.round(radius);
+            }
+        }
+
+        return MergeSpec.of(from.getMergeOptions(),
+                lerp(from.getScale(), to.getScale(), fraction),
+                Math.round(lerp(from.getAngle(), to.getAngle(), fraction)),
+                Math.round(lerp(from.getLeftOffset(), to.getLeftOffset(), fraction)),
+                Math.round(lerp(from.getTopOffset(), to.getTopOffset(), fraction)),
+                radius, radiusInPixels,
+                lerp(from.getAnchorX(), to.getAnchorX(), fraction), lerp(from.getAnchorY(), to.getAnchorY(), fraction),
+                lerp(from.getPivotX(), to.getPivotX(), fraction), lerp(from.getPivotY(), to.getPivotY(), fraction),
+                from.getBlendMode(), lerp(from.getOpacity(), to.getOpacity(), fraction));
+    }
+
+    private static float lerp(float from, float to, float fraction) {
+        return from + (to - from) * fraction;
+    }
+}
@@ -0,0 +1,162 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.ComposeShader;
+import android.graphics.LightingColorFilter;
+import android.graphics.LinearGradient;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Shader;
+import android.graphics.Xfermode;
+import android.os.Build;
+
+/**
+ * OverlayPaint draws the merge bitmap over the base bitmap with a {@link BlendMode} and an opacity, straight from the
+ * bitmap with a transfer mode - no blended copy of the merge bitmap is made.
+ *
+ * The PorterDuff darken, lighten, screen, overlay and add modes blend the same as the W3C blend modes, so they are used as
+ * they are. PorterDuff multiply however multiplies the alpha too, so transparent parts of the merge bitmap would erase the
+ * base. Multiply is drawn with the merge bitmap composed over white instead (white being neutral for multiplying), the
+ * opacity applied by a color filter fading it towards white. This is exact over an opaque base.
+ *
+ * Overlay and add are only there from Honeycomb, below that they are drawn as normal.
+ *
+ * An instance reuses its paint and transfer modes, so it can be used from onDraw() without allocating as long as the bitmap
+ * and opacity stay the same.
+ */
+public class OverlayPaint {
+
+    private static final int WHITE = 0xffffffff;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Xfermode[] mXfermodes = new Xfermode[BlendMode.values().length];
+
+    private Shader mWhiteShader;
+    private Bitmap mShaderBitmap;
+    private Shader mMultiplyShader;
+    private int mFilterAlpha = 255;
+    private ColorFilter mOpacityFilter;
+
+
+    /**
+     * @param canvas - canvas holding the base bitmap.
+     * @param bitmap - merge bitmap.
+     * @param matrix - matrix placing the merge bitmap over the base bitmap, see {@link OverlayTransform}.
+     * @param mode - how the merge bitmap is blended with the base bitmap.
+     * @param opacity - opacity of the merge bitmap, from 0 to 1.
+     */
+    public void draw(Canvas canvas, Bitmap bitmap, Matrix matrix, BlendMode mode, float opacity) {
+
+        int alpha = Math.round(Math.max(0f, Math.min(1f, opacity)) * 255);
+
+        if (mode == BlendMode.MULTIPLY) {
+
+            mPaint.setAlpha(255);
+            mPaint.setShader(getMultiplyShader(bitmap));
+            mPaint.setColorFilter(getOpacityFilter(alpha));
+            mPaint.setXfermode(getXfermode(mode));
+
+            int saveCount = canvas.save();
+            canvas.concat(matrix);
+            canvas.drawRect(0, 0, bitmap.getWidth(), bitmap.getHeight(), mPaint);
+            canvas.restoreToCount(saveCount);
+        } else {
+
+            mPaint.setAlpha(alpha);
+            mPaint.setShader(null);
+            mPaint.setColorFilter(null);
+            mPaint.setXfermode(getXfermode(mode));
+
+            canvas.drawBitmap(bitmap, matrix, mPaint);
+        }
+    }
+
+    /**
+     * Lets go of the merge bitmap held by the multiply shader, so that it can be recycled or pooled.
+     */
+    public void release() {
+        mShaderBitmap = null;
+        mMultiplyShader = null;
+        mPaint.setShader(null);
+    }
+
+    private Shader getMultiplyShader(Bitmap bitmap) {
+
+        if (bitmap != mShaderBitmap || mMultiplyShader == null) {
+            if (mWhiteShader == null) {
+                mWhiteShader = new LinearGradient(0, 0, 1, 0, WHITE, WHITE, Shader.TileMode.CLAMP);
+            }
+            BitmapShader bitmapShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mMultiplyShader = new ComposeShader(mWhiteShader, bitmapShader, PorterDuff.Mode.SRC_OVER);
+            mShaderBitmap = bitmap;
+        }
+
+        return mMultiplyShader;
+    }
+
+    /**
+     * @return filter mixing the colors with white by the opacity, c * alpha + 255 * (1 - alpha), null at full opacity.
+     */
+    private ColorFilter getOpacityFilter(int alpha) {
+
+        if (alpha == 255) {
+            return null;
+        }
+
+        if (alpha != mFilterAlpha || mOpacityFilter == null) {
+            mOpacityFilter = new LightingColorFilter(gray(alpha), gray(255 - alpha));
+            mFilterAlpha = alpha;
+        }
+
+        return mOpacityFilter;
+    }
+
+    private Xfermode getXfermode(BlendMode mode) {
+
+        int index = mode.ordinal();
+        if (mXfermodes[index] == null && mode != BlendMode.NORMAL) {
+            PorterDuff.Mode porterDuffMode = getPorterDuffMode(mode);
+            if (porterDuffMode != null) {
+                mXfermodes[index] = new PorterDuffXfermode(porterDuffMode);
+            }
+        }
+
+        return mXfermodes[index];
+    }
+
+    /**
+     * @return the PorterDuff mode blending like the given mode, null for plain source-over.
+     */
+    private static PorterDuff.Mode getPorterDuffMode(BlendMode mode) {
+        switch (mode) {
+            case MULTIPLY:
+                return PorterDuff.Mode.MULTIPLY;
+            case SCREEN:
+                return PorterDuff.Mode.SCREEN;
+            case DARKEN:
+                return PorterDuff.Mode.DARKEN;
+            case LIGHTEN:
+                return PorterDuff.Mode.LIGHTEN;
+            case OVERLAY:
+            case ADD:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? getHoneycombMode(mode) : null;
+            default:
+                return null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static PorterDuff.Mode getHoneycombMode(BlendMode mode) {
+        return mode == BlendMode.OVERLAY ? PorterDuff.Mode.OVERLAY : PorterDuff.Mode.ADD;
+    }
+
+    private static int gray(int value) {
+        return 0xff000000 | (value << 16) | (value << 8) | value;
+    }
+}
@@ -0,0 +1,54 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * OverlayTransform computes the matrix that draws the merge bitmap, as decoded, at its place over the base bitmap - orienting,
+ * scaling and translating it in one transform, the same way {@link BitmapMergerTask} places it.
+ *
+ * An instance reuses its matrix, so it can be used from onDraw() without allocating.
+ */
+public class OverlayTransform {
+
+    private final Matrix mMatrix = new Matrix();
+    private final RectF mBounds = new RectF();
+
+
+    /**
+     * @param overlayBitmap - merge bitmap as decoded.
+     * @param orientation - EXIF orientation of the merge bitmap.
+     * @param spec - spec of the merge.
+     * @param baseWidth - width of the base bitmap.
+     * @param baseHeight - height of the base bitmap.
+     * @return matrix mapping the merge bitmap into base bitmap coordinates. Valid until the next call.
+     */
+    public Matrix set(Bitmap overlayBitmap, int orientation, MergeSpec spec, int baseWidth, int baseHeight) {
+        return set(overlayBitmap, orientation, spec.getOverlayWidth(baseWidth), spec.getOverlayHeight(baseHeight),
+                spec.getOverlayLeft(baseWidth, baseHeight), spec.getOverlayTop(baseWidth, baseHeight));
+    }
+
+    /**
+     * @param overlayBitmap - merge bitmap as decoded.
+     * @param orientation - EXIF orientation of the merge bitmap.
+     * @param width - width the merge bitmap is drawn at.
+     * @param height - height the merge bitmap is drawn at.
+     * @param leftOffset - left of the merge bitmap in base bitmap coordinates.
+     * @param topOffset - top of the merge bitmap in base bitmap coordinates.
+     * @return matrix mapping the merge bitmap into base bitmap coordinates. Valid until the next call.
+     */
+    public Matrix set(Bitmap overlayBitmap, int orientation, int width, int height, int leftOffset, int topOffset) {
+
+        BitmapDecoderTask.setOrientationMatrix(mMatrix, orientation);
+
+        mBounds.set(0, 0, overlayBitmap.getWidth(), overlayBitmap.getHeight());
+        mMatrix.mapRect(mBounds);
+
+        mMatrix.postTranslate(-mBounds.left, -mBounds.top);
+        mMatrix.postScale(width / mBounds.width(), height / mBounds.height());
+        mMatrix.postTranslate(leftOffset, topOffset);
+
+        return mMatrix;
+    }
+}
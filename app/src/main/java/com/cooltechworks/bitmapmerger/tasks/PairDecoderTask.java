@@ -0,0 +1,344 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.annotation.TargetApi;
+import android.media.ExifInterface;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PairDecoderTask decodes a base image and a merge image at the same time, for when both are picked and nothing can be
+ * shown until both are decoded.
+ *
+ * Decoding them one after the other with {@link BitmapDecoderTask}s has the merge image wait for the base bitmap, as it is
+ * sampled for the size it is composited at over it. This task reads both headers first, chooses both sample sizes from
+ * them with a {@link SamplePlan}, then decodes the base image on its own thread and the merge image on another one. The
+ * listener is called once, when both bitmaps are ready.
+ */
+public class PairDecoderTask extends AsyncTask<Void, Void, Boolean> {
+
+    public interface OnPairDecodeListener {
+        /**
+         * Called on the UI thread with both bitmaps. The listener owns one reference of each and is responsible for
+         * releasing them.
+         * @param baseRef - handle of the base bitmap.
+         * @param mergeRef - handle of the merge bitmap, null if the spec has nothing to overlay.
+         */
+        void onDecode(PairDecoderTask task, BitmapRef baseRef, BitmapRef mergeRef);
+    }
+
+    private static final int POOL_SIZE = 2;
+
+    private static final ThreadPoolExecutor MERGE_EXECUTOR = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "PairDecoder #" + mCount.getAndIncrement());
+        }
+    });
+
+    private final ImageHandle mBaseImage;
+    private final ImageHandle mMergeImage;
+    private final BitmapTracker mTracker;
+    private MemoryGovernor mGovernor;
+    private int mReqWidth, mReqHeight;
+    private MergeSpec mSpec = MergeSpec.atCenter(0.5f);
+    private OnPairDecodeListener mListener;
+
+    private SamplePlan mPlan;
+    private long mStartMillis;
+    private long mElapsedMillis;
+
+    // guarded by this - the merge decode hands its result over, or releases it once the task gave up on it.
+    private BitmapRef mBaseRef, mMergeRef;
+    private int mMergeOrientation = ExifInterface.ORIENTATION_NORMAL;
+    private boolean mAbandoned;
+
+
+    /**
+     * @param baseImage - image the merge image is drawn over.
+     * @param mergeImage - image drawn over the base image.
+     * @param tracker - tracker the decoded bitmaps are handed to.
+     */
+    public PairDecoderTask(ImageHandle baseImage, ImageHandle mergeImage, BitmapTracker tracker) {
+        this.mBaseImage = baseImage;
+        this.mMergeImage = mergeImage;
+        this.mTracker = tracker;
+    }
+
+    /**
+     * Sets the size of the view the base bitmap is shown in, the base image is sampled for it.
+     * @param width - required width.
+     * @param height - required height.
+     * @return the related PairDecoderTask
+     */
+    public PairDecoderTask setRequiredSize(int width, int height) {
+        this.mReqWidth = width;
+        this.mReqHeight = height;
+        return this;
+    }
+
+    /**
+     * Sets the spec the bitmaps are going to be merged with, the merge image is sampled for it.
+     * @param spec - spec of the merge.
+     * @return the related PairDecoderTask
+     */
+    public PairDecoderTask setMergeSpec(MergeSpec spec) {
+        this.mSpec = spec;
+        return this;
+    }
+
+    /**
+     * Sets the governor admitting both decodes, see {@link BitmapDecoderTask#setMemoryGovernor(MemoryGovernor)}.
+     * @param governor - governor of the memory used by bitmaps, null for none.
+     * @return the related PairDecoderTask
+     */
+    public PairDecoderTask setMemoryGovernor(MemoryGovernor governor) {
+        this.mGovernor = governor;
+        return this;
+    }
+
+    /**
+     * Sets the listener for both bitmaps decoded.
+     * @param listener - listener for decode complete.
+     * @return the related PairDecoderTask
+     */
+    public PairDecoderTask setListener(OnPairDecodeListener listener) {
+        this.mListener = listener;
+        return this;
+    }
+
+    public ImageHandle getBaseImage() {
+        return mBaseImage;
+    }
+
+    public ImageHandle getMergeImage() {
+        return mMergeImage;
+    }
+
+    public MergeSpec getMergeSpec() {
+        return mSpec;
+    }
+
+    /**
+     * @return EXIF orientation of the merge bitmap, which is decoded as stored. Valid once decoded.
+     */
+    public synchronized int getMergeOrientation() {
+        return mMergeOrientation;
+    }
+
+    /**
+     * @return the sample sizes chosen from the headers. Valid once decoded.
+     */
+    public SamplePlan getSamplePlan() {
+        return mPlan;
+    }
+
+    /**
+     * @return time from {@link #decode()} until both bitmaps were ready, in milliseconds. Valid once decoded.
+     */
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    /**
+     * Starts the threads decoding the merge images ahead of the first decode, which otherwise starts them.
+     */
+    public static void prestartThreads() {
+        MERGE_EXECUTOR.prestartAllCoreThreads();
+    }
+
+    /**
+     * Initiates the decoding in background.
+     */
+    public void decode() {
+
+        if (mReqWidth <= 0 || mReqHeight <= 0) {
+            throw new IllegalStateException("Did not provide a valid required size. Should be > 0");
+        }
+
+        mStartMillis = SystemClock.uptimeMillis();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // the task waits for the merge decode, it must not hold up the serial executor meanwhile.
+            executeOnThreadPool();
+        } else {
+            super.execute((Void[]) null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeOnThreadPool() {
+        super.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+
+        boolean decoded = false;
+
+        try {
+            // both headers at once, they decide both sample sizes.
+            FutureTask<Void> mergeBounds = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    mMergeImage.ensureBounds();
+                }
+            }, null);
+            MERGE_EXECUTOR.execute(mergeBounds);
+            mBaseImage.ensureBounds();
+            await(mergeBounds);
+
+            mPlan = SamplePlan.choose(mBaseImage.getWidth(), mBaseImage.getHeight(), mBaseImage.getOrientation(),
+                    mReqWidth, mReqHeight, mMergeImage.getWidth(), mMergeImage.getHeight(), mMergeImage.getOrientation(), mSpec);
+
+            FutureTask<Void> mergeDecode = null;
+
+            if (mSpec.hasOverlay()) {
+                mergeDecode = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        decodeMerge();
+                    }
+                }, null);
+                MERGE_EXECUTOR.execute(mergeDecode);
+            }
+
+            BitmapDecoderTask baseDecoder = mBaseImage.newDecoderTask(mReqWidth, mReqHeight)
+                    .setBitmapTracker(mTracker)
+                    .setMemoryGovernor(mGovernor);
+            baseDecoder.decodeNow();
+
+            synchronized (this) {
+                mBaseRef = baseDecoder.getOutputRef();
+            }
+
+            if (mergeDecode != null) {
+                await(mergeDecode);
+            }
+
+            decoded = true;
+            return true;
+
+        } catch (InterruptedException e) {
+            // cancelled.
+            return false;
+        } finally {
+            if (!decoded) {
+                abandon();
+            }
+        }
+    }
+
+    private void decodeMerge() {
+
+        BitmapDecoderTask mergeDecoder = mMergeImage.newOverlayDecoderTask(mSpec, mPlan.getBaseWidth(), mPlan.getBaseHeight())
+                .setBitmapTracker(mTracker)
+                .setMemoryGovernor(mGovernor);
+        mergeDecoder.decodeNow();
+
+        BitmapRef ref = mergeDecoder.getOutputRef();
+
+        synchronized (this) {
+            if (!mAbandoned) {
+                mMergeRef = ref;
+                mMergeOrientation = mergeDecoder.getOrientation();
+                ref = null;
+            }
+        }
+
+        if (ref != null) {
+            ref.release();
+        }
+    }
+
+    /**
+     * Releases whatever is decoded so far, and has the merge decode release its bitmap if it is still running.
+     */
+    private void abandon() {
+
+        BitmapRef baseRef, mergeRef;
+
+        synchronized (this) {
+            mAbandoned = true;
+            baseRef = mBaseRef;
+            mergeRef = mMergeRef;
+            mBaseRef = null;
+            mMergeRef = null;
+        }
+
+        if (baseRef != null) {
+            baseRef.release();
+        }
+        if (mergeRef != null) {
+            mergeRef.release();
+        }
+    }
+
+    private static void await(FutureTask<Void> task) throws InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean decoded) {
+
+        mElapsedMillis = SystemClock.uptimeMillis() - mStartMillis;
+
+        if (!decoded) {
+            return;
+        }
+
+        BitmapRef baseRef, mergeRef;
+
+        synchronized (this) {
+            baseRef = mBaseRef;
+            mergeRef = mMergeRef;
+            mBaseRef = null;
+            mMergeRef = null;
+        }
+
+        if (mListener != null) {
+            mListener.onDecode(this, baseRef, mergeRef);
+        } else {
+            // nobody to hand them to.
+            if (baseRef != null) {
+                baseRef.release();
+            }
+            if (mergeRef != null) {
+                mergeRef.release();
+            }
+        }
+    }
+
+    @Override
+    protected void onCancelled() {
+        // nobody is going to get the bitmaps, free them right away.
+        abandon();
+    }
+}
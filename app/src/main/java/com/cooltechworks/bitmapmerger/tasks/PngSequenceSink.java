@@ -0,0 +1,54 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * PngSequenceSink writes the frames of a {@link SequenceMergerTask} as numbered PNG files ({@code <prefix>_0000.png},
+ * {@code <prefix>_0001.png} and so on), which is safe with frames arriving out of order and from several threads.
+ */
+public class PngSequenceSink implements SequenceMergerTask.FrameSink {
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final String mPrefix;
+
+
+    /**
+     * @param directory - existing directory the frames are written to.
+     * @param prefix - file name prefix of the frames.
+     */
+    public PngSequenceSink(File directory, String prefix) {
+        this.mDirectory = directory;
+        this.mPrefix = prefix;
+    }
+
+    /**
+     * @param index - frame index.
+     * @return the file the frame is written to.
+     */
+    public File getFrameFile(int index) {
+        return new File(mDirectory, String.format(Locale.US, "%s_%04d.png", mPrefix, index));
+    }
+
+    @Override
+    public void onFrame(int index, Bitmap frame) throws IOException {
+
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(getFrameFile(index)), STREAM_BUFFER_SIZE);
+
+        try {
+            if (!frame.compress(Bitmap.CompressFormat.PNG, 100, stream)) {
+                throw new IOException("Could not compress frame " + index);
+            }
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.cooltechworks.bitmapmerger.raster.ArgbImage;
+import com.cooltechworks.bitmapmerger.raster.TileIndex;
+import com.cooltechworks.bitmapmerger.raster.TileStore;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * PngTileStore keeps the tiles of a {@link com.cooltechworks.bitmapmerger.raster.TiledMerger} as PNG files in a directory
+ * ({@code <name>.png}), along with the index ({@code index.txt}). Files are written to a temporary file first and then
+ * renamed, so readers only ever see complete files.
+ *
+ * Tiles go through a Bitmap, which stores colors premultiplied - colors of translucent pixels may be off by a level.
+ */
+public class PngTileStore implements TileStore {
+
+    private static final String INDEX_FILE = "index.txt";
+    private static final String FILE_SUFFIX = ".png";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+
+    /**
+     * @param directory - directory of the tiles, created if it does not exist.
+     */
+    public PngTileStore(File directory) {
+        this.mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @param name - name of a tile, as in the index.
+     * @return the file holding the tile.
+     */
+    public File getTileFile(String name) {
+        return new File(mDirectory, name + FILE_SUFFIX);
+    }
+
+    @Override
+    public ArgbImage readTile(String name) throws IOException {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap = BitmapFactory.decodeFile(getTileFile(name).getPath(), options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode tile " + name);
+        }
+
+        try {
+            ArgbImage tile = new ArgbImage(bitmap.getWidth(), bitmap.getHeight());
+            bitmap.getPixels(tile.getPixels(), 0, tile.getWidth(), 0, 0, tile.getWidth(), tile.getHeight());
+            return tile;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public void writeTile(String name, ArgbImage tile) throws IOException {
+
+        Bitmap bitmap = Bitmap.createBitmap(tile.getPixels(), tile.getWidth(), tile.getHeight(), Bitmap.Config.ARGB_8888);
+
+        try {
+            File temp = getTempFile(name + FILE_SUFFIX);
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(temp), STREAM_BUFFER_SIZE);
+
+            try {
+                if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream)) {
+                    throw new IOException("Could not compress tile " + name);
+                }
+            } finally {
+                stream.close();
+            }
+
+            rename(temp, getTileFile(name));
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public void deleteTile(String name) {
+        getTileFile(name).delete();
+    }
+
+    @Override
+    public TileIndex readIndex() throws IOException {
+
+        File file = new File(mDirectory, INDEX_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return TileIndex.read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void writeIndex(TileIndex index) throws IOException {
+
+        File temp = getTempFile(INDEX_FILE);
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp), STREAM_BUFFER_SIZE), "UTF-8");
+
+        try {
+            index.write(writer);
+        } finally {
+            writer.close();
+        }
+
+        rename(temp, new File(mDirectory, INDEX_FILE));
+    }
+
+    private File getTempFile(String fileName) throws IOException {
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        return new File(mDirectory, fileName + TEMP_SUFFIX);
+    }
+
+    private static void rename(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+}
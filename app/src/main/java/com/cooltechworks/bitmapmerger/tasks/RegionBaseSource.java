@@ -0,0 +1,74 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import com.cooltechworks.bitmapmerger.raster.ArgbImage;
+import com.cooltechworks.bitmapmerger.raster.TiledMerger;
+
+import java.io.IOException;
+
+/**
+ * RegionBaseSource reads a base image a region at a time with a {@link BitmapRegionDecoder}, so that images far larger
+ * than the heap can be tiled by a {@link TiledMerger}. Only JPEG and PNG images can be read by regions, and only from
+ * Gingerbread MR1 onwards.
+ *
+ * Call {@link #close()} once the base is tiled.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class RegionBaseSource implements TiledMerger.BaseSource {
+
+    private final BitmapRegionDecoder mDecoder;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final Rect mRegion = new Rect();
+
+
+    /**
+     * @param path - path of the base image.
+     * @throws IOException if the image cannot be read by regions.
+     */
+    public RegionBaseSource(String path) throws IOException {
+        this.mDecoder = BitmapRegionDecoder.newInstance(path, false);
+        this.mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    @Override
+    public ArgbImage read(int left, int top, int width, int height) throws IOException {
+
+        mRegion.set(left, top, left + width, top + height);
+        Bitmap bitmap = mDecoder.decodeRegion(mRegion, mOptions);
+
+        if (bitmap == null) {
+            throw new IOException("Could not decode region " + mRegion);
+        }
+
+        try {
+            ArgbImage region = new ArgbImage(width, height);
+            bitmap.getPixels(region.getPixels(), 0, width, 0, 0, width, height);
+            return region;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Frees the memory of the decoder.
+     */
+    public void close() {
+        mDecoder.recycle();
+    }
+}
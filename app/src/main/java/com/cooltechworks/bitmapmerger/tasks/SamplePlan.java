@@ -0,0 +1,136 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+/**
+ * SamplePlan chooses the sample sizes of a base image and of a merge image together, from their headers alone. The base
+ * image is sampled for the view it is shown in, and the merge image for the size it is composited at over the base bitmap
+ * as it is going to be decoded (base size x scale), so that the two can be decoded at the same time instead of the merge
+ * image waiting for the base bitmap to know its size.
+ *
+ * Sizes are of the upright images, i.e. after their EXIF orientation.
+ */
+public final class SamplePlan {
+
+    private final int mBaseSampleSize;
+    private final int mBaseWidth;
+    private final int mBaseHeight;
+    private final int mMergeSampleSize;
+    private final int mMergeWidth;
+    private final int mMergeHeight;
+
+    private SamplePlan(int baseSampleSize, int baseWidth, int baseHeight, int mergeSampleSize, int mergeWidth, int mergeHeight) {
+        this.mBaseSampleSize = baseSampleSize;
+        this.mBaseWidth = baseWidth;
+        this.mBaseHeight = baseHeight;
+        this.mMergeSampleSize = mergeSampleSize;
+        this.mMergeWidth = mergeWidth;
+        this.mMergeHeight = mergeHeight;
+    }
+
+    /**
+     * @param baseWidth - width of the base image as stored.
+     * @param baseHeight - height of the base image as stored.
+     * @param baseOrientation - EXIF orientation of the base image.
+     * @param reqWidth - width of the view the base bitmap is shown in.
+     * @param reqHeight - height of the view the base bitmap is shown in.
+     * @param mergeWidth - width of the merge image as stored.
+     * @param mergeHeight - height of the merge image as stored.
+     * @param mergeOrientation - EXIF orientation of the merge image.
+     * @param spec - spec the merge bitmap is going to be merged with.
+     * @return the plan, with a merge sample size of 0 when the spec has nothing to overlay.
+     */
+    public static SamplePlan choose(int baseWidth, int baseHeight, int baseOrientation, int reqWidth, int reqHeight,
+                                    int mergeWidth, int mergeHeight, int mergeOrientation, MergeSpec spec) {
+
+        boolean baseSwapped = ImageHeader.swapsDimensions(baseOrientation);
+
+        // sampled against the dimensions as stored, the same way the decoder does.
+        int baseSampleSize = calculateInSampleSize(baseWidth, baseHeight,
+                baseSwapped ? reqHeight : reqWidth, baseSwapped ? reqWidth : reqHeight);
+
+        // decoders round the sampled size up.
+        int sampledWidth = (baseWidth + baseSampleSize - 1) / baseSampleSize;
+        int sampledHeight = (baseHeight + baseSampleSize - 1) / baseSampleSize;
+        int decodedWidth = baseSwapped ? sampledHeight : sampledWidth;
+        int decodedHeight = baseSwapped ? sampledWidth : sampledHeight;
+
+        if (!spec.hasOverlay()) {
+            return new SamplePlan(baseSampleSize, decodedWidth, decodedHeight, 0, 0, 0);
+        }
+
+        int overlayWidth = Math.max(1, spec.getOverlayWidth(decodedWidth));
+        int overlayHeight = Math.max(1, spec.getOverlayHeight(decodedHeight));
+        boolean mergeSwapped = ImageHeader.swapsDimensions(mergeOrientation);
+
+        int mergeSampleSize = calculateInSampleSize(mergeWidth, mergeHeight,
+                mergeSwapped ? overlayHeight : overlayWidth, mergeSwapped ? overlayWidth : overlayHeight);
+
+        return new SamplePlan(baseSampleSize, decodedWidth, decodedHeight, mergeSampleSize, overlayWidth, overlayHeight);
+    }
+
+    /**
+     * @return the largest power of 2 sample size keeping both dimensions larger than required.
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width larger than the requested height and width.
+            while ((halfHeight / inSampleSize) > reqHeight
+                    && (halfWidth / inSampleSize) > reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+
+    public int getBaseSampleSize() {
+        return mBaseSampleSize;
+    }
+
+    /**
+     * @return width the base bitmap is going to be decoded at.
+     */
+    public int getBaseWidth() {
+        return mBaseWidth;
+    }
+
+    /**
+     * @return height the base bitmap is going to be decoded at.
+     */
+    public int getBaseHeight() {
+        return mBaseHeight;
+    }
+
+    /**
+     * @return sample size of the merge image, 0 if it is not needed.
+     */
+    public int getMergeSampleSize() {
+        return mMergeSampleSize;
+    }
+
+    /**
+     * @return width the merge bitmap is composited at.
+     */
+    public int getMergeWidth() {
+        return mMergeWidth;
+    }
+
+    /**
+     * @return height the merge bitmap is composited at.
+     */
+    public int getMergeHeight() {
+        return mMergeHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "SamplePlan{base 1/" + mBaseSampleSize + " -> " + mBaseWidth + "x" + mBaseHeight
+                + ", merge 1/" + mMergeSampleSize + " -> " + mMergeWidth + "x" + mMergeHeight + "}";
+    }
+}
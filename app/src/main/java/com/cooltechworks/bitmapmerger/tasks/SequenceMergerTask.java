@@ -0,0 +1,516 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SequenceMergerTask renders the frames of an animated merge - the merge bitmap moving over the base bitmap along a
+ * {@link MergeTrack} - and hands each frame to a {@link FrameSink}, for example a {@link PngSequenceSink}.
+ *
+ * Unlike running a {@link BitmapMergerTask} per frame, the base bitmap is copied once per frame buffer and every frame only
+ * restores the area the previous frame of its buffer drew on. The scaled merge bitmap is shared by consecutive frames of the
+ * same size, so sweeping the angle scales it once. Frames are blended by the blend mode and opacity of their spec, like
+ * {@link BitmapMergerTask} does.
+ *
+ * Frames are rendered by one or more render threads, each drawing into a fixed number of buffers that are reused once the
+ * sink is done with them, so the memory used stays the same however many frames are rendered.
+ */
+public class SequenceMergerTask extends AsyncTask<Void, Integer, SequenceMergerTask.SequenceResult> {
+
+    class SequenceMergerTaskException extends RuntimeException {
+        SequenceMergerTaskException(String msg) {
+            super(msg);
+        }
+    }
+
+    // how long a cancelled render waits for its threads to let go of the buffers.
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    public interface FrameSink {
+        /**
+         * Called on an encode thread for every frame. With more than one render thread, frames may arrive out of order and
+         * from several threads at once.
+         * @param index - index of the frame.
+         * @param frame - the frame, valid only until this method returns.
+         * @throws IOException if the frame could not be written, which stops the sequence.
+         */
+        void onFrame(int index, Bitmap frame) throws IOException;
+    }
+
+    public interface OnSequenceListener {
+        void onProgress(SequenceMergerTask task, int framesDone, int frameCount);
+        void onSequence(SequenceMergerTask task, SequenceResult result);
+    }
+
+    /**
+     * Outcome of a sequence. Holds the number of frames written and the time spent rendering and writing them.
+     */
+    public static class SequenceResult {
+
+        private final int mFramesWritten;
+        private final int mFrameCount;
+        private final long mTimeMillis;
+        private final IOException mError;
+
+        SequenceResult(int framesWritten, int frameCount, long timeMillis, IOException error) {
+            this.mFramesWritten = framesWritten;
+            this.mFrameCount = frameCount;
+            this.mTimeMillis = timeMillis;
+            this.mError = error;
+        }
+
+        public boolean isSuccess() {
+            return mError == null && mFramesWritten == mFrameCount;
+        }
+
+        public int getFramesWritten() {
+            return mFramesWritten;
+        }
+
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * @return wall time spent in rendering and writing all frames, in milliseconds.
+         */
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return the failure of the sink if it failed, null otherwise.
+         */
+        public IOException getError() {
+            return mError;
+        }
+    }
+
+    private Bitmap mBaseBitmap;
+    private Bitmap mMergeBitmap;
+    private int mMergeBitmapOrientation = ExifInterface.ORIENTATION_NORMAL;
+    private MergeTrack mTrack;
+    private int mFrameCount;
+    private FrameSink mSink;
+    private OnSequenceListener mListener;
+    private int mParallelism = 1;
+    private int mBuffersPerThread = 2;
+    private MipPyramid mMergePyramid;
+
+    private final AtomicInteger mFramesWritten = new AtomicInteger();
+    private final AtomicReference<IOException> mError = new AtomicReference<IOException>();
+    private final List<FrameBuffer> mBuffers = new ArrayList<FrameBuffer>();
+
+
+    /**
+     * Sets the base bitmap image. It is only read, so it may be shown meanwhile.
+     * @param baseBitmap - base bitmap
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setBaseBitmap(Bitmap baseBitmap) {
+        this.mBaseBitmap = baseBitmap;
+        return this;
+    }
+
+    /**
+     * Sets the merge bitmap image.
+     * @param mergeBitmap - merging bitmap image.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setMergeBitmap(Bitmap mergeBitmap) {
+        this.mMergeBitmap = mergeBitmap;
+        return this;
+    }
+
+    /**
+     * Sets the EXIF orientation of the merge bitmap when it is not upright, see {@link BitmapMergerTask#setMergeBitmapOrientation(int)}.
+     * @param orientation - one of the ExifInterface.ORIENTATION_ constants.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setMergeBitmapOrientation(int orientation) {
+        this.mMergeBitmapOrientation = orientation;
+        return this;
+    }
+
+    /**
+     * Sets a pyramid of the merge bitmap to scale it from, see {@link BitmapMergerTask#setMergePyramid(MipPyramid)}.
+     * @param pyramid - pyramid built from the merge bitmap.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setMergePyramid(MipPyramid pyramid) {
+        this.mMergePyramid = pyramid;
+        return this;
+    }
+
+    /**
+     * Sets the motion of the merge bitmap and the number of frames it is rendered in.
+     * @param track - keyframed specs of the merge.
+     * @param frameCount - number of frames, the first and the last one at the first and the last keyframe.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setTrack(MergeTrack track, int frameCount) {
+        this.mTrack = track;
+        this.mFrameCount = frameCount;
+        return this;
+    }
+
+    /**
+     * Sets the sink the rendered frames are written to.
+     * @param sink - sink for the frames.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setFrameSink(FrameSink sink) {
+        this.mSink = sink;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads rendering frames. Each of them holds its own frame buffers.
+     * @param parallelism - number of render threads, 1 by default.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setParallelism(int parallelism) {
+        this.mParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets how many frames a render thread may have ahead of the sink. With 2 (the default) a frame is rendered while the
+     * previous one is written.
+     * @param buffersPerThread - number of frame buffers per render thread.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setBuffersPerThread(int buffersPerThread) {
+        this.mBuffersPerThread = Math.max(1, buffersPerThread);
+        return this;
+    }
+
+    /**
+     * Sets the listener for progress and completion.
+     * @param listener for progress and completeness.
+     * @return the related SequenceMergerTask
+     */
+    public SequenceMergerTask setListener(OnSequenceListener listener) {
+        this.mListener = listener;
+        return this;
+    }
+
+    /**
+     * Initiates the rendering in the background.
+     */
+    public void render() {
+
+        if (mBaseBitmap == null) {
+            throw new SequenceMergerTaskException("Base bitmap not set");
+        }
+
+        if (mMergeBitmap == null) {
+            throw new SequenceMergerTaskException("Merge bitmap not set");
+        }
+
+        if (mTrack == null || mTrack.getKeyframeCount() == 0 || mFrameCount <= 0) {
+            throw new SequenceMergerTaskException("Track not set");
+        }
+
+        if (mSink == null) {
+            throw new SequenceMergerTaskException("Frame sink not set");
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // the task only waits for its render threads, it must not hold up the serial executor meanwhile.
+            executeOnThreadPool();
+        } else {
+            super.execute((Void[]) null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void executeOnThreadPool() {
+        super.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
+    }
+
+    @Override
+    protected SequenceResult doInBackground(Void... params) {
+
+        long startTime = System.nanoTime();
+        int threads = Math.min(mParallelism, mFrameCount);
+
+        ExecutorService renderPool = Executors.newFixedThreadPool(threads);
+        ExecutorService writePool = Executors.newFixedThreadPool(threads);
+        boolean stopped = true;
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                renderPool.execute(new FrameRenderer(i, threads, writePool));
+            }
+
+            // render threads hand their frames to the write pool, so it is complete once they are done.
+            renderPool.shutdown();
+            renderPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            writePool.shutdown();
+            writePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            renderPool.shutdownNow();
+            writePool.shutdownNow();
+            // the threads may still be drawing into or writing the buffers until they see the interrupt.
+            stopped = awaitStop(renderPool) && awaitStop(writePool);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (stopped) {
+                recycleBuffers();
+            }
+            // otherwise a thread still holds a buffer, which is left to the garbage collector.
+        }
+
+        return new SequenceResult(mFramesWritten.get(), mFrameCount, (System.nanoTime() - startTime) / 1000000L, mError.get());
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mListener != null) {
+            mListener.onProgress(this, values[0], mFrameCount);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(SequenceResult result) {
+        if (mListener != null) {
+            mListener.onSequence(this, result);
+        }
+    }
+
+    /**
+     * @return true if the pool stopped within {@link #STOP_TIMEOUT_MILLIS}.
+     */
+    private static boolean awaitStop(ExecutorService pool) {
+        try {
+            return pool.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void recycleBuffers() {
+        synchronized (mBuffers) {
+            for (FrameBuffer buffer : mBuffers) {
+                buffer.mBitmap.recycle();
+            }
+            mBuffers.clear();
+        }
+    }
+
+    /**
+     * A copy of the base bitmap a render thread draws its frames into, along with the area the last frame drew on.
+     */
+    private static class FrameBuffer {
+
+        final Bitmap mBitmap;
+        final Canvas mCanvas;
+        final Rect mDirty = new Rect();
+
+        FrameBuffer(Bitmap baseBitmap) {
+            this.mBitmap = baseBitmap.copy(Bitmap.Config.ARGB_8888, true);
+            this.mCanvas = new Canvas(mBitmap);
+        }
+    }
+
+    /**
+     * Renders every n-th frame, starting from its index, into its own buffers.
+     */
+    private class FrameRenderer implements Runnable {
+
+        private final int mFirstFrame;
+        private final int mFrameStep;
+        private final ExecutorService mWritePool;
+        private final BlockingQueue<FrameBuffer> mFreeBuffers = new ArrayBlockingQueue<FrameBuffer>(mBuffersPerThread);
+        private final Paint mRestorePaint = new Paint();
+        private final OverlayTransform mOverlayTransform = new OverlayTransform();
+        // for frames blending with a mode other than normal or with an opacity.
+        private final OverlayPaint mOverlayPaint = new OverlayPaint();
+        private final Matrix mOverlayMatrix = new Matrix();
+        private int mBufferCount;
+
+        // merge bitmap scaled for the last frame, kept for as long as the frames have the same overlay size.
+        private Bitmap mScaledOverlay;
+
+        FrameRenderer(int firstFrame, int frameStep, ExecutorService writePool) {
+            this.mFirstFrame = firstFrame;
+            this.mFrameStep = frameStep;
+            this.mWritePool = writePool;
+            // copy the base back as is, also where it is translucent.
+            this.mRestorePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                for (int frame = mFirstFrame; frame < mFrameCount; frame += mFrameStep) {
+
+                    if (isCancelled() || mError.get() != null) {
+                        return;
+                    }
+
+                    FrameBuffer buffer = takeBuffer();
+                    renderFrame(buffer, mTrack.getFrameSpec(frame, mFrameCount));
+                    mWritePool.execute(new FrameWriter(frame, buffer, mFreeBuffers));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException e) {
+                // cancelled, the write pool is shut down.
+            } finally {
+                mOverlayPaint.release();
+                if (mScaledOverlay != null) {
+                    mScaledOverlay.recycle();
+                }
+            }
+        }
+
+        private FrameBuffer takeBuffer() throws InterruptedException {
+
+            FrameBuffer buffer = mFreeBuffers.poll();
+
+            if (buffer == null && mBufferCount < mBuffersPerThread) {
+                buffer = new FrameBuffer(mBaseBitmap);
+                mBufferCount++;
+                synchronized (mBuffers) {
+                    mBuffers.add(buffer);
+                }
+            }
+
+            // all buffers are with the sink, wait for one to be written.
+            return buffer != null ? buffer : mFreeBuffers.take();
+        }
+
+        private void renderFrame(FrameBuffer buffer, MergeSpec spec) {
+
+            if (!buffer.mDirty.isEmpty()) {
+                buffer.mCanvas.drawBitmap(mBaseBitmap, buffer.mDirty, buffer.mDirty, mRestorePaint);
+                buffer.mDirty.setEmpty();
+            }
+
+            MergeStats stats = MergeStats.getDefault();
+
+            if (!spec.hasOverlay()) {
+                stats.count(MergeStats.Path.NO_OVERLAY);
+                return;
+            }
+
+            int baseWidth = mBaseBitmap.getWidth();
+            int baseHeight = mBaseBitmap.getHeight();
+            int overlayWidth = spec.getOverlayWidth(baseWidth);
+            int overlayHeight = spec.getOverlayHeight(baseHeight);
+            int left = spec.getOverlayLeft(baseWidth, baseHeight);
+            int top = spec.getOverlayTop(baseWidth, baseHeight);
+
+            Rect visible = buffer.mDirty;
+            visible.set(left, top, left + overlayWidth, top + overlayHeight);
+
+            if (overlayWidth <= 0 || overlayHeight <= 0 || !visible.intersect(0, 0, baseWidth, baseHeight)) {
+                stats.count(MergeStats.Path.OFF_CANVAS);
+                visible.setEmpty();
+                return;
+            }
+
+            stats.count(visible.width() < overlayWidth || visible.height() < overlayHeight ? MergeStats.Path.CLIPPED : MergeStats.Path.FULL);
+
+            Bitmap overlay = getScaledOverlay(overlayWidth, overlayHeight);
+
+            if (spec.hasDefaultBlending()) {
+                buffer.mCanvas.drawBitmap(overlay, left, top, null);
+            } else {
+                mOverlayMatrix.setTranslate(left, top);
+                mOverlayPaint.draw(buffer.mCanvas, overlay, mOverlayMatrix, spec.getBlendMode(), spec.getOpacity());
+            }
+        }
+
+        private Bitmap getScaledOverlay(int width, int height) {
+
+            if (mScaledOverlay == null || mScaledOverlay.getWidth() != width || mScaledOverlay.getHeight() != height) {
+
+                if (mScaledOverlay != null) {
+                    // the multiply shader may hold it.
+                    mOverlayPaint.release();
+                    mScaledOverlay.recycle();
+                }
+
+                BitmapRef level = null;
+                Bitmap source = mMergeBitmap;
+
+                if (mMergePyramid != null) {
+                    boolean swapped = BitmapDecoderTask.swapsDimensions(mMergeBitmapOrientation);
+                    level = mMergePyramid.acquireLevel(swapped ? height : width, swapped ? width : height);
+                    source = level.get();
+                }
+
+                try {
+                    mScaledOverlay = Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(),
+                            mOverlayTransform.set(source, mMergeBitmapOrientation, width, height, 0, 0), true);
+                } finally {
+                    if (level != null) {
+                        level.release();
+                    }
+                }
+            }
+
+            return mScaledOverlay;
+        }
+    }
+
+    /**
+     * Writes a rendered frame to the sink and gives its buffer back to its render thread.
+     */
+    private class FrameWriter implements Runnable {
+
+        private final int mFrame;
+        private final FrameBuffer mBuffer;
+        private final BlockingQueue<FrameBuffer> mFreeBuffers;
+
+        FrameWriter(int frame, FrameBuffer buffer, BlockingQueue<FrameBuffer> freeBuffers) {
+            this.mFrame = frame;
+            this.mBuffer = buffer;
+            this.mFreeBuffers = freeBuffers;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                if (mError.get() == null && !isCancelled()) {
+                    mSink.onFrame(mFrame, mBuffer.mBitmap);
+                    publishProgress(mFramesWritten.incrementAndGet());
+                }
+            } catch (IOException e) {
+                mError.compareAndSet(null, e);
+            } finally {
+                mFreeBuffers.offer(mBuffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+
+import com.cooltechworks.bitmapmerger.raster.ArgbImage;
+import com.cooltechworks.bitmapmerger.raster.TileIndex;
+import com.cooltechworks.bitmapmerger.raster.TiledMerger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * TiledMergerTask merges a bitmap onto a base image kept as tiles in a directory, for bases too large to be decoded as one
+ * bitmap - see {@link TiledMerger}. The merged image is the tiles named by the index in the directory; only the tiles the
+ * merge bitmap covers are written, the others are the tiles of the base.
+ *
+ * The base is tiled once, by the first task given a base source. Later tasks merge onto the tiles already there, so moving
+ * the merge bitmap only rewrites the tiles under its old and new place.
+ */
+public class TiledMergerTask extends AsyncTask<Void, Void, TiledMergerTask.TileResult> {
+
+    class TiledMergerTaskException extends RuntimeException {
+        TiledMergerTaskException(String msg) {
+            super(msg);
+        }
+    }
+
+    public interface OnTileMergeListener {
+        void onTileMerge(TiledMergerTask task, TileResult result);
+    }
+
+    /**
+     * Outcome of a tiled merge. Holds the index written and the number of tiles written and referenced.
+     */
+    public static class TileResult {
+
+        private final TileIndex mIndex;
+        private final int mTilesWritten;
+        private final int mTilesReferenced;
+        private final long mTimeMillis;
+        private final IOException mError;
+
+        TileResult(TileIndex index, int tilesWritten, int tilesReferenced, long timeMillis, IOException error) {
+            this.mIndex = index;
+            this.mTilesWritten = tilesWritten;
+            this.mTilesReferenced = tilesReferenced;
+            this.mTimeMillis = timeMillis;
+            this.mError = error;
+        }
+
+        public boolean isSuccess() {
+            return mError == null;
+        }
+
+        /**
+         * @return the index of the merged tiles, null if the merge failed.
+         */
+        public TileIndex getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return number of merged tiles written.
+         */
+        public int getTilesWritten() {
+            return mTilesWritten;
+        }
+
+        /**
+         * @return number of tiles referencing their base tile.
+         */
+        public int getTilesReferenced() {
+            return mTilesReferenced;
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        /**
+         * @return the failure reading or writing the tiles, null if none.
+         */
+        public IOException getError() {
+            return mError;
+        }
+    }
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private File mDirectory;
+    private TiledMerger.BaseSource mBaseSource;
+    private int mTileSize = DEFAULT_TILE_SIZE;
+    private Bitmap mMergeBitmap;
+    private MergeSpec mSpec = MergeSpec.atCenter(0.5f);
+    private OnTileMergeListener mListener;
+
+
+    /**
+     * @param directory - directory of the tiles and their index.
+     * @return the related TiledMergerTask
+     */
+    public TiledMergerTask setTileDirectory(File directory) {
+        this.mDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Sets the base to be tiled before merging, replacing the tiles in the directory. Not needed once the base is tiled.
+     * @param baseSource - the base image, e.g. a {@link RegionBaseSource}. It is not closed by the task.
+     * @param tileSize - width and height of the tiles.
+     * @return the related TiledMergerTask
+     */
+    public TiledMergerTask setBaseSource(TiledMerger.BaseSource baseSource, int tileSize) {
+        this.mBaseSource = baseSource;
+        this.mTileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Sets the merge bitmap, upright. It is only read, so it may be shown meanwhile.
+     * @param mergeBitmap - merge bitmap
+     * @return the related TiledMergerTask
+     */
+    public TiledMergerTask setMergeBitmap(Bitmap mergeBitmap) {
+        this.mMergeBitmap = mergeBitmap;
+        return this;
+    }
+
+    /**
+     * @param spec - spec placing the merge bitmap within the whole base image.
+     * @return the related TiledMergerTask
+     */
+    public TiledMergerTask setMergeSpec(MergeSpec spec) {
+        this.mSpec = spec;
+        return this;
+    }
+
+    public TiledMergerTask setListener(OnTileMergeListener listener) {
+        this.mListener = listener;
+        return this;
+    }
+
+    /**
+     * Initiates the merge in the background.
+     */
+    public void merge() {
+
+        if (mDirectory == null) {
+            throw new TiledMergerTaskException("Tile directory not set");
+        }
+
+        if (mMergeBitmap == null) {
+            throw new TiledMergerTaskException("Merge bitmap not set");
+        }
+
+        super.execute((Void[]) null);
+    }
+
+    @Override
+    protected TileResult doInBackground(Void... params) {
+
+        long startTime = System.nanoTime();
+        TiledMerger merger = new TiledMerger(new PngTileStore(mDirectory));
+
+        try {
+            if (mBaseSource != null) {
+                merger.tileBase(mBaseSource, mTileSize);
+            }
+
+            int width = mMergeBitmap.getWidth();
+            int height = mMergeBitmap.getHeight();
+            ArgbImage overlay = new ArgbImage(width, height);
+            mMergeBitmap.getPixels(overlay.getPixels(), 0, width, 0, 0, width, height);
+
+            TileIndex index = merger.merge(overlay, mSpec);
+            return new TileResult(index, merger.getWrittenTileCount(), merger.getReferencedTileCount(), elapsedMillis(startTime), null);
+
+        } catch (IOException e) {
+            return new TileResult(null, 0, 0, elapsedMillis(startTime), e);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(TileResult result) {
+        if (mListener != null) {
+            mListener.onTileMerge(this, result);
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+}
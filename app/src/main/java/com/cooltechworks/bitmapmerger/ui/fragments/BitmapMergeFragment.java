@@ -0,0 +1,627 @@
+package com.cooltechworks.bitmapmerger.ui.fragments;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.os.Bundle;
+import android.os.Environment;
+import android.support.v4.app.Fragment;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+import com.cooltechworks.bitmapmerger.BuildConfig;
+import com.cooltechworks.bitmapmerger.R;
+import com.cooltechworks.bitmapmerger.StartupTrace;
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+import com.cooltechworks.bitmapmerger.tasks.BitmapDecoderTask;
+import com.cooltechworks.bitmapmerger.tasks.BitmapEncoderTask;
+import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
+import com.cooltechworks.bitmapmerger.tasks.ImageHandle;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.PairDecoderTask;
+import com.cooltechworks.bitmapmerger.ui.views.MergePreviewView;
+
+import java.io.File;
+
+
+/**
+ * Common part of the merge demo fragments. Handles picking the base and merge images, decoding them and the scale slider,
+ * the subclasses add their own controls and merge options.
+ *
+ * Picking an image only reads its bounds. The base image is decoded right away as it is displayed alone, while the merge
+ * image is decoded only once both images are selected, sampled for the size it is composited at (base size x scale). When
+ * the base image is picked with a merge image already picked, both are decoded at the same time by a {@link PairDecoderTask}.
+ *
+ * All the decoded and merged bitmaps are held through {@link BitmapRef}s and released as soon as they are replaced. The picked
+ * images and their bitmaps are kept in the {@link ImageSession}, so the fragment of another merge option, or this one created
+ * again after a rotation, previews them right away.
+ *
+ * The controls only update the {@link MergePreviewView}, which composites the bitmaps while drawing. The merged bitmap is
+ * produced by {@link BitmapMergerTask} only when exported with {@link #export(BitmapEncoderTask.OnEncodeListener)}.
+ *
+ * Decodes are sized for the preview, so they only start once the preview is laid out - an image picked while the fragment
+ * is created again (e.g. the picker returning after a rotation) waits for the first layout pass.
+ */
+public abstract class BitmapMergeFragment extends Fragment {
+
+
+    private static final int SELECT_PHOTO_1 = 1;
+    private static final int SELECT_PHOTO_2 = 2;
+
+    private static final String TAG = "BitmapMergeFragment";
+    private static final int EXPORT_QUALITY = 90;
+    private static final int PYRAMID_MAX_BYTES = 4 * 1024 * 1024;
+
+    protected Bitmap mBaseBitmap, mMergeBitmap;
+    protected int mMergeOrientation = ExifInterface.ORIENTATION_NORMAL; // the merge bitmap is kept as stored, rotated while merging.
+    protected float mScale = 0.5f;
+
+    protected View mRootView;
+
+    private ImageHandle mBaseImage, mMergeImage;
+    private BitmapDecoderTask mBaseDecoderTask, mMergeDecoderTask;
+    private PairDecoderTask mPairDecoderTask;
+    private BitmapRef mBaseRef, mMergeRef;
+    private MipPyramid mMergePyramid;
+    private BitmapRef mRestoredBaseRef;
+    private final ImageSession mSession = ImageSession.getDefault();
+    private final BitmapTracker mTracker = mSession.getTracker();
+
+
+    /**
+     * @return layout of the fragment. Should contain image_holder, scale_size, scale_label, base_image_label and merge_image_label.
+     */
+    protected abstract int getLayoutId();
+
+    /**
+     * Sets up the controls specific to the merge option.
+     * @param rootView - the inflated layout.
+     */
+    protected abstract void onCreateControls(View rootView);
+
+    /**
+     * @return spec of the merge option with the current values of the controls.
+     */
+    protected abstract MergeSpec getMergeSpec();
+
+    /**
+     * Called before previewing once both bitmaps are available.
+     */
+    protected void onBitmapsReady() {
+    }
+
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // the session owns the bitmaps, the fragment only previews them.
+        mBaseImage = mSession.getBaseImage();
+        mMergeImage = mSession.getMergeImage();
+        mBaseRef = mSession.getBaseRef();
+        mRestoredBaseRef = mBaseRef;
+        mBaseBitmap = mBaseRef != null ? mBaseRef.get() : null;
+        mMergeRef = mSession.getMergeRef();
+        mMergeBitmap = mMergeRef != null ? mMergeRef.get() : null;
+        mMergePyramid = mSession.getMergePyramid();
+        mMergeOrientation = mSession.getMergeOrientation();
+        mScale = mSession.getScale();
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup root,Bundle savedInstanceState) {
+
+
+        mRootView = inflater.inflate(getLayoutId(),root,false);
+
+        View.OnClickListener listener = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+
+                Intent photoPickerIntent = new Intent(Intent.ACTION_PICK);
+                photoPickerIntent.setType("image/*");
+
+                switch (v.getId()) {
+                    case R.id.base_image_label:
+                        startActivityForResult(photoPickerIntent, SELECT_PHOTO_1);
+                        break;
+                    case R.id.merge_image_label:
+                        startActivityForResult(photoPickerIntent, SELECT_PHOTO_2);
+                        break;
+
+                }
+            }
+        };
+
+        View baseLabelView =  mRootView.findViewById(R.id.base_image_label);
+        View mergeLabelView = mRootView.findViewById(R.id.merge_image_label);
+
+        baseLabelView.setOnClickListener(listener);
+        mergeLabelView.setOnClickListener(listener);
+
+        onCreateControls(mRootView);
+
+        SeekBar scaleSeekbar = (SeekBar) mRootView.findViewById(R.id.scale_size);
+        scaleSeekbar.setProgress((int) (mScale * 100));
+
+        ((TextView) mRootView.findViewById(R.id.scale_label)).setText(getString(R.string.scale_factor, mScale));
+
+        scaleSeekbar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+
+                mScale = progress / 100f;
+                mSession.setScale(mScale);
+
+                ((TextView) mRootView.findViewById(R.id.scale_label)).setText(getString(R.string.scale_factor, mScale));
+                refresh();
+
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+
+            }
+        });
+
+        refresh();
+
+        if (mBaseImage != null && mBaseRef == null) {
+            // the previous fragment went away while decoding, decode again once the preview is laid out.
+            onBaseImagePicked(mBaseImage);
+        }
+
+        return mRootView;
+
+
+    }
+
+    public void refresh() {
+
+        MergePreviewView previewView = (MergePreviewView) mRootView.findViewById(R.id.image_holder);
+
+        TextView baseLabelTextView = (TextView) mRootView.findViewById(R.id.base_image_label);
+        TextView mergeLabelTextView = (TextView) mRootView.findViewById(R.id.merge_image_label);
+
+
+        if (mMergeImage != null && mBaseBitmap != null) {
+
+            baseLabelTextView.setTextColor(getResources().getColor(R.color.dark_blue_fg));
+            mergeLabelTextView.setTextColor(getResources().getColor(R.color.dark_blue_fg));
+
+            MergeSpec spec = getMergeSpec();
+
+            // with nothing to overlay, there is no need of the merge bitmap at all.
+            if (spec.hasOverlay() && !ensureMergeBitmap(spec)) {
+                // refreshed again once the merge bitmap is decoded.
+                previewView.setBitmaps(mBaseBitmap, null, mMergeOrientation);
+                return;
+            }
+
+            onBitmapsReady();
+
+            previewView.setBitmaps(mBaseBitmap, mMergeBitmap, mMergeOrientation);
+            previewView.setMergePyramid(mMergePyramid);
+            previewView.setMergeSpec(spec);
+            measureTimeToPreview(previewView);
+            markFirstComposite(previewView);
+
+        }
+        else {
+
+// if the first bitmap was null, highlight base bitmap text view, otherwise highlight the merge bitmap text view
+            previewView.setBitmaps(mBaseBitmap, null, mMergeOrientation);
+
+            if (mBaseBitmap != null) {
+                measureTimeToPreview(previewView);
+            } else if (mBaseImage == null) {
+                // nothing picked, nothing to preview.
+                mSession.cancelPreviewPending();
+            }
+
+            if(mBaseBitmap != null) {
+                baseLabelTextView.setTextColor(getResources().getColor(R.color.dark_blue_fg));
+                mergeLabelTextView.setTextColor(getResources().getColor(R.color.green_fg));
+            }
+            else {
+                baseLabelTextView.setTextColor(getResources().getColor(R.color.green_fg));
+                mergeLabelTextView.setTextColor(getResources().getColor(R.color.dark_blue_fg));
+            }
+
+        }
+
+    }
+
+    /**
+     * Merges the bitmaps as currently previewed and saves the merged bitmap as a JPEG in the pictures directory of the app.
+     * @param listener - listener for the saved file, can be null.
+     * @return false if there is nothing to export yet.
+     */
+    public boolean export(BitmapEncoderTask.OnEncodeListener listener) {
+
+        MergeSpec spec = getMergeSpec();
+
+        if (mBaseRef == null || mMergeRef == null) {
+            return false;
+        }
+
+        File directory = getActivity().getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        if (directory == null) {
+            directory = getActivity().getFilesDir();
+        }
+
+        BitmapEncoderTask encoder = new BitmapEncoderTask()
+                .setFormat(Bitmap.CompressFormat.JPEG, EXPORT_QUALITY)
+                .setOutputFile(new File(directory, "merged_" + System.currentTimeMillis() + ".jpg"))
+                .setListener(listener);
+
+        new BitmapMergerTask()
+                .setBaseBitmap(mBaseRef)
+                .setMergeBitmap(mMergeRef)
+                .setMergeBitmapOrientation(mMergeOrientation)
+                .setMergePyramid(mMergePyramid)
+                .setMergeSpec(spec)
+                .setBitmapTracker(mTracker)
+                .setMemoryGovernor(MemoryGovernor.getDefault())
+                .setResultCache(mSession.getResultCache(getActivity()))
+                .setOutputEncoder(encoder)
+                .setMergeListener(new BitmapMergerTask.OnMergeListener() {
+                    @Override
+                    public void onMerge(BitmapMergerTask task, Bitmap mergedBitmap) {
+                        // the encoder holds its own reference until it is done.
+                        release(task.getOutputRef());
+                    }
+                })
+                .merge();
+
+        return true;
+    }
+
+    /**
+     * Records the time from the last switch of the merge option to the next draw of the preview, if a switch is pending.
+     */
+    private void measureTimeToPreview(View previewView) {
+
+        if (!mSession.isPreviewPending()) {
+            return;
+        }
+
+        final boolean reused = mBaseRef != null && mBaseRef == mRestoredBaseRef;
+
+        runBeforeDraw(previewView, new Runnable() {
+            @Override
+            public void run() {
+                long millis = mSession.onPreviewDrawn();
+                if (BuildConfig.DEBUG && millis >= 0) {
+                    Log.d(TAG, "time to preview: " + millis + " ms" + (reused ? ", session bitmaps reused" : ""));
+                }
+            }
+        });
+    }
+
+    private static void markFirstComposite(View previewView) {
+
+        if (StartupTrace.getDefault().isMarked(StartupTrace.Mark.FIRST_COMPOSITE)) {
+            return;
+        }
+
+        runBeforeDraw(previewView, new Runnable() {
+            @Override
+            public void run() {
+                if (StartupTrace.getDefault().mark(StartupTrace.Mark.FIRST_COMPOSITE) && BuildConfig.DEBUG) {
+                    Log.d(TAG, "startup: " + StartupTrace.getDefault());
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the runnable right away if the view is laid out, otherwise after its first layout pass.
+     */
+    private static void runAfterLayout(View view, Runnable runnable) {
+        if (view.getWidth() > 0 && view.getHeight() > 0 && !view.isLayoutRequested()) {
+            runnable.run();
+        } else {
+            runBeforeDraw(view, runnable);
+        }
+    }
+
+    private static void runBeforeDraw(final View view, final Runnable runnable) {
+
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                runnable.run();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Makes sure the merge bitmap is decoded large enough for the spec it is merged with, starting a decode if it is not.
+     * @param spec - spec of the upcoming merge.
+     * @return true if the merge bitmap can be used right away.
+     */
+    private boolean ensureMergeBitmap(MergeSpec spec) {
+
+        int baseWidth = mBaseBitmap.getWidth();
+        int baseHeight = mBaseBitmap.getHeight();
+
+        if (mMergeImage.isSufficient(mMergeBitmap, spec, baseWidth, baseHeight)) {
+            return true;
+        }
+
+        if (mMergeDecoderTask != null && mMergeDecoderTask.getStatus() != BitmapDecoderTask.Status.FINISHED) {
+            // a decode is already on the way, merge with what we have meanwhile.
+            return mMergeBitmap != null;
+        }
+
+        final ImageHandle image = mMergeImage;
+
+        mMergeDecoderTask = image.newOverlayDecoderTask(spec, baseWidth, baseHeight)
+                .setBitmapTracker(mTracker)
+                .setMemoryGovernor(MemoryGovernor.getDefault())
+                .setListener(new BitmapDecoderTask.OnDecodeListener() {
+                    @Override
+                    public void onDecode(BitmapDecoderTask task, Bitmap bitmap) {
+
+                        if (image == mMergeImage && isAdded()) {
+                            mMergeOrientation = task.getOrientation();
+                            setMergeRef(task.getOutputRef());
+                        } else {
+                            release(task.getOutputRef());
+                        }
+                    }
+                });
+        mMergeDecoderTask.decode();
+
+        return mMergeBitmap != null;
+    }
+
+    @Override
+    public void onActivityResult(final int requestCode, int resultCode, Intent imageReturnedIntent) {
+        super.onActivityResult(requestCode, resultCode, imageReturnedIntent);
+
+        switch (requestCode) {
+            case SELECT_PHOTO_1:
+            case SELECT_PHOTO_2:
+                if (resultCode == Activity.RESULT_OK) {
+                    final ImageHandle image = new ImageHandle(imageReturnedIntent.getData(), getActivity().getContentResolver());
+
+                    if (requestCode == SELECT_PHOTO_1) {
+                        onBaseImagePicked(image);
+                    } else {
+                        onMergeImagePicked(image);
+                    }
+                }
+        }
+    }
+
+    private void onBaseImagePicked(final ImageHandle image) {
+
+        mBaseImage = image;
+        mSession.setBaseImage(image);
+
+        if (mBaseDecoderTask != null) {
+            mBaseDecoderTask.cancel(true);
+        }
+
+        if (mPairDecoderTask != null) {
+            mPairDecoderTask.cancel(true);
+            mPairDecoderTask = null;
+        }
+
+        if (mRootView == null) {
+            // decoded by the next view created, see onCreateView().
+            return;
+        }
+
+        runAfterLayout(mRootView.findViewById(R.id.image_holder), new Runnable() {
+            @Override
+            public void run() {
+                if (image == mBaseImage && isAdded() && mRootView != null) {
+                    decodeBase(image);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the base image for the size of the laid out preview, along with the merge image if there is one.
+     */
+    private void decodeBase(final ImageHandle image) {
+
+        final int dimens[] = getDimens(R.id.image_holder);
+
+        if (mMergeImage != null && getMergeSpec().hasOverlay()) {
+            decodePair(image, mMergeImage, dimens);
+            return;
+        }
+
+        image.prefetchBounds(new ImageHandle.OnBoundsListener() {
+            @Override
+            public void onBounds(ImageHandle handle) {
+
+                if (image != mBaseImage) {
+                    // replaced before we got to decode it.
+                    return;
+                }
+
+                mBaseDecoderTask = image.newDecoderTask(dimens[0], dimens[1])
+                        .setBitmapTracker(mTracker)
+                        .setMemoryGovernor(MemoryGovernor.getDefault())
+                        .setListener(new BitmapDecoderTask.OnDecodeListener() {
+                            @Override
+                            public void onDecode(BitmapDecoderTask task, Bitmap bitmap) {
+
+                                if (image == mBaseImage && isAdded()) {
+                                    setBaseRef(task.getOutputRef());
+                                } else {
+                                    release(task.getOutputRef());
+                                }
+                            }
+                        });
+                mBaseDecoderTask.decode();
+            }
+        });
+    }
+
+    /**
+     * Decodes the base and the merge image at the same time, the merge image sampled for the current spec.
+     */
+    private void decodePair(final ImageHandle baseImage, final ImageHandle mergeImage, int[] dimens) {
+
+        if (mMergeDecoderTask != null) {
+            mMergeDecoderTask.cancel(true);
+            mMergeDecoderTask = null;
+        }
+
+        mPairDecoderTask = new PairDecoderTask(baseImage, mergeImage, mTracker)
+                .setRequiredSize(dimens[0], dimens[1])
+                .setMergeSpec(getMergeSpec())
+                .setMemoryGovernor(MemoryGovernor.getDefault())
+                .setListener(new PairDecoderTask.OnPairDecodeListener() {
+                    @Override
+                    public void onDecode(PairDecoderTask task, BitmapRef baseRef, BitmapRef mergeRef) {
+
+                        if (baseImage != mBaseImage || !isAdded()) {
+                            release(baseRef);
+                            release(mergeRef);
+                            return;
+                        }
+
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "both images decoded in " + task.getElapsedMillis() + " ms, " + task.getSamplePlan());
+                        }
+
+                        if (mergeImage == mMergeImage && mergeRef != null) {
+                            setBitmapRefs(baseRef, mergeRef, task.getMergeOrientation());
+                        } else {
+                            // the merge image was picked again meanwhile, it is decoded for the new one.
+                            release(mergeRef);
+                            setBaseRef(baseRef);
+                        }
+                    }
+                });
+        mPairDecoderTask.decode();
+    }
+
+    private void onMergeImagePicked(final ImageHandle image) {
+
+        mMergeImage = image;
+        mSession.setMergeImage(image);
+        setMergeRef(null);
+
+        if (mMergeDecoderTask != null) {
+            mMergeDecoderTask.cancel(true);
+            mMergeDecoderTask = null;
+        }
+
+        image.prefetchBounds(new ImageHandle.OnBoundsListener() {
+            @Override
+            public void onBounds(ImageHandle handle) {
+                if (image == mMergeImage) {
+                    refreshIfCreated();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mRootView = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mBaseDecoderTask != null) {
+            mBaseDecoderTask.cancel(true);
+        }
+
+        if (mMergeDecoderTask != null) {
+            mMergeDecoderTask.cancel(true);
+        }
+
+        if (mPairDecoderTask != null) {
+            mPairDecoderTask.cancel(true);
+        }
+
+        // the bitmaps stay in the session for the next fragment.
+    }
+
+    private void setBaseRef(BitmapRef ref) {
+        setBitmapRefs(ref, mMergeRef, mMergeOrientation);
+    }
+
+    private void setMergeRef(BitmapRef ref) {
+        setBitmapRefs(mBaseRef, ref, mMergeOrientation);
+    }
+
+    /**
+     * Replaces the base and merge bitmaps together, so that the preview is refreshed once for both.
+     */
+    private void setBitmapRefs(BitmapRef baseRef, BitmapRef mergeRef, int mergeOrientation) {
+
+        boolean mergeChanged = mergeRef != mMergeRef;
+
+        mBaseRef = baseRef;
+        mBaseBitmap = baseRef != null ? baseRef.get() : null;
+
+        if (mergeChanged) {
+            mMergeRef = mergeRef;
+            mMergeBitmap = mergeRef != null ? mergeRef.get() : null;
+            // levels are built as the scale slider asks for them.
+            mMergePyramid = mergeRef != null ? new MipPyramid(mergeRef, mTracker, PYRAMID_MAX_BYTES) : null;
+        }
+        mMergeOrientation = mergeOrientation;
+
+        // stop previewing the previous bitmaps before the session lets them go.
+        refreshIfCreated();
+
+        mSession.setBitmapRefs(mBaseRef, mMergeRef, mMergePyramid, mMergeOrientation);
+
+        if (BuildConfig.DEBUG && mergeChanged) {
+            Log.d(TAG, "live bitmaps: " + mTracker.getLiveCount() + ", " + mTracker.getLiveBytes() + " bytes, decodes reusing a pooled bitmap: "
+                    + BitmapDecoderTask.getReusedDecodeCount() + "/" + BitmapDecoderTask.getDecodeCount());
+        }
+    }
+
+    private void refreshIfCreated() {
+        if (mRootView != null) {
+            refresh();
+        }
+    }
+
+    private static void release(BitmapRef ref) {
+        if (ref != null) {
+            ref.release();
+        }
+    }
+
+    public int[] getDimens(int resId) {
+        int width = mRootView.findViewById(resId).getMeasuredWidth();
+        int height = mRootView.findViewById(resId).getMeasuredHeight();
+
+        return new int[]{width, height};
+
+    }
+
+}
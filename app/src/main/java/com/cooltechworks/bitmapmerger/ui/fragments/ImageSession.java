@@ -0,0 +1,192 @@
+package com.cooltechworks.bitmapmerger.ui.fragments;
+
+import android.content.Context;
+import android.media.ExifInterface;
+import android.os.SystemClock;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.BitmapTracker;
+import com.cooltechworks.bitmapmerger.cache.MemoryGovernor;
+import com.cooltechworks.bitmapmerger.cache.MergeResultCache;
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+import com.cooltechworks.bitmapmerger.tasks.ImageHandle;
+
+import java.io.File;
+
+/**
+ * ImageSession keeps the images picked in the merge demo for the whole process, so that switching between the merge options
+ * or rotating the device, which both create new fragments, shows the same images again without decoding them.
+ *
+ * It holds the picked images, the decoded base and merge bitmaps along with the levels of the merge bitmap scaled so far,
+ * the scale and the cache of the merged bitmaps. The session owns the bitmap handles given to it and releases them once
+ * they are replaced. Only to be used from the main thread.
+ *
+ * It also measures the time from a switch of the merge option to the first draw of the preview.
+ */
+public final class ImageSession {
+
+    private static final int RESULT_CACHE_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long RESULT_CACHE_DISK_BYTES = 32 * 1024 * 1024;
+
+    private static ImageSession sDefault;
+
+    private final BitmapTracker mTracker;
+    private ImageHandle mBaseImage, mMergeImage;
+    private BitmapRef mBaseRef, mMergeRef;
+    private MipPyramid mMergePyramid;
+    private int mMergeOrientation = ExifInterface.ORIENTATION_NORMAL;
+    private float mScale = 0.5f;
+    private MergeResultCache mResultCache;
+    private long mSwitchUptimeMillis = -1;
+    private long mTimeToPreviewMillis = -1;
+
+
+    /**
+     * @param tracker - tracker the bitmaps of the session are tracked by.
+     */
+    public ImageSession(BitmapTracker tracker) {
+        this.mTracker = tracker;
+    }
+
+    /**
+     * @return the session shared by the merge fragments, tracking bitmaps with the default tracker.
+     */
+    public static ImageSession getDefault() {
+        if (sDefault == null) {
+            sDefault = new ImageSession(BitmapTracker.getDefault());
+        }
+        return sDefault;
+    }
+
+    public BitmapTracker getTracker() {
+        return mTracker;
+    }
+
+    public ImageHandle getBaseImage() {
+        return mBaseImage;
+    }
+
+    public void setBaseImage(ImageHandle image) {
+        this.mBaseImage = image;
+    }
+
+    public ImageHandle getMergeImage() {
+        return mMergeImage;
+    }
+
+    public void setMergeImage(ImageHandle image) {
+        this.mMergeImage = image;
+    }
+
+    public BitmapRef getBaseRef() {
+        return mBaseRef;
+    }
+
+    public BitmapRef getMergeRef() {
+        return mMergeRef;
+    }
+
+    /**
+     * @return the scaled levels of the merge bitmap, null if there is no merge bitmap.
+     */
+    public MipPyramid getMergePyramid() {
+        return mMergePyramid;
+    }
+
+    public int getMergeOrientation() {
+        return mMergeOrientation;
+    }
+
+    /**
+     * Replaces the decoded bitmaps, releasing the previous ones that are not kept.
+     * @param baseRef - handle of the base bitmap, now owned by the session, can be null.
+     * @param mergeRef - handle of the merge bitmap, now owned by the session, can be null.
+     * @param mergePyramid - levels of the merge bitmap, now owned by the session, null with no merge bitmap.
+     * @param mergeOrientation - exif orientation of the merge bitmap.
+     */
+    public void setBitmapRefs(BitmapRef baseRef, BitmapRef mergeRef, MipPyramid mergePyramid, int mergeOrientation) {
+
+        BitmapRef previousBase = baseRef != mBaseRef ? mBaseRef : null;
+        BitmapRef previousMerge = mergeRef != mMergeRef ? mMergeRef : null;
+        MipPyramid previousPyramid = mergePyramid != mMergePyramid ? mMergePyramid : null;
+
+        mBaseRef = baseRef;
+        mMergeRef = mergeRef;
+        mMergePyramid = mergePyramid;
+        mMergeOrientation = mergeOrientation;
+
+        if (previousPyramid != null) {
+            previousPyramid.release();
+        }
+        if (previousBase != null) {
+            previousBase.release();
+        }
+        if (previousMerge != null) {
+            previousMerge.release();
+        }
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public void setScale(float scale) {
+        this.mScale = scale;
+    }
+
+    /**
+     * @param context - any context, the disk tier is kept in its cache directory.
+     * @return cache of the merged bitmaps, created on first use and trimmed by the default {@link MemoryGovernor}.
+     */
+    public MergeResultCache getResultCache(Context context) {
+        if (mResultCache == null) {
+            mResultCache = new MergeResultCache(mTracker, new File(context.getCacheDir(), "merge_results"),
+                    RESULT_CACHE_MEMORY_BYTES, RESULT_CACHE_DISK_BYTES);
+            MemoryGovernor.getDefault().addTrimmable(mResultCache);
+        }
+        return mResultCache;
+    }
+
+    /**
+     * Starts measuring the time to preview, called when the merge option is switched or the fragment is recreated.
+     */
+    public void onModeSwitch() {
+        mSwitchUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return true if a switch is waiting for its preview to be drawn.
+     */
+    public boolean isPreviewPending() {
+        return mSwitchUptimeMillis >= 0;
+    }
+
+    /**
+     * Stops measuring the time to preview without recording it, when there is nothing to preview.
+     */
+    public void cancelPreviewPending() {
+        mSwitchUptimeMillis = -1;
+    }
+
+    /**
+     * Records the time to preview of the pending switch.
+     * @return the time from the switch to now in milliseconds, -1 if no switch was pending.
+     */
+    public long onPreviewDrawn() {
+
+        if (mSwitchUptimeMillis < 0) {
+            return -1;
+        }
+
+        mTimeToPreviewMillis = SystemClock.uptimeMillis() - mSwitchUptimeMillis;
+        mSwitchUptimeMillis = -1;
+        return mTimeToPreviewMillis;
+    }
+
+    /**
+     * @return time from the last switch of the merge option to the first draw of its preview in milliseconds, -1 if none yet.
+     */
+    public long getTimeToPreviewMillis() {
+        return mTimeToPreviewMillis;
+    }
+}
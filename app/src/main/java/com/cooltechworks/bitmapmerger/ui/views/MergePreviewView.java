@@ -0,0 +1,326 @@
+package com.cooltechworks.bitmapmerger.ui.views;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.cooltechworks.bitmapmerger.cache.BitmapRef;
+import com.cooltechworks.bitmapmerger.cache.MipPyramid;
+import com.cooltechworks.bitmapmerger.tasks.BitmapDecoderTask;
+import com.cooltechworks.bitmapmerger.tasks.BitmapMergerTask;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.OverlayPaint;
+import com.cooltechworks.bitmapmerger.tasks.OverlayTransform;
+
+/**
+ * MergePreviewView shows the merge of two bitmaps without producing the merged bitmap. It draws the base bitmap fit to
+ * the view (like an ImageView with FIT_CENTER) and the merge bitmap over it, placed by a {@link MergeSpec} exactly where
+ * {@link BitmapMergerTask} would place it.
+ *
+ * Changing the spec only invalidates the view, so sliders can update the preview on every change without allocating. With
+ * hardware acceleration the merge bitmap is scaled while drawing, otherwise a scaled copy of it is kept and created again
+ * only when its size changes. Use {@link BitmapMergerTask} for getting the merged bitmap itself.
+ *
+ * With a {@link MipPyramid} of the merge bitmap set, the merge bitmap is drawn from the nearest pyramid level at least the
+ * size it is shown at, so that small scales do not alias. Levels are built in the background when that size changes;
+ * until the level is built the view draws from the next larger one there is.
+ *
+ * A spec blending with a mode other than normal, or with an opacity, is drawn with an {@link OverlayPaint}, blending with
+ * the base bitmap as drawn into the view.
+ *
+ * The view does not own the bitmaps; they must stay valid (not recycled) while they are set.
+ */
+public class MergePreviewView extends View {
+
+    private Bitmap mBaseBitmap;
+    private Bitmap mMergeBitmap;
+    private int mMergeOrientation = ExifInterface.ORIENTATION_NORMAL;
+    private MergeSpec mMergeSpec = MergeSpec.atCenter(0.5f);
+
+    private final Matrix mBaseMatrix = new Matrix();
+    private final OverlayTransform mOverlayTransform = new OverlayTransform();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final OverlayPaint mOverlayPaint = new OverlayPaint();
+    private final Matrix mOverlayMatrix = new Matrix();
+
+    // software rendering only - the merge bitmap scaled to the size it is drawn at.
+    private Bitmap mScaledMergeBitmap;
+
+    private MipPyramid mMergePyramid;
+    private BitmapRef mMergeLevel; // pyramid level drawn, held until another one is drawn.
+    private int mMergeLevelWidth, mMergeLevelHeight; // size the level was picked for.
+    private BuildLevelTask mBuildLevelTask;
+    private int mBuiltWidth, mBuiltHeight; // size the last level build was for.
+
+
+    public MergePreviewView(Context context) {
+        super(context);
+    }
+
+    public MergePreviewView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public MergePreviewView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Sets the bitmaps to be previewed.
+     * @param baseBitmap - base bitmap, null for showing nothing.
+     * @param mergeBitmap - merge bitmap as decoded, null for showing the base bitmap alone.
+     * @param mergeOrientation - EXIF orientation of the merge bitmap.
+     */
+    public void setBitmaps(Bitmap baseBitmap, Bitmap mergeBitmap, int mergeOrientation) {
+
+        if (baseBitmap == mBaseBitmap && mergeBitmap == mMergeBitmap && mergeOrientation == mMergeOrientation) {
+            return;
+        }
+
+        if (mergeBitmap != mMergeBitmap || mergeOrientation != mMergeOrientation) {
+            clearScaledMergeBitmap();
+            releaseMergeLevel();
+            // the pyramid is of the previous merge bitmap.
+            mMergePyramid = null;
+        }
+
+        mBaseBitmap = baseBitmap;
+        mMergeBitmap = mergeBitmap;
+        mMergeOrientation = mergeOrientation;
+        invalidate();
+    }
+
+    /**
+     * Sets the pyramid of the merge bitmap to draw it from. Changing the merge bitmap unsets the pyramid.
+     * @param pyramid - pyramid built from the merge bitmap set with {@link #setBitmaps(Bitmap, Bitmap, int)}, null for
+     *                drawing the merge bitmap itself.
+     */
+    public void setMergePyramid(MipPyramid pyramid) {
+
+        if (pyramid != mMergePyramid) {
+            clearScaledMergeBitmap();
+            releaseMergeLevel();
+            mMergePyramid = pyramid;
+            invalidate();
+        }
+    }
+
+    /**
+     * Sets the placement of the merge bitmap.
+     * @param spec - spec of the merge.
+     */
+    public void setMergeSpec(MergeSpec spec) {
+
+        if (!spec.equals(mMergeSpec)) {
+            mMergeSpec = spec;
+            invalidate();
+        }
+    }
+
+    public MergeSpec getMergeSpec() {
+        return mMergeSpec;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (mBaseBitmap == null) {
+            return;
+        }
+
+        int baseWidth = mBaseBitmap.getWidth();
+        int baseHeight = mBaseBitmap.getHeight();
+
+        int saveCount = canvas.save();
+        canvas.concat(getBaseMatrix(baseWidth, baseHeight));
+
+        canvas.drawBitmap(mBaseBitmap, 0, 0, mPaint);
+
+        if (mMergeBitmap != null && mMergeSpec.hasOverlay()) {
+
+            int overlayWidth = mMergeSpec.getOverlayWidth(baseWidth);
+            int overlayHeight = mMergeSpec.getOverlayHeight(baseHeight);
+
+            if (overlayWidth > 0 && overlayHeight > 0) {
+
+                if (isHardwareAccelerated(canvas)) {
+                    Bitmap mergeBitmap = getMergeLevel(overlayWidth, overlayHeight);
+                    drawOverlay(canvas, mergeBitmap, mOverlayTransform.set(mergeBitmap, mMergeOrientation, mMergeSpec, baseWidth, baseHeight));
+                } else {
+                    mOverlayMatrix.setTranslate(mMergeSpec.getOverlayLeft(baseWidth, baseHeight), mMergeSpec.getOverlayTop(baseWidth, baseHeight));
+                    drawOverlay(canvas, getScaledMergeBitmap(overlayWidth, overlayHeight), mOverlayMatrix);
+                }
+            }
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        clearScaledMergeBitmap();
+        releaseMergeLevel();
+    }
+
+    private void drawOverlay(Canvas canvas, Bitmap mergeBitmap, Matrix matrix) {
+        if (mMergeSpec.hasDefaultBlending()) {
+            canvas.drawBitmap(mergeBitmap, matrix, mPaint);
+        } else {
+            mOverlayPaint.draw(canvas, mergeBitmap, matrix, mMergeSpec.getBlendMode(), mMergeSpec.getOpacity());
+        }
+    }
+
+    private Matrix getBaseMatrix(int baseWidth, int baseHeight) {
+
+        int availableWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        int availableHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+
+        float scale = Math.min(availableWidth / (float) baseWidth, availableHeight / (float) baseHeight);
+
+        mBaseMatrix.setScale(scale, scale);
+        mBaseMatrix.postTranslate(getPaddingLeft() + (availableWidth - baseWidth * scale) / 2f,
+                getPaddingTop() + (availableHeight - baseHeight * scale) / 2f);
+
+        return mBaseMatrix;
+    }
+
+    private Bitmap getScaledMergeBitmap(int width, int height) {
+
+        if (mScaledMergeBitmap == null || mScaledMergeBitmap.getWidth() != width || mScaledMergeBitmap.getHeight() != height) {
+            clearScaledMergeBitmap();
+            Bitmap mergeBitmap = getMergeLevel(width, height);
+            mScaledMergeBitmap = Bitmap.createBitmap(mergeBitmap, 0, 0, mergeBitmap.getWidth(), mergeBitmap.getHeight(),
+                    mOverlayTransform.set(mergeBitmap, mMergeOrientation, width, height, 0, 0), true);
+        }
+
+        return mScaledMergeBitmap;
+    }
+
+    /**
+     * @return the pyramid level to draw the merge bitmap from at the given (upright) size, the merge bitmap itself without a pyramid.
+     */
+    private Bitmap getMergeLevel(int width, int height) {
+
+        if (mMergePyramid == null) {
+            return mMergeBitmap;
+        }
+
+        if (mMergeLevel == null || width != mMergeLevelWidth || height != mMergeLevelHeight) {
+
+            boolean swapped = BitmapDecoderTask.swapsDimensions(mMergeOrientation);
+            int levelWidth = swapped ? height : width;
+            int levelHeight = swapped ? width : height;
+            BitmapRef previous = mMergeLevel;
+
+            mMergeLevel = mMergePyramid.acquireBuiltLevel(levelWidth, levelHeight);
+            mMergeLevelWidth = width;
+            mMergeLevelHeight = height;
+
+            if (previous != null) {
+                previous.release();
+            }
+
+            Bitmap level = mMergeLevel.get();
+            if (level.getWidth() / 2 >= levelWidth && level.getHeight() / 2 >= levelHeight) {
+                buildLevel(levelWidth, levelHeight);
+            }
+        }
+
+        return mMergeLevel.get();
+    }
+
+    /**
+     * Builds the pyramid level for the given size in the background, drawing the view again once it is built.
+     */
+    private void buildLevel(int width, int height) {
+
+        // a build at a time, and once per size, as the budget of the pyramid may not allow a smaller level.
+        if (mBuildLevelTask != null || (width == mBuiltWidth && height == mBuiltHeight)) {
+            return;
+        }
+
+        mBuiltWidth = width;
+        mBuiltHeight = height;
+        mBuildLevelTask = new BuildLevelTask(mMergePyramid, width, height);
+        mBuildLevelTask.execute();
+    }
+
+    private void onLevelBuilt(BuildLevelTask task) {
+
+        if (task != mBuildLevelTask) {
+            return;
+        }
+
+        mBuildLevelTask = null;
+
+        // picks the level again on the next draw.
+        mMergeLevelWidth = mMergeLevelHeight = 0;
+        clearScaledMergeBitmap();
+        invalidate();
+    }
+
+    private void releaseMergeLevel() {
+        if (mMergeLevel != null) {
+            mMergeLevel.release();
+            mMergeLevel = null;
+        }
+        // a build still running completes for the pyramid, but no longer for this view.
+        mBuildLevelTask = null;
+        mBuiltWidth = mBuiltHeight = 0;
+        mOverlayPaint.release();
+    }
+
+    private void clearScaledMergeBitmap() {
+        if (mScaledMergeBitmap != null && mScaledMergeBitmap != mMergeBitmap) {
+            mScaledMergeBitmap.recycle();
+        }
+        mScaledMergeBitmap = null;
+        mOverlayPaint.release();
+    }
+
+    private static boolean isHardwareAccelerated(Canvas canvas) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && isHardwareAcceleratedApi11(canvas);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean isHardwareAcceleratedApi11(Canvas canvas) {
+        return canvas.isHardwareAccelerated();
+    }
+
+    private class BuildLevelTask extends AsyncTask<Void, Void, Void> {
+
+        private final MipPyramid mPyramid;
+        private final int mWidth, mHeight;
+
+        BuildLevelTask(MipPyramid pyramid, int width, int height) {
+            this.mPyramid = pyramid;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            try {
+                mPyramid.acquireLevel(mWidth, mHeight).release();
+            } catch (IllegalStateException e) {
+                // the pyramid was released meanwhile, along with the bitmap it was of.
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            onLevelBuilt(this);
+        }
+    }
+}
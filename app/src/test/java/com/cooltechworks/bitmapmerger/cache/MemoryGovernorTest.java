@@ -0,0 +1,121 @@
+package com.cooltechworks.bitmapmerger.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryGovernorTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void admitsWhatFitsAsAsked() {
+
+        MemoryGovernor governor = new MemoryGovernor(null, 64 * MB);
+        MemoryGovernor.Admission admission = governor.admitDecode(4000, 3000, 2, true, 1);
+
+        assertEquals(2, admission.getSampleSize());
+        assertFalse(admission.isRgb565());
+        assertFalse(admission.isDegraded());
+        assertEquals(2000L * 1500 * 4, governor.getReservedBytes());
+
+        admission.release();
+        admission.release();
+        assertEquals(0, governor.getReservedBytes());
+    }
+
+    @Test
+    public void degradesToRgb565BeforeSamplingDown() {
+
+        // 2000x1500 ARGB is 12MB, RGB_565 6MB.
+        MemoryGovernor governor = new MemoryGovernor(null, 8 * MB);
+
+        MemoryGovernor.Admission opaque = governor.admitDecode(4000, 3000, 2, true, 1);
+        assertTrue(opaque.isDegraded());
+        assertTrue(opaque.isRgb565());
+        assertEquals(2, opaque.getSampleSize());
+        opaque.release();
+
+        MemoryGovernor.Admission alpha = governor.admitDecode(4000, 3000, 2, false, 1);
+        assertFalse(alpha.isRgb565());
+        assertEquals(4, alpha.getSampleSize());
+        assertEquals(1000L * 750 * 4, alpha.getBytes());
+        assertEquals(2, governor.getDegradedCount());
+    }
+
+    @Test
+    public void countsCopiesAndRoundsSampledSizeUp() {
+
+        assertEquals(501L * 401 * 4, MemoryGovernor.getDecodeBytes(1001, 801, 2, 4));
+
+        MemoryGovernor governor = new MemoryGovernor(null, 64 * MB);
+        assertEquals(2 * MemoryGovernor.getDecodeBytes(1001, 801, 2, 4), governor.admitDecode(1001, 801, 2, false, 2).getBytes());
+    }
+
+    @Test
+    public void waitsForRunningMergeBeforeDegrading() throws InterruptedException {
+
+        final MemoryGovernor governor = new MemoryGovernor(null, 10 * MB).setMaxWaitMillis(5000);
+        final MemoryGovernor.Admission running = governor.admitMerge(8 * MB);
+
+        Thread finisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                running.release();
+            }
+        });
+        finisher.start();
+
+        MemoryGovernor.Admission waiting = governor.admitMerge(6 * MB);
+        finisher.join();
+
+        assertFalse(waiting.isDegraded());
+        assertEquals(1, governor.getQueuedCount());
+    }
+
+    @Test
+    public void doesNotWaitWithNothingRunning() {
+
+        MemoryGovernor governor = new MemoryGovernor(null, MB).setMaxWaitMillis(60000);
+
+        long start = System.currentTimeMillis();
+        MemoryGovernor.Admission admission = governor.admitMerge(2 * MB);
+
+        assertTrue(admission.isDegraded());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, governor.getQueuedCount());
+    }
+
+    @Test
+    public void trimsByPressureLevel() {
+
+        final List<Float> fractions = new ArrayList<Float>();
+        MemoryGovernor governor = new MemoryGovernor(null, MB);
+        governor.addTrimmable(new MemoryGovernor.Trimmable() {
+            @Override
+            public void trimMemory(float keepFraction) {
+                fractions.add(keepFraction);
+            }
+        });
+
+        governor.onTrimMemory(20);  // TRIM_MEMORY_UI_HIDDEN
+        governor.onTrimMemory(15);  // TRIM_MEMORY_RUNNING_CRITICAL
+        governor.onTrimMemory(80);  // TRIM_MEMORY_COMPLETE
+        governor.onLowMemory();
+
+        assertEquals(4, fractions.size());
+        assertEquals(0.5f, fractions.get(0), 0f);
+        assertEquals(0f, fractions.get(1), 0f);
+        assertEquals(0f, fractions.get(2), 0f);
+        assertEquals(0f, fractions.get(3), 0f);
+    }
+}
@@ -0,0 +1,80 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BlendModeTest {
+
+    private static final int BASE = 0xff4080c0;
+    private static final int SOURCE = 0xffc08040;
+
+    @Test
+    public void opaqueColorsBlendByTheMode() {
+
+        assertEquals(0xffc08040, RasterMerger.blend(SOURCE, BASE, BlendMode.NORMAL, 255));
+        assertEquals(0xff304030, RasterMerger.blend(SOURCE, BASE, BlendMode.MULTIPLY, 255));
+        assertEquals(0xffd0c0d0, RasterMerger.blend(SOURCE, BASE, BlendMode.SCREEN, 255));
+        // dark red and green of the base multiply, its light blue screens.
+        assertEquals(0xff6080a1, RasterMerger.blend(SOURCE, BASE, BlendMode.OVERLAY, 255));
+        assertEquals(0xff408040, RasterMerger.blend(SOURCE, BASE, BlendMode.DARKEN, 255));
+        assertEquals(0xffc080c0, RasterMerger.blend(SOURCE, BASE, BlendMode.LIGHTEN, 255));
+        assertEquals(0xffffffff, RasterMerger.blend(SOURCE, BASE, BlendMode.ADD, 255));
+        assertEquals(0xff8080ff, RasterMerger.blend(0xff400040, BASE, BlendMode.ADD, 255));
+    }
+
+    @Test
+    public void transparentPartsLeaveTheBase() {
+        for (BlendMode mode : BlendMode.values()) {
+            assertEquals(mode.name(), BASE, RasterMerger.blend(0x00c08040, BASE, mode, 255));
+            assertEquals(mode.name(), BASE, RasterMerger.blend(SOURCE, BASE, mode, 0));
+        }
+    }
+
+    @Test
+    public void onlyCoveredPartsAreBlended() {
+        // over a transparent base, the source is kept as it is whatever the mode.
+        for (BlendMode mode : BlendMode.values()) {
+            assertEquals(mode.name(), SOURCE, RasterMerger.blend(SOURCE, 0x00000000, mode, 255));
+        }
+    }
+
+    @Test
+    public void opacityScalesTheSourceAlpha() {
+
+        assertEquals(RasterMerger.srcOver(0x80c08040, BASE), RasterMerger.blend(SOURCE, BASE, BlendMode.NORMAL, 128));
+        // multiplying by half, half of the time.
+        assertEquals(0xff306090, RasterMerger.blend(0xff808080, BASE, BlendMode.MULTIPLY, 128));
+    }
+
+    @Test
+    public void defaultBlendingMergesAsBefore() {
+
+        ArgbImage base = TestImages.gradient(96, 64);
+        ArgbImage overlay = TestImages.translucentChecker(40, 30);
+        MergeSpec spec = MergeSpec.atAngle(0.5f, 30);
+
+        assertArrayEquals(RasterMerger.merge(base, overlay, spec).getPixels(),
+                RasterMerger.merge(base, overlay, spec.withBlendMode(BlendMode.NORMAL).withOpacity(1f)).getPixels());
+        assertSame(base, RasterMerger.merge(base, overlay, spec.withOpacity(0f)));
+    }
+
+    @Test
+    public void blendedMergeMatchesBlendingTheScaledOverlay() {
+
+        ArgbImage base = TestImages.gradient(96, 64);
+        ArgbImage overlay = TestImages.translucentChecker(40, 30);
+        MergeSpec spec = MergeSpec.fromTopLeft(0.5f, 60, 40).withBlendMode(BlendMode.MULTIPLY).withOpacity(0.75f);
+
+        ArgbImage expected = base.copy();
+        ArgbImage scaled = RasterScaler.scale(overlay, spec.getOverlayWidth(96), spec.getOverlayHeight(64));
+        RasterMerger.drawBlended(expected, scaled, 60, 40, BlendMode.MULTIPLY, 0.75f);
+
+        assertArrayEquals(expected.getPixels(), RasterMerger.merge(base, overlay, spec).getPixels());
+    }
+}
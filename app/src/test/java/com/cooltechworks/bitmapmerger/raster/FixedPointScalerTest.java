@@ -0,0 +1,120 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FixedPointScalerTest {
+
+    private static final int[][] SIZES = {{31, 17}, {200, 130}, {64, 48}, {320, 240}, {13, 400}, {1, 1}};
+
+    @Test
+    public void matchesFloatReferenceWithinOneLevel() {
+
+        ArgbImage[] sources = {TestImages.gradient(97, 61), TestImages.translucentChecker(64, 48)};
+
+        for (ArgbImage source : sources) {
+            for (int[] size : SIZES) {
+
+                int[] expected = FloatReferenceScaler.scale(source, size[0], size[1]).getPixels();
+                int[] actual = RasterScaler.scale(source, size[0], size[1]).getPixels();
+
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(source.getWidth() + " -> " + size[0] + "x" + size[1] + " at " + i,
+                            0, Math.max(0, maxChannelDifference(expected[i], actual[i]) - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void regionMatchesFullScale() {
+
+        ArgbImage source = TestImages.translucentChecker(64, 48);
+        ArgbImage full = RasterScaler.scale(source, 150, 110);
+        ArgbImage region = new ArgbImage(40, 30);
+
+        RasterScaler.scaleRegion(source, 150, 110, 70, 55, region);
+
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 40; x++) {
+                assertEquals(full.getPixel(70 + x, 55 + y), region.getPixel(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void areaAveragesCoveredPixels() {
+
+        // black and white columns average to mid gray.
+        ArgbImage stripes = new ArgbImage(4, 2);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 4; x++) {
+                stripes.setPixel(x, y, x % 2 == 0 ? 0xff000000 : 0xffffffff);
+            }
+        }
+        assertArrayEquals(new int[]{0xff808080, 0xff808080}, RasterScaler.scaleArea(stripes, 2, 1).getPixels());
+
+        // transparent pixels do not darken the color, they only lower the alpha.
+        ArgbImage half = new ArgbImage(2, 1, new int[]{0xffff0000, 0x0000ff00});
+        assertEquals(0x80ff0000, RasterScaler.scaleArea(half, 1, 1).getPixel(0, 0));
+
+        // an uneven reduction splits the middle pixel between both sides.
+        ArgbImage three = new ArgbImage(3, 1, new int[]{0xff000000, 0xff646464, 0xffc8c8c8});
+        assertArrayEquals(new int[]{0xff212121, 0xffa7a7a7}, RasterScaler.scaleArea(three, 2, 1).getPixels());
+    }
+
+    @Test
+    public void scalingAgainAllocatesNothing() {
+
+        Assume.assumeTrue(PerfBudget.isAllocationMeasurable());
+
+        final ArgbImage source = TestImages.translucentChecker(640, 480);
+        final ArgbImage destination = new ArgbImage(300, 200);
+        final FixedPointScaler scaler = new FixedPointScaler();
+
+        long bilinear = PerfBudget.allocatedBytes(new PerfBudget.Work() {
+            @Override
+            public void run() {
+                scaler.scaleRegion(source, 600, 400, 150, 100, destination);
+            }
+        });
+
+        long area = PerfBudget.allocatedBytes(new PerfBudget.Work() {
+            @Override
+            public void run() {
+                scaler.scaleArea(source, destination);
+            }
+        });
+
+        assertTrue("bilinear allocated " + bilinear + " bytes", bilinear == 0);
+        assertTrue("area allocated " + area + " bytes", area == 0);
+    }
+
+    @Test
+    public void isFasterThanFloatReference() {
+
+        long fixed = PerfBudget.medianNanos(RasterBenchmark.newFixedScaleWork(false));
+        long reference = PerfBudget.medianNanos(RasterBenchmark.newFloatScaleWork());
+
+        assertTrue("fixed point took " + fixed + " ns, float " + reference + " ns",
+                fixed <= reference * PerfBudget.getBudgetScale());
+    }
+
+    private static int maxChannelDifference(int expected, int actual) {
+
+        int difference = Math.abs((expected >>> 24) - (actual >>> 24));
+
+        // colors of nearly transparent pixels carry no weight.
+        if ((expected >>> 24) >= 16) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                difference = Math.max(difference, Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff)));
+            }
+        }
+
+        return difference;
+    }
+}
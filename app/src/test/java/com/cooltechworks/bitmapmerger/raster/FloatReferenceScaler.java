@@ -0,0 +1,113 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+/**
+ * Bilinear scaling in floating point, computing every output pixel from its four neighbours directly. The fixed point
+ * {@link FixedPointScaler} is checked against it and benchmarked with it.
+ */
+final class FloatReferenceScaler {
+
+    private FloatReferenceScaler() {
+    }
+
+    /**
+     * @param source - image to be scaled.
+     * @param width - width of the scaled image, positive.
+     * @param height - height of the scaled image, positive.
+     * @return a new image of the given size.
+     */
+    static ArgbImage scale(ArgbImage source, int width, int height) {
+
+        ArgbImage scaled = new ArgbImage(width, height);
+        scale(source, scaled);
+        return scaled;
+    }
+
+    /**
+     * Scales the source to fill the destination completely.
+     * @param source - image to be scaled.
+     * @param destination - image receiving the scaled pixels.
+     */
+    static void scale(ArgbImage source, ArgbImage destination) {
+        scaleRegion(source, destination.getWidth(), destination.getHeight(), 0, 0, destination);
+    }
+
+    /**
+     * Computes only a region of the scaled image - the pixels are the same as the ones at that region of the fully scaled
+     * image, without scaling the rest of it.
+     * @param source - image to be scaled.
+     * @param scaledWidth - width of the whole scaled image.
+     * @param scaledHeight - height of the whole scaled image.
+     * @param fromX - x of the region within the scaled image.
+     * @param fromY - y of the region within the scaled image.
+     * @param destination - image receiving the region, its size being the size of the region.
+     */
+    static void scaleRegion(ArgbImage source, int scaledWidth, int scaledHeight, int fromX, int fromY, ArgbImage destination) {
+
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int dstWidth = destination.getWidth();
+        int dstHeight = destination.getHeight();
+        int[] src = source.getPixels();
+        int[] dst = destination.getPixels();
+
+        float xRatio = srcWidth / (float) scaledWidth;
+        float yRatio = srcHeight / (float) scaledHeight;
+
+        for (int y = 0; y < dstHeight; y++) {
+
+            float sy = clamp((fromY + y + 0.5f) * yRatio - 0.5f, srcHeight - 1);
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, srcHeight - 1);
+            float fy = sy - y0;
+
+            int row0 = y0 * srcWidth;
+            int row1 = y1 * srcWidth;
+            int out = y * dstWidth;
+
+            for (int x = 0; x < dstWidth; x++) {
+
+                float sx = clamp((fromX + x + 0.5f) * xRatio - 0.5f, srcWidth - 1);
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, srcWidth - 1);
+                float fx = sx - x0;
+
+                dst[out + x] = interpolate(src[row0 + x0], src[row0 + x1], src[row1 + x0], src[row1 + x1], fx, fy);
+            }
+        }
+    }
+
+    private static float clamp(float value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    // interpolates in premultiplied space so that transparent neighbours do not bleed their color.
+    private static int interpolate(int c00, int c10, int c01, int c11, float fx, float fy) {
+
+        float w00 = (1 - fx) * (1 - fy);
+        float w10 = fx * (1 - fy);
+        float w01 = (1 - fx) * fy;
+        float w11 = fx * fy;
+
+        float a00 = c00 >>> 24, a10 = c10 >>> 24, a01 = c01 >>> 24, a11 = c11 >>> 24;
+        float a = a00 * w00 + a10 * w10 + a01 * w01 + a11 * w11;
+
+        if (a < 0.5f) {
+            return 0;
+        }
+
+        float r = channel(c00, 16) * a00 * w00 + channel(c10, 16) * a10 * w10 + channel(c01, 16) * a01 * w01 + channel(c11, 16) * a11 * w11;
+        float g = channel(c00, 8) * a00 * w00 + channel(c10, 8) * a10 * w10 + channel(c01, 8) * a01 * w01 + channel(c11, 8) * a11 * w11;
+        float b = channel(c00, 0) * a00 * w00 + channel(c10, 0) * a10 * w10 + channel(c01, 0) * a01 * w01 + channel(c11, 0) * a11 * w11;
+
+        return ((int) (a + 0.5f) << 24) | (round(r / a) << 16) | (round(g / a) << 8) | round(b / a);
+    }
+
+    private static int channel(int color, int shift) {
+        return (color >> shift) & 0xff;
+    }
+
+    private static int round(float value) {
+        int rounded = (int) (value + 0.5f);
+        return rounded > 255 ? 255 : rounded;
+    }
+}
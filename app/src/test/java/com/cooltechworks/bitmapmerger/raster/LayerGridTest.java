@@ -0,0 +1,203 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LayerGridTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void queryFindsTheSameLayersAsAScan() {
+
+        Random random = new Random(50);
+        LayerGrid grid = new LayerGrid(WIDTH, HEIGHT, 32);
+        int[][] bounds = new int[400][];
+
+        for (int i = 0; i < 4000; i++) {
+            int id = random.nextInt(bounds.length);
+            if (bounds[id] != null && random.nextInt(4) == 0) {
+                grid.remove(id);
+                bounds[id] = null;
+            } else {
+                // some of the layers partly or entirely off the image.
+                int left = random.nextInt(WIDTH + 200) - 100;
+                int top = random.nextInt(HEIGHT + 200) - 100;
+                bounds[id] = new int[]{left, top, left + 1 + random.nextInt(120), top + 1 + random.nextInt(120)};
+                grid.put(id, bounds[id][0], bounds[id][1], bounds[id][2], bounds[id][3]);
+            }
+
+            int left = random.nextInt(WIDTH) - 20;
+            int top = random.nextInt(HEIGHT) - 20;
+            int right = left + random.nextInt(200);
+            int bottom = top + random.nextInt(200);
+            int count = grid.query(left, top, right, bottom);
+
+            int[] expected = scan(bounds, left, top, right, bottom);
+            assertArrayEquals(expected, Arrays.copyOf(grid.getResults(), count));
+        }
+
+        int layers = 0;
+        for (int[] layer : bounds) {
+            layers += layer != null ? 1 : 0;
+        }
+        assertEquals(layers, grid.getLayerCount());
+    }
+
+    @Test
+    public void hitTestFindsTheTopMostLayer() {
+
+        LayerGrid grid = new LayerGrid(WIDTH, HEIGHT, 64);
+        grid.put(0, 0, 0, 200, 200);
+        grid.put(1, 100, 100, 300, 300);
+        grid.put(2, 150, 150, 160, 160);
+
+        assertEquals(2, grid.hitTest(155, 155));
+        assertEquals(1, grid.hitTest(120, 120));
+        assertEquals(0, grid.hitTest(50, 50));
+        assertEquals(-1, grid.hitTest(400, 50));
+        assertEquals(-1, grid.hitTest(200, 99));
+
+        // moving a layer away leaves the one below to be hit.
+        grid.put(2, 500, 400, 520, 420);
+        assertEquals(1, grid.hitTest(155, 155));
+        assertEquals(2, grid.hitTest(510, 410));
+
+        grid.remove(1);
+        assertEquals(0, grid.hitTest(155, 155));
+        assertEquals(-1, grid.hitTest(250, 250));
+    }
+
+    @Test
+    public void queryVisitsOnlyTheCellsOfTheRegion() {
+
+        LayerGrid grid = new LayerGrid(WIDTH, HEIGHT, 64);
+        for (int id = 0; id < 1000; id++) {
+            int left = (id * 37) % WIDTH;
+            int top = (id * 53) % HEIGHT;
+            grid.put(id, left, top, left + 20, top + 20);
+        }
+
+        grid.query(64, 64, 128, 128);
+        assertEquals(1, grid.getLastCellVisits());
+
+        grid.query(0, 0, WIDTH, HEIGHT);
+        assertEquals(10 * 8, grid.getLastCellVisits());
+    }
+
+    @Test
+    public void renderedStackMatchesMergingEveryLayer() {
+
+        ArgbImage base = TestImages.gradient(WIDTH, HEIGHT);
+        ArgbImage sticker = TestImages.translucentChecker(40, 30);
+        LayerStack stack = new LayerStack(base, 64);
+        MergeSpec[] specs = new MergeSpec[60];
+        Random random = new Random(7);
+
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = randomSpec(random, i);
+            assertEquals(i, stack.addLayer(sticker, specs[i]));
+        }
+        assertArrayEquals(mergeAll(base, sticker, specs).getPixels(), stack.render().getPixels());
+
+        // drag layers around and remove some, re-merging only what changed each time.
+        for (int i = 0; i < 40; i++) {
+            int id = random.nextInt(specs.length);
+            if (specs[id] == null) {
+                continue;
+            }
+
+            if (i % 5 == 4) {
+                stack.removeLayer(id);
+                specs[id] = null;
+            } else {
+                specs[id] = randomSpec(random, id);
+                stack.setSpec(id, specs[id]);
+            }
+
+            assertArrayEquals("step " + i, mergeAll(base, sticker, specs).getPixels(), stack.render().getPixels());
+        }
+    }
+
+    @Test
+    public void renderDrawsOnlyTheLayersOverTheChange() {
+
+        ArgbImage base = TestImages.gradient(WIDTH, HEIGHT);
+        ArgbImage sticker = TestImages.translucentChecker(40, 30);
+        LayerStack stack = new LayerStack(base);
+
+        // a row of small layers, 32x24 each and 40 pixels apart.
+        for (int i = 0; i < 16; i++) {
+            stack.addLayer(sticker, MergeSpec.fromTopLeft(0.05f, i * 40, 100));
+        }
+        stack.render();
+        assertEquals(16, stack.getLastDrawnCount());
+
+        // moved down, the first layer's old and new bounds overlap only itself.
+        stack.setSpec(0, MergeSpec.fromTopLeft(0.05f, 0, 200));
+        stack.render();
+        assertEquals(1, stack.getLastDrawnCount());
+
+        // its old bounds are over the second layer now.
+        stack.setSpec(0, MergeSpec.fromTopLeft(0.05f, 20, 100));
+        stack.render();
+        assertEquals(2, stack.getLastDrawnCount());
+        assertEquals(0, stack.hitTest(30, 110));
+        assertEquals(1, stack.hitTest(55, 110));
+
+        stack.render();
+        assertEquals(0, stack.getLastDrawnCount());
+    }
+
+    private static MergeSpec randomSpec(Random random, int id) {
+
+        MergeSpec spec = MergeSpec.fromTopLeft(0.05f + random.nextFloat() * 0.15f,
+                random.nextInt(WIDTH + 100) - 50, random.nextInt(HEIGHT + 100) - 50);
+        if (id % 3 == 0) {
+            spec = spec.withBlendMode(BlendMode.MULTIPLY).withOpacity(0.7f);
+        }
+        return spec;
+    }
+
+    private static ArgbImage mergeAll(ArgbImage base, ArgbImage sticker, MergeSpec[] specs) {
+
+        ArgbImage merged = base;
+        for (MergeSpec spec : specs) {
+            if (spec != null) {
+                merged = RasterMerger.merge(merged, sticker, spec);
+            }
+        }
+        return merged;
+    }
+
+    private static int[] scan(int[][] bounds, int left, int top, int right, int bottom) {
+
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(WIDTH, right);
+        bottom = Math.min(HEIGHT, bottom);
+        if (right <= left || bottom <= top) {
+            return new int[0];
+        }
+
+        int[] ids = new int[bounds.length];
+        int count = 0;
+        for (int id = 0; id < bounds.length; id++) {
+            int[] layer = bounds[id];
+            if (layer != null && layer[0] < right && left < layer[2] && layer[1] < bottom && top < layer[3]) {
+                ids[count++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
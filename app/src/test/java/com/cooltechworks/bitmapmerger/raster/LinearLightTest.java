@@ -0,0 +1,45 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LinearLightTest {
+
+    @Test
+    public void tablesRoundTripEveryValue() {
+        for (int i = 0; i < 256; i++) {
+            assertEquals(i, LinearLight.toSrgb(LinearLight.toLinear(i)));
+        }
+    }
+
+    @Test
+    public void halfTransparentWhiteOverBlackIsHalfTheLight() {
+
+        // half the light of white is 188 when sRGB encoded, blending the encoded values gives 128.
+        assertEquals(0xffbcbcbc, LinearLight.srcOver(0x80ffffff, 0xff000000));
+        assertEquals(0xff808080, RasterMerger.srcOver(0x80ffffff, 0xff000000));
+    }
+
+    @Test
+    public void opaqueAndTransparentSourcesAreExact() {
+
+        assertEquals(0xff123456, LinearLight.srcOver(0xff123456, 0xff654321));
+        assertEquals(0xff654321, LinearLight.srcOver(0x00123456, 0xff654321));
+        assertEquals(0x80123456, LinearLight.srcOver(0x80123456, 0x00000000));
+    }
+
+    @Test
+    public void opaqueOverlayMergesTheSameInBothSpaces() {
+
+        ArgbImage base = TestImages.gradient(64, 48);
+        ArgbImage overlay = TestImages.gradient(20, 20);
+        MergeSpec spec = MergeSpec.atCenter(0.5f);
+
+        assertArrayEquals(RasterMerger.merge(base, overlay, spec, BlendSpace.SRGB).getPixels(),
+                RasterMerger.merge(base, overlay, spec, BlendSpace.LINEAR).getPixels());
+    }
+}
@@ -0,0 +1,76 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A merge of two synthetic images, identified by a name that doubles as the name of its golden image.
+ */
+class MergeCase {
+
+    final String name;
+    final int baseWidth, baseHeight;
+    final int overlayWidth, overlayHeight;
+    final MergeSpec spec;
+
+
+    MergeCase(String name, int baseWidth, int baseHeight, int overlayWidth, int overlayHeight, MergeSpec spec) {
+        this.name = name;
+        this.baseWidth = baseWidth;
+        this.baseHeight = baseHeight;
+        this.overlayWidth = overlayWidth;
+        this.overlayHeight = overlayHeight;
+        this.spec = spec;
+    }
+
+    ArgbImage createBase() {
+        return TestImages.gradient(baseWidth, baseHeight);
+    }
+
+    ArgbImage createOverlay() {
+        return TestImages.translucentChecker(overlayWidth, overlayHeight);
+    }
+
+    ArgbImage merge() {
+        return RasterMerger.merge(createBase(), createOverlay(), spec);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @return cases covering every merge option across scales, angles and offsets, along with the edge cases - overlay
+     * partly or fully off the base, zero scale, a scale too small for a single pixel and odd sizes.
+     */
+    static List<MergeCase> goldenCases() {
+
+        List<MergeCase> cases = new ArrayList<MergeCase>();
+
+        cases.add(new MergeCase("center_scale_25", 96, 64, 40, 40, MergeSpec.atCenter(0.25f)));
+        cases.add(new MergeCase("center_scale_50", 96, 64, 40, 40, MergeSpec.atCenter(0.5f)));
+        cases.add(new MergeCase("center_scale_100", 96, 64, 40, 40, MergeSpec.atCenter(1f)));
+        cases.add(new MergeCase("center_upscale_odd", 33, 17, 7, 13, MergeSpec.atCenter(0.75f)));
+
+        cases.add(new MergeCase("angle_0", 96, 64, 40, 40, MergeSpec.atAngle(0.3f, 0)));
+        cases.add(new MergeCase("angle_45", 96, 64, 40, 40, MergeSpec.atAngle(0.3f, 45)));
+        cases.add(new MergeCase("angle_135", 96, 64, 40, 40, MergeSpec.atAngle(0.3f, 135)));
+        cases.add(new MergeCase("angle_270", 96, 64, 40, 40, MergeSpec.atAngle(0.3f, 270)));
+        cases.add(new MergeCase("angle_359_odd", 45, 31, 9, 11, MergeSpec.atAngle(0.4f, 359)));
+
+        cases.add(new MergeCase("offset_origin", 96, 64, 40, 40, MergeSpec.fromTopLeft(0.5f, 0, 0)));
+        cases.add(new MergeCase("offset_inside", 96, 64, 40, 40, MergeSpec.fromTopLeft(0.3f, 10, 20)));
+        cases.add(new MergeCase("offset_off_right_bottom", 96, 64, 40, 40, MergeSpec.fromTopLeft(0.5f, 80, 50)));
+        cases.add(new MergeCase("offset_off_left_top", 96, 64, 40, 40, MergeSpec.fromTopLeft(0.5f, -30, -20)));
+        cases.add(new MergeCase("offset_fully_off", 96, 64, 40, 40, MergeSpec.fromTopLeft(0.5f, 200, 200)));
+
+        cases.add(new MergeCase("zero_scale", 96, 64, 40, 40, MergeSpec.atCenter(0f)));
+        cases.add(new MergeCase("sub_pixel_scale", 33, 17, 7, 13, MergeSpec.atCenter(0.02f)));
+        cases.add(new MergeCase("single_pixel_base", 1, 1, 5, 3, MergeSpec.atCenter(1f)));
+
+        return cases;
+    }
+}
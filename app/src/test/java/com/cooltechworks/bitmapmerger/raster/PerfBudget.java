@@ -0,0 +1,101 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Measures the time and the heap allocation of a piece of work on the current thread.
+ *
+ * Time is the median of several runs after warming up, so a single slow run (GC, JIT) does not fail a budget. Allocation is
+ * read from the JVM's per-thread allocation counter and is available on HotSpot based JVMs only, see
+ * {@link #isAllocationMeasurable()}.
+ *
+ * Time budgets are multiplied by the {@code perf.budgetScale} system property (default 1) for slower machines.
+ */
+final class PerfBudget {
+
+    interface Work {
+        void run();
+    }
+
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 15;
+
+    private PerfBudget() {
+    }
+
+    static double getBudgetScale() {
+        return Double.parseDouble(System.getProperty("perf.budgetScale", "1"));
+    }
+
+    /**
+     * @return the median wall time of the work in nanoseconds.
+     */
+    static long medianNanos(Work work) {
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            work.run();
+        }
+
+        long[] times = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            work.run();
+            times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2];
+    }
+
+    /**
+     * Runs the work and the reference one after the other, so that both see the same state of the machine (JIT, GC, other
+     * tests), and compares their median times.
+     * @return the median time of the work over the median time of the reference.
+     */
+    static double medianRatio(Work work, Work reference) {
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            work.run();
+            reference.run();
+        }
+
+        long[] workTimes = new long[MEASURED_RUNS];
+        long[] referenceTimes = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            work.run();
+            long middle = System.nanoTime();
+            reference.run();
+            workTimes[i] = middle - start;
+            referenceTimes[i] = System.nanoTime() - middle;
+        }
+
+        Arrays.sort(workTimes);
+        Arrays.sort(referenceTimes);
+        return workTimes[MEASURED_RUNS / 2] / (double) referenceTimes[MEASURED_RUNS / 2];
+    }
+
+    static boolean isAllocationMeasurable() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * @return bytes allocated on the heap by a single, warmed up run of the work.
+     */
+    static long allocatedBytes(Work work) {
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        work.run();
+
+        long before = bean.getThreadAllocatedBytes(threadId);
+        work.run();
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
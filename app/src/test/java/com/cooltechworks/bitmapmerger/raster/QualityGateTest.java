@@ -0,0 +1,123 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.FastPath;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeStats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QualityGateTest {
+
+    @Test
+    public void scoreFallsWithTheDifference() {
+
+        ArgbImage image = TestImages.gradient(200, 120);
+        PerceptualDiff diff = new PerceptualDiff();
+
+        assertEquals(1.0, diff.compare(image, image.copy()), 1e-9);
+
+        double slight = diff.compare(image, noisy(image, 6));
+        double heavy = diff.compare(image, noisy(image, 48));
+        assertTrue("slight " + slight, slight < 1 && slight > 0.9);
+        assertTrue("heavy " + heavy + " slight " + slight, heavy < slight - 0.2);
+        assertTrue(diff.getWorstTileScore() <= heavy);
+    }
+
+    @Test
+    public void smoothMergesAllowEveryFastPath() {
+
+        QualityGate.Verdict verdict = new QualityGate().setStats(null)
+                .evaluate(null, TestImages.gradient(300, 200), TestImages.gradient(120, 80), MergeSpec.atCenter(0.4f));
+
+        for (FastPath path : FastPath.values()) {
+            assertTrue(verdict.toString(), verdict.isAllowed(path));
+        }
+    }
+
+    @Test
+    public void aliasingAndBlurAreRefused() {
+
+        // fine stripes shrunk by a ratio that nearest neighbour sampling cannot keep, and lost entirely at half the size.
+        QualityGate.Verdict verdict = new QualityGate().setStats(null)
+                .evaluate(null, TestImages.gradient(300, 200), stripes(170, 130), MergeSpec.atCenter(0.6f));
+
+        assertTrue(verdict.toString(), verdict.isAllowed(FastPath.RGB_565));
+        assertFalse(verdict.toString(), verdict.isAllowed(FastPath.NEAREST));
+        assertFalse(verdict.toString(), verdict.isAllowed(FastPath.HALF_SAMPLE));
+    }
+
+    @Test
+    public void thresholdOfOneAllowsOnlyLosslessPaths() {
+
+        // the merge image is drawn at its own size, so nearest neighbour scaling loses nothing.
+        QualityGate.Verdict verdict = new QualityGate().setThreshold(1.0).setStats(null)
+                .evaluate(null, TestImages.gradient(300, 200), TestImages.gradient(120, 80), MergeSpec.atCenter(0.4f));
+
+        assertTrue(verdict.toString(), verdict.isAllowed(FastPath.NEAREST));
+        assertFalse(verdict.toString(), verdict.isAllowed(FastPath.RGB_565));
+        assertFalse(verdict.toString(), verdict.isAllowed(FastPath.HALF_SAMPLE));
+    }
+
+    @Test
+    public void verdictIsKeptPerKeyAndRecorded() {
+
+        MergeStats stats = new MergeStats();
+        QualityGate gate = new QualityGate().setStats(stats);
+
+        QualityGate.Verdict verdict = gate.evaluate("key", TestImages.gradient(300, 200), stripes(170, 130), MergeSpec.atCenter(0.6f));
+        assertSame(verdict, gate.evaluate("key", TestImages.gradient(40, 40), TestImages.gradient(10, 10), MergeSpec.atCenter(0.5f)));
+        assertSame(verdict, gate.getVerdict("key"));
+
+        for (FastPath path : FastPath.values()) {
+            assertEquals(verdict.isAllowed(path) ? 1 : 0, stats.getAllowed(path));
+            assertEquals(verdict.isAllowed(path) ? 0 : 1, stats.getRefused(path));
+            assertEquals(verdict.getScore(path), stats.getLastScore(path), 0);
+        }
+    }
+
+    @Test
+    public void largeImagesAreScoredOnAProxy() {
+
+        // a pixel offset placement, scaled along with the proxy.
+        QualityGate.Verdict verdict = new QualityGate().setStats(null)
+                .evaluate(null, TestImages.gradient(2400, 1600), TestImages.gradient(600, 400), MergeSpec.fromTopLeft(0.25f, 1200, 800));
+
+        assertTrue(verdict.toString(), verdict.isAllowed(FastPath.RGB_565));
+        assertTrue(verdict.toString(), verdict.isAllowed(FastPath.HALF_SAMPLE));
+    }
+
+    private static ArgbImage noisy(ArgbImage image, int amplitude) {
+
+        ArgbImage noisy = image.copy();
+        int[] pixels = noisy.getPixels();
+        Random random = new Random(7);
+
+        for (int i = 0; i < pixels.length; i++) {
+            int delta = random.nextInt(2 * amplitude + 1) - amplitude;
+            int g = Math.max(0, Math.min(255, ((pixels[i] >> 8) & 0xff) + delta));
+            pixels[i] = (pixels[i] & 0xffff00ff) | (g << 8);
+        }
+
+        return noisy;
+    }
+
+    private static ArgbImage stripes(int width, int height) {
+
+        ArgbImage image = new ArgbImage(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setPixel(x, y, (x / 2 + y / 3) % 2 == 0 ? 0xff000000 : 0xffffffff);
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,243 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Prints the time per pixel of the raster kernels, for comparing them before and after a change,
+ *
+ * <pre>
+ * java -cp app/build/intermediates/classes/debug:app/build/intermediates/classes/test/debug com.cooltechworks.bitmapmerger.raster.RasterBenchmark
+ * </pre>
+ *
+ * Each kernel is warmed up before its runs are timed, and the median run is reported. Costs relative to another kernel are
+ * the ratio of the medians of interleaved runs of both. The tests use the same workloads for their budgets.
+ */
+public class RasterBenchmark {
+
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 768;
+    static final int SCALED_WIDTH = WIDTH / 2;
+    static final int SCALED_HEIGHT = HEIGHT / 2;
+
+    public static void main(String[] args) {
+
+        report("composite srgb", WIDTH * HEIGHT, newCompositeWork(BlendSpace.SRGB));
+        report("composite linear", WIDTH * HEIGHT, newCompositeWork(BlendSpace.LINEAR));
+        report("merge center 0.5", WIDTH * HEIGHT, newMergeWork(MergeSpec.atCenter(0.5f), BlendSpace.SRGB));
+        report("merge center 0.5 linear", WIDTH * HEIGHT, newMergeWork(MergeSpec.atCenter(0.5f), BlendSpace.LINEAR));
+        reportRatio("linear / srgb composite", newCompositeWork(BlendSpace.LINEAR), newCompositeWork(BlendSpace.SRGB));
+
+        for (BlendMode mode : BlendMode.values()) {
+            report("blend " + mode.name().toLowerCase(Locale.US), WIDTH * HEIGHT, newBlendWork(mode, 1f));
+        }
+        report("blend normal 0.5 opacity", WIDTH * HEIGHT, newBlendWork(BlendMode.NORMAL, 0.5f));
+        for (BlendMode mode : BlendMode.values()) {
+            if (mode == BlendMode.NORMAL) {
+                continue;
+            }
+            reportRatio(mode.name().toLowerCase(Locale.US) + " / normal 0.5", newBlendWork(mode, 0.5f), newBlendWork(BlendMode.NORMAL, 0.5f));
+        }
+
+        // scaling a camera sized image to the overlay size of a merge at 0.5.
+        int scaledPixels = SCALED_WIDTH * SCALED_HEIGHT;
+        report("scale bilinear float", scaledPixels, newFloatScaleWork());
+        report("scale bilinear fixed", scaledPixels, newFixedScaleWork(false));
+        report("scale area fixed", scaledPixels, newFixedScaleWork(true));
+        report("scale bilinear java.awt", scaledPixels, newAwtScaleWork());
+
+        // finding the layers under a 64x64 dirty region among thousands of small ones.
+        for (int layers : new int[]{1000, 5000, 20000}) {
+            report("layer query grid " + layers, 100 * 64 * 64, newLayerQueryWork(layers, true));
+            report("layer query scan " + layers, 100 * 64 * 64, newLayerQueryWork(layers, false));
+        }
+        report("layer stack move 5000", WIDTH * HEIGHT, newLayerMoveWork(5000));
+    }
+
+    /**
+     * @return work querying 100 regions of 64x64 among the given number of 24x24 layers, with the grid or a linear scan.
+     */
+    static PerfBudget.Work newLayerQueryWork(int layers, final boolean grid) {
+
+        final LayerGrid index = new LayerGrid(WIDTH, HEIGHT, LayerGrid.DEFAULT_CELL_SIZE);
+        final int[][] bounds = new int[layers][];
+        Random random = new Random(layers);
+        for (int id = 0; id < layers; id++) {
+            int left = random.nextInt(WIDTH);
+            int top = random.nextInt(HEIGHT);
+            bounds[id] = new int[]{left, top, left + 24, top + 24};
+            index.put(id, left, top, left + 24, top + 24);
+        }
+
+        return new PerfBudget.Work() {
+            int mFound;
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    int left = (i * 97) % (WIDTH - 64);
+                    int top = (i * 61) % (HEIGHT - 64);
+                    if (grid) {
+                        mFound += index.query(left, top, left + 64, top + 64);
+                    } else {
+                        for (int[] layer : bounds) {
+                            if (layer[0] < left + 64 && left < layer[2] && layer[1] < top + 64 && top < layer[3]) {
+                                mFound++;
+                            }
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return work dragging one layer of a stack of the given number of small layers and re-merging what changed.
+     */
+    static PerfBudget.Work newLayerMoveWork(int layers) {
+
+        final LayerStack stack = new LayerStack(TestImages.gradient(WIDTH, HEIGHT));
+        ArgbImage sticker = TestImages.translucentChecker(40, 30);
+        Random random = new Random(layers);
+        for (int id = 0; id < layers; id++) {
+            stack.addLayer(sticker, MergeSpec.fromTopLeft(0.03f, random.nextInt(WIDTH), random.nextInt(HEIGHT)));
+        }
+        stack.render();
+
+        return new PerfBudget.Work() {
+            int mStep;
+
+            @Override
+            public void run() {
+                mStep++;
+                stack.setSpec(0, MergeSpec.fromTopLeft(0.03f, (mStep * 7) % WIDTH, (mStep * 5) % HEIGHT));
+                stack.render();
+            }
+        };
+    }
+
+    static PerfBudget.Work newFloatScaleWork() {
+
+        final ArgbImage source = translucent(TestImages.gradient(WIDTH, HEIGHT));
+        final ArgbImage destination = new ArgbImage(SCALED_WIDTH, SCALED_HEIGHT);
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                FloatReferenceScaler.scale(source, destination);
+            }
+        };
+    }
+
+    static PerfBudget.Work newFixedScaleWork(final boolean area) {
+
+        final ArgbImage source = translucent(TestImages.gradient(WIDTH, HEIGHT));
+        final ArgbImage destination = new ArgbImage(SCALED_WIDTH, SCALED_HEIGHT);
+        final FixedPointScaler scaler = new FixedPointScaler();
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                if (area) {
+                    scaler.scaleArea(source, destination);
+                } else {
+                    scaler.scale(source, destination);
+                }
+            }
+        };
+    }
+
+    private static PerfBudget.Work newAwtScaleWork() {
+
+        ArgbImage image = translucent(TestImages.gradient(WIDTH, HEIGHT));
+        final BufferedImage source = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        source.setRGB(0, 0, WIDTH, HEIGHT, image.getPixels(), 0, WIDTH);
+        final BufferedImage destination = new BufferedImage(SCALED_WIDTH, SCALED_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                Graphics2D graphics = destination.createGraphics();
+                graphics.setComposite(AlphaComposite.Src);
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(source, 0, 0, SCALED_WIDTH, SCALED_HEIGHT, null);
+                graphics.dispose();
+            }
+        };
+    }
+
+    /**
+     * @return work compositing a translucent image over an opaque one of the same size, {@link #WIDTH} x {@link #HEIGHT}.
+     */
+    static PerfBudget.Work newCompositeWork(final BlendSpace blendSpace) {
+
+        final ArgbImage base = TestImages.gradient(WIDTH, HEIGHT);
+        final ArgbImage overlay = translucent(TestImages.gradient(WIDTH, HEIGHT));
+        final ArgbImage destination = new ArgbImage(WIDTH, HEIGHT);
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                System.arraycopy(base.getPixels(), 0, destination.getPixels(), 0, WIDTH * HEIGHT);
+                RasterMerger.drawOver(destination, overlay, 0, 0, blendSpace);
+            }
+        };
+    }
+
+    /**
+     * @return work blending a translucent image onto an opaque one of the same size, {@link #WIDTH} x {@link #HEIGHT}.
+     */
+    static PerfBudget.Work newBlendWork(final BlendMode mode, final float opacity) {
+
+        final ArgbImage base = TestImages.gradient(WIDTH, HEIGHT);
+        final ArgbImage overlay = translucent(TestImages.gradient(WIDTH, HEIGHT));
+        final ArgbImage destination = new ArgbImage(WIDTH, HEIGHT);
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                System.arraycopy(base.getPixels(), 0, destination.getPixels(), 0, WIDTH * HEIGHT);
+                RasterMerger.drawBlended(destination, overlay, 0, 0, mode, opacity);
+            }
+        };
+    }
+
+    static PerfBudget.Work newMergeWork(final MergeSpec spec, final BlendSpace blendSpace) {
+
+        final ArgbImage base = TestImages.gradient(WIDTH, HEIGHT);
+        final ArgbImage overlay = TestImages.translucentChecker(640, 480);
+
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                RasterMerger.merge(base, overlay, spec, blendSpace);
+            }
+        };
+    }
+
+    // varying alpha, so that neither the opaque nor the transparent shortcut is taken.
+    private static ArgbImage translucent(ArgbImage image) {
+
+        int[] pixels = image.getPixels();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (pixels[i] & 0xffffff) | ((1 + i % 253) << 24);
+        }
+        return image;
+    }
+
+    private static void report(String name, int pixels, PerfBudget.Work work) {
+        long nanos = PerfBudget.medianNanos(work);
+        System.out.println(String.format(Locale.US, "%-28s %8.3f ms %8.2f ns/pixel", name, nanos / 1e6, nanos / (double) pixels));
+    }
+
+    private static void reportRatio(String name, PerfBudget.Work work, PerfBudget.Work reference) {
+        System.out.println(String.format(Locale.US, "%-28s %8.2fx", name, PerfBudget.medianRatio(work, reference)));
+    }
+}
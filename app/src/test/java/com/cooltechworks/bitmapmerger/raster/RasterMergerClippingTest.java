@@ -0,0 +1,75 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeStats;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that clipping the merge image to the base changes which work is done, but not the merged pixels.
+ */
+public class RasterMergerClippingTest {
+
+    private ArgbImage mBase;
+    private ArgbImage mOverlay;
+
+
+    @Before
+    public void setUp() {
+        mBase = TestImages.gradient(96, 64);
+        mOverlay = TestImages.translucentChecker(40, 40);
+        MergeStats.getDefault().reset();
+    }
+
+    @Test
+    public void clippedMergeMatchesFullScale() {
+
+        int[][] offsets = {{80, 50}, {-30, -20}, {-47, 10}, {95, 63}, {20, -31}};
+
+        for (int[] offset : offsets) {
+            MergeSpec spec = MergeSpec.fromTopLeft(0.5f, offset[0], offset[1]);
+            assertArrayEquals(mergeWithoutClipping(spec).getPixels(), RasterMerger.merge(mBase, mOverlay, spec).getPixels());
+        }
+
+        assertEquals(offsets.length, MergeStats.getDefault().get(MergeStats.Path.CLIPPED));
+    }
+
+    @Test
+    public void overlayOffCanvasReturnsBase() {
+
+        assertSame(mBase, RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.5f, 96, 0)));
+        assertSame(mBase, RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.5f, 0, 64)));
+        assertSame(mBase, RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.5f, -48, 0)));
+        assertSame(mBase, RasterMerger.merge(mBase, mOverlay, MergeSpec.atCenter(0.01f)));
+
+        assertEquals(4, MergeStats.getDefault().get(MergeStats.Path.OFF_CANVAS));
+    }
+
+    @Test
+    public void countsEachPath() {
+
+        RasterMerger.merge(mBase, mOverlay, MergeSpec.atCenter(0.5f));
+        RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.5f, 90, 0));
+        RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.5f, 500, 500));
+        RasterMerger.merge(mBase, mOverlay, MergeSpec.atCenter(0f));
+
+        MergeStats stats = MergeStats.getDefault();
+        assertEquals(1, stats.get(MergeStats.Path.FULL));
+        assertEquals(1, stats.get(MergeStats.Path.CLIPPED));
+        assertEquals(1, stats.get(MergeStats.Path.OFF_CANVAS));
+        assertEquals(1, stats.get(MergeStats.Path.NO_OVERLAY));
+    }
+
+    private ArgbImage mergeWithoutClipping(MergeSpec spec) {
+
+        ArgbImage merged = mBase.copy();
+        ArgbImage scaled = RasterScaler.scale(mOverlay, spec.getOverlayWidth(96), spec.getOverlayHeight(64));
+        RasterMerger.drawOver(merged, scaled, spec.getOverlayLeft(96, 64), spec.getOverlayTop(96, 64));
+        return merged;
+    }
+}
@@ -0,0 +1,124 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares every {@link MergeCase} against its golden image in {@code src/test/resources/goldens}.
+ *
+ * A pixel matches when each of its channels is within {@link #CHANNEL_TOLERANCE} of the golden, and at most
+ * {@link #MAX_MISMATCH_RATIO} of the pixels may differ, so that rounding changes pass while geometry changes do not.
+ *
+ * After an intended change of the output, regenerate the goldens with {@code -Dgoldens.update=<path to src/test/resources/goldens>}
+ * and review the new images.
+ */
+@RunWith(Parameterized.class)
+public class RasterMergerGoldenTest {
+
+    private static final int CHANNEL_TOLERANCE = 2;
+    private static final double MAX_MISMATCH_RATIO = 0.001;
+
+    private final MergeCase mCase;
+
+
+    public RasterMergerGoldenTest(MergeCase mergeCase) {
+        this.mCase = mergeCase;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> cases() {
+
+        List<Object[]> parameters = new ArrayList<Object[]>();
+        for (MergeCase mergeCase : MergeCase.goldenCases()) {
+            parameters.add(new Object[]{mergeCase});
+        }
+        return parameters;
+    }
+
+    @Test
+    public void matchesGolden() throws IOException {
+
+        ArgbImage merged = mCase.merge();
+
+        String updateDir = System.getProperty("goldens.update");
+        if (updateDir != null) {
+            TestImages.writePng(merged, new File(updateDir, mCase.name + ".png"));
+            return;
+        }
+
+        InputStream stream = getClass().getResourceAsStream("/goldens/" + mCase.name + ".png");
+        assertNotNull("Missing golden " + mCase.name + ".png", stream);
+
+        ArgbImage golden;
+        try {
+            golden = TestImages.readPng(stream);
+        } finally {
+            stream.close();
+        }
+
+        assertEquals("width", golden.getWidth(), merged.getWidth());
+        assertEquals("height", golden.getHeight(), merged.getHeight());
+
+        int[] expected = golden.getPixels();
+        int[] actual = merged.getPixels();
+        int mismatches = 0;
+        int firstMismatch = -1;
+
+        for (int i = 0; i < expected.length; i++) {
+            if (!matches(expected[i], actual[i])) {
+                if (firstMismatch < 0) {
+                    firstMismatch = i;
+                }
+                mismatches++;
+            }
+        }
+
+        if (mismatches > expected.length * MAX_MISMATCH_RATIO) {
+            int x = firstMismatch % golden.getWidth();
+            int y = firstMismatch / golden.getWidth();
+            fail(mCase.name + ": " + mismatches + " of " + expected.length + " pixels differ, first at " + x + "," + y
+                    + " expected " + Integer.toHexString(expected[firstMismatch]) + " got " + Integer.toHexString(actual[firstMismatch]));
+        }
+    }
+
+    @Test
+    public void leavesInputsUntouched() {
+
+        ArgbImage base = mCase.createBase();
+        ArgbImage overlay = mCase.createOverlay();
+
+        ArgbImage merged = RasterMerger.merge(base, overlay, mCase.spec);
+
+        assertTrue(Arrays.equals(mCase.createBase().getPixels(), base.getPixels()));
+        assertTrue(Arrays.equals(mCase.createOverlay().getPixels(), overlay.getPixels()));
+
+        if (!mCase.spec.hasOverlay()) {
+            assertSame(base, merged);
+        }
+    }
+
+    private static boolean matches(int expected, int actual) {
+
+        for (int shift = 0; shift < 32; shift += 8) {
+            if (Math.abs(((expected >>> shift) & 0xff) - ((actual >>> shift) & 0xff)) > CHANNEL_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time and allocation budgets for merging camera sized images, so that performance regressions of the merge fail the build.
+ *
+ * The allocation budget is the merged image plus the visible part of the scaled merge image and a little slack - anything
+ * more means the merge started to allocate per pixel or per row, or to scale parts of the merge image that are not visible.
+ */
+@RunWith(Parameterized.class)
+public class RasterMergerPerfTest {
+
+    private static final long ALLOCATION_SLACK_BYTES = 16 * 1024;
+
+    private final MergeCase mCase;
+    private final long mTimeBudgetMillis;
+
+    private ArgbImage mBase;
+    private ArgbImage mOverlay;
+
+
+    public RasterMergerPerfTest(MergeCase mergeCase, long timeBudgetMillis) {
+        this.mCase = mergeCase;
+        this.mTimeBudgetMillis = timeBudgetMillis;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> cases() {
+
+        List<Object[]> cases = new ArrayList<Object[]>();
+
+        cases.add(new Object[]{new MergeCase("center_1024x768", 1024, 768, 640, 480, MergeSpec.atCenter(0.5f)), 60L});
+        cases.add(new Object[]{new MergeCase("center_full_1024x768", 1024, 768, 640, 480, MergeSpec.atCenter(1f)), 120L});
+        cases.add(new Object[]{new MergeCase("angle_1024x768", 1024, 768, 640, 480, MergeSpec.atAngle(0.4f, 60)), 60L});
+        cases.add(new Object[]{new MergeCase("offset_off_canvas_1024x768", 1024, 768, 640, 480, MergeSpec.fromTopLeft(0.5f, 900, 700)), 60L});
+        cases.add(new Object[]{new MergeCase("offset_fully_off_1024x768", 1024, 768, 640, 480, MergeSpec.fromTopLeft(0.5f, 1024, 0)), 1L});
+        cases.add(new Object[]{new MergeCase("zero_scale_1024x768", 1024, 768, 640, 480, MergeSpec.atCenter(0f)), 1L});
+
+        return cases;
+    }
+
+    @Test
+    public void staysWithinTimeBudget() {
+
+        prepare();
+
+        long medianNanos = PerfBudget.medianNanos(newMerge());
+        double budgetNanos = mTimeBudgetMillis * 1000000.0 * PerfBudget.getBudgetScale();
+
+        assertTrue(mCase.name + " took " + (medianNanos / 1000000.0) + " ms, budget " + mTimeBudgetMillis + " ms",
+                medianNanos <= budgetNanos);
+    }
+
+    @Test
+    public void staysWithinAllocationBudget() {
+
+        Assume.assumeTrue(PerfBudget.isAllocationMeasurable());
+
+        prepare();
+
+        long allocated = PerfBudget.allocatedBytes(newMerge());
+        long budget = ALLOCATION_SLACK_BYTES;
+        long visiblePixels = getVisiblePixels();
+
+        if (visiblePixels > 0) {
+            budget += 4L * mCase.baseWidth * mCase.baseHeight;
+            budget += 4L * visiblePixels;
+        }
+
+        assertTrue(mCase.name + " allocated " + allocated + " bytes, budget " + budget, allocated <= budget);
+    }
+
+    private long getVisiblePixels() {
+
+        if (!mCase.spec.hasOverlay()) {
+            return 0;
+        }
+
+        int left = mCase.spec.getOverlayLeft(mCase.baseWidth, mCase.baseHeight);
+        int top = mCase.spec.getOverlayTop(mCase.baseWidth, mCase.baseHeight);
+        int right = Math.min(mCase.baseWidth, left + mCase.spec.getOverlayWidth(mCase.baseWidth));
+        int bottom = Math.min(mCase.baseHeight, top + mCase.spec.getOverlayHeight(mCase.baseHeight));
+
+        return Math.max(0, right - Math.max(0, left)) * (long) Math.max(0, bottom - Math.max(0, top));
+    }
+
+    private void prepare() {
+        mBase = mCase.createBase();
+        mOverlay = mCase.createOverlay();
+    }
+
+    private PerfBudget.Work newMerge() {
+        return new PerfBudget.Work() {
+            @Override
+            public void run() {
+                RasterMerger.merge(mBase, mOverlay, mCase.spec);
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RasterPyramidTest {
+
+    @Test
+    public void picksSmallestLevelAtLeastTheSize() {
+
+        ArgbImage source = TestImages.gradient(256, 128);
+        RasterPyramid pyramid = new RasterPyramid(source, Integer.MAX_VALUE);
+
+        assertSame(source, pyramid.getLevel(200, 100));
+        assertSame(source, pyramid.getLevel(129, 10));
+        assertEquals(128, pyramid.getLevel(128, 64).getWidth());
+        assertEquals(64, pyramid.getLevel(40, 20).getWidth());
+        assertEquals(2, pyramid.getLevel(1, 1).getWidth());
+        assertEquals(8, pyramid.getLevelCount());
+    }
+
+    @Test
+    public void staysWithinBudget() {
+
+        RasterPyramid pyramid = new RasterPyramid(TestImages.gradient(256, 256), 128 * 128 * 4 + 64 * 64 * 4);
+
+        // the 32x32 level would exceed the budget, the 64x64 one is served instead.
+        assertEquals(64, pyramid.getLevel(10, 10).getWidth());
+        assertEquals(128 * 128 * 4 + 64 * 64 * 4, pyramid.getBytes());
+    }
+
+    @Test
+    public void smallScalesDoNotAlias() {
+
+        // one pixel stripes of opaque black and white, whose average is mid gray.
+        ArgbImage stripes = new ArgbImage(512, 512);
+        for (int y = 0; y < 512; y++) {
+            for (int x = 0; x < 512; x++) {
+                stripes.setPixel(x, y, x % 2 == 0 ? 0xff000000 : 0xffffffff);
+            }
+        }
+
+        ArgbImage direct = RasterScaler.scale(stripes, 5, 5);
+        ArgbImage fromPyramid = new RasterPyramid(stripes, Integer.MAX_VALUE).scale(5, 5);
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue("pyramid pixel " + i + " " + Integer.toHexString(fromPyramid.getPixels()[i]),
+                    Math.abs((fromPyramid.getPixels()[i] & 0xff) - 128) <= 2);
+        }
+
+        int worst = 0;
+        for (int pixel : direct.getPixels()) {
+            worst = Math.max(worst, Math.abs((pixel & 0xff) - 128));
+        }
+        assertTrue("direct bilinear scaling was expected to alias", worst > 32);
+    }
+
+    @Test
+    public void levelsAverageBlocks() {
+
+        ArgbImage source = new ArgbImage(2, 2, new int[]{0xff000000, 0xffffffff, 0xffffffff, 0x00ff0000});
+        ArgbImage half = RasterPyramid.halve(source, 1, 1);
+
+        // the transparent pixel does not tint the average.
+        assertEquals(0xbfaaaaaa, half.getPixel(0, 0));
+    }
+}
@@ -0,0 +1,86 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+import com.cooltechworks.bitmapmerger.tasks.MergeTrack;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that frames rendered with dirty area restore and a shared scaled overlay are the same as independent merges, and
+ * that rendering more frames does not use more memory.
+ */
+public class RasterSequenceRendererTest {
+
+    private final ArgbImage mBase = TestImages.gradient(96, 64);
+    private final ArgbImage mOverlay = TestImages.translucentChecker(40, 40);
+
+
+    @Test
+    public void angleSweepMatchesIndependentMerges() {
+        assertFramesMatch(new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atAngle(0.3f, 0))
+                .addKeyframe(1f, MergeSpec.atAngle(0.3f, 360)), 37);
+    }
+
+    @Test
+    public void scaleAndOffsetSweepsMatchIndependentMerges() {
+
+        assertFramesMatch(new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atCenter(0f))
+                .addKeyframe(1f, MergeSpec.atCenter(1f)), 21);
+
+        // in from off the top left, across the base and out off the bottom right.
+        assertFramesMatch(new MergeTrack()
+                .addKeyframe(0f, MergeSpec.fromTopLeft(0.4f, -60, -40))
+                .addKeyframe(1f, MergeSpec.fromTopLeft(0.4f, 120, 80)), 31);
+    }
+
+    @Test
+    public void memoryDoesNotGrowWithFrameCount() {
+
+        Assume.assumeTrue(PerfBudget.isAllocationMeasurable());
+
+        final MergeTrack track = new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atAngle(0.3f, 0))
+                .addKeyframe(1f, MergeSpec.atAngle(0.3f, 360));
+
+        final ArgbImage base = TestImages.gradient(640, 480);
+        final ArgbImage overlay = TestImages.translucentChecker(320, 240);
+
+        long allocated = PerfBudget.allocatedBytes(new PerfBudget.Work() {
+            @Override
+            public void run() {
+                RasterSequenceRenderer.render(base, overlay, track, 360, new RasterSequenceRenderer.FrameConsumer() {
+                    @Override
+                    public void onFrame(int index, ArgbImage frame) {
+                    }
+                });
+            }
+        });
+
+        // one frame buffer and one scaled overlay, however many frames.
+        long budget = 4L * 640 * 480 + 4L * 192 * 144 + 64 * 1024;
+        assertTrue("360 frames allocated " + allocated + " bytes, budget " + budget, allocated <= budget);
+    }
+
+    private void assertFramesMatch(final MergeTrack track, final int frameCount) {
+
+        final int[] rendered = new int[1];
+
+        RasterSequenceRenderer.render(mBase, mOverlay, track, frameCount, new RasterSequenceRenderer.FrameConsumer() {
+            @Override
+            public void onFrame(int index, ArgbImage frame) {
+                ArgbImage expected = RasterMerger.merge(mBase, mOverlay, track.getFrameSpec(index, frameCount));
+                assertArrayEquals("frame " + index, expected.getPixels(), frame.getPixels());
+                rendered[0]++;
+            }
+        });
+
+        assertEquals(frameCount, rendered[0]);
+    }
+}
@@ -0,0 +1,81 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Deterministic synthetic images for merge tests, and PNG reading and writing of {@link ArgbImage}s for golden images.
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * @return an opaque image with a horizontal red and a vertical green gradient.
+     */
+    static ArgbImage gradient(int width, int height) {
+
+        ArgbImage image = new ArgbImage(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = width > 1 ? x * 255 / (width - 1) : 128;
+                int g = height > 1 ? y * 255 / (height - 1) : 128;
+                image.setPixel(x, y, 0xff000000 | (r << 16) | (g << 8) | 0x40);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * @return a 4 pixel checker of opaque blue and half transparent yellow, with a fully transparent border column.
+     */
+    static ArgbImage translucentChecker(int width, int height) {
+
+        ArgbImage image = new ArgbImage(width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color;
+                if (x == width - 1 && width > 2) {
+                    color = 0x00ffffff;
+                } else if (((x / 4) + (y / 4)) % 2 == 0) {
+                    color = 0xff2040e0;
+                } else {
+                    color = 0x80f0e020;
+                }
+                image.setPixel(x, y, color);
+            }
+        }
+
+        return image;
+    }
+
+    static ArgbImage readPng(InputStream stream) throws IOException {
+
+        BufferedImage buffered = ImageIO.read(stream);
+        int width = buffered.getWidth();
+        int height = buffered.getHeight();
+
+        int[] pixels = new int[width * height];
+        buffered.getRGB(0, 0, width, height, pixels, 0, width);
+
+        return new ArgbImage(width, height, pixels);
+    }
+
+    static void writePng(ArgbImage image, File file) throws IOException {
+
+        BufferedImage buffered = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        buffered.setRGB(0, 0, image.getWidth(), image.getHeight(), image.getPixels(), 0, image.getWidth());
+
+        if (!ImageIO.write(buffered, "png", file)) {
+            throw new IOException("No PNG writer");
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.cooltechworks.bitmapmerger.raster;
+
+import com.cooltechworks.bitmapmerger.tasks.BlendMode;
+import com.cooltechworks.bitmapmerger.tasks.MergeSpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TiledMergerTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+    private static final int TILE_SIZE = 64;
+
+    private ArgbImage mBase;
+    private ArgbImage mOverlay;
+    private MemoryTileStore mStore;
+    private TiledMerger mMerger;
+
+    @Before
+    public void setUp() throws IOException {
+
+        mBase = TestImages.gradient(WIDTH, HEIGHT);
+        mOverlay = TestImages.translucentChecker(40, 30);
+        mStore = new MemoryTileStore();
+        mMerger = new TiledMerger(mStore);
+
+        mMerger.tileBase(new ImageSource(mBase), TILE_SIZE);
+    }
+
+    @Test
+    public void tilesHoldTheMergedImage() throws IOException {
+
+        MergeSpec[] specs = {
+                MergeSpec.atCenter(0.5f),
+                MergeSpec.atAngle(0.3f, 135),
+                MergeSpec.fromTopLeft(0.4f, -20, 150),
+                MergeSpec.fromTopLeft(0.25f, 64, 64).withBlendMode(BlendMode.MULTIPLY).withOpacity(0.6f),
+        };
+
+        for (MergeSpec spec : specs) {
+            TileIndex index = mMerger.merge(mOverlay, spec);
+            assertArrayEquals(spec.toString(), RasterMerger.merge(mBase, mOverlay, spec).getPixels(), assemble(index).getPixels());
+        }
+    }
+
+    @Test
+    public void uncoveredTilesReferenceTheBase() throws IOException {
+
+        // 75x50 at 10,10 covers the tiles of the first two columns and the first row.
+        mStore.mWritten.clear();
+        TileIndex index = mMerger.merge(mOverlay, MergeSpec.fromTopLeft(0.25f, 10, 10));
+
+        assertEquals(5, index.getColumns());
+        assertEquals(4, index.getRows());
+        assertEquals(2, mMerger.getWrittenTileCount());
+        assertEquals(18, mMerger.getReferencedTileCount());
+        assertEquals(listOf("merged_0_0", "merged_1_0"), mStore.mWritten);
+        assertEquals("base_4_3", index.getTileName(4, 3));
+        assertTrue(index.isMerged(1, 0));
+        assertFalse(index.isMerged(2, 0));
+    }
+
+    @Test
+    public void mergingAgainRewritesOnlyTheAffectedTiles() throws IOException {
+
+        mMerger.merge(mOverlay, MergeSpec.fromTopLeft(0.25f, 10, 10));
+        mStore.mWritten.clear();
+
+        // moved to the bottom right corner, the first tiles go back to the base.
+        TileIndex index = mMerger.merge(mOverlay, MergeSpec.fromTopLeft(0.25f, 260, 170));
+
+        assertEquals(listOf("merged_4_2", "merged_4_3"), mStore.mWritten);
+        assertEquals(listOf("merged_0_0", "merged_1_0"), mStore.mDeleted);
+        assertFalse(index.isMerged(0, 0));
+        assertFalse(mStore.mTiles.containsKey("merged_0_0"));
+        assertArrayEquals(RasterMerger.merge(mBase, mOverlay, MergeSpec.fromTopLeft(0.25f, 260, 170)).getPixels(),
+                assemble(index).getPixels());
+
+        // nothing visible, nothing merged.
+        index = mMerger.merge(mOverlay, MergeSpec.atCenter(0f));
+        assertEquals(0, mMerger.getWrittenTileCount());
+        assertEquals(20, mMerger.getReferencedTileCount());
+        assertArrayEquals(mBase.getPixels(), assemble(index).getPixels());
+    }
+
+    @Test
+    public void indexRoundTrips() throws IOException {
+
+        TileIndex index = mMerger.merge(mOverlay, MergeSpec.atAngle(0.3f, 45));
+
+        StringWriter text = new StringWriter();
+        index.write(text);
+        TileIndex read = TileIndex.read(new StringReader(text.toString()));
+
+        StringWriter again = new StringWriter();
+        read.write(again);
+        assertEquals(text.toString(), again.toString());
+        assertEquals(index.getOverlayRight(), read.getOverlayRight());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedIndex() throws IOException {
+        TileIndex.read(new StringReader("TileIndex 1\n300 200 64\n0 0 0 0\nbase_0_0\n"));
+    }
+
+    private ArgbImage assemble(TileIndex index) throws IOException {
+
+        ArgbImage image = new ArgbImage(index.getWidth(), index.getHeight());
+
+        for (int row = 0; row < index.getRows(); row++) {
+            for (int column = 0; column < index.getColumns(); column++) {
+                ArgbImage tile = mStore.readTile(index.getTileName(column, row));
+                assertEquals(index.getTileWidth(column), tile.getWidth());
+                assertEquals(index.getTileHeight(row), tile.getHeight());
+                RasterMerger.drawOver(image, tile, index.getTileLeft(column), index.getTileTop(row));
+            }
+        }
+        return image;
+    }
+
+    private static List<String> listOf(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    private static class ImageSource implements TiledMerger.BaseSource {
+
+        private final ArgbImage mImage;
+
+        ImageSource(ArgbImage image) {
+            this.mImage = image;
+        }
+
+        @Override
+        public int getWidth() {
+            return mImage.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mImage.getHeight();
+        }
+
+        @Override
+        public ArgbImage read(int left, int top, int width, int height) {
+            ArgbImage region = new ArgbImage(width, height);
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(mImage.getPixels(), (top + y) * mImage.getWidth() + left, region.getPixels(), y * width, width);
+            }
+            return region;
+        }
+    }
+
+    /**
+     * Keeps the tiles in memory and the index as text, recording the tiles written and deleted.
+     */
+    private static class MemoryTileStore implements TileStore {
+
+        final Map<String, ArgbImage> mTiles = new HashMap<String, ArgbImage>();
+        final List<String> mWritten = new ArrayList<String>();
+        final List<String> mDeleted = new ArrayList<String>();
+        private String mIndex;
+
+        @Override
+        public ArgbImage readTile(String name) throws IOException {
+            ArgbImage tile = mTiles.get(name);
+            if (tile == null) {
+                throw new IOException("No tile " + name);
+            }
+            return tile.copy();
+        }
+
+        @Override
+        public void writeTile(String name, ArgbImage tile) {
+            mTiles.put(name, tile.copy());
+            mWritten.add(name);
+        }
+
+        @Override
+        public void deleteTile(String name) {
+            mTiles.remove(name);
+            mDeleted.add(name);
+        }
+
+        @Override
+        public TileIndex readIndex() throws IOException {
+            return mIndex != null ? TileIndex.read(new StringReader(mIndex)) : null;
+        }
+
+        @Override
+        public void writeIndex(TileIndex index) throws IOException {
+            StringWriter writer = new StringWriter();
+            index.write(writer);
+            mIndex = writer.toString();
+        }
+    }
+}
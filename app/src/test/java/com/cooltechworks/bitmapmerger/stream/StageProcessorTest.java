@@ -0,0 +1,250 @@
+package com.cooltechworks.bitmapmerger.stream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StageProcessorTest {
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void slowStageBoundsEveryStageAndKeepsAllItems() throws Exception {
+
+        QueuePublisher<Integer> source = new QueuePublisher<Integer>(4);
+        StageProcessor<Integer, Integer> fast = new StageProcessor<Integer, Integer>(delay(0), mExecutor, 2, 3);
+        StageProcessor<Integer, Integer> slow = new StageProcessor<Integer, Integer>(delay(2), mExecutor, 1, 2);
+        CollectingSubscriber<Integer> sink = new CollectingSubscriber<Integer>(1);
+
+        source.subscribe(fast);
+        fast.subscribe(slow);
+        slow.subscribe(sink);
+
+        for (int i = 0; i < 50; i++) {
+            source.put(i);
+        }
+        source.complete();
+
+        assertTrue(sink.await());
+        assertNull(sink.mError);
+        assertEquals(50, sink.mItems.size());
+
+        List<Integer> sorted = new ArrayList<Integer>(sink.mItems);
+        Collections.sort(sorted);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) sorted.get(i));
+        }
+
+        assertTrue(fast.getMaxHeld() <= 3);
+        assertTrue(slow.getMaxHeld() <= 2);
+    }
+
+    @Test
+    public void takesNoMoreThanBuffersAndDemand() throws Exception {
+
+        QueuePublisher<Integer> source = new QueuePublisher<Integer>(4);
+        StageProcessor<Integer, Integer> stage = new StageProcessor<Integer, Integer>(delay(0), mExecutor, 2, 3);
+        CollectingSubscriber<Integer> sink = new CollectingSubscriber<Integer>(0);
+
+        source.subscribe(stage);
+        stage.subscribe(sink);
+        sink.mSubscription.request(5);
+
+        int accepted = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+
+        // keeps offering until the stream stays full.
+        while (System.currentTimeMillis() < deadline) {
+            if (source.offer(accepted)) {
+                accepted++;
+            } else if (sink.mItems.size() == 5 && stage.getMaxHeld() == 3 && source.getQueuedCount() == 4) {
+                break;
+            } else {
+                Thread.sleep(1);
+            }
+        }
+
+        // 5 delivered, 3 held by the stage, 4 queued.
+        assertEquals(12, accepted);
+        assertEquals(5, sink.mItems.size());
+        assertEquals(1, sink.mOnNextThreads.get());
+    }
+
+    @Test
+    public void stageFailureCancelsUpstreamAndDiscardsHeldItems() throws Exception {
+
+        final AtomicInteger discarded = new AtomicInteger();
+
+        QueuePublisher<Integer> source = new QueuePublisher<Integer>(8);
+        StageProcessor<Integer, Integer> stage = new StageProcessor<Integer, Integer>(new StageProcessor.Stage<Integer, Integer>() {
+            @Override
+            public Integer process(Integer item) throws Exception {
+                if (item == 3) {
+                    throw new IllegalStateException("bad item");
+                }
+                return item;
+            }
+        }, mExecutor, 1, 4);
+        stage.setOnDiscardListener(new StageProcessor.OnDiscardListener() {
+            @Override
+            public void onDiscard(Object item) {
+                discarded.incrementAndGet();
+            }
+        });
+        CollectingSubscriber<Integer> sink = new CollectingSubscriber<Integer>(0);
+
+        source.subscribe(stage);
+        stage.subscribe(sink);
+
+        for (int i = 0; i < 4; i++) {
+            source.put(i);
+        }
+
+        assertTrue(sink.await());
+        assertTrue(sink.mError instanceof IllegalStateException);
+        assertTrue(source.isCancelled());
+        // 0, 1 and 2 were processed but never requested.
+        assertEquals(3, discarded.get());
+        assertTrue(sink.mItems.isEmpty());
+    }
+
+    @Test
+    public void droppedItemsDoNotHoldTheBuffer() throws Exception {
+
+        QueuePublisher<Integer> source = new QueuePublisher<Integer>(2);
+        StageProcessor<Integer, Integer> evens = new StageProcessor<Integer, Integer>(new StageProcessor.Stage<Integer, Integer>() {
+            @Override
+            public Integer process(Integer item) {
+                return item % 2 == 0 ? item : null;
+            }
+        }, mExecutor, 1, 1);
+        CollectingSubscriber<Integer> sink = new CollectingSubscriber<Integer>(Long.MAX_VALUE);
+
+        source.subscribe(evens);
+        evens.subscribe(sink);
+
+        for (int i = 0; i < 10; i++) {
+            source.put(i);
+        }
+        source.complete();
+
+        assertTrue(sink.await());
+        assertNull(sink.mError);
+        assertEquals(5, sink.mItems.size());
+    }
+
+    @Test
+    public void shutDownExecutorFailsTheStreamAndDiscardsWaitingItems() throws Exception {
+
+        final AtomicInteger discarded = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        QueuePublisher<Integer> source = new QueuePublisher<Integer>(8);
+        StageProcessor<Integer, Integer> first = new StageProcessor<Integer, Integer>(delay(0), mExecutor, 1, 2);
+        StageProcessor<Integer, Integer> second = new StageProcessor<Integer, Integer>(delay(0), executor, 1, 2);
+        second.setOnDiscardListener(new StageProcessor.OnDiscardListener() {
+            @Override
+            public void onDiscard(Object item) {
+                discarded.incrementAndGet();
+            }
+        });
+        CollectingSubscriber<Integer> sink = new CollectingSubscriber<Integer>(Long.MAX_VALUE);
+
+        source.subscribe(first);
+        first.subscribe(second);
+        second.subscribe(sink);
+
+        executor.shutdown();
+        for (int i = 0; i < 5; i++) {
+            source.offer(i);
+        }
+        source.complete();
+
+        assertTrue(sink.await());
+        assertTrue(sink.mError instanceof RejectedExecutionException);
+        assertTrue(discarded.get() > 0);
+        assertTrue(sink.mItems.isEmpty());
+    }
+
+    private static StageProcessor.Stage<Integer, Integer> delay(final long millis) {
+        return new StageProcessor.Stage<Integer, Integer>() {
+            @Override
+            public Integer process(Integer item) throws Exception {
+                if (millis > 0) {
+                    Thread.sleep(millis);
+                }
+                return item;
+            }
+        };
+    }
+
+    /**
+     * Collects what it receives, asking for one more item per item received when batch is 1.
+     */
+    static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+
+        final List<T> mItems = Collections.synchronizedList(new ArrayList<T>());
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger mOnNextThreads = new AtomicInteger();
+        private final AtomicInteger mInOnNext = new AtomicInteger();
+        private final long mRequest;
+        volatile Flow.Subscription mSubscription;
+        volatile Throwable mError;
+
+        CollectingSubscriber(long request) {
+            this.mRequest = request;
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            if (mRequest > 0) {
+                subscription.request(mRequest);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            // the most calls found running at the same time.
+            mOnNextThreads.set(Math.max(mOnNextThreads.get(), mInOnNext.incrementAndGet()));
+            mItems.add(item);
+            mInOnNext.decrementAndGet();
+            if (mRequest == 1) {
+                mSubscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageHeaderTest {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF2 = 0xC2;
+    private static final int DHT = 0xC4;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+
+    @Test
+    public void readsOrientationInBothByteOrders() throws IOException {
+
+        for (int orientation = 1; orientation <= 8; orientation++) {
+
+            ImageHeader motorola = read(jpeg(segment(APP1, exif(false, orientation)), frame(SOF0, 640, 480)));
+            ImageHeader intel = read(jpeg(segment(APP1, exif(true, orientation)), frame(SOF0, 640, 480)));
+
+            assertEquals("MM " + orientation, orientation, motorola.orientation);
+            assertEquals("II " + orientation, orientation, intel.orientation);
+            assertEquals(640, intel.width);
+            assertEquals(480, intel.height);
+        }
+    }
+
+    @Test
+    public void readsDimensionsOfBaselineAndProgressiveFrames() throws IOException {
+
+        ImageHeader baseline = read(jpeg(segment(APP0, new byte[14]), frame(SOF0, 4000, 3000)));
+        assertTrue(baseline.hasBounds());
+        assertEquals(4000, baseline.width);
+        assertEquals(3000, baseline.height);
+        assertEquals(ImageHeader.ORIENTATION_UNDEFINED, baseline.orientation);
+
+        // a Huffman table before the frame header is skipped, not taken for a frame.
+        ImageHeader progressive = read(jpeg(segment(DHT, new byte[20]), frame(SOF2, 1, 65535)));
+        assertEquals(1, progressive.width);
+        assertEquals(65535, progressive.height);
+    }
+
+    @Test
+    public void skipsFillBytesBeforeMarkers() throws IOException {
+
+        byte[] frame = frame(SOF0, 320, 200);
+        byte[] filled = new byte[frame.length + 3];
+        filled[0] = filled[1] = filled[2] = (byte) 0xFF;
+        System.arraycopy(frame, 0, filled, 3, frame.length);
+
+        ImageHeader header = read(jpeg(segment(APP1, exif(true, 6)), filled));
+        assertEquals(320, header.width);
+        assertEquals(6, header.orientation);
+    }
+
+    @Test
+    public void ignoresAnApp1SegmentOfXmp() throws IOException {
+
+        byte[] xmp = ("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<tiff:Orientation>6</tiff:Orientation></x:xmpmeta>").getBytes("US-ASCII");
+
+        ImageHeader header = read(jpeg(segment(APP1, xmp), frame(SOF0, 800, 600)));
+        assertEquals(ImageHeader.ORIENTATION_UNDEFINED, header.orientation);
+        assertEquals(800, header.width);
+
+        // the EXIF segment after it still counts.
+        header = read(jpeg(segment(APP1, xmp), segment(APP1, exif(false, 3)), frame(SOF0, 800, 600)));
+        assertEquals(3, header.orientation);
+    }
+
+    @Test
+    public void ignoresOrientationsOutOfRangeOrOfAnotherType() throws IOException {
+
+        assertEquals(ImageHeader.ORIENTATION_UNDEFINED, read(jpeg(segment(APP1, exif(true, 0)), frame(SOF0, 8, 8))).orientation);
+        assertEquals(ImageHeader.ORIENTATION_UNDEFINED, read(jpeg(segment(APP1, exif(true, 9)), frame(SOF0, 8, 8))).orientation);
+
+        byte[] longType = exif(false, 6);
+        longType[6 + 8 + 17] = 4; // LONG instead of SHORT
+        assertEquals(ImageHeader.ORIENTATION_UNDEFINED, read(jpeg(segment(APP1, longType), frame(SOF0, 8, 8))).orientation);
+    }
+
+    @Test
+    public void returnsDefaultsForTruncatedImages() throws IOException {
+
+        byte[] image = jpeg(segment(APP1, exif(true, 6)), frame(SOF0, 640, 480));
+
+        // every prefix ending before the dimensions, including ones ending inside the EXIF segment.
+        for (int length = 0; length < image.length - 4; length++) {
+            ImageHeader header = read(Arrays.copyOf(image, length));
+            assertFalse("length " + length, header.hasBounds());
+            assertEquals("length " + length, ImageHeader.ORIENTATION_UNDEFINED, header.orientation);
+        }
+    }
+
+    @Test
+    public void returnsDefaultsForCorruptMarkers() throws IOException {
+
+        // no marker where one is expected.
+        ImageHeader header = read(jpeg(segment(APP1, exif(true, 6)), new byte[]{0x12, 0x34}, frame(SOF0, 640, 480)));
+        assertFalse(header.hasBounds());
+        assertEquals(6, header.orientation);
+
+        // segment length shorter than the length field itself.
+        header = read(jpeg(new byte[]{(byte) 0xFF, (byte) APP0, 0, 1}, frame(SOF0, 640, 480)));
+        assertFalse(header.hasBounds());
+
+        // scan data reached before any frame header.
+        header = read(jpeg(new byte[]{(byte) 0xFF, (byte) 0xDA, 0, 2}));
+        assertFalse(header.hasBounds());
+
+        // EXIF with a bad byte order mark, an IFD offset past the segment and an entry count past it.
+        byte[] badOrder = exif(true, 6);
+        badOrder[6] = 'X';
+        byte[] badOffset = exif(false, 6);
+        badOffset[6 + 4] = 0x7F;
+        byte[] badCount = Arrays.copyOf(exif(true, 6), 6 + 8 + 2 + 12 + 6); // orientation entry cut short
+        badCount[6 + 8] = (byte) 0xFF;
+        badCount[6 + 8 + 1] = (byte) 0xFF;
+
+        for (byte[] exif : new byte[][]{badOrder, badOffset, badCount, Arrays.copyOf(exif(true, 6), 10)}) {
+            header = read(jpeg(segment(APP1, exif), frame(SOF0, 640, 480)));
+            assertEquals(ImageHeader.ORIENTATION_UNDEFINED, header.orientation);
+            assertEquals(640, header.width);
+        }
+    }
+
+    @Test
+    public void returnsDefaultsForOtherFormats() throws IOException {
+
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R'};
+        byte[] gif = "GIF89a".getBytes("US-ASCII");
+
+        for (byte[] image : new byte[][]{png, gif, new byte[]{(byte) 0xFF}, new byte[0]}) {
+            ImageHeader header = read(image);
+            assertFalse(header.hasBounds());
+            assertEquals(ImageHeader.ORIENTATION_UNDEFINED, header.orientation);
+        }
+    }
+
+    @Test
+    public void mapsDegreesToOrientations() {
+
+        assertEquals(1, ImageHeader.fromDegrees(0));
+        assertEquals(6, ImageHeader.fromDegrees(90));
+        assertEquals(3, ImageHeader.fromDegrees(180));
+        assertEquals(8, ImageHeader.fromDegrees(270));
+        assertEquals(8, ImageHeader.fromDegrees(-90));
+        assertEquals(6, ImageHeader.fromDegrees(450));
+
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            assertEquals(orientation >= 5, ImageHeader.swapsDimensions(orientation));
+        }
+    }
+
+    private static ImageHeader read(byte[] image) throws IOException {
+        return ImageHeader.read(new ByteArrayInputStream(image));
+    }
+
+    private static byte[] jpeg(byte[]... segments) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        for (byte[] segment : segments) {
+            out.write(segment, 0, segment.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] segment(int marker, byte[] data) {
+
+        byte[] segment = new byte[4 + data.length];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) ((data.length + 2) >> 8);
+        segment[3] = (byte) (data.length + 2);
+        System.arraycopy(data, 0, segment, 4, data.length);
+        return segment;
+    }
+
+    private static byte[] frame(int marker, int width, int height) {
+        // precision, height, width, one component.
+        return segment(marker, new byte[]{8, (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                1, 1, 0x11, 0});
+    }
+
+    /**
+     * @return an EXIF segment whose first IFD holds a software tag and the orientation.
+     */
+    private static byte[] exif(boolean littleEndian, int orientation) {
+
+        byte[] exif = new byte[6 + 8 + 2 + 2 * 12 + 4];
+        System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, exif, 0, 6);
+
+        int tiff = 6;
+        exif[tiff] = exif[tiff + 1] = (byte) (littleEndian ? 'I' : 'M');
+        put(exif, tiff + 2, 2, 42, littleEndian);
+        put(exif, tiff + 4, 4, 8, littleEndian);
+
+        int ifd = tiff + 8;
+        put(exif, ifd, 2, 2, littleEndian);
+        // software, ASCII, 4 characters inline.
+        put(exif, ifd + 2, 2, 0x0131, littleEndian);
+        put(exif, ifd + 4, 2, 2, littleEndian);
+        put(exif, ifd + 6, 4, 4, littleEndian);
+        // orientation, SHORT, left-justified in the value field.
+        put(exif, ifd + 14, 2, 0x0112, littleEndian);
+        put(exif, ifd + 16, 2, 3, littleEndian);
+        put(exif, ifd + 18, 4, 1, littleEndian);
+        put(exif, ifd + 22, 2, orientation, littleEndian);
+        return exif;
+    }
+
+    private static void put(byte[] data, int offset, int size, int value, boolean littleEndian) {
+        for (int i = 0; i < size; i++) {
+            int shift = 8 * (littleEndian ? i : size - 1 - i);
+            data[offset + i] = (byte) (value >> shift);
+        }
+    }
+}
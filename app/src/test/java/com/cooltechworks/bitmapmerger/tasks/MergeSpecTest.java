@@ -0,0 +1,102 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MergeSpecTest {
+
+    private static final int[][] SIZES = {{96, 64}, {45, 31}, {1024, 768}, {7, 3}};
+
+    @Test
+    public void defaultAnglePlacementMatchesTrigonometry() {
+
+        for (int[] size : SIZES) {
+            for (int angle = 0; angle < 360; angle++) {
+
+                MergeSpec spec = MergeSpec.atAngle(0.3f, angle);
+                int radius = size[0] / 4;
+                int left = (int) (radius * Math.cos(Math.toRadians(angle)) + size[0] / 2) - spec.getOverlayWidth(size[0]) / 2;
+                int top = (int) (radius * Math.sin(Math.toRadians(angle)) + size[1] / 2) - spec.getOverlayHeight(size[1]) / 2;
+
+                assertEquals(size[0] + "x" + size[1] + " at " + angle, left, spec.getOverlayLeft(size[0], size[1]));
+                assertEquals(size[0] + "x" + size[1] + " at " + angle, top, spec.getOverlayTop(size[0], size[1]));
+            }
+        }
+    }
+
+    @Test
+    public void anglesOutsideOneTurnPlaceLikeTheirNormalizedAngle() {
+
+        for (int angle = -720; angle < 720; angle += 15) {
+
+            MergeSpec spec = MergeSpec.atAngle(0.3f, angle).withRadiusPixels(40);
+            MergeSpec normalized = spec.normalized();
+
+            assertEquals(spec.getOverlayLeft(200, 100), normalized.getOverlayLeft(200, 100));
+            assertEquals(spec.getOverlayTop(200, 100), normalized.getOverlayTop(200, 100));
+            assertEquals(40f, normalized.getRadius(), 0f);
+        }
+    }
+
+    @Test
+    public void placesPivotAtRadiusFromAnchor() {
+
+        // 200x100 base, overlay 0.2 -> 40x20.
+        MergeSpec relative = MergeSpec.atAngle(0.2f, 0).withRadius(0.5f);
+        assertEquals(100 + 100 - 20, relative.getOverlayLeft(200, 100));
+        assertEquals(50 - 10, relative.getOverlayTop(200, 100));
+
+        MergeSpec pixels = MergeSpec.atAngle(0.2f, 90).withRadiusPixels(30).withAnchor(0f, 0f).withPivot(0f, 1f);
+        assertEquals(0, pixels.getOverlayLeft(200, 100));
+        assertEquals(30 - 20, pixels.getOverlayTop(200, 100));
+
+        MergeSpec corner = MergeSpec.atCenter(0.2f).withAnchor(1f, 1f).withPivot(1f, 1f);
+        assertEquals(200 - 40, corner.getOverlayLeft(200, 100));
+        assertEquals(100 - 20, corner.getOverlayTop(200, 100));
+    }
+
+    @Test
+    public void describesOnlyChangedPlacement() {
+
+        assertEquals("MergeSpec{MERGE_AT_ANGLE_OFF, scale=0.3, angle=45, offsets=0,0}", MergeSpec.atAngle(0.3f, 45).toString());
+        assertEquals("MergeSpec{MERGE_AT_ANGLE_OFF, scale=0.3, angle=45, offsets=0,0, radius=12.0px, pivot=0.0,0.5}",
+                MergeSpec.atAngle(0.3f, 45).withRadiusPixels(12).withPivot(0f, 0.5f).toString());
+    }
+
+    @Test
+    public void trackInterpolatesPlacement() {
+
+        MergeTrack track = new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atAngle(0.2f, 0).withRadius(0.1f).withAnchor(0f, 0.5f))
+                .addKeyframe(1f, MergeSpec.atAngle(0.2f, 90).withRadius(0.3f).withAnchor(1f, 0.5f));
+
+        MergeSpec middle = track.getSpec(0.5f);
+
+        assertEquals(45, middle.getAngle());
+        assertEquals(0.2f, middle.getRadius(), 1e-6f);
+        assertEquals(0.5f, middle.getAnchorX(), 1e-6f);
+        assertEquals(0.5f, middle.getAnchorY(), 0f);
+        assertEquals(0.5f, middle.getPivotX(), 0f);
+    }
+
+    @Test
+    public void blendingIsPartOfTheSpec() {
+
+        MergeSpec spec = MergeSpec.atCenter(0.4f).withBlendMode(BlendMode.MULTIPLY).withOpacity(0.5f);
+
+        assertEquals("MergeSpec{MERGE_AT_CENTER, scale=0.4, angle=0, offsets=0,0, blend=MULTIPLY, opacity=0.5}", spec.toString());
+        assertEquals(spec, spec.normalized());
+        assertEquals(MergeSpec.atCenter(0.4f), MergeSpec.atCenter(0.4f).withBlendMode(BlendMode.NORMAL).withOpacity(1f));
+        assertFalse(spec.equals(MergeSpec.atCenter(0.4f).withOpacity(0.5f)));
+        assertFalse(MergeSpec.atCenter(0.4f).withOpacity(0f).hasOverlay());
+
+        MergeTrack track = new MergeTrack()
+                .addKeyframe(0f, spec.withOpacity(0f))
+                .addKeyframe(1f, spec.withOpacity(1f));
+
+        assertEquals(BlendMode.MULTIPLY, track.getSpec(0.5f).getBlendMode());
+        assertEquals(0.5f, track.getSpec(0.5f).getOpacity(), 1e-6f);
+    }
+}
@@ -0,0 +1,53 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MergeTrackTest {
+
+    @Test
+    public void interpolatesBetweenKeyframes() {
+
+        MergeTrack track = new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atAngle(0.2f, 0))
+                .addKeyframe(1f, MergeSpec.atAngle(0.6f, 360));
+
+        assertEquals(MergeSpec.atAngle(0.2f, 0), track.getSpec(0f));
+        assertEquals(MergeSpec.atAngle(0.6f, 360), track.getSpec(1f));
+        assertEquals(90, track.getSpec(0.25f).getAngle());
+        assertEquals(0.4f, track.getSpec(0.5f).getScale(), 1e-6f);
+    }
+
+    @Test
+    public void holdsOutsideKeyframesAndSortsThem() {
+
+        MergeTrack track = new MergeTrack()
+                .addKeyframe(0.75f, MergeSpec.fromTopLeft(0.5f, 100, 40))
+                .addKeyframe(0.25f, MergeSpec.fromTopLeft(0.5f, 0, 0));
+
+        assertEquals(MergeSpec.fromTopLeft(0.5f, 0, 0), track.getSpec(0f));
+        assertEquals(MergeSpec.fromTopLeft(0.5f, 100, 40), track.getSpec(1f));
+        assertEquals(MergeSpec.fromTopLeft(0.5f, 50, 20), track.getSpec(0.5f));
+    }
+
+    @Test
+    public void spansFramesFromFirstToLastKeyframe() {
+
+        MergeTrack track = new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atCenter(0f))
+                .addKeyframe(1f, MergeSpec.atCenter(1f));
+
+        assertEquals(0f, track.getFrameSpec(0, 5).getScale(), 0f);
+        assertEquals(0.5f, track.getFrameSpec(2, 5).getScale(), 1e-6f);
+        assertEquals(1f, track.getFrameSpec(4, 5).getScale(), 0f);
+        assertEquals(0f, track.getFrameSpec(0, 1).getScale(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMixedMergeOptions() {
+        new MergeTrack()
+                .addKeyframe(0f, MergeSpec.atCenter(0.5f))
+                .addKeyframe(1f, MergeSpec.atAngle(0.5f, 90));
+    }
+}
@@ -0,0 +1,61 @@
+package com.cooltechworks.bitmapmerger.tasks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SamplePlanTest {
+
+    private static final int NORMAL = 1;
+    private static final int ROTATE_90 = 6;
+
+    @Test
+    public void samplesMergeImageForItsCompositedSize() {
+
+        // 4000x3000 into a 1000x700 view -> 1/2 -> 2000x1500, overlay at 0.25 -> 500x375.
+        SamplePlan plan = SamplePlan.choose(4000, 3000, NORMAL, 1000, 700, 4000, 3000, NORMAL, MergeSpec.atCenter(0.25f));
+
+        assertEquals(2, plan.getBaseSampleSize());
+        assertEquals(2000, plan.getBaseWidth());
+        assertEquals(1500, plan.getBaseHeight());
+        assertEquals(500, plan.getMergeWidth());
+        assertEquals(375, plan.getMergeHeight());
+        // sampled for the overlay, not for the view as a separate decode would.
+        assertEquals(4, plan.getMergeSampleSize());
+        assertEquals(SamplePlan.calculateInSampleSize(4000, 3000, 1000, 700), plan.getBaseSampleSize());
+    }
+
+    @Test
+    public void followsOrientationOfBothImages() {
+
+        // rotated base: stored 4000x3000, shown 3000x4000.
+        SamplePlan plan = SamplePlan.choose(4000, 3000, ROTATE_90, 700, 1000, 3000, 4000, ROTATE_90, MergeSpec.atCenter(0.5f));
+
+        assertEquals(2, plan.getBaseSampleSize());
+        assertEquals(1500, plan.getBaseWidth());
+        assertEquals(2000, plan.getBaseHeight());
+        assertEquals(750, plan.getMergeWidth());
+        assertEquals(1000, plan.getMergeHeight());
+        // merge stored 3000x4000, upright 4000x3000, needed at 750x1000 upright -> 1000x750 as stored.
+        assertEquals(SamplePlan.calculateInSampleSize(3000, 4000, 1000, 750), plan.getMergeSampleSize());
+    }
+
+    @Test
+    public void roundsSampledSizeUp() {
+
+        SamplePlan plan = SamplePlan.choose(1001, 801, NORMAL, 200, 200, 100, 100, NORMAL, MergeSpec.atCenter(0.5f));
+
+        assertEquals(2, plan.getBaseSampleSize());
+        assertEquals(501, plan.getBaseWidth());
+        assertEquals(401, plan.getBaseHeight());
+    }
+
+    @Test
+    public void needsNoMergeImageWithoutOverlay() {
+
+        SamplePlan plan = SamplePlan.choose(800, 600, NORMAL, 400, 300, 800, 600, NORMAL, MergeSpec.atCenter(0f));
+
+        assertEquals(0, plan.getMergeSampleSize());
+        assertEquals(0, plan.getMergeWidth());
+    }
+}